@@ -0,0 +1,158 @@
+package edu.uwm.twee.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.rules.FastPartitioner;
+import org.eclipse.jface.text.rules.IPartitionTokenScanner;
+
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * Compare the throughput of the rule-based partition scanner
+ * with the hand-written one, after checking they produce the
+ * same partitions.  Run with .tw files as arguments;
+ * without arguments a synthetic story is used.
+ */
+public class PartitionScannerComparison {
+
+	public static final String[] LEGAL_CONTENT_TYPES = {
+			TweePartitionScanner.XML_TAG,
+			TweePartitionScanner.SC_MACRO,
+			TweePartitionScanner.SC_LINK,
+			TweePartitionScanner.SC_CODE,
+			TweePartitionScanner.SC_HEADER,
+			TweePartitionScanner.TW_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT_PASSAGE,
+			TweePartitionScanner.TW_STYLESHEET_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT,
+			TweePartitionScanner.TW_STYLESHEET,
+			TweePartitionScanner.JS_COMMENT,
+			TweePartitionScanner.XML_COMMENT };
+
+	private static final int WARMUP = 5;
+	private static final int ITERATIONS = 20;
+
+	/**
+	 * Partition the whole document with a fresh partitioner using the given scanner.
+	 * @param document document to partition (partitioner is disconnected afterwards)
+	 * @param scanner scanner to use
+	 * @return partitions computed
+	 */
+	public static ITypedRegion[] partition(IDocument document, IPartitionTokenScanner scanner) {
+		FastPartitioner partitioner = new FastPartitioner(scanner, LEGAL_CONTENT_TYPES);
+		partitioner.connect(document);
+		try {
+			return partitioner.computePartitioning(0, document.getLength());
+		} finally {
+			partitioner.disconnect();
+		}
+	}
+
+	/**
+	 * Return the mean time (in nanoseconds) to partition the document.
+	 */
+	private static double time(IDocument document, boolean ruleBased) {
+		long total = 0;
+		for (int i=0; i < WARMUP + ITERATIONS; ++i) {
+			IPartitionTokenScanner scanner = ruleBased ? new RuleBasedTweePartitionScanner() : new TweePartitionScanner();
+			long start = System.nanoTime();
+			partition(document, scanner);
+			long elapsed = System.nanoTime() - start;
+			if (i >= WARMUP) total += elapsed;
+		}
+		return (double)total / ITERATIONS;
+	}
+
+	/**
+	 * Return the mean time (in nanoseconds) to scan the document
+	 * without building partitions.
+	 */
+	private static double timeScan(IDocument document, boolean ruleBased) {
+		long total = 0;
+		for (int i=0; i < WARMUP + ITERATIONS; ++i) {
+			IPartitionTokenScanner scanner = ruleBased ? new RuleBasedTweePartitionScanner() : new TweePartitionScanner();
+			long start = System.nanoTime();
+			scanner.setRange(document, 0, document.getLength());
+			while (!scanner.nextToken().isEOF()) {
+				// just scan
+			}
+			long elapsed = System.nanoTime() - start;
+			if (i >= WARMUP) total += elapsed;
+		}
+		return (double)total / ITERATIONS;
+	}
+
+	/**
+	 * Return the index of the first partition that differs, or -1 if they are the same.
+	 */
+	public static int firstDifference(ITypedRegion[] a, ITypedRegion[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i=0; i < n; ++i) {
+			if (a[i].getOffset() != b[i].getOffset() || a[i].getLength() != b[i].getLength() ||
+					!a[i].getType().equals(b[i].getType())) return i;
+		}
+		return a.length == b.length ? -1 : n;
+	}
+
+	/**
+	 * Return a simple synthetic story of roughly the given size.
+	 */
+	public static String syntheticStory(int size) {
+		StringBuilder sb = new StringBuilder();
+		int n = 0;
+		while (sb.length() < size) {
+			++n;
+			sb.append(":: Passage").append(n).append(" [tag").append(n % 7).append("] {\"position\":\"100,100\"}\n");
+			sb.append("Some text for passage ").append(n).append(" with <<set $count to ").append(n).append(">> a macro\n");
+			sb.append("and <span class=\"x\">some HTML</span> and a [[link|Passage").append(n+1).append("]].\n");
+			sb.append("<<if $count gt 3>>More <em>text</em>.<<else>>{{{code}}}<</if>>\n");
+			sb.append("/* a comment */ <!-- another comment --> and a < b comparison.\n\n");
+		}
+		return sb.toString();
+	}
+
+	private static void report(String what, double mb, double ruleBased, double handWritten) {
+		System.out.println("  " + what + ":");
+		System.out.printf("    rule-based:   %8.1f ms  %7.2f MB/s%n", ruleBased / 1e6, mb / (ruleBased / 1e9));
+		System.out.printf("    hand-written: %8.1f ms  %7.2f MB/s%n", handWritten / 1e6, mb / (handWritten / 1e9));
+		System.out.printf("    speedup:      %8.1fx%n", ruleBased / handWritten);
+	}
+
+	public static void main(String[] args) throws IOException, BadLocationException {
+		List<String> names = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		for (String f : args) {
+			names.add(f);
+			texts.add(new String(Files.readAllBytes(Paths.get(f)), StandardCharsets.UTF_8));
+		}
+		if (texts.isEmpty()) {
+			names.add("synthetic story");
+			texts.add(syntheticStory(4 << 20));
+		}
+		for (int i=0; i < texts.size(); ++i) {
+			IDocument document = new Document(texts.get(i));
+			ITypedRegion[] expected = partition(document, new RuleBasedTweePartitionScanner());
+			ITypedRegion[] actual = partition(document, new TweePartitionScanner());
+			int diff = firstDifference(expected, actual);
+			if (diff >= 0) {
+				System.out.println(names.get(i) + ": partitions differ at #" + diff);
+				System.out.println("  rule-based:   " + (diff < expected.length ? expected[diff] : "none"));
+				System.out.println("  hand-written: " + (diff < actual.length ? actual[diff] : "none"));
+				continue;
+			}
+			double mb = document.getLength() / (1024.0 * 1024.0);
+			System.out.printf("%s: %.2f MB, %d partitions%n", names.get(i), mb, actual.length);
+			report("scan only", mb, timeScan(document, true), timeScan(document, false));
+			report("partitioning", mb, time(document, true), time(document, false));
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package edu.uwm.twee.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.AnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.ISourceViewer;
+
+import edu.uwm.eclipse.util.ReconcileScheduler;
+import edu.uwm.eclipse.util.ReconcilerFixed;
+import edu.uwm.eclipse.util.RopeDocument;
+import edu.uwm.twee.editors.SugarCubeMacroAnnotation;
+import edu.uwm.twee.editors.SugarCubeMacroChecker;
+import edu.uwm.twee.editors.TweeDocumentProvider;
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * Measures the latency of diagnostics: how long after an edit
+ * the annotation model is up to date again.  The editor's document, partitioner,
+ * reconciler and macro checker are set up as in the editor, but without
+ * a workbench or a display: the viewer the strategies are given only
+ * holds the document and the annotation model.
+ * (The outline and the spelling checker need the workbench, so they are not run.)
+ * <p>
+ * Scripts of edits are replayed against a generated story:
+ * <dl>
+ * <dt>typing</dt><dd>type a macro call (half the time, of an unknown macro)
+ * a character at a time into a passage</dd>
+ * <dt>paste</dt><dd>paste a copy of a passage before another one</dd>
+ * <dt>delete</dt><dd>delete a whole passage</dd>
+ * </dl>
+ * Each step of a script is timed from its last change until the reconciler has
+ * reconciled it and the annotation model has stopped changing,
+ * and the median and 99th percentile of the steps are reported.
+ * <p>
+ * Run as a program with settings given as <code>-name value</code>:
+ * <code>-passages</code> (size of the story), <code>-seed</code>,
+ * <code>-steps</code> (per script), <code>-warmup</code> (steps not counted),
+ * <code>-interval</code> (ms between keystrokes when typing),
+ * <code>-script</code> (one script to run instead of all of them)
+ * and <code>-max</code> (ms): if a script's 99th percentile is greater,
+ * the program exits with status 1, so that regressions can be caught in automated runs.
+ */
+public class ReconcileLatency {
+
+	/** How long (ms) to wait for an edit to be reconciled before giving up. */
+	private static final long TIMEOUT = 60000;
+
+	private int fPassages = 1000;
+	private long fSeed = 1;
+	private int fSteps = 50;
+	private int fWarmup = 5;
+	private int fInterval = 80;
+
+	private IDocument fDocument;
+	private IAnnotationModel fModel;
+	private ReconcilerFixed fReconciler;
+	private Random fRandom;
+	private volatile long fLastModelChange;
+
+	/**
+	 * A source viewer with a document and an annotation model, and nothing else:
+	 * every other method does nothing and returns null, zero or false.
+	 */
+	private static ISourceViewer createViewer(IDocument document, IAnnotationModel model) {
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getDocument": return document;
+				case "getAnnotationModel": case "getVisualAnnotationModel": return model;
+				case "equals": return proxy == args[0];
+				case "hashCode": return System.identityHashCode(proxy);
+				case "toString": return "headless viewer";
+				default: return defaultValue(method.getReturnType());
+				}
+			}
+		};
+		return (ISourceViewer) Proxy.newProxyInstance(ReconcileLatency.class.getClassLoader(),
+				new Class<?>[] { ISourceViewer.class }, handler);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) return null;
+		if (type == boolean.class) return false;
+		if (type == char.class) return '\0';
+		if (type == long.class) return 0L;
+		if (type == float.class) return 0f;
+		if (type == double.class) return 0.0;
+		if (type == byte.class) return (byte) 0;
+		if (type == short.class) return (short) 0;
+		return 0;
+	}
+
+	/**
+	 * Open the generated story as the editor would, and wait for the initial reconcile.
+	 */
+	private void open() {
+		StoryGenerator generator = new StoryGenerator(fSeed);
+		generator.setPassages(fPassages);
+		fDocument = new RopeDocument();
+		fDocument.set(generator.generate());
+		TweeDocumentProvider.connectPartitioner(fDocument, new TweePartitionScanner(true, true));
+		fModel = new AnnotationModel();
+		fModel.connect(fDocument);
+		fModel.addAnnotationModelListener((model) -> fLastModelChange = System.nanoTime());
+		ISourceViewer viewer = createViewer(fDocument, fModel);
+		fReconciler = new ReconcilerFixed();
+		fReconciler.setDocumentPartitioning(IDocumentExtension3.DEFAULT_PARTITIONING);
+		fReconciler.setReconcilingStrategy(new SugarCubeMacroChecker(viewer), TweePartitionScanner.SC_MACRO);
+		fReconciler.setChunkBoundaries(TweePartitionScanner.PASSAGE_HEADER_TYPES);
+		ReconcileScheduler.getDefault().setFocused(fReconciler);
+		long start = System.nanoTime();
+		fReconciler.install(viewer);
+		waitUntilReconciled(start);
+		System.out.printf("%d passages, %d chars: initial reconcile %.1f ms, %d macro problems%n",
+				fPassages, fDocument.getLength(), (System.nanoTime() - start) / 1e6, countProblems());
+	}
+
+	private void close() {
+		fReconciler.uninstall();
+		fModel.disconnect(fDocument);
+	}
+
+	/**
+	 * Wait until the edit made at the given time is reconciled,
+	 * and return how long it took to be reflected in the annotation model.
+	 * @param edited time (ns) of the edit
+	 * @return latency in nanoseconds
+	 */
+	private long waitUntilReconciled(long edited) {
+		long deadline = edited + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+		while (!fReconciler.isReconciled()) {
+			if (System.nanoTime() > deadline) throw new IllegalStateException("edit not reconciled in " + TIMEOUT + " ms");
+			LockSupport.parkNanos(100000);
+		}
+		long now = System.nanoTime();
+		return Math.max(now, fLastModelChange) - edited;
+	}
+
+	private int countProblems() {
+		int count = 0;
+		for (Iterator<Annotation> it = fModel.getAnnotationIterator(); it.hasNext(); ) {
+			if (SugarCubeMacroAnnotation.TYPE.equals(it.next().getType())) ++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Return the headers of the passages, in document order.
+	 */
+	private List<ITypedRegion> getHeaders() throws BadLocationException {
+		List<ITypedRegion> headers = new ArrayList<>();
+		for (ITypedRegion r : TextUtilities.computePartitioning(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, 0, fDocument.getLength(), false)) {
+			if (TweePartitionScanner.isPassageHeader(r.getType())) headers.add(r);
+		}
+		return headers;
+	}
+
+	/**
+	 * Return the start and end of a passage chosen at random (not the last one).
+	 */
+	private int[] choosePassage() throws BadLocationException {
+		List<ITypedRegion> headers = getHeaders();
+		int i = fRandom.nextInt(headers.size() - 1);
+		return new int[] { headers.get(i).getOffset(), headers.get(i + 1).getOffset() };
+	}
+
+	/**
+	 * Perform one step of a script.
+	 * @param script name of script
+	 * @return time (ns) of the last change of the step
+	 */
+	private long step(String script) throws BadLocationException {
+		int[] passage = choosePassage();
+		switch (script) {
+		case "typing": {
+			// type at the end of the first line of the passage's body
+			int line = fDocument.getLineOfOffset(passage[0]) + 1;
+			int offset = fDocument.getLineOffset(line) + fDocument.getLineLength(line) - fDocument.getLineDelimiter(line).length();
+			// every other call is of a macro that doesn't exist, so that problems come and go
+			String text = (fRandom.nextBoolean() ? " <<set $v" : " <<sett $v") + fRandom.nextInt(50) + " to 1>>";
+			long last = 0;
+			for (int i=0; i < text.length(); ++i) {
+				if (i > 0) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(fInterval));
+				fDocument.replace(offset + i, 0, text.substring(i, i + 1));
+				last = System.nanoTime();
+			}
+			return last;
+		}
+		case "paste": {
+			String copy = fDocument.get(passage[0], passage[1] - passage[0]);
+			int[] before = choosePassage();
+			fDocument.replace(before[0], 0, copy);
+			return System.nanoTime();
+		}
+		case "delete":
+			fDocument.replace(passage[0], passage[1] - passage[0], "");
+			return System.nanoTime();
+		default:
+			throw new IllegalArgumentException("unknown script " + script);
+		}
+	}
+
+	/**
+	 * Run a script and report its latencies.
+	 * @param script name of script
+	 * @return 99th percentile of latencies (ms)
+	 */
+	private double run(String script) throws BadLocationException {
+		fRandom = new Random(fSeed);
+		double[] latencies = new double[fSteps];
+		for (int i=0; i < fWarmup + fSteps; ++i) {
+			long edited = step(script);
+			double ms = waitUntilReconciled(edited) / 1e6;
+			if (i >= fWarmup) latencies[i - fWarmup] = ms;
+		}
+		Arrays.sort(latencies);
+		double p99 = percentile(latencies, 0.99);
+		System.out.printf("%-7s p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms  (%d steps, %d macro problems)%n",
+				script, percentile(latencies, 0.5), p99, latencies[latencies.length - 1], fSteps, countProblems());
+		return p99;
+	}
+
+	/**
+	 * Return a percentile of sorted values (the nearest rank).
+	 */
+	private static double percentile(double[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	public static void main(String[] args) throws BadLocationException {
+		ReconcileLatency harness = new ReconcileLatency();
+		List<String> scripts = new ArrayList<>(Arrays.asList("typing", "paste", "delete"));
+		double max = Double.MAX_VALUE;
+		if (args.length % 2 != 0) {
+			System.err.println("usage: ReconcileLatency [-passages n] [-seed n] [-steps n] [-warmup n] [-interval ms]");
+			System.err.println("       [-script typing|paste|delete] [-max ms]");
+			System.exit(1);
+		}
+		for (int i=0; i + 1 < args.length; i += 2) {
+			String v = args[i+1];
+			switch (args[i]) {
+			case "-passages": harness.fPassages = Integer.parseInt(v); break;
+			case "-seed": harness.fSeed = Long.parseLong(v); break;
+			case "-steps": harness.fSteps = Integer.parseInt(v); break;
+			case "-warmup": harness.fWarmup = Integer.parseInt(v); break;
+			case "-interval": harness.fInterval = Integer.parseInt(v); break;
+			case "-script": scripts = Arrays.asList(v); break;
+			case "-max": max = Double.parseDouble(v); break;
+			default:
+				System.err.println("unknown setting " + args[i]);
+				System.exit(1);
+			}
+		}
+		harness.open();
+		boolean slow = false;
+		try {
+			for (String script : scripts) {
+				if (harness.run(script) > max) slow = true;
+			}
+		} finally {
+			harness.close();
+		}
+		if (slow) {
+			System.out.println("99th percentile latency over " + max + " ms");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
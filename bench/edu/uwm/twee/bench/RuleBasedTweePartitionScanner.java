@@ -0,0 +1,45 @@
+package edu.uwm.twee.bench;
+
+import org.eclipse.jface.text.rules.IPredicateRule;
+import org.eclipse.jface.text.rules.IToken;
+import org.eclipse.jface.text.rules.MultiLineRule;
+import org.eclipse.jface.text.rules.RuleBasedPartitionScanner;
+import org.eclipse.jface.text.rules.Token;
+
+import edu.uwm.eclipse.util.WholeLineRule;
+import edu.uwm.twee.editors.SCTagRule;
+import edu.uwm.twee.editors.TagRule;
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * The original rule-based partition scanner for Twee,
+ * kept as the reference the hand-written {@link TweePartitionScanner}
+ * is compared against.
+ */
+public class RuleBasedTweePartitionScanner extends RuleBasedPartitionScanner {
+
+	public RuleBasedTweePartitionScanner() {
+
+		IToken xmlComment = new Token(TweePartitionScanner.XML_COMMENT);
+		IToken twPassage = new Token(TweePartitionScanner.TW_PASSAGE);
+		IToken scCode = new Token(TweePartitionScanner.SC_CODE);
+		IToken scLink = new Token(TweePartitionScanner.SC_LINK);
+		// IToken scHeader = new Token(TweePartitionScanner.SC_HEADER);
+		IToken tag = new Token(TweePartitionScanner.XML_TAG);
+		IToken sctag = new Token(TweePartitionScanner.SC_MACRO);
+		IToken jsComment = new Token(TweePartitionScanner.JS_COMMENT);
+
+		IPredicateRule[] rules = new IPredicateRule[7];
+
+		rules[0] = new MultiLineRule("<!--", "-->", xmlComment);
+		rules[1] = new MultiLineRule("{{{","}}}", scCode);
+		rules[2] = new MultiLineRule("[[","]]", scLink);
+		rules[3] = new MultiLineRule("/*","*/", jsComment);
+		// rules[4] = new WholeLineRule("!",scHeader);
+		rules[4] = new WholeLineRule("::",twPassage);
+		rules[5] = new TagRule(tag);
+		rules[6] = new SCTagRule(sctag);
+
+		setPredicateRules(rules);
+	}
+}
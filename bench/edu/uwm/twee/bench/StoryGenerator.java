@@ -0,0 +1,346 @@
+package edu.uwm.twee.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import edu.uwm.twee.macro.MacroSyntax;
+import edu.uwm.twee.macro.MacroSyntax.ArgumentSyntax;
+import edu.uwm.twee.wizards.NewTwee;
+import edu.uwm.util.JSONReader;
+import edu.uwm.util.Resource;
+
+/**
+ * Generates synthetic Twee stories of a given shape, for measuring how
+ * the cost of editing grows with the size of a story.
+ * The same seed and settings always give the same story.
+ * Macro calls use the macros in <code>macros.json</code> with
+ * the right number of arguments, so that the macro checker accepts them.
+ * <p>
+ * Run as a program with settings given as <code>-name value</code>
+ * (for example <code>-passages 10000 -seed 3 -o big.tw</code>);
+ * without <code>-o</code> the story is written to standard output.
+ */
+public class StoryGenerator {
+
+	private static final String[] WORDS = {
+			"the", "a", "door", "opens", "into", "dark", "hall", "where", "you", "see",
+			"an", "old", "lantern", "and", "some", "stairs", "leading", "down", "quietly",
+			"she", "says", "nothing", "but", "waits", "for", "your", "answer", "while",
+			"rain", "falls", "outside", "window", "letter", "on", "table", "is", "sealed",
+	};
+	private static final String[] TAGS = { "forest", "town", "night", "ending", "combat", "shop", "dream" };
+	private static final String[] HTML = { "em", "strong", "span", "div" };
+
+	private final long fSeed;
+	private int fPassages = 1000;
+	private int fWordsPerPassage = 80;
+	private double fMacroDensity = 3;
+	private double fLinkDensity = 2;
+	private int fIfDepth = 2;
+	private int fScriptPassages = 1;
+	private int fScriptLines = 200;
+	private int fDataUris = 0;
+	private int fDataUriBytes = 16 * 1024;
+
+	private final Map<String, MacroSyntax> fMacros = new TreeMap<>();
+	private final List<String> fMacroNames = new ArrayList<>();
+	/** Macros that are declared with nested macros, and so are given a body. */
+	private final Set<String> fContainers = new HashSet<>();
+
+	private Random fRandom;
+	private int fNextVariable;
+
+	/**
+	 * Prepare to generate stories with the given seed and the default settings.
+	 * @param seed seed of random choices
+	 */
+	public StoryGenerator(long seed) {
+		fSeed = seed;
+		loadMacros();
+	}
+
+	/** Set the number of normal passages (not counting script passages). */
+	public void setPassages(int passages) {
+		fPassages = passages;
+	}
+
+	/** Set the average number of words in a normal passage. */
+	public void setWordsPerPassage(int words) {
+		fWordsPerPassage = words;
+	}
+
+	/** Set the average number of macro calls per 100 words. */
+	public void setMacroDensity(double callsPer100Words) {
+		fMacroDensity = callsPer100Words;
+	}
+
+	/** Set the average number of links in a passage. */
+	public void setLinkDensity(double linksPerPassage) {
+		fLinkDensity = linksPerPassage;
+	}
+
+	/** Set the deepest nesting of <code>&lt;&lt;if&gt;&gt;</code> (0 for none). */
+	public void setIfDepth(int depth) {
+		fIfDepth = depth;
+	}
+
+	/** Set the number of passages tagged <code>script</code>. */
+	public void setScriptPassages(int passages) {
+		fScriptPassages = passages;
+	}
+
+	/** Set the number of lines of JavaScript in each script passage. */
+	public void setScriptLines(int lines) {
+		fScriptLines = lines;
+	}
+
+	/** Set the number of images embedded as data URIs (spread over the passages). */
+	public void setDataUris(int count) {
+		fDataUris = count;
+	}
+
+	/** Set the number of bytes in each image embedded as a data URI. */
+	public void setDataUriBytes(int bytes) {
+		fDataUriBytes = bytes;
+	}
+
+	private void loadMacros() {
+		try (InputStream in = Resource.getStream("macros.json")) {
+			if (in == null) throw new IllegalStateException("cannot find macros.json");
+			try (JSONReader r = new JSONReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+				Object dict = r.next();
+				if (!(dict instanceof Map<?,?>)) throw new IllegalStateException("macros.json is not an object: " + dict);
+				for (Map.Entry<?,?> e : ((Map<?,?>)dict).entrySet()) {
+					fMacros.put((String)e.getKey(), MacroSyntax.fromJSON(e.getValue()));
+					// (every macro written as an object accepts an end tag, but few expect one)
+					if (e.getValue() instanceof Object[] ||
+							e.getValue() instanceof Map<?,?> && ((Map<?,?>)e.getValue()).containsKey("nestedMacros")) {
+						fContainers.add((String)e.getKey());
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("cannot read macros.json", e);
+		}
+		for (Map.Entry<String, MacroSyntax> e : fMacros.entrySet()) {
+			// nested macros (like else) are only generated where they belong
+			if (!e.getValue().isNested() && !e.getKey().equals("if")) fMacroNames.add(e.getKey());
+		}
+	}
+
+	/**
+	 * Generate a story.
+	 * @return text of story
+	 */
+	public String generate() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			generate(sb);
+		} catch (IOException e) {
+			throw new AssertionError("StringBuilder threw " + e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Generate a story, writing it as it is generated.
+	 * @param out where to write story
+	 * @throws IOException if writing fails
+	 */
+	public void generate(Appendable out) throws IOException {
+		fRandom = new Random(fSeed);
+		fNextVariable = 0;
+		out.append(":: StoryTitle\nGenerated story ").append(Long.toString(fSeed)).append("\n\n");
+		out.append(":: StoryData\n{\n");
+		out.append("\t\"ifid\": \"").append(NewTwee.newIFID(fRandom)).append("\",\n");
+		out.append("\t\"format\": \"SugarCube\",\n");
+		out.append("\t\"format-version\": \"2.30.0\",\n");
+		out.append("\t\"start\": \"Start\"\n}\n\n");
+		for (int i=0; i < fScriptPassages; ++i) {
+			out.append(":: Script ").append(Integer.toString(i + 1)).append(" [script]\n");
+			for (int j=0; j < fScriptLines; ++j) {
+				appendScriptLine(out, j);
+			}
+			out.append('\n');
+		}
+		// data URIs go into evenly spaced passages
+		int uriEvery = fDataUris == 0 ? 0 : Math.max(1, fPassages / fDataUris);
+		int uris = 0;
+		for (int i=0; i < fPassages; ++i) {
+			out.append(":: ").append(passageName(i));
+			if (fRandom.nextInt(3) == 0) {
+				out.append(" [").append(TAGS[fRandom.nextInt(TAGS.length)]);
+				if (fRandom.nextBoolean()) out.append(' ').append(TAGS[fRandom.nextInt(TAGS.length)]);
+				out.append(']');
+			}
+			out.append(" {\"position\":\"").append(Integer.toString(100 * (i % 50)))
+				.append(',').append(Integer.toString(100 * (i / 50))).append("\",\"size\":\"100,100\"}\n");
+			if (uriEvery > 0 && uris < fDataUris && i % uriEvery == 0) {
+				appendDataUri(out);
+				++uris;
+			}
+			appendBody(out, fWordsPerPassage / 2 + fRandom.nextInt(fWordsPerPassage + 1), fIfDepth);
+			out.append("\n\n");
+		}
+	}
+
+	private String passageName(int i) {
+		return i == 0 ? "Start" : "Passage " + i;
+	}
+
+	/**
+	 * Append text with macro calls and links, and perhaps an <code>&lt;&lt;if&gt;&gt;</code>
+	 * whose branches have text of the same kind, nested up to the given depth.
+	 */
+	private void appendBody(Appendable out, int words, int depth) throws IOException {
+		double macroChance = fMacroDensity / 100;
+		double linkChance = fWordsPerPassage == 0 ? 0 : fLinkDensity / fWordsPerPassage;
+		int ifAt = depth > 0 && fRandom.nextInt(3) > 0 ? fRandom.nextInt(words + 1) : -1;
+		for (int w=0; w < words; ++w) {
+			if (w == ifAt) appendIf(out, words / 3, depth);
+			if (w > 0) out.append(w % 12 == 0 ? '\n' : ' ');
+			String word = WORDS[fRandom.nextInt(WORDS.length)];
+			if (fRandom.nextInt(40) == 0) {
+				String tag = HTML[fRandom.nextInt(HTML.length)];
+				out.append('<').append(tag).append('>').append(word).append("</").append(tag).append('>');
+			} else {
+				out.append(word);
+			}
+			if (fRandom.nextDouble() < macroChance) {
+				out.append(' ');
+				appendMacro(out);
+			}
+			if (fRandom.nextDouble() < linkChance) {
+				out.append(' ');
+				appendLink(out, word);
+			}
+		}
+		if (ifAt == words) appendIf(out, words / 3, depth);
+	}
+
+	private void appendIf(Appendable out, int words, int depth) throws IOException {
+		String v = variable();
+		out.append("<<if ").append(v).append(" gt ").append(Integer.toString(fRandom.nextInt(10))).append(">>");
+		appendBody(out, words, depth - 1);
+		if (fRandom.nextBoolean()) {
+			out.append("<<elseif ").append(v).append(" is 0>>");
+			appendBody(out, words, depth - 1);
+		}
+		if (fRandom.nextBoolean()) {
+			out.append("<<else>>");
+			appendBody(out, words, depth - 1);
+		}
+		out.append("<</if>>");
+	}
+
+	private void appendMacro(Appendable out) throws IOException {
+		String name = fMacroNames.get(fRandom.nextInt(fMacroNames.size()));
+		MacroSyntax syntax = fMacros.get(name);
+		out.append("<<").append(name);
+		ArgumentSyntax as = syntax.getArgumentSyntax();
+		int max = syntax.getMaxArguments();
+		if (as != null && max > 0) {
+			int min = syntax.getMinArguments();
+			int n = min + fRandom.nextInt(Math.min(max, min + 2) - min + 1);
+			switch (as) {
+			case EXPRESSION:
+				out.append(' ').append(variable()).append(" + ").append(Integer.toString(fRandom.nextInt(100)));
+				break;
+			case COMMASEP:
+			case NORMAL:
+				for (int i=0; i < n; ++i) {
+					if (i > 0 && as == ArgumentSyntax.COMMASEP) out.append(',');
+					out.append(" \"").append(WORDS[fRandom.nextInt(WORDS.length)]).append('"');
+				}
+				break;
+			}
+		}
+		out.append(">>");
+		if (fContainers.contains(name)) {
+			out.append(WORDS[fRandom.nextInt(WORDS.length)]).append("<</").append(name).append(">>");
+		}
+	}
+
+	private void appendLink(Appendable out, String word) throws IOException {
+		String target = passageName(fRandom.nextInt(Math.max(1, fPassages)));
+		switch (fRandom.nextInt(3)) {
+		case 0: out.append("[[").append(target).append("]]"); break;
+		case 1: out.append("[[").append(word).append('|').append(target).append("]]"); break;
+		default: out.append("[[").append(word).append("->").append(target).append("]]"); break;
+		}
+	}
+
+	private void appendScriptLine(Appendable out, int line) throws IOException {
+		switch (line % 4) {
+		case 0: out.append("/* setup ").append(Integer.toString(line)).append(" */\n"); break;
+		case 1: out.append("setup.value").append(Integer.toString(line)).append(" = ")
+			.append(Integer.toString(fRandom.nextInt(1000))).append(";\n"); break;
+		case 2: out.append("if (State.variables.v").append(Integer.toString(line))
+			.append(" < 10) { State.variables.v").append(Integer.toString(line)).append("++; }\n"); break;
+		default: out.append("$(document).on(':passagestart', function (ev) { console.log(\"<<\" + ev.passage.title + \">>\"); });\n"); break;
+		}
+	}
+
+	private void appendDataUri(Appendable out) throws IOException {
+		byte[] image = new byte[fDataUriBytes];
+		fRandom.nextBytes(image);
+		out.append("<img src=\"data:image/png;base64,").append(Base64.getEncoder().encodeToString(image)).append("\">\n");
+	}
+
+	private String variable() {
+		return "$v" + (fNextVariable++ % 50);
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seed = 1;
+		String output = null;
+		StoryGenerator g = null;
+		List<String[]> settings = new ArrayList<>();
+		for (int i=0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-seed": seed = Long.parseLong(args[i+1]); break;
+			case "-o": output = args[i+1]; break;
+			default: settings.add(new String[] { args[i], args[i+1] }); break;
+			}
+		}
+		if (args.length % 2 != 0) {
+			System.err.println("usage: StoryGenerator [-seed n] [-o file] [-passages n] [-words n] [-macros per100words]");
+			System.err.println("       [-links perPassage] [-ifdepth n] [-scripts n] [-scriptlines n] [-datauris n] [-datauribytes n]");
+			System.exit(1);
+		}
+		g = new StoryGenerator(seed);
+		for (String[] s : settings) {
+			String v = s[1];
+			switch (s[0]) {
+			case "-passages": g.setPassages(Integer.parseInt(v)); break;
+			case "-words": g.setWordsPerPassage(Integer.parseInt(v)); break;
+			case "-macros": g.setMacroDensity(Double.parseDouble(v)); break;
+			case "-links": g.setLinkDensity(Double.parseDouble(v)); break;
+			case "-ifdepth": g.setIfDepth(Integer.parseInt(v)); break;
+			case "-scripts": g.setScriptPassages(Integer.parseInt(v)); break;
+			case "-scriptlines": g.setScriptLines(Integer.parseInt(v)); break;
+			case "-datauris": g.setDataUris(Integer.parseInt(v)); break;
+			case "-datauribytes": g.setDataUriBytes(Integer.parseInt(v)); break;
+			default:
+				System.err.println("unknown setting " + s[0]);
+				System.exit(1);
+			}
+		}
+		try (Writer w = new OutputStreamWriter(output == null ? System.out : new FileOutputStream(output), StandardCharsets.UTF_8)) {
+			g.generate(w);
+		}
+	}
+}
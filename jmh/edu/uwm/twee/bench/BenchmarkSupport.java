@@ -0,0 +1,229 @@
+package edu.uwm.twee.bench;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentPartitioningChangedEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IDocumentPartitioningListener;
+import org.eclipse.jface.text.IDocumentPartitioningListenerExtension2;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.presentation.IPresentationDamager;
+import org.eclipse.jface.text.presentation.IPresentationReconciler;
+import org.eclipse.jface.text.presentation.IPresentationRepairer;
+import org.eclipse.jface.text.rules.FastPartitioner;
+import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.RGB;
+
+import edu.uwm.eclipse.util.ColorManager;
+import edu.uwm.eclipse.util.RopeDocument;
+import edu.uwm.twee.editors.TweeConfiguration;
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * Headless versions of what the editor does to present a document,
+ * for the benchmarks.  Presentation uses the damagers and repairers
+ * that {@link TweeConfiguration} configures, and does what
+ * {@link org.eclipse.jface.text.presentation.PresentationReconciler} does with them,
+ * but without a text viewer or a display.
+ */
+public final class BenchmarkSupport {
+
+	private BenchmarkSupport() { }
+
+	/**
+	 * A color manager that needs no display: every color is the default.
+	 */
+	public static class HeadlessColorManager extends ColorManager {
+		@Override
+		public Color getColor(RGB rgb) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a document of the given kind, without a partitioner.
+	 * @param kind "Document" for a jface.text document, "RopeDocument" for the editor's
+	 * @param text text of document
+	 * @return new document
+	 */
+	public static IDocument createDocument(String kind, String text) {
+		IDocument document;
+		switch (kind) {
+		case "Document": document = new Document(); break;
+		case "RopeDocument": document = new RopeDocument(); break;
+		default: throw new IllegalArgumentException("unknown document kind " + kind);
+		}
+		document.set(text);
+		return document;
+	}
+
+	/**
+	 * Generate a story with the default shape and a fixed seed,
+	 * so that every run measures the same text.
+	 * @param passages number of passages
+	 * @return text of story
+	 */
+	public static String generateStory(int passages) {
+		StoryGenerator generator = new StoryGenerator(42);
+		generator.setPassages(passages);
+		return generator.generate();
+	}
+
+	/**
+	 * Create a partitioner as the editor does, and connect it to the document
+	 * (which partitions the whole document).
+	 * @param document document to partition
+	 * @return connected partitioner
+	 */
+	public static FastPartitioner connectPartitioner(IDocument document) {
+		FastPartitioner partitioner = new FastPartitioner(new TweePartitionScanner(true, true),
+				PartitionScannerComparison.LEGAL_CONTENT_TYPES);
+		partitioner.connect(document);
+		document.setDocumentPartitioner(partitioner);
+		return partitioner;
+	}
+
+	/**
+	 * The damagers and repairers of the editor, applied to one document.
+	 * Changes to the document are followed so that the damage of each can be repaired.
+	 */
+	public static class Presenter implements IDocumentListener, IDocumentPartitioningListener, IDocumentPartitioningListenerExtension2 {
+		private final IDocument fDocument;
+		private final IPresentationReconciler fReconciler;
+		private DocumentEvent fLastEvent;
+		private IRegion fChangedPartitions;
+		private boolean fPartitioningChanged;
+
+		/**
+		 * Prepare to present a partitioned document.
+		 * @param document document with the editor's partitioner connected
+		 */
+		public Presenter(IDocument document) {
+			fDocument = document;
+			fReconciler = new TweeConfiguration(new HeadlessColorManager()).getPresentationReconciler(null);
+			for (String type : PartitionScannerComparison.LEGAL_CONTENT_TYPES) {
+				setDocument(type);
+			}
+			setDocument(IDocument.DEFAULT_CONTENT_TYPE);
+			document.addDocumentListener(this);
+			document.addDocumentPartitioningListener(this);
+		}
+
+		private void setDocument(String type) {
+			IPresentationDamager damager = fReconciler.getDamager(type);
+			if (damager != null) damager.setDocument(fDocument);
+			IPresentationRepairer repairer = fReconciler.getRepairer(type);
+			if (repairer != null) repairer.setDocument(fDocument);
+		}
+
+		/**
+		 * Stop following the document.
+		 */
+		public void dispose() {
+			fDocument.removeDocumentListener(this);
+			fDocument.removeDocumentPartitioningListener(this);
+		}
+
+		/**
+		 * Compute the presentation of a region, as the presentation reconciler does.
+		 * @param damage region to repair
+		 * @return presentation of region
+		 */
+		public TextPresentation createPresentation(IRegion damage) {
+			TextPresentation presentation = new TextPresentation(damage, 1000);
+			try {
+				ITypedRegion[] partitioning = TextUtilities.computePartitioning(fDocument,
+						IDocumentExtension3.DEFAULT_PARTITIONING, damage.getOffset(), damage.getLength(), false);
+				for (ITypedRegion r : partitioning) {
+					IPresentationRepairer repairer = fReconciler.getRepairer(r.getType());
+					if (repairer != null) repairer.createPresentation(presentation, r);
+				}
+			} catch (BadLocationException e) {
+				throw new IllegalStateException(e);
+			}
+			return presentation;
+		}
+
+		/**
+		 * Replace text in the document (as a keystroke does) and repair the damage.
+		 * The damage is computed as the presentation reconciler does
+		 * for a change it doesn't optimize: from the damager's region
+		 * to the end of the changed partitions.
+		 * @param offset where to replace
+		 * @param length how much to replace
+		 * @param text replacement
+		 * @return presentation of damage
+		 */
+		public TextPresentation replace(int offset, int length, String text) {
+			try {
+				fDocument.replace(offset, length, text);
+				DocumentEvent e = fLastEvent;
+				int damageOffset = text.isEmpty() ? Math.max(0, offset - 1) : offset;
+				ITypedRegion partition = TextUtilities.getPartition(fDocument,
+						IDocumentExtension3.DEFAULT_PARTITIONING, damageOffset, false);
+				IPresentationDamager damager = fReconciler.getDamager(partition.getType());
+				IRegion damage = damager == null ? new Region(offset, text.length()) :
+					damager.getDamageRegion(partition, e, fPartitioningChanged);
+				if (fChangedPartitions != null) {
+					int start = Math.min(damage.getOffset(), fChangedPartitions.getOffset());
+					int end = Math.max(damage.getOffset() + damage.getLength(),
+							fChangedPartitions.getOffset() + fChangedPartitions.getLength());
+					damage = new Region(start, end - start);
+				}
+				fPartitioningChanged = false;
+				fChangedPartitions = null;
+				return createPresentation(damage);
+			} catch (BadLocationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void documentAboutToBeChanged(DocumentEvent event) {
+			// nothing to do
+		}
+
+		@Override
+		public void documentChanged(DocumentEvent event) {
+			fLastEvent = event;
+		}
+
+		@Override
+		public void documentPartitioningChanged(IDocument document) {
+			fPartitioningChanged = true;
+		}
+
+		@Override
+		public void documentPartitioningChanged(DocumentPartitioningChangedEvent event) {
+			fPartitioningChanged = true;
+			fChangedPartitions = event.getCoverage();
+		}
+	}
+
+	/**
+	 * Return the offset of the middle of a partition of the given type
+	 * near the middle of the document.
+	 * @param document partitioned document
+	 * @param type partition type to find
+	 * @return offset inside such a partition
+	 */
+	public static int findPartition(IDocument document, String type) {
+		try {
+			ITypedRegion[] regions = TextUtilities.computePartitioning(document,
+					IDocumentExtension3.DEFAULT_PARTITIONING, document.getLength() / 2, document.getLength() / 2, false);
+			for (ITypedRegion r : regions) {
+				if (r.getType().equals(type) && r.getLength() > 2) return r.getOffset() + r.getLength() / 2;
+			}
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+		throw new IllegalArgumentException("no " + type + " partition in second half of document");
+	}
+}
@@ -0,0 +1,90 @@
+package edu.uwm.twee.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.rules.FastPartitioner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * Throughput of partitioning a whole document, as the editor does
+ * when a file is opened.  The "megabytes" counter gives the rate in MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitioningBenchmark {
+
+	/** Number of passages in the story, see {@link StoryGenerator}. */
+	@Param({ "100", "1000", "10000" })
+	public int passages;
+
+	/** Kind of document, see {@link BenchmarkSupport#createDocument(String, String)}. */
+	@Param({ "Document", "RopeDocument" })
+	public String documentKind;
+
+	private IDocument fDocument;
+
+	/**
+	 * Count of megabytes partitioned, reported as a rate.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void clean() {
+			megabytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fDocument = BenchmarkSupport.createDocument(documentKind,
+				BenchmarkSupport.generateStory(passages));
+	}
+
+	@Benchmark
+	public ITypedRegion[] partition(Bytes bytes) {
+		FastPartitioner partitioner = new FastPartitioner(new TweePartitionScanner(true, true),
+				PartitionScannerComparison.LEGAL_CONTENT_TYPES);
+		partitioner.connect(fDocument);
+		try {
+			bytes.megabytes += fDocument.getLength() / (1024.0 * 1024.0);
+			return partitioner.computePartitioning(0, fDocument.getLength());
+		} finally {
+			partitioner.disconnect();
+		}
+	}
+
+	@Benchmark
+	public int scan(Bytes bytes) {
+		TweePartitionScanner scanner = new TweePartitionScanner(true, true);
+		scanner.setRange(fDocument, 0, fDocument.getLength());
+		int tokens = 0;
+		while (!scanner.nextToken().isEOF()) {
+			++tokens;
+		}
+		bytes.megabytes += fDocument.getLength() / (1024.0 * 1024.0);
+		return tokens;
+	}
+}
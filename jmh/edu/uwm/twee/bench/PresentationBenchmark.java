@@ -0,0 +1,106 @@
+package edu.uwm.twee.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextPresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.uwm.twee.editors.TweePartitionScanner;
+
+/**
+ * Cost of presenting a document with the editor's damagers and repairers
+ * ({@link edu.uwm.twee.editors.SCTagScanner}, {@link edu.uwm.twee.editors.TWPassageScanner},
+ * {@link edu.uwm.twee.editors.XMLScanner}, {@link edu.uwm.eclipse.util.NonRuleBasedDamagerRepairer} and so on):
+ * repairing the whole document, as when it is first shown,
+ * and the damage of a single keystroke in different kinds of partition.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresentationBenchmark {
+
+	/** Number of passages in the story, see {@link StoryGenerator}. */
+	@Param({ "100", "1000" })
+	public int passages;
+
+	/** Kind of document, see {@link BenchmarkSupport#createDocument(String, String)}. */
+	@Param({ "Document", "RopeDocument" })
+	public String documentKind;
+
+	private IDocument fDocument;
+	private BenchmarkSupport.Presenter fPresenter;
+
+	/**
+	 * Where keystrokes happen.
+	 */
+	@State(Scope.Benchmark)
+	public static class Typing {
+		/** Kind of partition typed into. */
+		@Param({ "text", "macro", "header" })
+		public String typedInto;
+
+		int fOffset;
+
+		@Setup(Level.Trial)
+		public void setUp(PresentationBenchmark benchmark) {
+			String type;
+			switch (typedInto) {
+			case "text": type = IDocument.DEFAULT_CONTENT_TYPE; break;
+			case "macro": type = TweePartitionScanner.SC_MACRO; break;
+			case "header": type = TweePartitionScanner.TW_PASSAGE; break;
+			default: throw new IllegalArgumentException("unknown partition kind " + typedInto);
+			}
+			fOffset = BenchmarkSupport.findPartition(benchmark.fDocument, type);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fDocument = BenchmarkSupport.createDocument(documentKind,
+				BenchmarkSupport.generateStory(passages));
+		BenchmarkSupport.connectPartitioner(fDocument);
+		fPresenter = new BenchmarkSupport.Presenter(fDocument);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fPresenter.dispose();
+	}
+
+	/**
+	 * Repair the whole document.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public TextPresentation fullRepair() {
+		return fPresenter.createPresentation(new Region(0, fDocument.getLength()));
+	}
+
+	/**
+	 * Type a character and delete it again, repairing the damage each time:
+	 * the time is for two keystrokes.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public TextPresentation keystroke(Typing typing) {
+		fPresenter.replace(typing.fOffset, 0, "x");
+		return fPresenter.replace(typing.fOffset, 1, "");
+	}
+}
@@ -0,0 +1,345 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.IAnnotationModel;
+
+/**
+ * The annotations that one problem collector has put in an annotation model,
+ * in an interval tree, so that those in a reconciled region can be found
+ * in O(log n + k) time, without going through the whole model
+ * (with the annotations of every other source in it).
+ * <p>
+ * The tree follows the changes to its document as the positions
+ * of the annotation model do (see {@link org.eclipse.jface.text.DefaultPositionUpdater}):
+ * the intervals after a change are moved lazily, and only those that
+ * span or are in the changed text are visited.  Annotations whose positions
+ * are deleted by a change are kept, as empty intervals where the text was.
+ * The tree may be a change behind the model when it is read as the document changes,
+ * and it doesn't know about annotations removed from the model by others,
+ * so callers should check what it finds against the model.
+ * <p>
+ * The tree is a treap ordered by start, in which each node knows the greatest end
+ * in its subtree.  Changes to the document keep the starts in order.
+ * This class is thread-safe.
+ */
+public class AnnotationIndex implements IDocumentListener {
+
+	private static final class Node {
+		final Annotation annotation;
+		final int priority;
+		int start, end;
+		// greatest end in this subtree
+		int maxEnd;
+		// amount still to be added to everything in the subtrees
+		int shift;
+		Node left, right;
+
+		Node(Annotation annotation, int priority, int start, int end) {
+			this.annotation = annotation;
+			this.priority = priority;
+			this.start = start;
+			this.end = end;
+			this.maxEnd = end;
+		}
+	}
+
+	private final Random fRandom = new Random();
+	private Node fRoot;
+	private int fSize;
+	private IDocument fDocument;
+
+	/**
+	 * Start following changes to a document.
+	 * @param document document the annotations are on
+	 */
+	public synchronized void connect(IDocument document) {
+		disconnect();
+		fDocument = document;
+		if (document != null) document.addDocumentListener(this);
+	}
+
+	/**
+	 * Stop following the document, if any.
+	 */
+	public synchronized void disconnect() {
+		if (fDocument != null) fDocument.removeDocumentListener(this);
+		fDocument = null;
+	}
+
+	/**
+	 * Return the number of annotations in the tree.
+	 */
+	public synchronized int size() {
+		return fSize;
+	}
+
+	/**
+	 * Add an annotation.
+	 * @param annotation annotation to add, not already in the tree
+	 * @param position where it is in the document
+	 */
+	public synchronized void add(Annotation annotation, Position position) {
+		int start = position.getOffset();
+		Node node = new Node(annotation, fRandom.nextInt(), start, start + position.getLength());
+		Node[] parts = split(fRoot, start);
+		fRoot = merge(merge(parts[0], node), parts[1]);
+		++fSize;
+	}
+
+	/**
+	 * Add the annotations of a type that are already in a model,
+	 * such as those restored when the editor was opened.
+	 * The caller should hold the model's lock.
+	 * @param model annotation model
+	 * @param type type of annotations to add
+	 */
+	public synchronized void addAll(IAnnotationModel model, String type) {
+		for (Iterator<Annotation> it = model.getAnnotationIterator(); it.hasNext(); ) {
+			Annotation a = it.next();
+			Position p = model.getPosition(a);
+			if (p != null && type.equals(a.getType())) add(a, p);
+		}
+	}
+
+	/**
+	 * Remove every annotation.
+	 * @return the annotations removed
+	 */
+	public synchronized List<Annotation> removeAll() {
+		List<Annotation> result = new ArrayList<>(fSize);
+		collect(fRoot, result);
+		fRoot = null;
+		fSize = 0;
+		return result;
+	}
+
+	/**
+	 * Leave out of a replacement of annotations those that would be replaced
+	 * by equal ones (of the same type and text, at the same position),
+	 * so that the model only hears of real changes.
+	 * The old annotations that are kept are put back in this index.
+	 * The caller should hold the model's lock.
+	 * @param model annotation model with the old annotations
+	 * @param toRemove old annotations, taken out of this index;
+	 * those that are kept are removed from the list
+	 * @param toAdd new annotations and their positions;
+	 * those equal to an old one are removed from the map
+	 */
+	public synchronized void keepUnchanged(IAnnotationModel model, List<Annotation> toRemove, Map<Annotation, Position> toAdd) {
+		if (toRemove.isEmpty() || toAdd.isEmpty()) return;
+		Map<String, Annotation> added = new HashMap<>();
+		for (Map.Entry<Annotation, Position> e : toAdd.entrySet()) {
+			added.put(key(e.getKey(), e.getValue()), e.getKey());
+		}
+		for (Iterator<Annotation> it = toRemove.iterator(); it.hasNext(); ) {
+			Annotation old = it.next();
+			Position p = model.getPosition(old);
+			Annotation same = p == null ? null : added.remove(key(old, p));
+			if (same != null) {
+				toAdd.remove(same);
+				it.remove();
+				add(old, p);
+			}
+		}
+	}
+
+	private static String key(Annotation a, Position p) {
+		return p.getOffset() + ":" + p.getLength() + ":" + a.getType() + ":" + a.getText();
+	}
+
+	private static void collect(Node n, List<Annotation> result) {
+		for (; n != null; n = n.right) {
+			collect(n.left, result);
+			result.add(n.annotation);
+		}
+	}
+
+	/**
+	 * Remove the annotations in or next to a region that pass a test.
+	 * The test is given each annotation whose interval overlaps or touches the region.
+	 * @param offset start of region
+	 * @param length length of region
+	 * @param test whether to remove an annotation
+	 * @return the annotations removed
+	 */
+	public synchronized List<Annotation> remove(int offset, int length, Predicate<Annotation> test) {
+		List<Annotation> result = new ArrayList<>();
+		fRoot = remove(fRoot, offset, offset + length, test, result);
+		fSize -= result.size();
+		return result;
+	}
+
+	private Node remove(Node n, int from, int to, Predicate<Annotation> test, List<Annotation> removed) {
+		if (n == null || n.maxEnd < from) return n;
+		push(n);
+		n.left = remove(n.left, from, to, test, removed);
+		// the starts to the right are no less than this one
+		if (n.start > to) {
+			update(n);
+			return n;
+		}
+		n.right = remove(n.right, from, to, test, removed);
+		if (n.end >= from && test.test(n.annotation)) {
+			removed.add(n.annotation);
+			return merge(n.left, n.right);
+		}
+		update(n);
+		return n;
+	}
+
+	@Override
+	public void documentAboutToBeChanged(DocumentEvent event) {
+		// nothing to do
+	}
+
+	/**
+	 * Move the intervals as the default position updater moves positions:
+	 * the text is removed and then the new text is inserted.
+	 */
+	@Override
+	public synchronized void documentChanged(DocumentEvent event) {
+		if (fRoot == null) return;
+		int offset = event.getOffset();
+		int removed = event.getLength();
+		int inserted = event.getText() == null ? 0 : event.getText().length();
+		Node[] parts = split(fRoot, offset);
+		Node[] rest = split(parts[1], offset + removed);
+		// intervals starting before the change: those that span it shrink and grow
+		adjustEnds(parts[0], offset, removed, inserted);
+		// intervals starting in the removed text: moved to after the inserted text,
+		// except that those starting where it does and spanning it grow
+		Node middle = null;
+		if (removed > 0) {
+			Node[] at = split(rest[0], offset + 1);
+			collapse(at[1], offset + inserted, removed, inserted);
+			middle = merge(replaceAt(at[0], offset, removed, inserted), at[1]);
+		}
+		// intervals after it: moved
+		move(rest[1], inserted - removed);
+		fRoot = merge(merge(parts[0], middle), rest[1]);
+	}
+
+	private static void adjustEnds(Node n, int offset, int removed, int inserted) {
+		if (n == null || n.maxEnd <= offset) return;
+		push(n);
+		adjustEnds(n.left, offset, removed, inserted);
+		adjustEnds(n.right, offset, removed, inserted);
+		if (n.end >= offset + removed && (removed > 0 || n.end > offset)) n.end += inserted - removed;
+		else if (n.end > offset) n.end = offset;
+		update(n);
+	}
+
+	private static void collapse(Node n, int start, int removed, int inserted) {
+		if (n == null) return;
+		push(n);
+		collapse(n.left, start, removed, inserted);
+		collapse(n.right, start, removed, inserted);
+		n.end = Math.max(start, n.end - removed + inserted);
+		n.start = start;
+		update(n);
+	}
+
+	/**
+	 * Change the intervals that start where text is replaced:
+	 * those that span the removed text grow or shrink, the rest are moved after the inserted text.
+	 * Since this reorders intervals with the same start, the tree is built again.
+	 */
+	private static Node replaceAt(Node n, int offset, int removed, int inserted) {
+		List<Node> nodes = new ArrayList<>();
+		detach(n, nodes);
+		Node spanning = null, moved = null;
+		for (Node node : nodes) {
+			if (node.end >= offset + removed) {
+				node.end += inserted - removed;
+				node.maxEnd = node.end;
+				spanning = merge(spanning, node);
+			} else {
+				node.start = node.end = node.maxEnd = offset + inserted;
+				moved = merge(moved, node);
+			}
+		}
+		return merge(spanning, moved);
+	}
+
+	private static void detach(Node n, List<Node> nodes) {
+		if (n == null) return;
+		push(n);
+		detach(n.left, nodes);
+		detach(n.right, nodes);
+		n.left = n.right = null;
+		nodes.add(n);
+	}
+
+	private static void move(Node n, int delta) {
+		if (n == null || delta == 0) return;
+		n.start += delta;
+		n.end += delta;
+		n.maxEnd += delta;
+		n.shift += delta;
+	}
+
+	private static void push(Node n) {
+		if (n.shift != 0) {
+			move(n.left, n.shift);
+			move(n.right, n.shift);
+			n.shift = 0;
+		}
+	}
+
+	private static void update(Node n) {
+		int max = n.end;
+		if (n.left != null) max = Math.max(max, n.left.maxEnd);
+		if (n.right != null) max = Math.max(max, n.right.maxEnd);
+		n.maxEnd = max;
+	}
+
+	/**
+	 * Split a tree into the nodes that start before a point and the rest.
+	 */
+	private static Node[] split(Node n, int start) {
+		if (n == null) return new Node[2];
+		push(n);
+		Node[] parts;
+		if (n.start < start) {
+			parts = split(n.right, start);
+			n.right = parts[0];
+			parts[0] = n;
+		} else {
+			parts = split(n.left, start);
+			n.left = parts[1];
+			parts[1] = n;
+		}
+		update(n);
+		return parts;
+	}
+
+	/**
+	 * Join two trees, all of whose nodes in the first start no later than those in the second.
+	 */
+	private static Node merge(Node a, Node b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		if (a.priority > b.priority) {
+			push(a);
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		push(b);
+		b.left = merge(a, b.left);
+		update(b);
+		return b;
+	}
+}
@@ -0,0 +1,76 @@
+package edu.uwm.eclipse.util;
+
+/**
+ * Joins immutable binary trees that hold sequences in their leaves (such as ropes),
+ * keeping the depths of siblings within one, as in an AVL tree.
+ * Joining two trees takes time proportional to the difference of their depths,
+ * and creates nodes only along one edge, so the trees joined share their structure
+ * with the result.  Subclasses say how to take nodes apart and how to make them.
+ * @param <T> type of the trees and subtrees
+ * @see Rope
+ * @see edu.uwm.twee.syntax.SyntaxTree
+ */
+public abstract class BalancedTree<T> {
+
+	/**
+	 * Return the height of a tree; leaves have depth 0.
+	 */
+	protected abstract int depth(T tree);
+
+	/**
+	 * Return the left subtree of a node (a tree of depth greater than 0).
+	 */
+	protected abstract T left(T node);
+
+	/**
+	 * Return the right subtree of a node (a tree of depth greater than 0).
+	 */
+	protected abstract T right(T node);
+
+	/**
+	 * Create a node with the given subtrees.
+	 */
+	protected abstract T node(T left, T right);
+
+	/**
+	 * Join two trees, keeping the result balanced.  Subclasses may override this
+	 * to handle empty trees or to merge small leaves, since it is called
+	 * for the subtrees joined along the way.
+	 * @param l tree with the first part of the sequence
+	 * @param r tree with the rest
+	 * @return balanced tree with the sequence of l followed by that of r
+	 */
+	public T join(T l, T r) {
+		int dl = depth(l), dr = depth(r);
+		if (dl > dr + 1) {
+			return balance(left(l), join(right(l), r));
+		}
+		if (dr > dl + 1) {
+			return balance(join(l, left(r)), right(r));
+		}
+		return node(l, r);
+	}
+
+	/**
+	 * Create a node for two subtrees whose depths differ by at most two,
+	 * rotating if necessary to keep the depths of siblings within one.
+	 */
+	private T balance(T l, T r) {
+		int dl = depth(l), dr = depth(r);
+		if (dl > dr + 1) {
+			if (depth(left(l)) >= depth(right(l))) {
+				return node(left(l), node(right(l), r));
+			}
+			T m = right(l);
+			return node(node(left(l), left(m)), node(right(m), r));
+		}
+		if (dr > dl + 1) {
+			if (depth(right(r)) >= depth(left(r))) {
+				return node(node(l, left(r)), right(r));
+			}
+			T m = left(r);
+			return node(node(l, left(m)), node(right(m), right(r)));
+		}
+		return node(l, r);
+	}
+}
@@ -0,0 +1,89 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.contentassist.ICompletionProposal;
+import org.eclipse.ui.editors.text.EditorsUI;
+import org.eclipse.ui.texteditor.spelling.ISpellingProblemCollector;
+import org.eclipse.ui.texteditor.spelling.SpellingContext;
+import org.eclipse.ui.texteditor.spelling.SpellingProblem;
+import org.eclipse.ui.texteditor.spelling.SpellingService;
+
+/**
+ * A spelling problem remembered from an earlier session.
+ * Only the location and message are remembered;
+ * the proposals are computed when first asked for
+ * by checking the word again.
+ */
+public class CachedSpellingProblem extends SpellingProblem {
+	private static final ICompletionProposal[] NO_PROPOSALS = {};
+
+	private final IDocument fDocument;
+	private final Position fPosition;
+	private final String fMessage;
+	private final SpellingContext fContext;
+	private ICompletionProposal[] fProposals;
+
+	/**
+	 * Create a spelling problem for the given location.
+	 * @param document document with the problem
+	 * @param position location of the problem, which should be
+	 * the position used to annotate the problem, so that it follows changes
+	 * @param message message of the problem
+	 * @param context spelling context to use when computing proposals
+	 */
+	public CachedSpellingProblem(IDocument document, Position position, String message, SpellingContext context) {
+		fDocument = document;
+		fPosition = position;
+		fMessage = message;
+		fContext = context;
+	}
+
+	@Override
+	public int getOffset() {
+		return fPosition.getOffset();
+	}
+
+	@Override
+	public int getLength() {
+		return fPosition.getLength();
+	}
+
+	@Override
+	public String getMessage() {
+		return fMessage;
+	}
+
+	@Override
+	public synchronized ICompletionProposal[] getProposals() {
+		if (fProposals == null) {
+			final int offset = fPosition.getOffset();
+			final int length = fPosition.getLength();
+			final List<SpellingProblem> found = new ArrayList<>();
+			SpellingService service = EditorsUI.getSpellingService();
+			service.check(fDocument, new IRegion[] { new Region(offset, length) }, fContext, new ISpellingProblemCollector() {
+				@Override
+				public void accept(SpellingProblem problem) {
+					if (problem.getOffset() == offset && problem.getLength() == length) found.add(problem);
+				}
+
+				@Override
+				public void beginCollecting() {
+					// nothing to do
+				}
+
+				@Override
+				public void endCollecting() {
+					// nothing to do
+				}
+			}, null);
+			fProposals = found.isEmpty() ? NO_PROPOSALS : found.get(0).getProposals();
+		}
+		return fProposals;
+	}
+}
@@ -0,0 +1,87 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of a document changed since some strategy last reconciled them:
+ * a sorted list of disjoint ranges, kept up to date as the document changes.
+ * Ranges that overlap or touch are merged, so that many small changes
+ * close together (as in typing) are reconciled in one pass.
+ * This class is not synchronized.
+ */
+class DirtyRanges {
+
+	// ranges {start, end}, sorted and disjoint, not touching
+	private final List<int[]> fRanges = new ArrayList<>();
+
+	/**
+	 * Record a change to the document: ranges after it are moved,
+	 * and the inserted text becomes (or joins) a range.
+	 * A removal leaves an empty range where the text was.
+	 * @param offset where the change starts
+	 * @param removed number of characters removed
+	 * @param inserted number of characters inserted
+	 */
+	public void change(int offset, int removed, int inserted) {
+		int end = offset + removed;
+		int delta = inserted - removed;
+		for (int[] r : fRanges) {
+			r[0] = r[0] <= offset ? r[0] : r[0] >= end ? r[0] + delta : offset;
+			r[1] = r[1] <= offset ? r[1] : r[1] >= end ? r[1] + delta : offset + inserted;
+		}
+		add(offset, offset + inserted);
+	}
+
+	/**
+	 * Add a range, merging it with the ranges it overlaps or touches.
+	 * @param start start of range
+	 * @param end end of range, not before the start
+	 */
+	public void add(int start, int end) {
+		int i = 0;
+		while (i < fRanges.size() && fRanges.get(i)[1] < start) ++i;
+		while (i < fRanges.size() && fRanges.get(i)[0] <= end) {
+			int[] r = fRanges.remove(i);
+			start = Math.min(start, r[0]);
+			end = Math.max(end, r[1]);
+		}
+		fRanges.add(i, new int[] { start, end });
+	}
+
+	/**
+	 * Add all the ranges of another set.
+	 * @param other ranges to add
+	 */
+	public void addAll(DirtyRanges other) {
+		for (int[] r : other.fRanges) {
+			add(r[0], r[1]);
+		}
+	}
+
+	/**
+	 * Return whether there are no ranges.
+	 */
+	public boolean isEmpty() {
+		return fRanges.isEmpty();
+	}
+
+	/**
+	 * Remove all ranges.
+	 */
+	public void clear() {
+		fRanges.clear();
+	}
+
+	/**
+	 * Return the ranges, in order, as {start, end} pairs.
+	 * @return copy of the ranges
+	 */
+	public List<int[]> getRanges() {
+		List<int[]> result = new ArrayList<>(fRanges.size());
+		for (int[] r : fRanges) {
+			result.add(r.clone());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,77 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * The text of a document at some point, for analyses
+ * that run in the background.  If the document is a {@link RopeDocument},
+ * the text is an immutable snapshot and slices of it are shared, not copied.
+ * Otherwise the snapshot simply reads the (live) document.
+ */
+public final class DocumentSnapshot {
+
+	private final IDocument fDocument;
+	private final Rope fText;
+
+	private DocumentSnapshot(IDocument document, Rope text) {
+		fDocument = document;
+		fText = text;
+	}
+
+	/**
+	 * Take a snapshot of the given document.
+	 * @param document document to take a snapshot of, must not be null
+	 * @return snapshot of the text
+	 */
+	public static DocumentSnapshot of(IDocument document) {
+		Rope text = document instanceof RopeDocument ? ((RopeDocument)document).snapshot() : null;
+		return new DocumentSnapshot(document, text);
+	}
+
+	/**
+	 * Return the length of the text.
+	 */
+	public int getLength() {
+		return fText == null ? fDocument.getLength() : fText.length();
+	}
+
+	/**
+	 * Return the characters in the given range.
+	 * @param offset start of the range
+	 * @param length length of the range
+	 * @return characters in the range
+	 * @throws BadLocationException if the range is not in the text
+	 */
+	public CharSequence get(int offset, int length) throws BadLocationException {
+		if (fText == null) return fDocument.get(offset, length);
+		if (offset < 0 || length < 0 || offset + length > fText.length()) {
+			throw new BadLocationException("[" + offset + "," + (offset + length) + ") not in text of length " + fText.length());
+		}
+		return fText.subSequence(offset, offset + length);
+	}
+
+	/**
+	 * Return whether some text is the text of this snapshot, so that what was
+	 * computed from it (such as a syntax tree) is of the same version of the document.
+	 * Without a snapshot of the text, this can't be known, and is assumed.
+	 * @param text text to compare, which must not change
+	 * @return whether the text is this snapshot's
+	 */
+	public boolean isOf(CharSequence text) {
+		return fText == null || fText == text;
+	}
+
+	/**
+	 * Return a document with the text of this snapshot, for services
+	 * that read text only through a document.  The text is copied,
+	 * so this is meant for passes over the whole document.
+	 * Without a snapshot of the text, this is the (live) document itself.
+	 * @return document that does not change, unless it is the original
+	 */
+	public IDocument toDocument() {
+		if (fText == null) return fDocument;
+		return new Document(fText.toString());
+	}
+}
@@ -0,0 +1,243 @@
+package edu.uwm.eclipse.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Events of the plugin for Java Flight Recorder, so that a recording
+ * shows the time taken by partitioning, reconciling and so on
+ * next to garbage collection and lock contention.
+ * Each event has a source (such as the name of a strategy), the length of the document,
+ * the offset and length of the region it is about, and counts of what it found.
+ * <p>
+ * The plugin is compiled for Java 8, which doesn't have <code>jdk.jfr</code>,
+ * so the events are defined at run time with <code>jdk.jfr.EventFactory</code>
+ * (found by reflection) when a recording first starts.  When nothing is being recorded,
+ * or the Java has no flight recorder, {@link Type#begin()} returns null
+ * after reading one field, so callers should check for null:
+ * <pre>
+ * FlightRecorderEvents.Event event = TYPE.begin();
+ * ... the work ...
+ * if (event != null) event.commit(source, documentLength, offset, length, count);
+ * </pre>
+ */
+public final class FlightRecorderEvents {
+
+	/** Category under which the events are shown. */
+	private static final String CATEGORY = "Twee Editor";
+
+	/** A pass of {@link ReconcilerFixed}. */
+	public static final Type RECONCILING = new Type("edu.uwm.twee.Reconciling", "Reconciling",
+			"A pass of the reconciler over a changed region", "regions");
+
+	/**
+	 * A pass of a reconciling strategy, from {@link IReconcilingStrategyExtension2#beforeReconcile(org.eclipse.jface.text.reconciler.DirtyRegion)}
+	 * (or the start of the initial pass) until its results are given to the editor.
+	 */
+	public static final Type STRATEGY_PASS = new Type("edu.uwm.twee.StrategyPass", "Reconciling Strategy Pass",
+			"A pass of one reconciling strategy, until its results are given to the editor", "added", "removed");
+
+	private FlightRecorderEvents() { }
+
+	/** Whether a recording is running; the only thing read when one isn't. */
+	private static volatile boolean fRecording;
+
+	// jdk.jfr, if this Java has it
+	private static ClassLoader fLoader;
+	private static Method fGetFlightRecorder, fGetRecordings, fGetState;
+	private static Method fNewEvent, fBegin, fEnd, fSet, fShouldCommit, fCommit;
+
+	static {
+		try {
+			fLoader = ClassLoader.getSystemClassLoader();
+			Class<?> recorder = fLoader.loadClass("jdk.jfr.FlightRecorder");
+			Class<?> listener = fLoader.loadClass("jdk.jfr.FlightRecorderListener");
+			Class<?> event = fLoader.loadClass("jdk.jfr.Event");
+			fGetFlightRecorder = recorder.getMethod("getFlightRecorder");
+			fGetRecordings = recorder.getMethod("getRecordings");
+			fGetState = fLoader.loadClass("jdk.jfr.Recording").getMethod("getState");
+			fNewEvent = fLoader.loadClass("jdk.jfr.EventFactory").getMethod("newEvent");
+			fBegin = event.getMethod("begin");
+			fEnd = event.getMethod("end");
+			fSet = event.getMethod("set", int.class, Object.class);
+			fShouldCommit = event.getMethod("shouldCommit");
+			fCommit = event.getMethod("commit");
+			InvocationHandler handler = (proxy, method, args) -> {
+				switch (method.getName()) {
+				case "recorderInitialized":
+				case "recordingStateChanged":
+					fRecording = isRecording();
+					return null;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "Twee flight recorder listener";
+				default:
+					return null;
+				}
+			};
+			Object l = Proxy.newProxyInstance(fLoader, new Class<?>[] { listener }, handler);
+			recorder.getMethod("addListener", listener).invoke(null, l);
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			// no flight recorder: no events
+			fNewEvent = null;
+		}
+	}
+
+	/**
+	 * Return whether any recording is running.
+	 * This is called only when the flight recorder tells us that a recording changed.
+	 */
+	private static boolean isRecording() {
+		try {
+			Object recorder = fGetFlightRecorder.invoke(null);
+			for (Object r : (List<?>) fGetRecordings.invoke(recorder)) {
+				if ("RUNNING".equals(String.valueOf(fGetState.invoke(r)))) return true;
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// fall through
+		}
+		return false;
+	}
+
+	/**
+	 * A type of event.  Its fields are the source, document length, offset and length,
+	 * followed by the counts named when the type is created.
+	 */
+	public static final class Type {
+		private final String fName, fLabel, fDescription;
+		private final String[] fCounts;
+		private Object fFactory;
+		private boolean fFailed;
+
+		/**
+		 * Create a type of event, which is defined in the flight recorder
+		 * when it is first recorded.
+		 * @param name qualified name of the event, such as <code>edu.uwm.twee.Reconciling</code>
+		 * @param label name of the event as shown to users
+		 * @param description what the event is about
+		 * @param counts names of the counts the event carries
+		 */
+		public Type(String name, String label, String description, String... counts) {
+			fName = name;
+			fLabel = label;
+			fDescription = description;
+			fCounts = counts;
+		}
+
+		/**
+		 * Start timing an event of this type, if it is being recorded.
+		 * @return event to commit when the work is done, or null if nothing is being recorded
+		 */
+		public Event begin() {
+			if (!fRecording) return null;
+			Object factory = getFactory();
+			if (factory == null) return null;
+			try {
+				Object event = fNewEvent.invoke(factory);
+				fBegin.invoke(event);
+				return new Event(event, fCounts.length);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return null;
+			}
+		}
+
+		private synchronized Object getFactory() {
+			if (fFactory == null && !fFailed) {
+				try {
+					fFactory = createFactory();
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					System.err.println("cannot define flight recorder event " + fName + ": " + e);
+					fFailed = true;
+				}
+			}
+			return fFactory;
+		}
+
+		private Object createFactory() throws ReflectiveOperationException {
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(annotation("jdk.jfr.Name", fName));
+			annotations.add(annotation("jdk.jfr.Label", fLabel));
+			annotations.add(annotation("jdk.jfr.Description", fDescription));
+			annotations.add(annotation("jdk.jfr.Category", new String[] { CATEGORY }));
+			List<Object> fields = new ArrayList<>();
+			fields.add(field(String.class, "source", "Source"));
+			fields.add(field(int.class, "documentLength", "Document Length"));
+			fields.add(field(int.class, "offset", "Offset"));
+			fields.add(field(int.class, "length", "Length"));
+			for (String c : fCounts) {
+				fields.add(field(int.class, c, Character.toUpperCase(c.charAt(0)) + c.substring(1)));
+			}
+			return fLoader.loadClass("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+		}
+
+		private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+			Class<?> c = fLoader.loadClass("jdk.jfr.AnnotationElement");
+			return c.getConstructor(Class.class, Object.class).newInstance(fLoader.loadClass(type), value);
+		}
+
+		private static Object field(Class<?> type, String name, String label) throws ReflectiveOperationException {
+			List<Object> annotations = Collections.singletonList(annotation("jdk.jfr.Label", label));
+			Class<?> c = fLoader.loadClass("jdk.jfr.ValueDescriptor");
+			return c.getConstructor(Class.class, String.class, List.class).newInstance(type, name, annotations);
+		}
+	}
+
+	/**
+	 * An event being timed.  Events must be used from only one thread.
+	 */
+	public static final class Event {
+		private final Object fEvent;
+		private final int fCounts;
+		private boolean fEnded;
+
+		Event(Object event, int counts) {
+			fEvent = event;
+			fCounts = counts;
+		}
+
+		/**
+		 * Stop timing the event, for an event committed later.
+		 * This may be called more than once: the last time counts.
+		 */
+		public void end() {
+			fEnded = true;
+			try {
+				fEnd.invoke(fEvent);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// the event will be timed to its commit
+			}
+		}
+
+		/**
+		 * Give the event its fields and record it (if the recording still wants it).
+		 * @param source what did the work, such as the name of a strategy
+		 * @param documentLength length of the document, or -1 if none
+		 * @param offset offset of the region the work was on
+		 * @param length length of the region the work was on
+		 * @param counts counts of the event's type, in order
+		 */
+		public void commit(String source, int documentLength, int offset, int length, int... counts) {
+			if (!fEnded) end();
+			try {
+				if (!(Boolean) fShouldCommit.invoke(fEvent)) return;
+				fSet.invoke(fEvent, 0, source);
+				fSet.invoke(fEvent, 1, documentLength);
+				fSet.invoke(fEvent, 2, offset);
+				fSet.invoke(fEvent, 3, length);
+				for (int i=0; i < fCounts && i < counts.length; ++i) {
+					fSet.invoke(fEvent, 4 + i, counts[i]);
+				}
+				fCommit.invoke(fEvent);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// not recorded
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package edu.uwm.eclipse.util;
+
+/**
+ * A listener to the measurements of reconciling.
+ * @see ReconcileMetrics#addListener(IReconcileMetricsListener)
+ */
+public interface IReconcileMetricsListener {
+
+	/**
+	 * A measurement was made.  This is called in the thread that made it,
+	 * which may be the UI thread or a reconciler holding the document's lock,
+	 * so it should return quickly and leave anything slow to another thread.
+	 * @param sample the measurement
+	 */
+	public void sampled(ReconcileMetrics.Sample sample);
+}
@@ -0,0 +1,54 @@
+package edu.uwm.eclipse.util;
+
+import java.util.Collection;
+
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+
+/**
+ * What a reconciler has measured about the changes it sees and the strategies it runs,
+ * and the delays it has chosen from these measurements.
+ * @see ReconcilerFixed
+ */
+public interface IReconcilerMetrics {
+
+	/**
+	 * Return the average time between changes while the user is typing.
+	 * @return time in milliseconds
+	 */
+	public int getTypingInterval();
+
+	/**
+	 * Return the strategies the reconciler runs.
+	 * @return strategies, never null
+	 */
+	public Collection<IReconcilingStrategy> getStrategies();
+
+	/**
+	 * Return the average time a strategy takes to reconcile changes.
+	 * @param strategy one of the reconciler's strategies
+	 * @return time in milliseconds, or 0 if not yet measured
+	 */
+	public double getAverageCost(IReconcilingStrategy strategy);
+
+	/**
+	 * Return how long the reconciler waits after the last change before
+	 * the strategy reconciles changes.
+	 * @param strategy one of the reconciler's strategies
+	 * @return delay in milliseconds
+	 */
+	public int getDelay(IReconcilingStrategy strategy);
+
+	/**
+	 * Return the number of passes in which the strategy has reconciled changes.
+	 * @param strategy one of the reconciler's strategies
+	 * @return number of passes
+	 */
+	public long getPassCount(IReconcilingStrategy strategy);
+
+	/**
+	 * Return the number of dirty regions that needed no pass of their own
+	 * because they were merged into an earlier pass.
+	 * @return number of dirty regions
+	 */
+	public long getMergedRegionCount();
+}
@@ -1,5 +1,6 @@
 package edu.uwm.eclipse.util;
 
+import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.reconciler.DirtyRegion;
 
 /**
@@ -8,6 +9,12 @@ import org.eclipse.jface.text.reconciler.DirtyRegion;
  * for a particular dirty region.
  * For example, if it generates annotations, then all old annotations
  * for this region can be purged, and all new ones added.
+ * <p>
+ * A pass over the whole document should check for cancellation
+ * as it goes and stop when canceled, returning a checkpoint.
+ * It is then finished with {@link #afterReconcile(DirtyRegion)}
+ * for the part of the document before the checkpoint, and the reconciler
+ * reconciles the rest later, as if it had changed.
  * @see org.eclipse.jface.text.reconciler.IReconcilingStrategy
  * @author boyland
  */
@@ -17,8 +24,12 @@ public interface IReconcilingStrategyExtension2 {
 	 * Perform the initial reconcile for this content type.
 	 * @param contentType content type to check in the partition
 	 * of the document.
+	 * @param partitioning partitioning of the whole document, computed once
+	 * by the reconciler for all its strategies
+	 * @return checkpoint from which the reconciler should continue
+	 * if the pass was canceled, or -1 if it was not (see {@link ReconcileProgress})
 	 */
-	public void initialReconcile(String contentType);
+	public int initialReconcile(String contentType, ITypedRegion[] partitioning);
 	
 	/**
 	 * Called before the first call to {@link org.eclipse.jface.text.reconciler.IReconcilingStrategy#reconcile} 
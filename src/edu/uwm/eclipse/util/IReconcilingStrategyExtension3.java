@@ -0,0 +1,24 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.ITypedRegion;
+
+/**
+ * A reconciling strategy whose pass over the whole document can be split into
+ * chunks that are reconciled at the same time in different threads.
+ * @see ReconcilerFixed
+ */
+public interface IReconcilingStrategyExtension3 extends IReconcilingStrategyExtension2 {
+
+	/**
+	 * Reconcile one chunk of the document during a pass over the whole document,
+	 * that is, between {@link #beforeReconcile(org.eclipse.jface.text.reconciler.DirtyRegion) beforeReconcile(null)}
+	 * and {@link #afterReconcile(org.eclipse.jface.text.reconciler.DirtyRegion) afterReconcile(null)}.
+	 * Chunks may be reconciled in any order and several at once,
+	 * so the results must be collected in a way that is safe to use from several threads.
+	 * @param partitions partitions of the chunk that have content types
+	 * this strategy is registered for, in document order
+	 * @return checkpoint from which the reconciler should continue
+	 * if the chunk was canceled, or -1 if it was not (see {@link ReconcileProgress})
+	 */
+	public int reconcileChunk(ITypedRegion[] partitions);
+}
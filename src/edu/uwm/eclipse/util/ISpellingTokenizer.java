@@ -0,0 +1,30 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+
+/**
+ * Finds the natural-language text in regions to be spell checked,
+ * leaving out the identifiers and markup of the document's language,
+ * so that the spelling service neither spends time on them nor reports them.
+ * @see SpellingReconcileStrategyFixed#setTokenizer(ISpellingTokenizer)
+ */
+public interface ISpellingTokenizer {
+
+	/**
+	 * Return the parts of regions of a document that should be spell checked.
+	 * This may be called in several threads at once.
+	 * @param document document to check
+	 * @param regions regions to check, in order
+	 * @return regions within them, in order
+	 */
+	public IRegion[] getCheckedRegions(IDocument document, IRegion[] regions);
+
+	/**
+	 * Return a count that changes whenever the regions returned for the same text may change
+	 * (for example, because the names to leave out changed),
+	 * so that text checked before is checked again.
+	 * @return modification count
+	 */
+	public int getModificationCount();
+}
@@ -0,0 +1,217 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * The differences between two versions of a text, line by line,
+ * as the replacements that turn the old version into the new one.
+ * Applying the replacements to a document (rather than setting its text)
+ * keeps the positions, annotations and so on of the unchanged lines,
+ * and tells listeners only what changed.
+ * <p>
+ * The lines common to the start and the end of the texts are skipped,
+ * and the rest are compared with Myers' algorithm, whose time and space
+ * grow with the number of lines that differ.  If more lines differ than a limit,
+ * the part between the common start and end is replaced as a whole.
+ */
+public class LineDiff {
+
+	/**
+	 * A replacement of text in the old version.
+	 */
+	public static final class Replacement {
+		public final int offset;
+		public final int length;
+		public final String text;
+
+		Replacement(int offset, int length, String text) {
+			this.offset = offset;
+			this.length = length;
+			this.text = text;
+		}
+
+		@Override
+		public String toString() {
+			return "Replacement(" + offset + "," + length + ",\"" + text + "\")";
+		}
+	}
+
+	private LineDiff() { }
+
+	/**
+	 * Compute the replacements that turn one text into another.
+	 * @param oldText old version
+	 * @param newText new version
+	 * @param maxLines most lines that may differ before the changed part is replaced as a whole
+	 * @return replacements in the order of their offsets, which are in the old version
+	 */
+	public static List<Replacement> compute(String oldText, String newText, int maxLines) {
+		int[] oldLines = lineStarts(oldText);
+		int[] newLines = lineStarts(newText);
+		int n = oldLines.length - 1, m = newLines.length - 1;
+		// lines in common at the start and end
+		int prefix = 0;
+		while (prefix < n && prefix < m && sameLine(oldText, oldLines, prefix, newText, newLines, prefix)) ++prefix;
+		int suffix = 0;
+		while (suffix < n - prefix && suffix < m - prefix &&
+				sameLine(oldText, oldLines, n - 1 - suffix, newText, newLines, m - 1 - suffix)) ++suffix;
+		List<Replacement> result = new ArrayList<>();
+		if (prefix == n - suffix && prefix == m - suffix) return result;
+
+		// number the distinct lines in between, to compare them quickly
+		Map<String, Integer> ids = new HashMap<>();
+		int[] a = number(oldText, oldLines, prefix, n - suffix, ids);
+		int[] b = number(newText, newLines, prefix, m - suffix, ids);
+		boolean[][] matched = match(a, b, maxLines);
+		if (matched == null) {
+			addReplacement(result, oldText, oldLines, prefix, n - suffix, newText, newLines, prefix, m - suffix);
+			return result;
+		}
+		// each run of unmatched lines (in either version) between matched lines is a replacement
+		int i = 0, j = 0;
+		while (i < a.length || j < b.length) {
+			int i0 = i, j0 = j;
+			while (i < a.length && !matched[0][i]) ++i;
+			while (j < b.length && !matched[1][j]) ++j;
+			if (i > i0 || j > j0) {
+				addReplacement(result, oldText, oldLines, prefix + i0, prefix + i, newText, newLines, prefix + j0, prefix + j);
+			}
+			// matched lines pair up in order
+			while (i < a.length && j < b.length && matched[0][i] && matched[1][j]) {
+				++i;
+				++j;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Apply replacements computed for the text of a document.
+	 * @param document document whose text is the old version
+	 * @param replacements replacements in the order of their offsets
+	 * @throws BadLocationException if the document doesn't have the old version
+	 */
+	public static void apply(IDocument document, List<Replacement> replacements) throws BadLocationException {
+		// from the end, so that the offsets of the rest stay the same
+		for (int i = replacements.size() - 1; i >= 0; --i) {
+			Replacement r = replacements.get(i);
+			document.replace(r.offset, r.length, r.text);
+		}
+	}
+
+	/**
+	 * Return the offsets at which lines start, followed by the length of the text.
+	 * A line includes its delimiter, so that changing a delimiter changes the line.
+	 */
+	private static int[] lineStarts(String text) {
+		int[] starts = new int[16];
+		int count = 0;
+		int n = text.length();
+		for (int i = 0; i < n; ) {
+			if (count + 1 >= starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+			starts[count++] = i;
+			while (i < n) {
+				char ch = text.charAt(i++);
+				if (ch == '\n') break;
+				if (ch == '\r') {
+					if (i < n && text.charAt(i) == '\n') ++i;
+					break;
+				}
+			}
+		}
+		starts[count] = n;
+		return Arrays.copyOf(starts, count + 1);
+	}
+
+	private static boolean sameLine(String s, int[] sLines, int i, String t, int[] tLines, int j) {
+		int length = sLines[i + 1] - sLines[i];
+		return length == tLines[j + 1] - tLines[j] && s.regionMatches(sLines[i], t, tLines[j], length);
+	}
+
+	private static int[] number(String text, int[] lines, int from, int to, Map<String, Integer> ids) {
+		int[] result = new int[to - from];
+		for (int i = from; i < to; ++i) {
+			String line = text.substring(lines[i], lines[i + 1]);
+			Integer id = ids.get(line);
+			if (id == null) {
+				id = ids.size();
+				ids.put(line, id);
+			}
+			result[i - from] = id;
+		}
+		return result;
+	}
+
+	private static void addReplacement(List<Replacement> result, String oldText, int[] oldLines, int oldFrom, int oldTo,
+			String newText, int[] newLines, int newFrom, int newTo) {
+		int offset = oldLines[oldFrom];
+		result.add(new Replacement(offset, oldLines[oldTo] - offset, newText.substring(newLines[newFrom], newLines[newTo])));
+	}
+
+	/**
+	 * Find a longest common subsequence of two sequences with Myers' algorithm.
+	 * @param a first sequence
+	 * @param b second sequence
+	 * @param maxEdits most lines that may be deleted and inserted
+	 * @return for each sequence, which of its elements are in the common subsequence,
+	 * or null if more than the given number of edits are needed
+	 */
+	private static boolean[][] match(int[] a, int[] b, int maxEdits) {
+		int n = a.length, m = b.length;
+		int max = Math.min(maxEdits, n + m);
+		int off = max + 1;
+		// v[off + k] is the furthest x reached on diagonal k (= x - y)
+		int[] v = new int[2 * max + 3];
+		List<int[]> trace = new ArrayList<>();
+		for (int d = 0; d <= max; ++d) {
+			// remember the diagonals as they were before this step, for the way back
+			trace.add(Arrays.copyOfRange(v, off - d - 1, off + d + 2));
+			for (int k = -d; k <= d; k += 2) {
+				int x;
+				if (k == -d || k != d && v[off + k - 1] < v[off + k + 1]) x = v[off + k + 1];
+				else x = v[off + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && a[x] == b[y]) {
+					++x;
+					++y;
+				}
+				v[off + k] = x;
+				if (x >= n && y >= m) return backtrack(trace, n, m);
+			}
+		}
+		return null;
+	}
+
+	private static boolean[][] backtrack(List<int[]> trace, int n, int m) {
+		boolean[][] matched = { new boolean[n], new boolean[m] };
+		int x = n, y = m;
+		for (int d = trace.size() - 1; d > 0; --d) {
+			int[] v = trace.get(d);
+			// v[k + d + 1] is the furthest x on diagonal k after step d - 1
+			int k = x - y;
+			int prevK = k == -d || k != d && v[k - 1 + d + 1] < v[k + 1 + d + 1] ? k + 1 : k - 1;
+			int prevX = v[prevK + d + 1];
+			int prevY = prevX - prevK;
+			// the snake after the insertion (down) or deletion (right)
+			int snakeX = prevK == k + 1 ? prevX : prevX + 1;
+			while (x > snakeX) {
+				matched[0][--x] = true;
+				matched[1][--y] = true;
+			}
+			x = prevX;
+			y = prevY;
+		}
+		while (x > 0 && y > 0) {
+			matched[0][--x] = true;
+			matched[1][--y] = true;
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,104 @@
+package edu.uwm.eclipse.util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.ui.texteditor.spelling.SpellingProblem;
+
+/**
+ * The spelling problems found in lines of text, by a hash of the text,
+ * so that a line that was checked before doesn't have to be checked again:
+ * when the other lines of its paragraph are edited, when an edit is undone,
+ * or when it is moved.  The offsets of the problems are relative to the start
+ * of the line.  Past a limit, the lines used least recently are forgotten.
+ * This class is thread-safe.
+ */
+class LineProblemCache {
+
+	/**
+	 * The problems of a line.
+	 */
+	static final class Problems {
+		final int[] offsets;
+		final int[] lengths;
+		final String[] messages;
+
+		private Problems(int n) {
+			offsets = new int[n];
+			lengths = new int[n];
+			messages = new String[n];
+		}
+
+		int size() {
+			return offsets.length;
+		}
+	}
+
+	private static final Problems NONE = new Problems(0);
+
+	private final Map<Long, Problems> fLines;
+
+	/**
+	 * Create an empty cache.
+	 * @param max most lines remembered
+	 */
+	LineProblemCache(final int max) {
+		fLines = new LinkedHashMap<Long, Problems>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Problems> eldest) {
+				return size() > max;
+			}
+		};
+	}
+
+	/**
+	 * Return the problems of a line checked before.
+	 * @param hash hash of the line's text
+	 * @return problems, or null if the line isn't remembered
+	 */
+	public synchronized Problems get(long hash) {
+		return fLines.get(hash);
+	}
+
+	/**
+	 * Remember the problems of a line.
+	 * @param hash hash of the line's text
+	 * @param start offset of the line where it was checked
+	 * @param problems the problems found in it
+	 */
+	public void put(long hash, int start, List<SpellingProblem> problems) {
+		Problems result = problems.isEmpty() ? NONE : new Problems(problems.size());
+		for (int i=0; i < result.size(); ++i) {
+			SpellingProblem p = problems.get(i);
+			result.offsets[i] = p.getOffset() - start;
+			result.lengths[i] = p.getLength();
+			result.messages[i] = p.getMessage();
+		}
+		synchronized (this) {
+			fLines.put(hash, result);
+		}
+	}
+
+	/**
+	 * Forget all lines.
+	 */
+	public synchronized void clear() {
+		fLines.clear();
+	}
+
+	/**
+	 * Return a 64-bit hash (FNV-1a) of text, so that lines can be told apart
+	 * without keeping their text.
+	 */
+	public static long hash(CharSequence text) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0, n=text.length(); i < n; ++i) {
+			h ^= text.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,106 @@
+package edu.uwm.eclipse.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the text of a large file by mapping it into memory a window at a time
+ * and decoding each window straight into a character buffer sized for the whole file.
+ * Reading through a stream and a reader instead makes several copies of the text
+ * (in the reader's buffers and in a growing string builder).
+ * <p>
+ * On Windows, a mapped file cannot be written until the mapping is garbage collected,
+ * which would keep the editor from saving, so there the windows are read rather than mapped.
+ */
+public final class MappedTextReader {
+
+	/** Number of bytes mapped at a time. */
+	private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+	private static final byte[] UTF8_BOM = { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+
+	private MappedTextReader() { }
+
+	/**
+	 * Read the whole text of a file.  Malformed input is replaced, as it is
+	 * when the editor reads a file normally, and a UTF-8 byte order mark is skipped.
+	 * @param path file to read
+	 * @param charset encoding of the file
+	 * @return text of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String read(Path path, Charset charset) throws IOException {
+		// (not Platform.getOS(), so that this can be used outside a running workbench)
+		boolean map = !System.getProperty("os.name", "").startsWith("Windows");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			CharsetDecoder decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			CharBuffer out = CharBuffer.allocate(capacity(size * decoder.averageCharsPerByte() + 16));
+			long position = 0;
+			if (charset.equals(StandardCharsets.UTF_8) && startsWith(channel, UTF8_BOM)) {
+				position = UTF8_BOM.length;
+			}
+			ByteBuffer buffer = map ? null : ByteBuffer.allocate((int)Math.min(WINDOW_SIZE, size));
+			boolean last;
+			do {
+				long remaining = size - position;
+				last = remaining <= WINDOW_SIZE;
+				int length = (int)Math.min(WINDOW_SIZE, remaining);
+				ByteBuffer in;
+				if (map) {
+					in = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				} else {
+					buffer.clear().limit(length);
+					while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+						// keep reading
+					}
+					buffer.flip();
+					in = buffer;
+				}
+				while (decoder.decode(in, out, last).isOverflow()) {
+					out = grow(out);
+				}
+				// a character split across windows is decoded with the next window
+				position += in.position();
+			} while (!last);
+			CoderResult result;
+			while ((result = decoder.flush(out)).isOverflow()) {
+				out = grow(out);
+			}
+			if (result.isError()) result.throwException();
+			out.flip();
+			return out.toString();
+		}
+	}
+
+	private static boolean startsWith(FileChannel channel, byte[] prefix) throws IOException {
+		ByteBuffer start = ByteBuffer.allocate(prefix.length);
+		while (start.hasRemaining() && channel.read(start, start.position()) >= 0) {
+			// keep reading
+		}
+		return start.position() == prefix.length && ByteBuffer.wrap(prefix).equals(start.flip());
+	}
+
+	private static CharBuffer grow(CharBuffer out) {
+		CharBuffer bigger = CharBuffer.allocate(capacity(out.capacity() * 1.5 + 16));
+		out.flip();
+		bigger.put(out);
+		return bigger;
+	}
+
+	private static int capacity(double wanted) {
+		if (wanted > Integer.MAX_VALUE - 8) throw new OutOfMemoryError("file too large to edit");
+		return (int)wanted;
+	}
+}
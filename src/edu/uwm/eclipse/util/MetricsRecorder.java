@@ -0,0 +1,164 @@
+package edu.uwm.eclipse.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.core.runtime.ICoreRunnable;
+import org.eclipse.core.runtime.jobs.Job;
+
+/**
+ * Writes measurements of reconciling to a file, one JSON object a line,
+ * so that they can be analyzed later (for example, as histograms of latency).
+ * Each line has the time (ms since the epoch), kind, editor and strategy,
+ * and then, for a phase, the phase, nanos, regions and chars;
+ * for annotations, added and removed.  For example:
+ * <pre>
+ * {"time":1700000000000,"kind":"phase","editor":"story.tw","strategy":"SugarCubeMacroChecker","phase":"reconcile","nanos":81234,"regions":3,"chars":87}
+ * </pre>
+ * When the file grows beyond a limit, it is renamed with ".old" added and a new file is begun.
+ * <p>
+ * Measurements are made in the UI thread and in reconciler threads holding locks,
+ * so a sample is only formatted and queued there; a background job writes
+ * the queued lines about once a second.  If the queue is full, samples are dropped.
+ * If the file can't be written, the error is reported on standard error
+ * and the recorder stops recording.
+ * @see ReconcileMetrics#addListener(IReconcileMetricsListener)
+ */
+public class MetricsRecorder implements IReconcileMetricsListener {
+
+	/** Size (bytes) at which the file is begun again. */
+	private static final long MAX_SIZE = 16L * 1024 * 1024;
+	/** How long (ms) lines are queued before they are written. */
+	private static final long WRITE_DELAY = 1000;
+	/** Most lines queued; more are dropped. */
+	private static final int MAX_QUEUED = 100000;
+
+	private final File fFile;
+	private Writer fWriter;
+	private long fSize;
+
+	// lines not yet written, guarded by itself
+	private final List<String> fQueue = new ArrayList<>();
+	private volatile boolean fFailed;
+
+	private final Job fWriteJob = Job.create("Recording reconciling metrics", (ICoreRunnable) (monitor) -> writeQueued());
+
+	/**
+	 * Create a recorder that appends to a file.
+	 * @param file file to write, created (with its directory) if it doesn't exist
+	 */
+	public MetricsRecorder(File file) {
+		fFile = file;
+		fWriteJob.setSystem(true);
+		fWriteJob.setPriority(Job.DECORATE);
+	}
+
+	@Override
+	public void sampled(ReconcileMetrics.Sample sample) {
+		if (fFailed) return;
+		StringBuilder sb = new StringBuilder(160);
+		sb.append("{\"time\":").append(sample.time);
+		sb.append(",\"kind\":\"").append(sample.kind.name().toLowerCase(Locale.ROOT)).append('"');
+		sb.append(",\"editor\":"); quote(sb, sample.editor);
+		sb.append(",\"strategy\":"); quote(sb, sample.strategy);
+		switch (sample.kind) {
+		case PHASE:
+			sb.append(",\"phase\":\"").append(sample.phase.name().toLowerCase(Locale.ROOT)).append('"');
+			sb.append(",\"nanos\":").append(sample.nanos);
+			sb.append(",\"regions\":").append(sample.regions);
+			sb.append(",\"chars\":").append(sample.chars);
+			break;
+		case ANNOTATIONS:
+			sb.append(",\"added\":").append(sample.added);
+			sb.append(",\"removed\":").append(sample.removed);
+			break;
+		default:
+			break;
+		}
+		sb.append("}\n");
+		boolean first;
+		synchronized (fQueue) {
+			if (fQueue.size() >= MAX_QUEUED) return;
+			first = fQueue.isEmpty();
+			fQueue.add(sb.toString());
+		}
+		if (first) fWriteJob.schedule(WRITE_DELAY);
+	}
+
+	private static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i=0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			default:
+				if (ch < ' ') sb.append(String.format("\\u%04x", (int)ch));
+				else sb.append(ch);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Write the queued lines to the file.
+	 */
+	private synchronized void writeQueued() {
+		List<String> lines;
+		synchronized (fQueue) {
+			if (fQueue.isEmpty()) return;
+			lines = new ArrayList<>(fQueue);
+			fQueue.clear();
+		}
+		if (fFailed) return;
+		try {
+			for (String line : lines) {
+				if (fWriter == null || fSize > MAX_SIZE) open();
+				fWriter.write(line);
+				fSize += line.length();
+			}
+			fWriter.flush();
+		} catch (IOException e) {
+			System.err.println("cannot record metrics in " + fFile + ": " + e);
+			fFailed = true;
+			ReconcileMetrics.getDefault().removeListener(this);
+			close();
+		}
+	}
+
+	private void open() throws IOException {
+		close();
+		File dir = fFile.getParentFile();
+		if (dir != null) dir.mkdirs();
+		if (fFile.length() > MAX_SIZE) {
+			File old = new File(fFile.getPath() + ".old");
+			old.delete();
+			fFile.renameTo(old);
+		}
+		fSize = fFile.length();
+		fWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fFile, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Write what is queued and close the file.  Recording again reopens it.
+	 */
+	public synchronized void close() {
+		fWriteJob.cancel();
+		writeQueued();
+		if (fWriter == null) return;
+		try {
+			fWriter.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		fWriter = null;
+	}
+}
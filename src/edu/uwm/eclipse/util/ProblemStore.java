@@ -0,0 +1,344 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+
+/**
+ * Problems kept out of the annotation model, because they are far from
+ * what the user is looking at: only their locations and messages are kept,
+ * in blocks of nearby problems.  A block has its start in the document
+ * and, for its problems in order, their offsets (relative to the start)
+ * and lengths as arrays of ints.  Messages that are the same are shared.
+ * <p>
+ * The store follows the changes to its document as the annotation model's
+ * positions would (see {@link AnnotationIndex}): a change moves the starts
+ * of the blocks after it and changes only the problems of the block it is in.
+ * Unlike positions, nothing is done for each problem on every change.
+ * This class is thread-safe.
+ */
+class ProblemStore implements IDocumentListener {
+
+	/** Number of problems at which a block is split in two. */
+	private static final int MAX_BLOCK = 512;
+
+	/**
+	 * A problem taken out of the store.
+	 */
+	static final class Problem {
+		final int offset, length;
+		final String message;
+
+		Problem(int offset, int length, String message) {
+			this.offset = offset;
+			this.length = length;
+			this.message = message;
+		}
+	}
+
+	private static final class Block {
+		int start;
+		int size;
+		int[] offsets = new int[16];
+		int[] lengths = new int[16];
+		String[] messages = new String[16];
+		// greatest offset + length, relative to the start
+		int maxEnd;
+
+		void computeMaxEnd() {
+			int max = 0;
+			for (int i=0; i < size; ++i) max = Math.max(max, offsets[i] + lengths[i]);
+			maxEnd = max;
+		}
+	}
+
+	// in order of start; the problems of a block start no earlier than those of the block before
+	private final List<Block> fBlocks = new ArrayList<>();
+	private int fSize;
+	private final Map<String, String> fMessages = new HashMap<>();
+	private IDocument fDocument;
+
+	/**
+	 * Start following changes to a document.
+	 * @param document document the problems are in
+	 */
+	public synchronized void connect(IDocument document) {
+		disconnect();
+		fDocument = document;
+		if (document != null) document.addDocumentListener(this);
+	}
+
+	/**
+	 * Stop following the document, if any.
+	 */
+	public synchronized void disconnect() {
+		if (fDocument != null) fDocument.removeDocumentListener(this);
+		fDocument = null;
+	}
+
+	/**
+	 * Return the number of problems stored.
+	 */
+	public synchronized int size() {
+		return fSize;
+	}
+
+	/**
+	 * Forget all problems.
+	 */
+	public synchronized void clear() {
+		fBlocks.clear();
+		fMessages.clear();
+		fSize = 0;
+	}
+
+	/**
+	 * Store a problem.
+	 * @param offset where it starts in the document
+	 * @param length its length
+	 * @param message its message
+	 */
+	public synchronized void add(int offset, int length, String message) {
+		String shared = fMessages.get(message);
+		if (shared == null) fMessages.put(message, shared = message);
+		int b = findBlock(offset);
+		Block block;
+		if (b < 0) {
+			if (fBlocks.isEmpty()) {
+				block = new Block();
+				block.start = offset;
+				fBlocks.add(block);
+			} else {
+				// before the first block: it starts here now
+				block = fBlocks.get(0);
+				rebase(block, offset);
+			}
+		} else {
+			block = fBlocks.get(b);
+		}
+		int rel = offset - block.start;
+		int i = block.size;
+		while (i > 0 && block.offsets[i-1] > rel) --i;
+		if (block.size == block.offsets.length) {
+			int capacity = block.size * 2;
+			block.offsets = Arrays.copyOf(block.offsets, capacity);
+			block.lengths = Arrays.copyOf(block.lengths, capacity);
+			block.messages = Arrays.copyOf(block.messages, capacity);
+		}
+		System.arraycopy(block.offsets, i, block.offsets, i+1, block.size - i);
+		System.arraycopy(block.lengths, i, block.lengths, i+1, block.size - i);
+		System.arraycopy(block.messages, i, block.messages, i+1, block.size - i);
+		block.offsets[i] = rel;
+		block.lengths[i] = length;
+		block.messages[i] = shared;
+		++block.size;
+		block.maxEnd = Math.max(block.maxEnd, rel + length);
+		++fSize;
+		if (block.size >= MAX_BLOCK) split(fBlocks.indexOf(block));
+	}
+
+	/**
+	 * Return the index of the last block starting at or before an offset, or -1 if none.
+	 */
+	private int findBlock(int offset) {
+		int lo = 0, hi = fBlocks.size() - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (fBlocks.get(mid).start <= offset) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Move the start of a block, leaving its problems where they are.
+	 */
+	private static void rebase(Block block, int start) {
+		int delta = block.start - start;
+		for (int i=0; i < block.size; ++i) block.offsets[i] += delta;
+		block.maxEnd += delta;
+		block.start = start;
+	}
+
+	private void split(int b) {
+		Block block = fBlocks.get(b);
+		int half = block.size / 2;
+		Block rest = new Block();
+		rest.size = block.size - half;
+		rest.offsets = Arrays.copyOfRange(block.offsets, half, half + rest.size * 2);
+		rest.lengths = Arrays.copyOfRange(block.lengths, half, half + rest.size * 2);
+		rest.messages = Arrays.copyOfRange(block.messages, half, half + rest.size * 2);
+		rest.start = block.start;
+		rebase(rest, block.start + rest.offsets[0]);
+		Arrays.fill(block.messages, half, block.size, null);
+		block.size = half;
+		block.computeMaxEnd();
+		rest.computeMaxEnd();
+		fBlocks.add(b + 1, rest);
+	}
+
+	/**
+	 * Return all the problems, leaving them in the store.
+	 * @return the problems, in order
+	 */
+	public synchronized List<Problem> getAll() {
+		List<Problem> result = new ArrayList<>(fSize);
+		for (Block block : fBlocks) {
+			for (int i=0; i < block.size; ++i) {
+				result.add(new Problem(block.start + block.offsets[i], block.lengths[i], block.messages[i]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Take out the problems that overlap a region,
+	 * and the empty ones in it or at its ends.
+	 * @param offset start of region
+	 * @param length length of region
+	 * @param max most problems to take
+	 * @return the problems taken, in order
+	 */
+	public synchronized List<Problem> take(int offset, int length, int max) {
+		List<Problem> result = new ArrayList<>();
+		int end = offset + length;
+		for (int b = 0; b < fBlocks.size() && result.size() < max; ) {
+			Block block = fBlocks.get(b);
+			if (block.start > end) break;
+			if (block.start + block.maxEnd < offset) {
+				++b;
+				continue;
+			}
+			int kept = 0;
+			for (int i=0; i < block.size; ++i) {
+				int start = block.start + block.offsets[i];
+				int len = block.lengths[i];
+				boolean in = len == 0 ? start >= offset && start <= end : start < end && start + len > offset;
+				if (result.size() < max && in) {
+					result.add(new Problem(start, block.lengths[i], block.messages[i]));
+				} else {
+					block.offsets[kept] = block.offsets[i];
+					block.lengths[kept] = block.lengths[i];
+					block.messages[kept] = block.messages[i];
+					++kept;
+				}
+			}
+			Arrays.fill(block.messages, kept, block.size, null);
+			fSize -= block.size - kept;
+			block.size = kept;
+			if (kept == 0) {
+				fBlocks.remove(b);
+			} else {
+				rebase(block, block.start + block.offsets[0]);
+				block.computeMaxEnd();
+				++b;
+			}
+		}
+		if (fSize == 0) fMessages.clear();
+		return result;
+	}
+
+	@Override
+	public void documentAboutToBeChanged(DocumentEvent event) {
+		// nothing to do
+	}
+
+	/**
+	 * Follow a change to the document, as the default position updater would.
+	 */
+	@Override
+	public synchronized void documentChanged(DocumentEvent event) {
+		int offset = event.getOffset();
+		int removed = event.getLength();
+		int inserted = event.getText() == null ? 0 : event.getText().length();
+		int delta = inserted - removed;
+		for (Iterator<Block> it = fBlocks.iterator(); it.hasNext(); ) {
+			Block block = it.next();
+			if (block.start >= offset + removed) {
+				// after the change
+				block.start += delta;
+			} else if (block.start + block.maxEnd >= offset) {
+				changeProblems(block, offset, removed, inserted);
+				if (block.size == 0) it.remove();
+			}
+		}
+		if (fSize == 0) fMessages.clear();
+	}
+
+	/**
+	 * Follow a change in a block, one problem at a time, with the rules of {@link AnnotationIndex}.
+	 * Problems in removed text are dropped; a block may be left empty.
+	 */
+	private void changeProblems(Block block, int offset, int removed, int inserted) {
+		boolean reordered = false;
+		int previous = Integer.MIN_VALUE;
+		int[] starts = new int[block.size];
+		int kept = 0;
+		for (int i=0; i < block.size; ++i) {
+			int start = block.start + block.offsets[i];
+			int end = start + block.lengths[i];
+			if (start > offset && end < offset + removed) {
+				// its text is gone: the model would delete its position
+				continue;
+			} else if (start < offset) {
+				if (end >= offset + removed && (removed > 0 || end > offset)) end += inserted - removed;
+				else if (end > offset) end = offset;
+			} else if (start < offset + removed) {
+				if (start == offset && end >= offset + removed) {
+					end += inserted - removed;
+				} else {
+					start = offset + inserted;
+					end = Math.max(start, end - removed + inserted);
+				}
+			} else {
+				start += inserted - removed;
+				end += inserted - removed;
+			}
+			if (start < previous) reordered = true;
+			previous = start;
+			starts[kept] = start;
+			block.lengths[kept] = end - start;
+			block.messages[kept] = block.messages[i];
+			++kept;
+		}
+		Arrays.fill(block.messages, kept, block.size, null);
+		fSize -= block.size - kept;
+		block.size = kept;
+		if (kept == 0) return;
+		if (reordered) sort(block, starts);
+		block.start = starts[0];
+		for (int i=0; i < block.size; ++i) block.offsets[i] = starts[i] - block.start;
+		block.computeMaxEnd();
+	}
+
+	/**
+	 * Put the problems of a block in order of their new starts (insertion sort:
+	 * only problems that started where text was replaced are out of order).
+	 */
+	private static void sort(Block block, int[] starts) {
+		for (int i=1; i < block.size; ++i) {
+			int start = starts[i], length = block.lengths[i];
+			String message = block.messages[i];
+			int j = i;
+			for (; j > 0 && starts[j-1] > start; --j) {
+				starts[j] = starts[j-1];
+				block.lengths[j] = block.lengths[j-1];
+				block.messages[j] = block.messages[j-1];
+			}
+			starts[j] = start;
+			block.lengths[j] = length;
+			block.messages[j] = message;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * Measurements of reconciling, for all documents and strategies in the plugin:
+ * the time each phase of a pass takes, how much of the document it covers,
+ * how many annotations it adds and removes, and how many runnables
+ * it posts to the UI thread.
+ * Totals can be read at any time (see {@link #getMetrics()}), and every measurement is given
+ * as a {@link Sample} to listeners, such as a {@link MetricsRecorder}.
+ * <p>
+ * Measurements are made by {@link ReconcilerFixed} (for the phases)
+ * and by the strategies themselves (for what they change).
+ * Documents are identified by name (see {@link #setName(IDocument, String)}),
+ * strategies by {@link #getName(Object)}.
+ * This class is thread-safe.
+ */
+public final class ReconcileMetrics {
+
+	/**
+	 * Phases of a reconcile pass, as seen by a strategy.
+	 */
+	public enum Phase {
+		/** {@link IReconcilingStrategyExtension2#beforeReconcile(org.eclipse.jface.text.reconciler.DirtyRegion)} */
+		BEFORE,
+		/** reconciling the partitions of the pass, or the initial pass */
+		RECONCILE,
+		/** {@link IReconcilingStrategyExtension2#afterReconcile(org.eclipse.jface.text.reconciler.DirtyRegion)} */
+		AFTER,
+	}
+
+	/**
+	 * Kinds of measurements.
+	 */
+	public enum Kind {
+		/** time taken by a phase, with the regions and characters reconciled */
+		PHASE,
+		/** annotations (or for the outline, passages) added and removed */
+		ANNOTATIONS,
+		/** a runnable posted to the UI thread */
+		ASYNC_EXEC,
+	}
+
+	/**
+	 * One measurement.
+	 */
+	public static final class Sample {
+		/** When the measurement was made (ms since the epoch). */
+		public final long time;
+		public final Kind kind;
+		/** Name of the document. */
+		public final String editor;
+		/** Name of the strategy. */
+		public final String strategy;
+		/** Phase measured, or null if the kind is not {@link Kind#PHASE}. */
+		public final Phase phase;
+		public final long nanos;
+		public final int regions;
+		public final int chars;
+		public final int added;
+		public final int removed;
+
+		Sample(Kind kind, String editor, String strategy, Phase phase, long nanos, int regions, int chars, int added, int removed) {
+			this.time = System.currentTimeMillis();
+			this.kind = kind;
+			this.editor = editor;
+			this.strategy = strategy;
+			this.phase = phase;
+			this.nanos = nanos;
+			this.regions = regions;
+			this.chars = chars;
+			this.added = added;
+			this.removed = removed;
+		}
+	}
+
+	/**
+	 * Totals for one strategy in one document.
+	 * Instances returned by {@link ReconcileMetrics#getMetrics()} are copies that don't change.
+	 */
+	public static final class StrategyMetrics {
+		private final String fStrategy;
+		private String fEditor;
+		private final long[] fCounts = new long[Phase.values().length];
+		private final long[] fNanos = new long[Phase.values().length];
+		private final long[] fMaxNanos = new long[Phase.values().length];
+		private long fRegions, fChars, fAdded, fRemoved, fAsyncExecs;
+
+		StrategyMetrics(String strategy) {
+			fStrategy = strategy;
+		}
+
+		StrategyMetrics copy(String editor) {
+			StrategyMetrics c = new StrategyMetrics(fStrategy);
+			c.fEditor = editor;
+			System.arraycopy(fCounts, 0, c.fCounts, 0, fCounts.length);
+			System.arraycopy(fNanos, 0, c.fNanos, 0, fNanos.length);
+			System.arraycopy(fMaxNanos, 0, c.fMaxNanos, 0, fMaxNanos.length);
+			c.fRegions = fRegions;
+			c.fChars = fChars;
+			c.fAdded = fAdded;
+			c.fRemoved = fRemoved;
+			c.fAsyncExecs = fAsyncExecs;
+			return c;
+		}
+
+		void add(Sample s) {
+			switch (s.kind) {
+			case PHASE:
+				int p = s.phase.ordinal();
+				++fCounts[p];
+				fNanos[p] += s.nanos;
+				fMaxNanos[p] = Math.max(fMaxNanos[p], s.nanos);
+				fRegions += s.regions;
+				fChars += s.chars;
+				break;
+			case ANNOTATIONS:
+				fAdded += s.added;
+				fRemoved += s.removed;
+				break;
+			case ASYNC_EXEC:
+				++fAsyncExecs;
+				break;
+			}
+		}
+
+		/** Return the name of the document. */
+		public String getEditor() {
+			return fEditor;
+		}
+
+		/** Return the name of the strategy. */
+		public String getStrategy() {
+			return fStrategy;
+		}
+
+		/**
+		 * Return how many times a phase was measured.
+		 * @param phase phase to return count of
+		 */
+		public long getCount(Phase phase) {
+			return fCounts[phase.ordinal()];
+		}
+
+		/**
+		 * Return the total time taken by a phase.
+		 * @param phase phase to return time of
+		 * @return time in nanoseconds
+		 */
+		public long getTotalNanos(Phase phase) {
+			return fNanos[phase.ordinal()];
+		}
+
+		/**
+		 * Return the longest time a phase took.
+		 * @param phase phase to return time of
+		 * @return time in nanoseconds
+		 */
+		public long getMaxNanos(Phase phase) {
+			return fMaxNanos[phase.ordinal()];
+		}
+
+		/** Return the number of regions reconciled. */
+		public long getRegions() {
+			return fRegions;
+		}
+
+		/** Return the number of characters in the regions reconciled. */
+		public long getChars() {
+			return fChars;
+		}
+
+		/** Return the number of annotations added. */
+		public long getAnnotationsAdded() {
+			return fAdded;
+		}
+
+		/** Return the number of annotations removed. */
+		public long getAnnotationsRemoved() {
+			return fRemoved;
+		}
+
+		/** Return the number of runnables posted to the UI thread. */
+		public long getAsyncExecs() {
+			return fAsyncExecs;
+		}
+	}
+
+	private static final ReconcileMetrics fDefault = new ReconcileMetrics();
+
+	/**
+	 * Return the measurements shared by the plugin.
+	 * @return shared instance, never null
+	 */
+	public static ReconcileMetrics getDefault() {
+		return fDefault;
+	}
+
+	private final List<IReconcileMetricsListener> fListeners = new CopyOnWriteArrayList<>();
+	// guarded by this; documents are forgotten when they are no longer used
+	private final Map<IDocument, String> fNames = new WeakHashMap<>();
+	private final Map<IDocument, Map<String, StrategyMetrics>> fMetrics = new WeakHashMap<>();
+	private int fUnnamed;
+
+	private ReconcileMetrics() { }
+
+	/**
+	 * Name a document, for example after the file it was read from.
+	 * @param document document being reconciled
+	 * @param name name to give it
+	 */
+	public synchronized void setName(IDocument document, String name) {
+		fNames.put(document, name);
+	}
+
+	private synchronized String nameOf(IDocument document) {
+		String name = fNames.get(document);
+		if (name == null) {
+			name = "document" + ++fUnnamed;
+			fNames.put(document, name);
+		}
+		return name;
+	}
+
+	/**
+	 * Return the name under which a strategy's measurements are kept:
+	 * its class's simple name, qualified by the enclosing class for a nested class.
+	 * @param strategy strategy to name
+	 * @return name of strategy
+	 */
+	public static String getName(Object strategy) {
+		Class<?> c = strategy.getClass();
+		Class<?> outer = c.getEnclosingClass();
+		return outer == null ? c.getSimpleName() : outer.getSimpleName() + "." + c.getSimpleName();
+	}
+
+	/**
+	 * Add a listener that is given every measurement.
+	 * Listeners are called in the thread that makes the measurement, so they must be quick.
+	 * @param listener listener to add
+	 */
+	public void addListener(IReconcileMetricsListener listener) {
+		fListeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 * @param listener listener to remove
+	 */
+	public void removeListener(IReconcileMetricsListener listener) {
+		fListeners.remove(listener);
+	}
+
+	/**
+	 * Record the time a phase took.
+	 * @param document document reconciled
+	 * @param strategy strategy that took the time
+	 * @param phase phase measured
+	 * @param nanos time in nanoseconds
+	 * @param regions number of regions reconciled
+	 * @param chars number of characters in those regions
+	 */
+	public void recordPhase(IDocument document, Object strategy, Phase phase, long nanos, int regions, int chars) {
+		record(document, new Sample(Kind.PHASE, nameOf(document), getName(strategy), phase, nanos, regions, chars, 0, 0));
+	}
+
+	/**
+	 * Record the annotations a strategy changed in one go.
+	 * @param document document reconciled
+	 * @param strategy strategy that made the change
+	 * @param added number of annotations added
+	 * @param removed number of annotations removed
+	 */
+	public void recordAnnotations(IDocument document, Object strategy, int added, int removed) {
+		record(document, new Sample(Kind.ANNOTATIONS, nameOf(document), getName(strategy), null, 0, 0, 0, added, removed));
+	}
+
+	/**
+	 * Record that a strategy posted a runnable to the UI thread.
+	 * @param document document reconciled
+	 * @param strategy strategy that posted it
+	 */
+	public void recordAsyncExec(IDocument document, Object strategy) {
+		record(document, new Sample(Kind.ASYNC_EXEC, nameOf(document), getName(strategy), null, 0, 0, 0, 0, 0));
+	}
+
+	private void record(IDocument document, Sample sample) {
+		synchronized (this) {
+			fMetrics.computeIfAbsent(document, (d) -> new TreeMap<>())
+				.computeIfAbsent(sample.strategy, (s) -> new StrategyMetrics(s))
+				.add(sample);
+		}
+		for (IReconcileMetricsListener l : fListeners) {
+			l.sampled(sample);
+		}
+	}
+
+	/**
+	 * Return the totals for every strategy of every document still in use.
+	 * @return copies of the totals
+	 */
+	public synchronized List<StrategyMetrics> getMetrics() {
+		List<StrategyMetrics> result = new ArrayList<>();
+		for (Map.Entry<IDocument, Map<String, StrategyMetrics>> e : fMetrics.entrySet()) {
+			for (StrategyMetrics sm : e.getValue().values()) {
+				result.add(sm.copy(nameOf(e.getKey())));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the totals for the strategies of one document.
+	 * @param document document reconciled
+	 * @return copies of the totals, by strategy name
+	 */
+	public synchronized Map<String, StrategyMetrics> getMetrics(IDocument document) {
+		Map<String, StrategyMetrics> result = new TreeMap<>();
+		Map<String, StrategyMetrics> m = fMetrics.get(document);
+		if (m != null) {
+			for (Map.Entry<String, StrategyMetrics> e : m.entrySet()) {
+				result.put(e.getKey(), e.getValue().copy(nameOf(document)));
+			}
+		}
+		return result;
+	}
+}
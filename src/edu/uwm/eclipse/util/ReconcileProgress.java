@@ -0,0 +1,73 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.IRegion;
+
+/**
+ * Follows a pass of a reconciling strategy over a sequence of regions
+ * (such as the partitioning of the document): reports progress as the regions
+ * are reached, and notices when the pass is canceled.  When it is,
+ * the pass should stop and tell the reconciler its checkpoint,
+ * the offset from which the next pass can continue.
+ * A region that the pass was in when canceled may have been reconciled only in part,
+ * so the checkpoint is the start of that region, not the next one.
+ * <p>
+ * Each pass needs its own instance, which must be used from only one thread.
+ * @see IReconcilingStrategyExtension2#initialReconcile(String, org.eclipse.jface.text.ITypedRegion[])
+ */
+public class ReconcileProgress {
+
+	private final IProgressMonitor fMonitor;
+	private final int fRegions;
+	private final int fWork;
+	private int fCount;
+	private int fReported;
+	private int fLast = -1;
+	private int fCheckpoint = -1;
+
+	/**
+	 * Start following a pass.
+	 * @param monitor monitor to report to and check for cancellation, may be null
+	 * @param regions number of regions in the pass
+	 * @param work units of work to report over the whole pass, 0 to report none
+	 */
+	public ReconcileProgress(IProgressMonitor monitor, int regions, int work) {
+		fMonitor = monitor;
+		fRegions = regions;
+		fWork = work;
+	}
+
+	/**
+	 * The pass has come to a region.  Report progress, unless the pass was canceled.
+	 * @param region the next region
+	 * @return whether the pass should go on with this region
+	 */
+	public boolean next(IRegion region) {
+		if (fCheckpoint >= 0) return false;
+		if (fMonitor != null && fMonitor.isCanceled()) {
+			fCheckpoint = fLast < 0 ? region.getOffset() : fLast;
+			return false;
+		}
+		fLast = region.getOffset();
+		if (fMonitor != null && fWork > 0) {
+			int reached = (int) ((long) fWork * ++fCount / fRegions);
+			if (reached > fReported) {
+				fMonitor.worked(reached - fReported);
+				fReported = reached;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return where the next pass should continue.
+	 * This also notices if the pass was canceled during its last region.
+	 * @return offset of the checkpoint, or -1 if the pass was not canceled
+	 */
+	public int getCheckpoint() {
+		if (fCheckpoint < 0 && fLast >= 0 && fMonitor != null && fMonitor.isCanceled()) {
+			fCheckpoint = fLast;
+		}
+		return fCheckpoint;
+	}
+}
@@ -0,0 +1,268 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the work of all reconcilers in the plugin, so that many open editors
+ * don't all reconcile at once.  A reconciler runs a pass only while it holds
+ * one of a fixed number of permits, and the pass's concurrent tasks
+ * (such as the chunks of a large document) run on a shared pool of as many threads.
+ * The focused client (normally the reconciler of the active editor) is served first;
+ * the others wait in order, and together hold at most half the permits,
+ * so that there is always a permit the focused client can have.
+ * <p>
+ * On Java 21 and later, the pool's threads are virtual threads.
+ * The pool is created when first needed, and its threads end when idle.
+ * @see ReconcilerFixed
+ */
+public final class ReconcileScheduler {
+
+	/** How long (seconds) an idle pool thread waits for a task before it ends. */
+	private static final int KEEP_ALIVE = 30;
+
+	private static ReconcileScheduler fDefault;
+
+	/**
+	 * Return the scheduler shared by the plugin.
+	 * @return shared scheduler, never null
+	 */
+	public static synchronized ReconcileScheduler getDefault() {
+		if (fDefault == null) {
+			fDefault = new ReconcileScheduler(Math.max(2, Runtime.getRuntime().availableProcessors() - 1));
+		}
+		return fDefault;
+	}
+
+	private final int fSize;
+	private final int fBackgroundLimit;
+	private final boolean fVirtual;
+	private final ThreadPoolExecutor fExecutor;
+	private final AtomicLong fSequence = new AtomicLong();
+
+	// guarded by this
+	private Object fFocused;
+	private int fActive, fActiveBackground;
+	private final List<Waiter> fWaiting = new ArrayList<>();
+
+	/**
+	 * A pass waiting for a permit.
+	 */
+	private static class Waiter {
+		final boolean focused;
+		final long sequence;
+		Waiter(boolean focused, long sequence) {
+			this.focused = focused;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * A task on the pool, ordered by the priority of its client when it was submitted.
+	 */
+	private static class Task extends FutureTask<Void> implements Comparable<Task> {
+		final boolean focused;
+		final long sequence;
+		Task(Runnable task, boolean focused, long sequence) {
+			super(task, null);
+			this.focused = focused;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			if (focused != o.focused) return focused ? -1 : 1;
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+	/**
+	 * Create a scheduler.
+	 * @param size number of passes that may run at once, and of threads in the pool;
+	 * at least two, so that one is left for the focused client
+	 */
+	ReconcileScheduler(int size) {
+		fSize = Math.max(2, size);
+		fBackgroundLimit = fSize / 2;
+		ThreadFactory factory = createVirtualThreadFactory();
+		fVirtual = factory != null;
+		if (factory == null) {
+			ThreadFactory threads = Executors.defaultThreadFactory();
+			AtomicInteger count = new AtomicInteger();
+			factory = (r) -> {
+				Thread t = threads.newThread(r);
+				t.setName("Twee reconciler " + count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			};
+		}
+		fExecutor = new ThreadPoolExecutor(fSize, fSize, KEEP_ALIVE, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), factory);
+		fExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Return a factory of virtual threads, if this Java has them.
+	 * (The plugin is compiled for Java 8, so they are found by reflection.)
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Twee reconciler ", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Set the client whose work is done first, normally the reconciler of the active editor.
+	 * @param client client to favor, or null for none
+	 */
+	public synchronized void setFocused(Object client) {
+		fFocused = client;
+	}
+
+	/**
+	 * Stop favoring a client, if it is the focused one (for example, because it is uninstalled).
+	 * @param client client that no longer needs to be favored
+	 */
+	public synchronized void unfocus(Object client) {
+		if (fFocused == client) fFocused = null;
+	}
+
+	/**
+	 * Return whether a client's work is done first.
+	 * @param client client to check
+	 * @return whether the client is the focused one
+	 */
+	public synchronized boolean isFocused(Object client) {
+		return client != null && fFocused == client;
+	}
+
+	/**
+	 * Wait for a permit to run a pass.  Every permit acquired must be released,
+	 * normally in a finally clause.  Passes must not acquire a permit while they hold one.
+	 * This waits even if the thread is interrupted, but leaves the thread interrupted.
+	 * @param client client whose pass this is
+	 * @return whether the pass is for the focused client, which must be given to {@link #release(boolean)}
+	 */
+	public synchronized boolean acquire(Object client) {
+		boolean focused = isFocused(client);
+		Waiter waiter = new Waiter(focused, fSequence.getAndIncrement());
+		fWaiting.add(waiter);
+		boolean interrupted = false;
+		try {
+			while (!isNext(waiter)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			fWaiting.remove(waiter);
+			notifyAll();
+		}
+		++fActive;
+		if (!focused) ++fActiveBackground;
+		if (interrupted) Thread.currentThread().interrupt();
+		return focused;
+	}
+
+	/**
+	 * Return whether a waiting pass may start: there is a permit for it
+	 * and no other waiting pass comes before it.
+	 */
+	private boolean isNext(Waiter waiter) {
+		if (fActive >= fSize) return false;
+		if (!waiter.focused && fActiveBackground >= fBackgroundLimit) return false;
+		for (Waiter w : fWaiting) {
+			if (w == waiter) continue;
+			if (w.focused && !waiter.focused) return false;
+			if (w.focused == waiter.focused && w.sequence < waiter.sequence) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release a permit acquired by {@link #acquire(Object)}.
+	 * @param focused what {@link #acquire(Object)} returned
+	 */
+	public synchronized void release(boolean focused) {
+		--fActive;
+		if (!focused) --fActiveBackground;
+		notifyAll();
+	}
+
+	/**
+	 * Run a task on the pool.
+	 * @param client client whose task this is
+	 * @param task task to run
+	 * @return future of the task
+	 */
+	public Future<?> submit(Object client, Runnable task) {
+		Task t = new Task(task, isFocused(client), fSequence.getAndIncrement());
+		fExecutor.execute(t);
+		return t;
+	}
+
+	/**
+	 * Return the number of passes that may run at once,
+	 * which is also the number of threads in the pool.
+	 * @return size of the pool
+	 */
+	public int getPoolSize() {
+		return fSize;
+	}
+
+	/**
+	 * Return whether the pool's threads are virtual threads.
+	 */
+	public boolean isVirtual() {
+		return fVirtual;
+	}
+
+	/**
+	 * Return the number of passes running.
+	 * @return passes holding a permit
+	 */
+	public synchronized int getActivePasses() {
+		return fActive;
+	}
+
+	/**
+	 * Return the number of passes waiting for a permit.
+	 * @return passes waiting
+	 */
+	public synchronized int getWaitingPasses() {
+		return fWaiting.size();
+	}
+
+	/**
+	 * Return the number of tasks waiting for a thread in the pool.
+	 * @return tasks queued
+	 */
+	public int getQueuedTasks() {
+		return fExecutor.getQueue().size();
+	}
+
+	/**
+	 * Return the amount of work waiting: passes waiting for a permit
+	 * and tasks waiting for a thread.
+	 * @return depth of queue
+	 */
+	public int getQueueDepth() {
+		return getWaitingPasses() + getQueuedTasks();
+	}
+}
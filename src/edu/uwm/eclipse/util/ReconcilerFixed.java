@@ -1,12 +1,32 @@
 package edu.uwm.eclipse.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.eclipse.core.runtime.ICoreRunnable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ISynchronizable;
+import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
 import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.TypedRegion;
 import org.eclipse.jface.text.reconciler.DirtyRegion;
@@ -17,42 +37,392 @@ import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
  * A reconciler that assists in incrementality by
  * using {@link IReconcilingStrategyExtension2}
  * if available.
+ * It also keeps track of whether all changes have been reconciled
+ * (see {@link #isReconciled()}), and the initial reconcile can be skipped
+ * if the strategies' results are already known.
+ * <p>
+ * Work is done from the viewport outwards: changed ranges are reconciled
+ * in order of their distance from the visible lines, and of a large change
+ * (such as a paste or a replace across the file) only the visible lines
+ * and a margin around them are reconciled right away, so that their annotations
+ * are published first; the rest is reconciled a slice at a time, nearest first,
+ * by a background job that reports its progress and can be canceled.
+ * For very large documents, the initial reconcile can be limited to the viewport
+ * in the same way (see {@link #setLimitedToViewport(boolean)}).
+ * <p>
+ * Everything that analyzes a document shares one reconciler,
+ * and each pass partitions the document once for all of its strategies.
+ * The initial pass over a document is split into chunks that are reconciled
+ * in parallel by strategies that allow it (see {@link IReconcilingStrategyExtension3}).
+ * Passes and chunks of all reconcilers are run as the plugin's {@link ReconcileScheduler}
+ * allows, so that the reconciler of the focused editor comes first
+ * (see {@link ReconcileScheduler#setFocused(Object)}).
+ * <p>
+ * Rather than reconciling each dirty region in turn after a fixed delay,
+ * the reconciler keeps track of the changed parts of the document for each strategy,
+ * merging changes that overlap or touch, and reconciles all of them in one pass.
+ * Each strategy has its own delay after the last change, chosen from how fast
+ * the user types and how long the strategy has been taking
+ * (see {@link IReconcilerMetrics}), so that cheap strategies keep up with typing
+ * and expensive ones wait for a pause.
+ * <p>
+ * A pass that is canceled (because the document changed) stops at a checkpoint
+ * (see {@link ReconcileProgress}), and the rest of what it was to reconcile
+ * is left dirty, so that the next pass continues from there rather than starting over.
+ * <p>
+ * Each call of {@link #process(DirtyRegion)} is a {@link FlightRecorderEvents#RECONCILING} event.
  */
-public class ReconcilerFixed extends org.eclipse.jface.text.reconciler.Reconciler {
+public class ReconcilerFixed extends org.eclipse.jface.text.reconciler.Reconciler implements IReconcilerMetrics {
+	/** Number of lines reconciled above and below the visible lines when limited to the viewport. */
+	private static final int VIEWPORT_MARGIN = 100;
+	/** Approximate number of characters reconciled at a time in the background. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	/** Changes larger than this (in characters) are reconciled from the viewport outwards. */
+	private static final int VIEWPORT_FIRST_SIZE = 16 * 1024;
+	/** Least and greatest delay (ms) after the last change before a strategy reconciles. */
+	private static final int MIN_DELAY = 100, MAX_DELAY = 2000;
+	/** A longer time (ms) between changes is a pause, not typing. */
+	private static final int PAUSE = 500;
+	/** Time (ms) between keystrokes assumed before any typing, and returned to after pauses. */
+	private static final int TYPING_INTERVAL = 200;
+	/** Greatest delay (ms) for the time between keystrokes, so that an isolated change is reconciled soon. */
+	private static final int MAX_TYPING_DELAY = 400;
+	/** How much (ms) a strategy's delay grows for each millisecond its passes take. */
+	private static final int COST_WEIGHT = 5;
+	/** Weight of the newest measurement in running averages. */
+	private static final double SMOOTHING = 0.3;
+	/** Indices of what is measured of a strategy in a pass. */
+	private static final int BEFORE = 0, RECONCILE = 1, AFTER = 2, REGIONS = 3, CHARS = 4;
+
 	private Set<IReconcilingStrategyExtension2> fStrategies;
+	private Set<IReconcilingStrategyExtension> fMonitoredStrategies;
+
+	private volatile boolean fLimitedToViewport;
+	private final ViewportTracker fViewport = new ViewportTracker();
+	private String fBackgroundName = "Reconciling document";
+	private volatile String[] fChunkBoundaryTypes;
+
+	// Strategies are used by the reconciler thread and the background job in turn.
+	private final Object fProcessLock = new Object();
+
+	private volatile boolean fSkipInitialProcess;
+
+	// We can't see the dirty region queue, so we keep track of how many regions it has
+	// by following the same rules for creating and merging regions.
+	private final Object fPendingLock = new Object();
+	private IDocument fListenedDocument;
+	private int fPending;
+	private String fLastType;
+	private int fLastOffset, fLastLength;
+	private boolean fInitialDone;
+	private boolean fIncomplete;
+	// ranges {start, end} left for the background job, kept up to date with changes
+	private final LinkedList<int[]> fBackground = new LinkedList<>();
+	private Job fBackgroundJob;
+	// what each strategy has yet to reconcile and what has been measured of it
+	private final Map<IReconcilingStrategy, StrategyState> fStates = new LinkedHashMap<>();
+	private long fLastChange;
+	private double fTypingInterval = TYPING_INTERVAL;
+	private long fMergedRegions;
+	// regions reconciled by all strategies, for the flight recorder; guarded by fProcessLock
+	private long fReconciledRegions;
+	// changes {offset, removed, inserted} made during the current pass, so that
+	// its checkpoints can be moved to where they are now; only kept while passes > 0
+	private final List<int[]> fEditLog = new ArrayList<>();
+	private int fPasses;
+	// runs strategies whose delay hadn't passed when the others ran
+	private final Job fDeferredJob = Job.create("Reconciling document", (ICoreRunnable) (monitor) -> runDeferred(monitor));
+
+	/**
+	 * A strategy's own state, guarded by {@link #fPendingLock}.
+	 */
+	private static class StrategyState {
+		final DirtyRanges dirty = new DirtyRanges();
+		final Set<String> contentTypes = new HashSet<>();
+		double cost; // ms per pass
+		int delay = MIN_DELAY;
+		long passes;
+	}
+
+	private final IDocumentListener fChangeListener = new IDocumentListener() {
+		@Override
+		public void documentAboutToBeChanged(DocumentEvent event) {
+			// nothing to do
+		}
+
+		@Override
+		public void documentChanged(DocumentEvent e) {
+			adjustBackground(e);
+			if (!isIncrementalReconciler()) {
+				synchronized (fPendingLock) {
+					fIncomplete = true;
+				}
+				return;
+			}
+			recordChange(e);
+			String text = e.getText();
+			if (e.getLength() == 0 && text != null) {
+				addPending(DirtyRegion.INSERT, e.getOffset(), text.length());
+			} else if (text == null || text.isEmpty()) {
+				addPending(DirtyRegion.REMOVE, e.getOffset(), e.getLength());
+			} else {
+				addPending(DirtyRegion.REMOVE, e.getOffset(), e.getLength());
+				addPending(DirtyRegion.INSERT, e.getOffset(), text.length());
+			}
+		}
+	};
 	
 	public ReconcilerFixed() {
 		fStrategies = new HashSet<>();
+		fMonitoredStrategies = new HashSet<>();
+		fDeferredJob.setSystem(true);
+		fDeferredJob.setPriority(Job.DECORATE);
+	}
+
+	/**
+	 * Set whether reconciling is limited to the visible part of the document,
+	 * leaving the rest to a background job.
+	 * @param limited whether to reconcile only what is visible right away
+	 */
+	public void setLimitedToViewport(boolean limited) {
+		fLimitedToViewport = limited;
+	}
+
+	/**
+	 * Set the content types of partitions that start a new chunk when the document
+	 * is reconciled in chunks by strategies that can work concurrently
+	 * (see {@link IReconcilingStrategyExtension3}).
+	 * For example, chunks could start at section headers, so that no section is split.
+	 * By default, a chunk may start at any partition.
+	 * @param contentTypes content types that may start a chunk
+	 */
+	public void setChunkBoundaries(String... contentTypes) {
+		fChunkBoundaryTypes = contentTypes.clone();
+	}
+
+	/**
+	 * Set the name under which the background job reports its progress.
+	 * @param name name of job, must not be null
+	 */
+	public void setBackgroundName(String name) {
+		fBackgroundName = name;
+	}
+
+	private void addPending(String type, int offset, int length) {
+		synchronized (fPendingLock) {
+			if (fPending > 0 && fLastType == type &&
+					(type == DirtyRegion.INSERT ? fLastOffset + fLastLength == offset : offset + length == fLastOffset)) {
+				int start = Math.min(fLastOffset, offset);
+				fLastLength = Math.max(fLastOffset + fLastLength, offset + length) - start;
+				fLastOffset = start;
+			} else {
+				++fPending;
+				fLastType = type;
+				fLastOffset = offset;
+				fLastLength = length;
+			}
+		}
+	}
+
+	/**
+	 * Return whether the strategies have seen every change to the document,
+	 * and no pass is still giving its results, so that their results are up to date.
+	 * @return whether reconciling is complete
+	 */
+	public boolean isReconciled() {
+		synchronized (fPendingLock) {
+			if (!fInitialDone || fPending != 0 || fIncomplete || !fBackground.isEmpty() || fPasses != 0) return false;
+			for (StrategyState st : fStates.values()) {
+				if (!st.dirty.isEmpty()) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Do not perform the initial reconcile, because the results
+	 * it would produce are already in place.  This must be called
+	 * before the reconciler starts running.
+	 */
+	public void skipInitialProcess() {
+		fSkipInitialProcess = true;
+	}
+
+	@Override
+	protected void reconcilerDocumentChanged(IDocument document) {
+		super.reconcilerDocumentChanged(document);
+		synchronized (fPendingLock) {
+			if (fListenedDocument != null) fListenedDocument.removeDocumentListener(fChangeListener);
+			fListenedDocument = document;
+			if (document != null) document.addDocumentListener(fChangeListener);
+			fPending = 0;
+			fIncomplete = true;
+			// the job finishes with the chunk it is on
+			fBackground.clear();
+			for (StrategyState st : fStates.values()) {
+				st.dirty.clear();
+			}
+		}
+	}
+
+	@Override
+	public void install(ITextViewer textViewer) {
+		super.install(textViewer);
+		fViewport.install(textViewer);
+	}
+
+	@Override
+	public void uninstall() {
+		super.uninstall();
+		fViewport.uninstall();
+		synchronized (fPendingLock) {
+			if (fListenedDocument != null) fListenedDocument.removeDocumentListener(fChangeListener);
+			fListenedDocument = null;
+			fBackground.clear();
+			if (fBackgroundJob != null) fBackgroundJob.cancel();
+		}
+		fDeferredJob.cancel();
+		ReconcileScheduler.getDefault().unfocus(this);
 	}
 
 	@Override
 	public void setReconcilingStrategy(IReconcilingStrategy strategy, String contentType) {
+		IReconcilingStrategy old = getReconcilingStrategy(contentType);
 		super.setReconcilingStrategy(strategy, contentType);
+		synchronized (fPendingLock) {
+			StrategyState st = old == null ? null : fStates.get(old);
+			if (st != null) {
+				st.contentTypes.remove(contentType);
+				if (st.contentTypes.isEmpty()) fStates.remove(old);
+			}
+			if (strategy != null) fStates.computeIfAbsent(strategy, (k) -> new StrategyState()).contentTypes.add(contentType);
+		}
 		if (strategy instanceof IReconcilingStrategyExtension2) {
 			fStrategies.add((IReconcilingStrategyExtension2)strategy);
 		}
+		if (strategy instanceof IReconcilingStrategyExtension) {
+			fMonitoredStrategies.add((IReconcilingStrategyExtension)strategy);
+		}
 	}
-	
+
 	@Override
 	protected void initialProcess() {
-		ITypedRegion[] regions= computePartitioning(0, getDocument().getLength());
-		List<String> contentTypes= new ArrayList<>(regions.length);
+		boolean focused = acquirePermit();
+		try {
+			synchronized (fProcessLock) {
+				if (fSkipInitialProcess) {
+					fSkipInitialProcess = false;
+					synchronized (fPendingLock) {
+						fInitialDone = true;
+						fIncomplete = false;
+					}
+					return;
+				}
+				synchronized (fPendingLock) {
+					fIncomplete = false;
+				}
+				if (fLimitedToViewport) {
+					// the visible part now, the rest in the background
+					int length = getDocument().getLength();
+					IRegion window = fViewport.getWindow(getDocument(), VIEWPORT_MARGIN);
+					processRegion(new DirtyRegion(window.getOffset(), window.getLength(), DirtyRegion.INSERT, null), getProgressMonitor());
+					synchronized (fPendingLock) {
+						fInitialDone = true;
+						addBackground(window.getOffset() + window.getLength(), length);
+						addBackground(0, window.getOffset());
+					}
+					scheduleBackground();
+					return;
+				}
+				initialReconcile(getProgressMonitor());
+				synchronized (fPendingLock) {
+					fInitialDone = true;
+				}
+			}
+		} finally {
+			releasePermit(focused);
+		}
+	}
+
+	/**
+	 * Give the strategies their initial reconcile, partitioning the document once for all of them.
+	 * The caller must hold {@link #fProcessLock}.
+	 * A strategy that is canceled continues from its checkpoint in a later pass.
+	 * @param monitor monitor the strategies are using
+	 */
+	private void initialReconcile(IProgressMonitor monitor) {
+		beginPass();
+		try {
+			initialReconcile(monitor, computePartitioning(0, getDocument().getLength()));
+		} finally {
+			endPass();
+		}
+	}
+
+	private void initialReconcile(IProgressMonitor monitor, ITypedRegion[] regions) {
+		// large documents are reconciled a chunk at a time by strategies that can do so concurrently
+		Set<IReconcilingStrategyExtension3> concurrent= new HashSet<>();
+		if (getDocument().getLength() > CHUNK_SIZE) {
+			for (IReconcilingStrategyExtension2 s : fStrategies) {
+				if (s instanceof IReconcilingStrategyExtension3)
+					concurrent.add((IReconcilingStrategyExtension3) s);
+			}
+		}
+		List<Future<?>> tasks= concurrent.isEmpty() ? Collections.emptyList() : startChunks(concurrent, regions, monitor);
+		try {
+			initialReconcile(concurrent, regions, monitor);
+		} finally {
+			finishChunks(concurrent, tasks);
+		}
+	}
+
+	/**
+	 * Give strategies that reconcile one after another their initial reconcile.
+	 */
+	private void initialReconcile(Set<?> concurrent, ITypedRegion[] regions, IProgressMonitor monitor) {
+		Set<String> contentTypes= new HashSet<>();
 		for (ITypedRegion region : regions) {
 			String contentType= region.getType();
-			if( contentTypes.contains(contentType))
+			if (!contentTypes.add(contentType))
 				continue;
-			contentTypes.add(contentType);
 			IReconcilingStrategy s= getReconcilingStrategy(contentType);
+			if (concurrent.contains(s))
+				continue;
+			long start= System.nanoTime();
 			if (s instanceof IReconcilingStrategyExtension2) {
 				IReconcilingStrategyExtension2 e= (IReconcilingStrategyExtension2) s;
-				e.initialReconcile(contentType);
+				int checkpoint= e.initialReconcile(contentType, regions);
+				recordInitial(s, contentType, regions, start);
+				if (checkpoint >= 0) resume(Collections.singleton(s), checkpoint, getEnd(regions));
 			} else if (s instanceof IReconcilingStrategyExtension) {
 				IReconcilingStrategyExtension e= (IReconcilingStrategyExtension) s;
 				e.initialReconcile();
+				recordInitial(s, contentType, regions, start);
+				// no checkpoint: the whole document must be reconciled again
+				if (monitor.isCanceled()) {
+					synchronized (fPendingLock) {
+						fIncomplete= true;
+					}
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Report the time a strategy took for its initial reconcile of partitions of one content type.
+	 */
+	private void recordInitial(IReconcilingStrategy s, String contentType, ITypedRegion[] regions, long start) {
+		long nanos= System.nanoTime() - start;
+		int count= 0, chars= 0;
+		for (ITypedRegion r : regions) {
+			if (r.getType().equals(contentType)) {
+				++count;
+				chars+= r.getLength();
+			}
+		}
+		ReconcileMetrics.getDefault().recordPhase(getDocument(), s, ReconcileMetrics.Phase.RECONCILE, nanos, count, chars);
+	}
+
 	// should not have been declared "private"
 	/**
 	 * Computes and returns the partitioning for the given region of the input document
@@ -74,18 +444,709 @@ public class ReconcilerFixed extends org.eclipse.jface.text.reconciler.Reconcile
 	}
 
 
+	/**
+	 * Compute the partitioning of a region, extending the first and last partitions
+	 * to include the parts outside the region.
+	 * @param offset the region offset
+	 * @param length the region length
+	 * @return the partitions that overlap the region
+	 */
+	private ITypedRegion[] computeWholePartitioning(int offset, int length) {
+		ITypedRegion[] regions= computePartitioning(offset, length);
+		if (regions.length == 0) return regions;
+		try {
+			regions[0]= TextUtilities.getPartition(getDocument(), getDocumentPartitioning(), regions[0].getOffset(), false);
+			int last= regions.length - 1;
+			if (last > 0) regions[last]= TextUtilities.getPartition(getDocument(), getDocumentPartitioning(), regions[last].getOffset(), false);
+		} catch (BadLocationException x) {
+			// the partitions are left as they were computed
+		}
+		return regions;
+	}
+
+	/**
+	 * Return the lock that keeps the document from changing, if it has one,
+	 * or else {@link #fProcessLock}, which the caller already holds.
+	 */
+	private Object getDocumentLock() {
+		IDocument document= getDocument();
+		Object lock= document instanceof ISynchronizable ? ((ISynchronizable) document).getLockObject() : null;
+		return lock == null ? fProcessLock : lock;
+	}
+
+	private static int getEnd(ITypedRegion[] regions) {
+		if (regions.length == 0) return 0;
+		ITypedRegion last= regions[regions.length - 1];
+		return last.getOffset() + last.getLength();
+	}
+
 	@Override
 	protected void process(DirtyRegion dirtyRegion) {
+		// The whole document is reconciled again only if a pass was lost;
+		// canceled passes continue from their checkpoints.
+		boolean whole;
+		synchronized (fPendingLock) {
+			whole = dirtyRegion == null && fIncomplete;
+			if (whole) fIncomplete = false;
+			else if (dirtyRegion != null && fPending > 0) --fPending;
+		}
+		FlightRecorderEvents.Event event = FlightRecorderEvents.RECONCILING.begin();
+		long regions = 0;
+		boolean focused = acquirePermit();
 		try {
-			for (IReconcilingStrategyExtension2 s : fStrategies) {
+			synchronized (fProcessLock) {
+				regions = fReconciledRegions;
+				if (whole) {
+					synchronized (fPendingLock) {
+						for (StrategyState st : fStates.values()) {
+							st.dirty.clear();
+						}
+					}
+					processRegion(null, getProgressMonitor(), null, null);
+				} else if (!processDue(getProgressMonitor()) && dirtyRegion != null) {
+					// this region was reconciled with earlier ones
+					synchronized (fPendingLock) {
+						++fMergedRegions;
+					}
+				}
+				regions = fReconciledRegions - regions;
+			}
+		} finally {
+			releasePermit(focused);
+			if (event != null) {
+				IDocument document = getDocument();
+				int length = document == null ? -1 : document.getLength();
+				IRegion r = dirtyRegion == null ? new Region(0, Math.max(0, length)) : dirtyRegion;
+				event.commit(whole ? "whole document" : "changes", length, r.getOffset(), r.getLength(), (int) regions);
+			}
+		}
+	}
+
+	/**
+	 * Have the strategies whose delay has passed since the last change
+	 * reconcile everything changed since they last did, in one pass,
+	 * and arrange for the others to do so later.
+	 * The caller must hold {@link #fProcessLock}.
+	 * @param monitor monitor the strategies are using
+	 * @return whether there was anything to reconcile
+	 */
+	private boolean processDue(IProgressMonitor monitor) {
+		beginPass();
+		try {
+			return processDue(monitor, new HashSet<>());
+		} finally {
+			endPass();
+		}
+	}
+
+	private boolean processDue(IProgressMonitor monitor, Set<IReconcilingStrategy> due) {
+		DirtyRanges work = new DirtyRanges();
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		boolean any = false;
+		synchronized (fPendingLock) {
+			for (Map.Entry<IReconcilingStrategy, StrategyState> e : fStates.entrySet()) {
+				StrategyState st = e.getValue();
+				if (st.dirty.isEmpty()) continue;
+				any = true;
+				long wait = fLastChange + st.delay - now;
+				if (wait <= 0) {
+					due.add(e.getKey());
+					work.addAll(st.dirty);
+					st.dirty.clear();
+				} else {
+					next = Math.min(next, wait);
+				}
+			}
+		}
+		if (!due.isEmpty()) {
+			Map<IReconcilingStrategy, long[]> costs = new HashMap<>();
+			// the visible changes first, so that their results are published first
+			List<int[]> ranges = work.getRanges();
+			IRegion window = fViewport.getWindow(getDocument(), VIEWPORT_MARGIN);
+			ranges.sort((r1, r2) -> Integer.compare(distance(r1, window), distance(r2, window)));
+			for (int[] r : ranges) {
+				processRange(r[0], r[1], monitor, due, costs);
+			}
+			// the time of a canceled pass says little about the strategies
+			if (!monitor.isCanceled()) recordCosts(costs);
+		}
+		if (next != Long.MAX_VALUE) fDeferredJob.schedule(next);
+		return any;
+	}
+
+	/**
+	 * Return how far a range {start, end} is from a window: zero if they overlap.
+	 */
+	private static int distance(int[] range, IRegion window) {
+		int top = window.getOffset(), bottom = top + window.getLength();
+		if (range[1] < top) return top - range[1];
+		if (range[0] > bottom) return range[0] - bottom;
+		return 0;
+	}
+
+	/**
+	 * Have some strategies reconcile a changed range.  If it is large,
+	 * only the part in the viewport is reconciled now, and the rest is left for the background.
+	 */
+	private void processRange(int start, int end, IProgressMonitor monitor, Set<IReconcilingStrategy> strategies, Map<IReconcilingStrategy, long[]> costs) {
+		int length = getDocument().getLength();
+		start = Math.min(start, length);
+		end = Math.min(end, length);
+		if (start == end) {
+			// text was removed here: reconcile what is around it
+			if (end < length) ++end;
+			else if (start > 0) --start;
+		}
+		if (end - start > VIEWPORT_FIRST_SIZE) {
+			// a large change (such as a paste, or the whole document when it is reloaded)
+			IRegion window = fViewport.getWindow(getDocument(), VIEWPORT_MARGIN);
+			int from = Math.max(start, window.getOffset());
+			int to = Math.min(end, window.getOffset() + window.getLength());
+			synchronized (fPendingLock) {
+				if (from < to) {
+					addBackground(to, end);
+					addBackground(start, from);
+				} else {
+					addBackground(start, end);
+				}
+			}
+			if (from < to) processRegion(new DirtyRegion(from, to - from, DirtyRegion.INSERT, null), monitor, strategies, costs);
+			scheduleBackground();
+		} else {
+			processRegion(new DirtyRegion(start, end - start, DirtyRegion.INSERT, null), monitor, strategies, costs);
+		}
+	}
+
+	/**
+	 * Run the strategies that were not due when the others ran.
+	 */
+	private void runDeferred(IProgressMonitor monitor) {
+		boolean focused = acquirePermit();
+		try {
+			synchronized (fProcessLock) {
+				if (getDocument() == null) return;
+				// the strategies report to this job while it has them
+				for (IReconcilingStrategyExtension s : fMonitoredStrategies) {
+					s.setProgressMonitor(monitor);
+				}
+				try {
+					processDue(monitor);
+				} finally {
+					for (IReconcilingStrategyExtension s : fMonitoredStrategies) {
+						s.setProgressMonitor(getProgressMonitor());
+					}
+				}
+			}
+		} finally {
+			releasePermit(focused);
+		}
+	}
+
+	/**
+	 * Have all the strategies reconcile a region.
+	 * The caller must hold {@link #fProcessLock}.
+	 * @param dirtyRegion region to reconcile, or null for the whole document
+	 * @param monitor monitor the strategies are using
+	 */
+	private void processRegion(DirtyRegion dirtyRegion, IProgressMonitor monitor) {
+		processRegion(dirtyRegion, monitor, null, null);
+	}
+
+	/**
+	 * Have strategies reconcile a region.
+	 * Each strategy is given the whole partitions that overlap the region,
+	 * which are of the same version of the document as what it takes
+	 * in {@link IReconcilingStrategyExtension2#beforeReconcile(DirtyRegion)}
+	 * if the document is {@link ISynchronizable}.
+	 * The caller must hold {@link #fProcessLock}.
+	 * @param dirtyRegion region to reconcile, or null for the whole document
+	 * @param monitor monitor the strategies are using
+	 * @param strategies strategies to run, or null for all of them
+	 * @param costs where to add the time (in nanoseconds) each strategy takes, or null
+	 */
+	private void processRegion(DirtyRegion dirtyRegion, IProgressMonitor monitor, Set<IReconcilingStrategy> strategies, Map<IReconcilingStrategy, long[]> costs) {
+		List<IReconcilingStrategyExtension2> extended = new ArrayList<>();
+		for (IReconcilingStrategyExtension2 s : fStrategies) {
+			if (strategies == null || strategies.contains(s)) extended.add(s);
+		}
+		beginPass();
+		IRegion region;
+		ITypedRegion[] partitions;
+		// {before, reconcile, after (ns), regions, chars} for each strategy
+		Map<IReconcilingStrategy, long[]> measured = new HashMap<>();
+		// The partitioning and what the strategies take before reconciling (such as snapshots)
+		// are of the same version of the document: it can't change while its lock is held.
+		synchronized (getDocumentLock()) {
+			region = dirtyRegion == null ? new Region(0, getDocument().getLength()) : dirtyRegion;
+			partitions = computeWholePartitioning(region.getOffset(), region.getLength());
+			for (IReconcilingStrategyExtension2 s : extended) {
+				long start = System.nanoTime();
 				s.beforeReconcile(dirtyRegion);
+				measure(measured, s)[BEFORE] += System.nanoTime() - start;
+			}
+		}
+		ReconcileProgress progress = new ReconcileProgress(monitor, partitions.length, 0);
+		try {
+			for (ITypedRegion r : partitions) {
+				IReconcilingStrategy s = getReconcilingStrategy(r.getType());
+				if (s == null || strategies != null && !strategies.contains(s)) continue;
+				if (!progress.next(r)) break;
+				long start = System.nanoTime();
+				if (dirtyRegion != null) s.reconcile(dirtyRegion, r);
+				else s.reconcile(r);
+				long[] m = measure(measured, s);
+				m[RECONCILE] += System.nanoTime() - start;
+				++m[REGIONS];
+				// (only the part of the partition in the region is counted)
+				m[CHARS] += Math.min(r.getOffset() + r.getLength(), region.getOffset() + region.getLength()) - Math.max(r.getOffset(), region.getOffset());
 			}
-			super.process(dirtyRegion);
 		} finally {
-			for (IReconcilingStrategyExtension2 s : fStrategies) {
-				s.afterReconcile(dirtyRegion);
+			// when canceled, the strategies finish with the part before the checkpoint
+			// and continue from the checkpoint in a later pass
+			DirtyRegion done = dirtyRegion;
+			int checkpoint = progress.getCheckpoint();
+			if (checkpoint >= 0) {
+				int start = region.getOffset(), end = start + region.getLength();
+				checkpoint = Math.max(start, Math.min(end, checkpoint));
+				done = new DirtyRegion(start, checkpoint - start, DirtyRegion.INSERT, null);
+				resume(strategies == null ? getStrategies() : strategies, checkpoint, end);
+			}
+			try {
+				for (IReconcilingStrategyExtension2 s : extended) {
+					long start = System.nanoTime();
+					s.afterReconcile(done);
+					measure(measured, s)[AFTER] += System.nanoTime() - start;
+				}
+			} finally {
+				endPass();
+				report(measured, costs);
+			}
+		}
+	}
+
+	/**
+	 * Start a pass (which may include others): changes are logged until it ends,
+	 * so that its checkpoints can be kept up to date.
+	 */
+	private void beginPass() {
+		synchronized (fPendingLock) {
+			if (fPasses++ == 0) fEditLog.clear();
+		}
+	}
+
+	private void endPass() {
+		synchronized (fPendingLock) {
+			if (--fPasses == 0) fEditLog.clear();
+		}
+	}
+
+	/**
+	 * Leave part of the document for strategies to reconcile later, because they
+	 * were canceled at a checkpoint.  The range is given as it was when the current
+	 * pass started, and is moved by the changes made since.
+	 * This may be called from any thread.
+	 * @param strategies strategies that were canceled
+	 * @param checkpoint where they stopped
+	 * @param end end of what they were to reconcile
+	 */
+	private void resume(Collection<?> strategies, int checkpoint, int end) {
+		DirtyRanges rest = new DirtyRanges();
+		rest.add(checkpoint, end);
+		synchronized (fPendingLock) {
+			for (int[] e : fEditLog) {
+				rest.change(e[0], e[1], e[2]);
+			}
+			for (Object s : strategies) {
+				StrategyState st = fStates.get(s);
+				if (st != null) st.dirty.addAll(rest);
 			}
 		}
 	}
 
+	private static long[] measure(Map<IReconcilingStrategy, long[]> measured, Object strategy) {
+		return measured.computeIfAbsent((IReconcilingStrategy) strategy, (k) -> new long[CHARS + 1]);
+	}
+
+	/**
+	 * Report what was measured of the strategies in a pass to the plugin's metrics,
+	 * and add the time they took to their costs.
+	 * @param measured what was measured of each strategy
+	 * @param costs where to add the time (in nanoseconds) each strategy took, or null
+	 */
+	private void report(Map<IReconcilingStrategy, long[]> measured, Map<IReconcilingStrategy, long[]> costs) {
+		ReconcileMetrics metrics = ReconcileMetrics.getDefault();
+		for (Map.Entry<IReconcilingStrategy, long[]> e : measured.entrySet()) {
+			IReconcilingStrategy s = e.getKey();
+			long[] m = e.getValue();
+			boolean extended = s instanceof IReconcilingStrategyExtension2;
+			if (extended) metrics.recordPhase(getDocument(), s, ReconcileMetrics.Phase.BEFORE, m[BEFORE], 0, 0);
+			metrics.recordPhase(getDocument(), s, ReconcileMetrics.Phase.RECONCILE, m[RECONCILE], (int) m[REGIONS], (int) m[CHARS]);
+			if (extended) metrics.recordPhase(getDocument(), s, ReconcileMetrics.Phase.AFTER, m[AFTER], 0, 0);
+			if (costs != null) costs.computeIfAbsent(s, (k) -> new long[1])[0] += m[BEFORE] + m[RECONCILE] + m[AFTER];
+			fReconciledRegions += m[REGIONS];
+		}
+	}
+
+	/**
+	 * Record a change: the changed part of the document is dirty for every strategy,
+	 * and the time since the last change tells how fast the user is typing.
+	 */
+	private void recordChange(DocumentEvent e) {
+		long now = System.currentTimeMillis();
+		int inserted = e.getText() == null ? 0 : e.getText().length();
+		// a deferred pass is out of date, and is scheduled again once the thread has reconciled
+		fDeferredJob.cancel();
+		synchronized (fPendingLock) {
+			for (StrategyState st : fStates.values()) {
+				st.dirty.change(e.getOffset(), e.getLength(), inserted);
+			}
+			if (fPasses > 0) fEditLog.add(new int[] { e.getOffset(), e.getLength(), inserted });
+			long interval = now - fLastChange;
+			fLastChange = now;
+			if (interval < PAUSE) {
+				fTypingInterval += SMOOTHING * (interval - fTypingInterval);
+			} else {
+				// waiting (for the reconciler, say) isn't typing: return towards the usual pace
+				fTypingInterval += SMOOTHING * (TYPING_INTERVAL - fTypingInterval);
+			}
+			chooseDelays();
+		}
+	}
+
+	/**
+	 * Record the time strategies took for a pass, and choose new delays.
+	 */
+	private void recordCosts(Map<IReconcilingStrategy, long[]> costs) {
+		synchronized (fPendingLock) {
+			for (Map.Entry<IReconcilingStrategy, long[]> e : costs.entrySet()) {
+				StrategyState st = fStates.get(e.getKey());
+				if (st == null) continue;
+				double ms = e.getValue()[0] / 1e6;
+				st.cost = st.passes == 0 ? ms : st.cost + SMOOTHING * (ms - st.cost);
+				++st.passes;
+			}
+			chooseDelays();
+		}
+	}
+
+	/**
+	 * Choose each strategy's delay: a while after a typical pause between keystrokes
+	 * (but no more than {@link #MAX_TYPING_DELAY}), and longer the longer its passes take.  The reconciler thread waits for the
+	 * least of them; the others are run later by a job.
+	 * The caller must hold {@link #fPendingLock}.
+	 */
+	private void chooseDelays() {
+		int least = MAX_DELAY;
+		for (StrategyState st : fStates.values()) {
+			double delay = Math.min(MAX_TYPING_DELAY, 1.5 * fTypingInterval) + COST_WEIGHT * st.cost;
+			st.delay = (int) Math.max(MIN_DELAY, Math.min(MAX_DELAY, delay));
+			least = Math.min(least, st.delay);
+		}
+		setDelay(least);
+	}
+
+	@Override
+	public int getTypingInterval() {
+		synchronized (fPendingLock) {
+			return (int) Math.round(fTypingInterval);
+		}
+	}
+
+	@Override
+	public Collection<IReconcilingStrategy> getStrategies() {
+		synchronized (fPendingLock) {
+			return new ArrayList<>(fStates.keySet());
+		}
+	}
+
+	@Override
+	public double getAverageCost(IReconcilingStrategy strategy) {
+		synchronized (fPendingLock) {
+			StrategyState st = fStates.get(strategy);
+			return st == null ? 0 : st.cost;
+		}
+	}
+
+	@Override
+	public int getDelay(IReconcilingStrategy strategy) {
+		synchronized (fPendingLock) {
+			StrategyState st = fStates.get(strategy);
+			return st == null ? MIN_DELAY : st.delay;
+		}
+	}
+
+	@Override
+	public long getPassCount(IReconcilingStrategy strategy) {
+		synchronized (fPendingLock) {
+			StrategyState st = fStates.get(strategy);
+			return st == null ? 0 : st.passes;
+		}
+	}
+
+	@Override
+	public long getMergedRegionCount() {
+		synchronized (fPendingLock) {
+			return fMergedRegions;
+		}
+	}
+
+	/**
+	 * Start reconciling the document in chunks on the pool, each strategy and chunk separately.
+	 * Chunks end at whole partitions, and if chunk boundaries are set
+	 * (see {@link #setChunkBoundaries(String...)}), before a partition of one of those types.
+	 * @param strategies strategies to reconcile the document
+	 * @param regions partitioning of the whole document
+	 * @param monitor monitor the strategies are using
+	 * @return the tasks started
+	 */
+	private List<Future<?>> startChunks(Set<IReconcilingStrategyExtension3> strategies, ITypedRegion[] regions, IProgressMonitor monitor) {
+		for (IReconcilingStrategyExtension3 s : strategies) {
+			long before= System.nanoTime();
+			s.beforeReconcile(null);
+			ReconcileMetrics.getDefault().recordPhase(getDocument(), s, ReconcileMetrics.Phase.BEFORE, System.nanoTime() - before, 0, 0);
+		}
+		IDocument document= getDocument();
+		Map<IReconcilingStrategyExtension3, List<ITypedRegion>> chunks= new HashMap<>();
+		List<Future<?>> tasks= new ArrayList<>();
+		int start= 0;
+		for (int i= 0; i <= regions.length; ++i) {
+			boolean last= i == regions.length;
+			if (!last) {
+				int length= regions[i].getOffset() - start;
+				if (length < CHUNK_SIZE || !isChunkBoundary(regions[i].getType())) {
+					addToChunk(chunks, strategies, regions[i]);
+					continue;
+				}
+			}
+			for (Map.Entry<IReconcilingStrategyExtension3, List<ITypedRegion>> e : chunks.entrySet()) {
+				IReconcilingStrategyExtension3 s= e.getKey();
+				ITypedRegion[] partitions= e.getValue().toArray(new ITypedRegion[e.getValue().size()]);
+				ITypedRegion end= partitions[partitions.length - 1];
+				tasks.add(ReconcileScheduler.getDefault().submit(this, () -> {
+					long before= System.nanoTime();
+					int checkpoint= monitor.isCanceled() ? partitions[0].getOffset() : s.reconcileChunk(partitions);
+					int chars= 0;
+					for (ITypedRegion p : partitions) chars+= p.getLength();
+					ReconcileMetrics.getDefault().recordPhase(document, s, ReconcileMetrics.Phase.RECONCILE, System.nanoTime() - before, partitions.length, chars);
+					if (checkpoint >= 0) resume(Collections.singleton(s), checkpoint, end.getOffset() + end.getLength());
+				}));
+			}
+			chunks.clear();
+			if (!last) {
+				start= regions[i].getOffset();
+				addToChunk(chunks, strategies, regions[i]);
+			}
+		}
+		return tasks;
+	}
+
+	private void addToChunk(Map<IReconcilingStrategyExtension3, List<ITypedRegion>> chunks, Set<IReconcilingStrategyExtension3> strategies, ITypedRegion region) {
+		IReconcilingStrategy s= getReconcilingStrategy(region.getType());
+		if (strategies.contains(s)) {
+			chunks.computeIfAbsent((IReconcilingStrategyExtension3) s, (k) -> new ArrayList<>()).add(region);
+		}
+	}
+
+	private boolean isChunkBoundary(String contentType) {
+		String[] types= fChunkBoundaryTypes;
+		if (types == null) return true;
+		for (String t : types) {
+			if (t.equals(contentType)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wait for the chunks to be reconciled and then let the strategies apply their results.
+	 * If reconciling a chunk failed, the failure is thrown once all chunks are done.
+	 */
+	private void finishChunks(Set<IReconcilingStrategyExtension3> strategies, List<Future<?>> tasks) {
+		Throwable failure= null;
+		boolean interrupted= false;
+		for (Future<?> task : tasks) {
+			while (true) {
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					interrupted= true;
+					continue;
+				} catch (ExecutionException e) {
+					if (failure == null) failure= e.getCause();
+				}
+				break;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		for (IReconcilingStrategyExtension3 s : strategies) {
+			long before= System.nanoTime();
+			s.afterReconcile(null);
+			ReconcileMetrics.getDefault().recordPhase(getDocument(), s, ReconcileMetrics.Phase.AFTER, System.nanoTime() - before, 0, 0);
+		}
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+	}
+
+	/**
+	 * Wait until the shared scheduler lets this reconciler run a pass.
+	 * This must be called before taking {@link #fProcessLock}.
+	 * @return what to give to {@link #releasePermit(boolean)} when the pass is done
+	 */
+	private boolean acquirePermit() {
+		return ReconcileScheduler.getDefault().acquire(this);
+	}
+
+	private void releasePermit(boolean focused) {
+		ReconcileScheduler.getDefault().release(focused);
+	}
+
+	private void addBackground(int start, int end) {
+		if (start < end) fBackground.add(new int[] { start, end });
+	}
+
+	/**
+	 * Keep the ranges left for the background up to date with a change.
+	 * Text inserted by the change is not included, because it is reconciled
+	 * as a dirty region.
+	 */
+	private void adjustBackground(DocumentEvent e) {
+		synchronized (fPendingLock) {
+			if (fBackground.isEmpty()) return;
+			int offset = e.getOffset();
+			int end = offset + e.getLength();
+			int inserted = e.getText() == null ? 0 : e.getText().length();
+			for (Iterator<int[]> it = fBackground.iterator(); it.hasNext(); ) {
+				int[] r = it.next();
+				r[0] = r[0] >= end ? r[0] + inserted - e.getLength() : r[0] > offset ? offset + inserted : r[0];
+				r[1] = r[1] >= end ? r[1] + inserted - e.getLength() : r[1] > offset ? offset : r[1];
+				if (r[0] >= r[1]) it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Start the background job, unless it is running already
+	 * (in which case it will find the new work) or there is nothing to do.
+	 */
+	private void scheduleBackground() {
+		Job job;
+		synchronized (fPendingLock) {
+			if (fBackgroundJob != null || fBackground.isEmpty()) return;
+			job = Job.create(fBackgroundName, (ICoreRunnable) (monitor) -> runBackground(monitor));
+			job.setPriority(Job.DECORATE);
+			fBackgroundJob = job;
+		}
+		job.schedule();
+	}
+
+	private void runBackground(IProgressMonitor monitor) {
+		Job self = Job.getJobManager().currentJob();
+		int total = 0;
+		synchronized (fPendingLock) {
+			for (int[] r : fBackground) total += r[1] - r[0];
+		}
+		monitor.beginTask(fBackgroundName, total);
+		try {
+			while (true) {
+				if (monitor.isCanceled()) {
+					synchronized (fPendingLock) {
+						if (fBackgroundJob == self) {
+							fBackground.clear();
+							fIncomplete = true;
+							fBackgroundJob = null;
+						}
+					}
+					throw new OperationCanceledException();
+				}
+				boolean focused = acquirePermit();
+				try {
+					synchronized (fProcessLock) {
+						DirtyRegion chunk = nextChunk();
+						if (chunk == null) {
+							synchronized (fPendingLock) {
+								if (fBackgroundJob == self) fBackgroundJob = null;
+							}
+							return;
+						}
+						// the strategies report to this job while it has them
+						for (IReconcilingStrategyExtension s : fMonitoredStrategies) {
+							s.setProgressMonitor(monitor);
+						}
+						try {
+							processRegion(chunk, monitor);
+						} finally {
+							for (IReconcilingStrategyExtension s : fMonitoredStrategies) {
+								s.setProgressMonitor(getProgressMonitor());
+							}
+						}
+						monitor.worked(chunk.getLength());
+					}
+				} finally {
+					releasePermit(focused);
+				}
+			}
+		} finally {
+			monitor.done();
+		}
+	}
+
+	/**
+	 * Take the next chunk of work for the background job: the part of what is left
+	 * nearest the viewport, ending (or, above the viewport, starting) at a line boundary.
+	 * The caller must hold {@link #fProcessLock}.
+	 * @return chunk, or null if there is no more
+	 */
+	private DirtyRegion nextChunk() {
+		IDocument document = getDocument();
+		if (document == null) {
+			synchronized (fPendingLock) {
+				fBackground.clear();
+			}
+			return null;
+		}
+		IRegion window = fViewport.getWindow(document, VIEWPORT_MARGIN);
+		int length = document.getLength();
+		synchronized (fPendingLock) {
+			while (!fBackground.isEmpty()) {
+				int[] r = fBackground.get(0);
+				for (int[] other : fBackground) {
+					if (distance(other, window) < distance(r, window)) r = other;
+				}
+				int start = Math.min(r[0], length);
+				int end = Math.min(r[1], length);
+				if (end <= window.getOffset()) {
+					// above the viewport: work upwards from its end
+					if (end - start > CHUNK_SIZE) start = lineStart(document, end - CHUNK_SIZE, start);
+					r[1] = start;
+				} else {
+					// below or in the viewport: work downwards from the viewport
+					int from = Math.max(start, Math.min(end, window.getOffset()));
+					if (from > start) fBackground.add(fBackground.indexOf(r), new int[] { start, from });
+					start = from;
+					if (end - start > CHUNK_SIZE) end = lineStart(document, start + CHUNK_SIZE, end);
+					r[0] = end;
+				}
+				if (r[0] >= r[1] || r[0] >= length) fBackground.remove(r);
+				if (start < end) return new DirtyRegion(start, end - start, DirtyRegion.INSERT, null);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Return the start of the line after the one containing an offset,
+	 * unless it is past a limit (or the document changed), in which case the offset.
+	 */
+	private static int lineStart(IDocument document, int offset, int limit) {
+		try {
+			int line = document.getLineOfOffset(offset);
+			if (line + 1 < document.getNumberOfLines()) {
+				int next = document.getLineOffset(line + 1);
+				if (offset <= limit ? next <= limit : next >= limit) return next;
+			}
+		} catch (BadLocationException e) {
+			// a chunk may end anywhere
+		}
+		return offset;
+	}
 }
@@ -0,0 +1,259 @@
+package edu.uwm.eclipse.util;
+
+/**
+ * An immutable sequence of characters represented as a balanced tree
+ * of string chunks.  Edits produce new ropes that share most of their
+ * structure with the old, in O(log n) time, and so any rope can be kept
+ * as a snapshot for free.
+ * Subsequences are ropes too, and so taking a slice doesn't copy the text.
+ */
+public abstract class Rope implements CharSequence {
+
+	/** Leaves are split to at most this size, and small leaves are merged up to it. */
+	private static final int CHUNK_SIZE = 1024;
+
+	public static final Rope EMPTY = new Leaf("");
+
+	/**
+	 * Return a rope with the given characters.
+	 * @param s characters, must not be null
+	 * @return rope for these characters
+	 */
+	public static Rope of(CharSequence s) {
+		if (s instanceof Rope) return (Rope)s;
+		return build(s.toString(), 0, s.length());
+	}
+
+	private static Rope build(String s, int start, int end) {
+		if (end - start <= CHUNK_SIZE) return new Leaf(s.substring(start, end));
+		int mid = (start + end) >>> 1;
+		return new Node(build(s, start, mid), build(s, mid, end));
+	}
+
+	/** The height of the tree; leaves have depth 0. */
+	abstract int depth();
+
+	/**
+	 * Return a rope with the given range replaced with new text.
+	 * @param start start of range to replace
+	 * @param end end (exclusive) of range to replace
+	 * @param text text to put in its place
+	 * @return new rope (this rope is unchanged)
+	 */
+	public Rope replace(int start, int end, CharSequence text) {
+		checkRange(start, end);
+		return join(join(subSequence(0, start), of(text)), subSequence(end, length()));
+	}
+
+	/**
+	 * Return the concatenation of this rope and the other.
+	 */
+	public Rope concat(Rope other) {
+		return join(this, other);
+	}
+
+	@Override
+	public abstract Rope subSequence(int start, int end);
+
+	/**
+	 * Copy characters into an array.
+	 * @param start index of first character to copy
+	 * @param end index after last character to copy
+	 * @param dst destination array
+	 * @param dstBegin where to start putting the characters
+	 */
+	public abstract void getChars(int start, int end, char[] dst, int dstBegin);
+
+	/**
+	 * Return the characters in the given range as a string.
+	 */
+	public String substring(int start, int end) {
+		checkRange(start, end);
+		char[] result = new char[end - start];
+		getChars(start, end, result, 0);
+		return new String(result);
+	}
+
+	@Override
+	public String toString() {
+		return substring(0, length());
+	}
+
+	/**
+	 * Return the leaf holding the character at the given index.
+	 * @param index index of character, must be in range
+	 * @param start array whose first element is set to the index of the start of the leaf
+	 * @return leaf including this index
+	 */
+	Rope leafAt(int index, int[] start) {
+		Rope r = this;
+		int base = 0;
+		while (r instanceof Node) {
+			Node n = (Node)r;
+			int ll = n.fLeft.length();
+			if (index - base < ll) {
+				r = n.fLeft;
+			} else {
+				base += ll;
+				r = n.fRight;
+			}
+		}
+		start[0] = base;
+		return (Leaf)r;
+	}
+
+	protected void checkRange(int start, int end) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException("[" + start + "," + end + ") in rope of length " + length());
+		}
+	}
+
+	/**
+	 * Join two ropes, keeping the tree balanced
+	 * and merging small adjacent leaves.
+	 */
+	private static Rope join(Rope l, Rope r) {
+		return TREE.join(l, r);
+	}
+
+	private static final BalancedTree<Rope> TREE = new BalancedTree<Rope>() {
+		@Override
+		public Rope join(Rope l, Rope r) {
+			if (l.length() == 0) return r;
+			if (r.length() == 0) return l;
+			if (l.depth() == 0 && r.depth() == 0 && l.length() + r.length() <= CHUNK_SIZE) {
+				return new Leaf(((Leaf)l).fText.concat(((Leaf)r).fText));
+			}
+			return super.join(l, r);
+		}
+
+		@Override
+		protected int depth(Rope tree) {
+			return tree.depth();
+		}
+
+		@Override
+		protected Rope left(Rope node) {
+			return ((Node)node).fLeft;
+		}
+
+		@Override
+		protected Rope right(Rope node) {
+			return ((Node)node).fRight;
+		}
+
+		@Override
+		protected Rope node(Rope left, Rope right) {
+			return new Node(left, right);
+		}
+	};
+
+	/**
+	 * A chunk of text.
+	 */
+	static final class Leaf extends Rope {
+		final String fText;
+
+		Leaf(String text) {
+			fText = text;
+		}
+
+		@Override
+		int depth() {
+			return 0;
+		}
+
+		@Override
+		public int length() {
+			return fText.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return fText.charAt(index);
+		}
+
+		@Override
+		public Rope subSequence(int start, int end) {
+			checkRange(start, end);
+			if (start == 0 && end == fText.length()) return this;
+			return new Leaf(fText.substring(start, end));
+		}
+
+		@Override
+		public void getChars(int start, int end, char[] dst, int dstBegin) {
+			fText.getChars(start, end, dst, dstBegin);
+		}
+
+		@Override
+		public String toString() {
+			return fText;
+		}
+	}
+
+	/**
+	 * The concatenation of two non-empty ropes.
+	 */
+	static final class Node extends Rope {
+		final Rope fLeft, fRight;
+		private final int fLength;
+		private final int fDepth;
+
+		Node(Rope left, Rope right) {
+			fLeft = left;
+			fRight = right;
+			fLength = left.length() + right.length();
+			fDepth = Math.max(left.depth(), right.depth()) + 1;
+		}
+
+		@Override
+		int depth() {
+			return fDepth;
+		}
+
+		@Override
+		public int length() {
+			return fLength;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= fLength) throw new IndexOutOfBoundsException("index " + index + " in rope of length " + fLength);
+			Rope r = this;
+			while (r instanceof Node) {
+				Node n = (Node)r;
+				int ll = n.fLeft.length();
+				if (index < ll) {
+					r = n.fLeft;
+				} else {
+					index -= ll;
+					r = n.fRight;
+				}
+			}
+			return r.charAt(index);
+		}
+
+		@Override
+		public Rope subSequence(int start, int end) {
+			checkRange(start, end);
+			if (start == 0 && end == fLength) return this;
+			int ll = fLeft.length();
+			if (end <= ll) return fLeft.subSequence(start, end);
+			if (start >= ll) return fRight.subSequence(start - ll, end - ll);
+			return join(fLeft.subSequence(start, ll), fRight.subSequence(0, end - ll));
+		}
+
+		@Override
+		public void getChars(int start, int end, char[] dst, int dstBegin) {
+			int ll = fLeft.length();
+			if (start < ll) {
+				int e = Math.min(end, ll);
+				fLeft.getChars(start, e, dst, dstBegin);
+				dstBegin += e - start;
+			}
+			if (end > ll) {
+				fRight.getChars(Math.max(start - ll, 0), end - ll, dst, dstBegin);
+			}
+		}
+	}
+}
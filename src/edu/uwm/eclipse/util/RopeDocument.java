@@ -0,0 +1,89 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPartitioningException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.ISynchronizable;
+import org.eclipse.jface.text.ITypedRegion;
+
+/**
+ * A document whose text is kept in a {@link RopeTextStore}
+ * so that immutable snapshots of its text can be taken cheaply.
+ * <p>
+ * Changes and the partitioning are synchronized on the document's lock,
+ * so that a background thread holding the lock can take a snapshot
+ * and the partitioning of the same version of the text.
+ * @see DocumentSnapshot
+ */
+public class RopeDocument extends Document implements ISynchronizable {
+
+	private Object fLockObject = new Object();
+
+	public RopeDocument() {
+		super();
+		setTextStore(new RopeTextStore());
+	}
+
+	@Override
+	public synchronized void setLockObject(Object lockObject) {
+		fLockObject = lockObject == null ? new Object() : lockObject;
+	}
+
+	@Override
+	public synchronized Object getLockObject() {
+		return fLockObject;
+	}
+
+	/**
+	 * Return the current text of the document, which will not change
+	 * even if the document does.  This takes constant time.
+	 * @return current text
+	 */
+	public Rope snapshot() {
+		return ((RopeTextStore)getStore()).snapshot();
+	}
+
+	@Override
+	public void replace(int offset, int length, String text, long modificationStamp) throws BadLocationException {
+		synchronized (getLockObject()) {
+			super.replace(offset, length, text, modificationStamp);
+		}
+	}
+
+	@Override
+	public void replace(int offset, int length, String text) throws BadLocationException {
+		synchronized (getLockObject()) {
+			super.replace(offset, length, text);
+		}
+	}
+
+	@Override
+	public void set(String text, long modificationStamp) {
+		synchronized (getLockObject()) {
+			super.set(text, modificationStamp);
+		}
+	}
+
+	@Override
+	public void set(String text) {
+		synchronized (getLockObject()) {
+			super.set(text);
+		}
+	}
+
+	@Override
+	public ITypedRegion[] computePartitioning(String partitioning, int offset, int length, boolean includeZeroLengthPartitions)
+			throws BadLocationException, BadPartitioningException {
+		synchronized (getLockObject()) {
+			return super.computePartitioning(partitioning, offset, length, includeZeroLengthPartitions);
+		}
+	}
+
+	@Override
+	public ITypedRegion getPartition(String partitioning, int offset, boolean preferOpenPartitions)
+			throws BadLocationException, BadPartitioningException {
+		synchronized (getLockObject()) {
+			return super.getPartition(partitioning, offset, preferOpenPartitions);
+		}
+	}
+}
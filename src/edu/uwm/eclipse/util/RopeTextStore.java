@@ -0,0 +1,77 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.ITextStore;
+
+/**
+ * A text store holding a {@link Rope}.
+ * Edits take O(log n) time and {@link #snapshot()} takes constant time,
+ * so a background thread can work with a consistent version of the text
+ * without holding any locks while the document continues to change.
+ * <p>
+ * Single characters are read through a cache of the last leaf used,
+ * since scanners read characters one after another.
+ */
+public class RopeTextStore implements ITextStore {
+
+	private volatile Rope fRope = Rope.EMPTY;
+	private volatile LeafCache fCache;
+
+	/** The last leaf read from, with the rope it came from. */
+	private static class LeafCache {
+		final Rope rope;
+		final Rope leaf;
+		final int start;
+
+		LeafCache(Rope rope, Rope leaf, int start) {
+			this.rope = rope;
+			this.leaf = leaf;
+			this.start = start;
+		}
+	}
+
+	/**
+	 * Return the current text.  The result never changes,
+	 * however the store is changed afterwards.
+	 * @return current text as an immutable rope
+	 */
+	public Rope snapshot() {
+		return fRope;
+	}
+
+	@Override
+	public char get(int offset) {
+		Rope rope = fRope;
+		LeafCache cache = fCache;
+		if (cache != null && cache.rope == rope) {
+			int i = offset - cache.start;
+			if (i >= 0 && i < cache.leaf.length()) return cache.leaf.charAt(i);
+		}
+		if (offset < 0 || offset >= rope.length()) {
+			throw new IndexOutOfBoundsException("offset " + offset + " in text of length " + rope.length());
+		}
+		int[] start = new int[1];
+		Rope leaf = rope.leafAt(offset, start);
+		fCache = new LeafCache(rope, leaf, start[0]);
+		return leaf.charAt(offset - start[0]);
+	}
+
+	@Override
+	public String get(int offset, int length) {
+		return fRope.substring(offset, offset + length);
+	}
+
+	@Override
+	public int getLength() {
+		return fRope.length();
+	}
+
+	@Override
+	public void replace(int offset, int length, String text) {
+		fRope = fRope.replace(offset, offset + length, text == null ? "" : text);
+	}
+
+	@Override
+	public void set(String text) {
+		fRope = Rope.of(text == null ? "" : text);
+	}
+}
@@ -6,27 +6,31 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Predicate;
 
 import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.ICoreRunnable;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.content.IContentType;
 import org.eclipse.core.runtime.content.IContentTypeManager;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
-import org.eclipse.jface.text.IDocumentExtension3;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ISynchronizable;
 import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.Region;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.reconciler.DirtyRegion;
 import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
 import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
 import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.AnnotationModelEvent;
 import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.IAnnotationModelExtension;
+import org.eclipse.jface.text.source.IAnnotationModelListener;
+import org.eclipse.jface.text.source.IAnnotationModelListenerExtension;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.ui.texteditor.spelling.ISpellingProblemCollector;
 import org.eclipse.ui.texteditor.spelling.SpellingAnnotation;
@@ -39,9 +43,23 @@ import org.eclipse.ui.texteditor.spelling.SpellingService;
  * It also handled incrementality correctly.
  * This fix was not able to be accomplished with sub-classing because
  * the original class uses some final methods and most fields are private.
+ * <p>
+ * A file with more problems than a limit only has annotations
+ * for the problems near the visible lines: the rest are kept out of the model
+ * (where each position would be updated on every keystroke) in a {@link ProblemStore},
+ * and are annotated as the viewer is scrolled to them.  An annotation
+ * at the start of the file says how many are not shown.
+ * <p>
+ * Text is checked a line at a time: the problems found in a line are remembered
+ * (in a {@link LineProblemCache}), so that a line with the same text as one checked
+ * before, such as the rest of a paragraph being edited, or a line put back by undo,
+ * isn't checked again.  The other lines are checked in one call to the spelling service,
+ * after a {@link ISpellingTokenizer}, if any, has left out what isn't natural language.
+ * The lines are forgotten when the tokenizer would leave out something else,
+ * and when others remove spelling annotations (as adding a word to the dictionary does).
  */
 public class SpellingReconcileStrategyFixed 
-	implements IReconcilingStrategy, IReconcilingStrategyExtension, IReconcilingStrategyExtension2
+	implements IReconcilingStrategy, IReconcilingStrategyExtension, IReconcilingStrategyExtension3
 {
 
 	/**
@@ -58,6 +76,55 @@ public class SpellingReconcileStrategyFixed
 		/** Lock object for modifying the annotations. */
 		private Object fLockObject;
 
+		/** The annotations this collector has put in the model. */
+		private final AnnotationIndex fOwned= new AnnotationIndex();
+
+		/** The problems not in the model, because they are far from the visible lines. */
+		private final ProblemStore fStored= new ProblemStore();
+
+		/** Annotation saying how many problems are not shown, or null if all are. */
+		private Annotation fSummary;
+
+		/** Number of problems the summary is for. */
+		private int fSummaryCount;
+
+		/** Whether annotations already in the model (from a warm start) have been taken over. */
+		private boolean fAdopted;
+
+		/** Flight recorder event for the pass, or null if not recording. */
+		private FlightRecorderEvents.Event fEvent;
+
+		/** The thread changing the model for this collector, if any. */
+		private volatile Thread fReplacing;
+
+		/** Notices spelling annotations removed by others. */
+		private final RemovalListener fRemovalListener= new RemovalListener();
+
+		/**
+		 * Forgets the lines checked when spelling annotations are removed from the model
+		 * by someone other than this collector, such as a quick fix that adds
+		 * the word to the dictionary: the same text may no longer have those problems.
+		 */
+		private class RemovalListener implements IAnnotationModelListener, IAnnotationModelListenerExtension {
+			@Override
+			public void modelChanged(IAnnotationModel model) {
+				// only the extension's events say what was removed
+			}
+
+			@Override
+			public void modelChanged(AnnotationModelEvent event) {
+				if (fReplacing == Thread.currentThread()) return;
+				for (Annotation a : event.getRemovedAnnotations()) {
+					// the model cleans up annotations whose text was deleted: that's just editing
+					Position position= event.getPositionOfRemovedAnnotation(a);
+					if (a instanceof SpellingAnnotation && position != null && !position.isDeleted()) {
+						fLineCache.clear();
+						return;
+					}
+				}
+			}
+		}
+
 		/**
 		 * Initializes this collector with the given annotation model.
 		 *
@@ -70,10 +137,22 @@ public class SpellingReconcileStrategyFixed
 				fLockObject= ((ISynchronizable)fAnnotationModel).getLockObject();
 			else
 				fLockObject= fAnnotationModel;
+			fOwned.connect(fDocument);
+			fStored.connect(fDocument);
+			fAnnotationModel.addAnnotationModelListener(fRemovalListener);
+		}
+
+		/**
+		 * Stop following the document.
+		 */
+		public void dispose() {
+			fOwned.disconnect();
+			fStored.disconnect();
+			fAnnotationModel.removeAnnotationModelListener(fRemovalListener);
 		}
 
 		@Override
-		public void accept(SpellingProblem problem) {
+		public synchronized void accept(SpellingProblem problem) {
 			fAddAnnotations.put(new SpellingAnnotation(problem), new Position(problem.getOffset(), problem.getLength()));
 		}
 
@@ -89,38 +168,203 @@ public class SpellingReconcileStrategyFixed
 		
 		public void beforeCollecting(DirtyRegion reg) {
 			fAddAnnotations= new HashMap<>();
+			fEvent= FlightRecorderEvents.STRATEGY_PASS.begin();
 		}
 		
 		public void afterCollecting(DirtyRegion reg) {
 
 			List<Annotation> toRemove= new ArrayList<>();
+			Annotation[] annotationsToRemove;
+
+			synchronized (fLockObject) {
+				adopt();
+				// (empty annotations, left where a misspelled word was deleted, are found next to the change)
+				List<Annotation> removed= reg == null ? fOwned.removeAll() :
+					fOwned.remove(reg.getOffset()-1, reg.getLength()+2, (a) -> {
+						Position position= fAnnotationModel.getPosition(a);
+						return position == null || position.getLength() == 0 || position.overlapsWith(reg.getOffset()-1, reg.getLength()+2);
+					});
+				for (Annotation a : removed) {
+					if (fAnnotationModel.getPosition(a) != null) toRemove.add(a);
+				}
+				if (reg == null) fStored.clear();
+				else fStored.take(reg.getOffset()-1, reg.getLength()+2, Integer.MAX_VALUE);
+				// problems found again are left alone, so that an edit that changes nothing repaints nothing
+				fOwned.keepUnchanged(fAnnotationModel, toRemove, fAddAnnotations);
+				balance(toRemove, fAddAnnotations);
+				annotationsToRemove= toRemove.toArray(new Annotation[toRemove.size()]);
+				ReconcileMetrics.getDefault().recordAnnotations(fDocument, SpellingReconcileStrategyFixed.this, fAddAnnotations.size(), annotationsToRemove.length);
+				replace(annotationsToRemove, fAddAnnotations);
+			}
 
+			if (fEvent != null) {
+				int length= fDocument.getLength();
+				fEvent.commit(ReconcileMetrics.getName(SpellingReconcileStrategyFixed.this), length,
+						reg == null ? 0 : reg.getOffset(), reg == null ? length : reg.getLength(),
+						fAddAnnotations.size(), annotationsToRemove.length);
+				fEvent= null;
+			}
+			fAddAnnotations= null;
+		}
+
+		/**
+		 * Annotate the problems near the visible lines that aren't,
+		 * and stop annotating those far from them, if there are more problems than the limit.
+		 */
+		public void show() {
 			synchronized (fLockObject) {
-				Iterator<Annotation> iter= fAnnotationModel.getAnnotationIterator();
-				while (iter.hasNext()) {
-					Annotation annotation= iter.next();
-					final Position position = fAnnotationModel.getPosition(annotation);
-          if (SpellingAnnotation.TYPE.equals(annotation.getType()) &&
-							(reg == null || position.getLength() == 0 || position.overlapsWith(reg.getOffset()-1, reg.getLength()+2)))
-						toRemove.add(annotation);
+				adopt();
+				List<Annotation> toRemove= new ArrayList<>();
+				Map<Annotation, Position> toAdd= new HashMap<>();
+				balance(toRemove, toAdd);
+				replace(toRemove.toArray(new Annotation[toRemove.size()]), toAdd);
+			}
+		}
+
+		/**
+		 * Take over the annotations already in the model (from a warm start), the first time.
+		 * The caller holds the model's lock.
+		 */
+		private void adopt() {
+			if (!fAdopted) {
+				fOwned.addAll(fAnnotationModel, SpellingAnnotation.TYPE);
+				fAdopted= true;
+			}
+		}
+
+		/**
+		 * Add to a change of the model what keeps the problems far from the visible lines
+		 * out of it, if there are more than the limit, and what puts the rest in it,
+		 * and update the summary of those not shown.
+		 * The caller holds the model's lock.
+		 * @param toRemove annotations to remove from the model
+		 * @param toAdd annotations to add to the model, which are not yet in {@link #fOwned}
+		 */
+		private void balance(List<Annotation> toRemove, Map<Annotation, Position> toAdd) {
+			if (fOwned.size() + toAdd.size() + fStored.size() <= fLimit) {
+				for (ProblemStore.Problem p : fStored.take(0, Integer.MAX_VALUE, Integer.MAX_VALUE)) {
+					toAdd.put(createAnnotation(p), new Position(p.offset, p.length));
+				}
+			} else {
+				IRegion window= fViewport.getWindow(fDocument, VIEWPORT_MARGIN);
+				int from= window.getOffset(), to= from + window.getLength();
+				// annotations far away are taken out, and new ones are stored instead
+				Predicate<Annotation> far= (a) -> {
+					Position p= fAnnotationModel.getPosition(a);
+					return p != null && !isNear(p.getOffset(), p.getLength(), from, to);
+				};
+				List<Annotation> hidden= fOwned.remove(0, from, far);
+				hidden.addAll(fOwned.remove(to, Integer.MAX_VALUE - to, far));
+				for (Annotation a : hidden) {
+					Position p= fAnnotationModel.getPosition(a);
+					fStored.add(p.getOffset(), p.getLength(), a.getText());
+					toRemove.add(a);
+				}
+				int shown= fOwned.size();
+				for (Iterator<Entry<Annotation, Position>> it= toAdd.entrySet().iterator(); it.hasNext(); ) {
+					Entry<Annotation, Position> e= it.next();
+					Position p= e.getValue();
+					if (shown < fLimit && isNear(p.getOffset(), p.getLength(), from, to)) {
+						++shown;
+					} else {
+						fStored.add(p.getOffset(), p.getLength(), e.getKey().getText());
+						it.remove();
+					}
 				}
-				Annotation[] annotationsToRemove= toRemove.toArray(new Annotation[toRemove.size()]);
+				if (shown < fLimit) {
+					for (ProblemStore.Problem p : fStored.take(from, to - from, fLimit - shown)) {
+						toAdd.put(createAnnotation(p), new Position(p.offset, p.length));
+					}
+				}
+			}
+			int count= fStored.size();
+			if (count == fSummaryCount) return;
+			if (fSummary != null) toRemove.add(fSummary);
+			fSummary= null;
+			fSummaryCount= count;
+			if (count > 0) {
+				fSummary= new Annotation(SUMMARY_TYPE, false, count + (count == 1 ? " more spelling problem" : " more spelling problems") +
+						" in this file, annotated when scrolled to");
+				toAdd.put(fSummary, new Position(0, 0));
+			}
+		}
 
-				if (fAnnotationModel instanceof IAnnotationModelExtension)
-					((IAnnotationModelExtension)fAnnotationModel).replaceAnnotations(annotationsToRemove, fAddAnnotations);
-				else {
-					for (Annotation element : annotationsToRemove) {
+		private Annotation createAnnotation(ProblemStore.Problem p) {
+			return new SpellingAnnotation(new CachedSpellingProblem(fDocument, new Position(p.offset, p.length), p.message, fSpellingContext));
+		}
+
+		/**
+		 * Replace annotations in the model, and remember the new ones (except the summary).
+		 * The caller holds the model's lock.
+		 */
+		private void replace(Annotation[] toRemove, Map<Annotation, Position> toAdd) {
+			fReplacing= Thread.currentThread();
+			try {
+				if (toRemove.length == 0 && toAdd.isEmpty()) {
+					// nothing changed: the model isn't told
+				} else if (fAnnotationModel instanceof IAnnotationModelExtension) {
+					((IAnnotationModelExtension)fAnnotationModel).replaceAnnotations(toRemove, toAdd);
+				} else {
+					for (Annotation element : toRemove) {
 						fAnnotationModel.removeAnnotation(element);
 					}
-					for (Entry<Annotation, Position> entry : fAddAnnotations.entrySet()) {
+					for (Entry<Annotation, Position> entry : toAdd.entrySet()) {
 						fAnnotationModel.addAnnotation(entry.getKey(), entry.getValue());
 					}
 				}
+			} finally {
+				fReplacing= null;
 			}
+			for (Entry<Annotation, Position> entry : toAdd.entrySet()) {
+				if (entry.getKey() != fSummary) fOwned.add(entry.getKey(), entry.getValue());
+			}
+		}
 
-			fAddAnnotations= null;
+		/**
+		 * Return whether a problem is in the window of lines around the visible ones.
+		 * An empty problem is in it if it is at either end.
+		 */
+		private boolean isNear(int offset, int length, int from, int to) {
+			return length == 0 ? offset >= from && offset <= to : offset < to && offset + length > from;
+		}
+
+		/**
+		 * Keep problems out of the model until {@link #show()} annotates those
+		 * that should be, as if they were far from the visible lines.
+		 */
+		void store(Map<Annotation, Position> problems) {
+			synchronized (fLockObject) {
+				for (Entry<Annotation, Position> e : problems.entrySet()) {
+					Position p= e.getValue();
+					fStored.add(p.getOffset(), p.getLength(), e.getKey().getText());
+				}
+			}
+		}
+
+		/**
+		 * Add the problems not in the model to a map.
+		 */
+		void getStoredAnnotations(Map<Annotation, Position> result) {
+			for (ProblemStore.Problem p : fStored.getAll()) {
+				result.put(createAnnotation(p), new Position(p.offset, p.length));
+			}
 		}
 	}
+	/** Type of the annotation saying how many problems are not shown. */
+	public static final String SUMMARY_TYPE= "org.eclipse.ui.workbench.texteditor.info"; //$NON-NLS-1$
+
+	/** Default for the most problems annotated in a file. */
+	public static final int DEFAULT_LIMIT= 2000;
+
+	/** Number of lines above and below the visible ones in which problems are annotated when over the limit. */
+	private static final int VIEWPORT_MARGIN= 100;
+
+	/** Delay (ms) after the viewer scrolls before the problems are annotated. */
+	private static final long SHOW_DELAY= 100;
+
+	/** Most lines whose problems are remembered. */
+	private static final int MAX_CACHED_LINES= 10000;
+
 	/** Text content type */
 	private static final IContentType TEXT_CONTENT_TYPE= Platform.getContentTypeManager().getContentType(IContentTypeManager.CT_TEXT);
 
@@ -130,6 +374,9 @@ public class SpellingReconcileStrategyFixed
 	/** The document to operate on. */
 	private IDocument fDocument;
 
+	/** The document checked in a pass over the whole document: a snapshot, if possible. */
+	private IDocument fCheckedDocument;
+
 	/** The progress monitor. */
 	private IProgressMonitor fProgressMonitor;
 
@@ -140,12 +387,42 @@ public class SpellingReconcileStrategyFixed
 	/** The spelling context containing the Java source content type. */
 	private SpellingContext fSpellingContext;
 
+	/** The most problems annotated in the file. */
+	private volatile int fLimit= DEFAULT_LIMIT;
+
+	/** Finds the text to check, or null to check all of it. */
+	private volatile ISpellingTokenizer fTokenizer;
+
+	/** The problems of lines checked before, so that they aren't checked again. */
+	private final LineProblemCache fLineCache= new LineProblemCache(MAX_CACHED_LINES);
+
+	/** The tokenizer's modification count when the lines in the cache were checked. */
+	private int fTokenizerCount;
+
+	/** Problems restored before the collector was created, and the document they are for. */
+	private Map<Annotation, Position> fRestored;
+	private IDocument fRestoredDocument;
+
+	/** Annotates the problems scrolled to. */
+	private final Job fShowJob= Job.create("Showing spelling problems", (ICoreRunnable) (monitor) -> {
+		SpellingProblemCollector collector= fCollector;
+		if (collector != null) collector.show();
+	});
+
+	/** The lines shown by the viewer. */
+	private final ViewportTracker fViewport= new ViewportTracker() {
+		@Override
+		public void viewportChanged(int verticalOffset) {
+			super.viewportChanged(verticalOffset);
+			fShowJob.schedule(SHOW_DELAY);
+		}
+	};
+
 	/**
-	 * Region array, used to prevent us from creating a new array on each reconcile pass.
-	 * @since 3.4
+	 * Create a spelling strategy for a viewer.  This must be called in the UI thread.
+	 * @param viewer viewer whose document is checked
+	 * @param spellingService service that checks spelling
 	 */
-	private IRegion[] fRegions= new IRegion[1];
-	
 	public SpellingReconcileStrategyFixed(ISourceViewer viewer, SpellingService spellingService) {
 		Assert.isNotNull(viewer);
 		Assert.isNotNull(spellingService);
@@ -153,6 +430,56 @@ public class SpellingReconcileStrategyFixed
 		fSpellingService= spellingService;
 		fSpellingContext= new SpellingContext();
 		fSpellingContext.setContentType(getContentType());
+		fShowJob.setSystem(true);
+		fViewport.install(viewer);
+	}
+
+	/**
+	 * Set the most problems to annotate in a file.
+	 * If there are more, only those near the visible lines are annotated (up to the limit).
+	 * @param limit most problems annotated
+	 */
+	public void setLimit(int limit) {
+		fLimit= limit;
+	}
+
+	/**
+	 * Set what finds the text to check in the lines that are checked.
+	 * @param tokenizer tokenizer, or null to check all the text
+	 */
+	public void setTokenizer(ISpellingTokenizer tokenizer) {
+		fTokenizer= tokenizer;
+		fLineCache.clear();
+	}
+
+	/**
+	 * Return annotations for the problems that are not in the annotation model
+	 * because there are more than the limit, for example to save them with those that are.
+	 * @return new annotations and their positions
+	 */
+	public Map<Annotation, Position> getUnshownAnnotations() {
+		Map<Annotation, Position> result= new HashMap<>();
+		SpellingProblemCollector collector= fCollector;
+		if (collector != null) collector.getStoredAnnotations(result);
+		return result;
+	}
+
+	/**
+	 * Take problems found before, such as those saved when the file was last closed,
+	 * instead of checking the document for them.  They are annotated as if found by a pass:
+	 * if there are more than the limit, only those near the visible lines are.
+	 * This must be called in the UI thread.
+	 * @param document document the problems are for, which may not yet be set
+	 * @param problems annotations for the problems and their positions
+	 */
+	public void restore(IDocument document, Map<Annotation, Position> problems) {
+		if (fCollector != null && document == fDocument) {
+			fCollector.store(problems);
+			fShowJob.schedule();
+		} else {
+			fRestored= problems;
+			fRestoredDocument= document;
+		}
 	}
 
 	/**
@@ -176,8 +503,16 @@ public class SpellingReconcileStrategyFixed
 
 	@Override
 	public void setDocument(IDocument document) {
+		if (fCollector != null) fCollector.dispose();
 		fDocument= document;
+		fLineCache.clear();
 		fCollector= createSpellingProblemCollector();
+		if (fRestored != null && document == fRestoredDocument && fCollector != null) {
+			fCollector.store(fRestored);
+			fShowJob.schedule();
+		}
+		fRestored= null;
+		fRestoredDocument= null;
 	}
 	
 	protected SpellingProblemCollector createSpellingProblemCollector() {
@@ -213,31 +548,19 @@ public class SpellingReconcileStrategyFixed
 	}
 	
 	@Override
-	public void initialReconcile(String contentType) {
+	public int initialReconcile(String contentType, ITypedRegion[] regions) {
 		if (fProgressMonitor != null) {
 			fProgressMonitor.beginTask("Checking Spelling", 12);
 		}
+		ReconcileProgress progress= new ReconcileProgress(fProgressMonitor, regions.length, 10);
 		try {
-			ITypedRegion[] regions;
-			try {
-				regions = TextUtilities.computePartitioning(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, 0, fDocument.getLength(), false);
-			} catch (BadLocationException e) {
-				return;
-			}
 			if (fProgressMonitor != null) {
 				fProgressMonitor.worked(1);
 			}
 			fCollector.beforeCollecting(null);
 
-			int segment = regions.length / 10;
-			int count = 0;
 			for (ITypedRegion r : regions) {
-				if (fProgressMonitor != null && fProgressMonitor.isCanceled()) return;
-				if (count++ == segment) {
-					if (fProgressMonitor != null) {
-						fProgressMonitor.worked(1);
-					}
-				}
+				if (!progress.next(r)) break;
 				if (contentType.equals(r.getType())) {
 					reconcile(r);
 				}
@@ -246,10 +569,11 @@ public class SpellingReconcileStrategyFixed
 				fProgressMonitor.worked(1);
 			}
 		} finally {
-			fCollector.afterCollecting(null);
+			int checkpoint= progress.getCheckpoint();
+			fCollector.afterCollecting(checkpoint < 0 ? null : new DirtyRegion(0, checkpoint, DirtyRegion.INSERT, null));
 			if (fProgressMonitor != null) fProgressMonitor.done();
 		}
-		
+		return progress.getCheckpoint();
 	}
 
 	@Override
@@ -257,10 +581,13 @@ public class SpellingReconcileStrategyFixed
 		// problem: region may include less than a whole word
 		// So we either use the typed region around the sub region, or else
 		// use entire lines.
+		// (The reconciler gives the whole partition, of which only the part in the dirty region changed.)
+		IRegion tr= subRegion;
+		int from= Math.max(subRegion.getOffset(), dirtyRegion.getOffset());
+		int to= Math.min(subRegion.getOffset() + subRegion.getLength(), dirtyRegion.getOffset() + dirtyRegion.getLength());
 		try {
-			IRegion startLineInfo= fDocument.getLineInformationOfOffset(subRegion.getOffset());
-			IRegion endLineInfo= fDocument.getLineInformationOfOffset(subRegion.getOffset() + Math.max(0, subRegion.getLength() - 1));
-			ITypedRegion tr = TextUtilities.getPartition(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, subRegion.getOffset(), false);
+			IRegion startLineInfo= fDocument.getLineInformationOfOffset(from);
+			IRegion endLineInfo= fDocument.getLineInformationOfOffset(from + Math.max(0, to - from - 1));
 			IRegion lineRegion;
 			if (startLineInfo.getOffset() == endLineInfo.getOffset())
 				lineRegion= startLineInfo;
@@ -287,17 +614,181 @@ public class SpellingReconcileStrategyFixed
 		if (getAnnotationModel() == null || fCollector == null)
 			return;
 
-		fRegions[0]= region;
-		fSpellingService.check(fDocument, fRegions, fSpellingContext, fCollector, fProgressMonitor);
+		// (a new array each time, since chunks are checked in several threads at once)
+		check(getCheckedDocument(), new IRegion[] { region });
+	}
+
+	@Override
+	public int reconcileChunk(ITypedRegion[] partitions) {
+		if (getAnnotationModel() == null || fCollector == null)
+			return -1;
+		if (partitions.length == 0) return -1;
+		// The spelling service checks the whole chunk at once and doesn't say how far it got
+		// when canceled, so a canceled chunk is continued from its start.
+		ReconcileProgress progress= new ReconcileProgress(fProgressMonitor, 1, 0);
+		if (progress.next(partitions[0])) {
+			check(getCheckedDocument(), partitions);
+		}
+		return progress.getCheckpoint();
+	}
+
+	/**
+	 * A line, or the part of one, in a region to check.
+	 */
+	private static final class Segment {
+		final int offset, length, line;
+		final long hash;
+		final List<SpellingProblem> problems= new ArrayList<>();
+
+		Segment(int offset, int length, int line, long hash) {
+			this.offset= offset;
+			this.length= length;
+			this.line= line;
+			this.hash= hash;
+		}
+	}
+
+	/**
+	 * Check regions of a document, line by line: the problems of a line whose text
+	 * has been checked before are reported again where it is now, and the other lines
+	 * are checked in one call to the spelling service.
+	 * @param document document to check
+	 * @param regions regions to check, in order
+	 */
+	private void check(IDocument document, IRegion[] regions) {
+		ISpellingTokenizer tokenizer= fTokenizer;
+		// lines checked when the tokenizer left out other text are checked again
+		int count= tokenizer == null ? 0 : tokenizer.getModificationCount();
+		if (count != fTokenizerCount) {
+			fLineCache.clear();
+			fTokenizerCount= count;
+		}
+		List<Segment> unchecked= new ArrayList<>();
+		try {
+			for (IRegion region : regions) {
+				int end= region.getOffset() + region.getLength();
+				for (int line= document.getLineOfOffset(region.getOffset()); ; ++line) {
+					IRegion info= document.getLineInformation(line);
+					if (info.getOffset() >= end) break;
+					int from= Math.max(info.getOffset(), region.getOffset());
+					int to= Math.min(info.getOffset() + info.getLength(), end);
+					if (from < to) {
+						long hash= LineProblemCache.hash(document.get(from, to - from));
+						LineProblemCache.Problems known= fLineCache.get(hash);
+						if (known == null) {
+							unchecked.add(new Segment(from, to - from, line, hash));
+						} else {
+							for (int i=0; i < known.size(); ++i) {
+								Position position= new Position(from + known.offsets[i], known.lengths[i]);
+								fCollector.accept(new CachedSpellingProblem(fDocument, position, known.messages[i], fSpellingContext));
+							}
+						}
+					}
+					if (line + 1 >= document.getNumberOfLines()) break;
+				}
+			}
+		} catch (BadLocationException e) {
+			// the document changed as we looked (it isn't a snapshot): check it all
+			fSpellingService.check(document, regions, fSpellingContext, fCollector, fProgressMonitor);
+			return;
+		}
+		if (unchecked.isEmpty()) return;
+
+		// lines that follow each other (with only the delimiter between them) are checked together
+		List<IRegion> batch= new ArrayList<>();
+		Segment first= unchecked.get(0), last= first;
+		for (Segment segment : unchecked.subList(1, unchecked.size())) {
+			if (segment.line != last.line + 1 || !isLineEnd(document, last) || !isLineStart(document, segment)) {
+				batch.add(new Region(first.offset, last.offset + last.length - first.offset));
+				first= segment;
+			}
+			last= segment;
+		}
+		batch.add(new Region(first.offset, last.offset + last.length - first.offset));
+
+		ISpellingProblemCollector recorder= new ISpellingProblemCollector() {
+			@Override
+			public void accept(SpellingProblem problem) {
+				fCollector.accept(problem);
+				Segment segment= find(unchecked, problem.getOffset());
+				if (segment != null && problem.getOffset() + problem.getLength() <= segment.offset + segment.length) {
+					segment.problems.add(problem);
+				}
+			}
+
+			@Override
+			public void beginCollecting() {
+				fCollector.beginCollecting();
+			}
+
+			@Override
+			public void endCollecting() {
+				fCollector.endCollecting();
+			}
+		};
+		IRegion[] checked= batch.toArray(new IRegion[batch.size()]);
+		if (tokenizer != null) checked= tokenizer.getCheckedRegions(document, checked);
+		if (checked.length > 0) fSpellingService.check(document, checked, fSpellingContext, recorder, fProgressMonitor);
+		// a canceled check may not have got to every line
+		if (fProgressMonitor != null && fProgressMonitor.isCanceled()) return;
+		// nor is a check remembered if what the tokenizer leaves out changed during it
+		if (tokenizer != null && tokenizer.getModificationCount() != count) return;
+		for (Segment segment : unchecked) {
+			fLineCache.put(segment.hash, segment.offset, segment.problems);
+		}
+	}
+
+	private static boolean isLineStart(IDocument document, Segment segment) {
+		try {
+			return document.getLineOffset(segment.line) == segment.offset;
+		} catch (BadLocationException e) {
+			return false;
+		}
+	}
+
+	private static boolean isLineEnd(IDocument document, Segment segment) {
+		try {
+			IRegion info= document.getLineInformation(segment.line);
+			return info.getOffset() + info.getLength() == segment.offset + segment.length;
+		} catch (BadLocationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the segment that includes an offset, or null if none does.
+	 */
+	private static Segment find(List<Segment> segments, int offset) {
+		int lo= 0, hi= segments.size() - 1;
+		while (lo <= hi) {
+			int mid= (lo + hi) >>> 1;
+			Segment segment= segments.get(mid);
+			if (offset < segment.offset) hi= mid - 1;
+			else if (offset >= segment.offset + segment.length) lo= mid + 1;
+			else return segment;
+		}
+		return null;
+	}
+
+	private IDocument getCheckedDocument() {
+		IDocument checked= fCheckedDocument;
+		return checked == null ? fDocument : checked;
 	}
 
 	@Override
 	public void beforeReconcile(DirtyRegion reg) {
-		fCollector.beforeCollecting(reg);	
+		fCollector.beforeCollecting(reg);
+		// the whole document is checked in a snapshot, so that it can be read from other threads;
+		// every line is checked again, in case the dictionary or the settings changed
+		if (reg == null) {
+			fCheckedDocument= DocumentSnapshot.of(fDocument).toDocument();
+			fLineCache.clear();
+		}
 	}
 
 	@Override
 	public void afterReconcile(DirtyRegion reg) {
+		fCheckedDocument= null;
 		fCollector.afterCollecting(reg);
 	}
 
@@ -0,0 +1,177 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension2;
+import org.eclipse.jface.text.IViewportListener;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextPresentation;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.presentation.PresentationReconciler;
+
+/**
+ * A presentation reconciler that can be limited to the part of the document
+ * that is visible, with a margin of lines around it.
+ * Damage outside that part is not repaired until it is scrolled into view.
+ * This is meant for very large documents, where repairing all the damage
+ * from a change of partitioning (or the whole document, when it is first shown)
+ * takes far too long to do in the UI thread.
+ * The window is widened to whole partitions, since a repairer
+ * has to start scanning at the start of a partition.
+ */
+public class ViewportPresentationReconciler extends PresentationReconciler {
+
+	/** Default number of lines presented above and below the visible ones. */
+	public static final int DEFAULT_MARGIN = 100;
+
+	private ITextViewer fViewer;
+	private boolean fLimited;
+	private int fMargin = DEFAULT_MARGIN;
+
+	/** The range whose presentation is up to date, kept up to date by the document; null if none. */
+	private Position fPresented;
+	private IDocument fPresentedDocument;
+
+	private final IViewportListener fViewportListener = new IViewportListener() {
+		@Override
+		public void viewportChanged(int verticalOffset) {
+			presentViewport();
+		}
+	};
+
+	/**
+	 * Set whether presentation is limited to the visible part of the document.
+	 * @param limited whether to only repair what is visible
+	 */
+	public void setLimitedToViewport(boolean limited) {
+		if (fLimited == limited) return;
+		fLimited = limited;
+		forgetPresented();
+		if (!limited && fViewer instanceof ITextViewerExtension2 && fViewer.getDocument() != null) {
+			// repair everything that was skipped
+			((ITextViewerExtension2)fViewer).invalidateTextPresentation(0, fViewer.getDocument().getLength());
+		}
+	}
+
+	/**
+	 * Set the number of lines to present above and below the visible lines
+	 * when presentation is limited.
+	 * @param margin number of lines, not negative
+	 */
+	public void setMargin(int margin) {
+		fMargin = margin;
+	}
+
+	@Override
+	public void install(ITextViewer viewer) {
+		super.install(viewer);
+		fViewer = viewer;
+		viewer.addViewportListener(fViewportListener);
+	}
+
+	@Override
+	public void uninstall() {
+		if (fViewer != null) {
+			fViewer.removeViewportListener(fViewportListener);
+			fViewer = null;
+		}
+		forgetPresented();
+		super.uninstall();
+	}
+
+	@Override
+	protected void setDocumentToDamagers(IDocument document) {
+		forgetPresented();
+		super.setDocumentToDamagers(document);
+	}
+
+	@Override
+	protected TextPresentation createPresentation(IRegion damage, IDocument document) {
+		if (!fLimited || fViewer == null) return super.createPresentation(damage, document);
+		IRegion window = getWindow(document);
+		int damageEnd = damage.getOffset() + damage.getLength();
+		int windowEnd = window.getOffset() + window.getLength();
+		int start = Math.max(damage.getOffset(), window.getOffset());
+		int end = Math.min(damageEnd, windowEnd);
+		boolean inside = damage.getOffset() >= window.getOffset() && damageEnd <= windowEnd;
+		Position presented = fPresentedDocument == document ? fPresented : null;
+		if (start >= end) {
+			if (presented != null && presented.overlapsWith(damage.getOffset(), damage.getLength())) forgetPresented();
+			return null;
+		}
+		if (inside && presented != null && !presented.isDeleted() &&
+				presented.getOffset() <= end && start <= presented.getOffset() + presented.getLength()) {
+			int from = Math.min(start, presented.getOffset());
+			setPresented(document, from, Math.max(end, presented.getOffset() + presented.getLength()) - from);
+		} else {
+			// anything presented outside the window may now be out of date
+			setPresented(document, start, end - start);
+		}
+		return super.createPresentation(new Region(start, end - start), document);
+	}
+
+	/**
+	 * Present the visible part of the document if it hasn't been already.
+	 */
+	private void presentViewport() {
+		if (!fLimited || fViewer == null) return;
+		IDocument document = fViewer.getDocument();
+		if (document == null) return;
+		int top = Math.max(0, fViewer.getTopIndexStartOffset());
+		int bottom = Math.max(top, fViewer.getBottomIndexEndOffset());
+		Position presented = fPresentedDocument == document ? fPresented : null;
+		if (presented != null && !presented.isDeleted() &&
+				presented.getOffset() <= top && bottom <= presented.getOffset() + presented.getLength()) {
+			return;
+		}
+		IRegion window = getWindow(document);
+		if (window.getLength() == 0) return;
+		setPresented(document, window.getOffset(), window.getLength());
+		TextPresentation p = super.createPresentation(window, document);
+		if (p != null) fViewer.changeTextPresentation(p, false);
+	}
+
+	/**
+	 * Return the visible lines and the margin around them, widened to whole partitions.
+	 */
+	private IRegion getWindow(IDocument document) {
+		int top = Math.max(0, fViewer.getTopIndexStartOffset());
+		int bottom = Math.max(top, fViewer.getBottomIndexEndOffset());
+		IRegion lines = ViewportTracker.getWindow(document, top, bottom, fMargin);
+		int start = lines.getOffset();
+		int end = start + lines.getLength();
+		try {
+			start = TextUtilities.getPartition(document, getDocumentPartitioning(), start, false).getOffset();
+			if (end > start) {
+				IRegion last = TextUtilities.getPartition(document, getDocumentPartitioning(), end - 1, false);
+				end = last.getOffset() + last.getLength();
+			}
+		} catch (BadLocationException e) {
+			// keep the lines
+		}
+		return new Region(start, end - start);
+	}
+
+	private void setPresented(IDocument document, int offset, int length) {
+		forgetPresented();
+		Position p = new Position(offset, length);
+		try {
+			document.addPosition(p);
+		} catch (BadLocationException e) {
+			return;
+		}
+		fPresented = p;
+		fPresentedDocument = document;
+	}
+
+	private void forgetPresented() {
+		if (fPresented != null) {
+			fPresentedDocument.removePosition(fPresented);
+			fPresented = null;
+			fPresentedDocument = null;
+		}
+	}
+}
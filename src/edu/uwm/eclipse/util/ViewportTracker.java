@@ -0,0 +1,101 @@
+package edu.uwm.eclipse.util;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.IViewportListener;
+import org.eclipse.jface.text.Region;
+
+/**
+ * Follows the part of a document that a text viewer shows.
+ * The viewer is only asked in the UI thread (when its viewport changes)
+ * so that the visible part can be read from any thread, for example a reconciler's.
+ */
+public class ViewportTracker implements IViewportListener {
+
+	private ITextViewer fViewer;
+	private volatile int fTop, fBottom;
+
+	/**
+	 * Start following the given viewer.  This must be called in the UI thread.
+	 * @param viewer viewer to follow, must not be null
+	 */
+	public void install(ITextViewer viewer) {
+		uninstall();
+		fViewer = viewer;
+		viewer.addViewportListener(this);
+		update();
+	}
+
+	/**
+	 * Stop following the viewer, if any.
+	 */
+	public void uninstall() {
+		if (fViewer != null) {
+			fViewer.removeViewportListener(this);
+			fViewer = null;
+		}
+	}
+
+	@Override
+	public void viewportChanged(int verticalOffset) {
+		update();
+	}
+
+	private void update() {
+		if (fViewer == null || fViewer.getTextWidget() == null) return;
+		fTop = Math.max(0, fViewer.getTopIndexStartOffset());
+		fBottom = Math.max(fTop, fViewer.getBottomIndexEndOffset());
+	}
+
+	/**
+	 * Return the first visible offset, as of the last change of the viewport.
+	 */
+	public int getTopOffset() {
+		return fTop;
+	}
+
+	/**
+	 * Return the offset after the last visible one, as of the last change of the viewport.
+	 */
+	public int getBottomOffset() {
+		return fBottom;
+	}
+
+	/**
+	 * Return the visible lines of the document with a margin around them.
+	 * @param document document shown in the viewer
+	 * @param margin number of lines to include above and below the visible ones
+	 * @return region of whole lines
+	 */
+	public IRegion getWindow(IDocument document, int margin) {
+		return getWindow(document, fTop, fBottom, margin);
+	}
+
+	/**
+	 * Return the lines of a document including a range, with a margin around them.
+	 * @param document document, must not be null
+	 * @param top start of the range
+	 * @param bottom end of the range
+	 * @param margin number of lines to include above and below the range
+	 * @return region of whole lines
+	 */
+	public static IRegion getWindow(IDocument document, int top, int bottom, int margin) {
+		int length = document.getLength();
+		top = Math.min(top, length);
+		bottom = Math.min(Math.max(top, bottom), length);
+		try {
+			int lines = document.getNumberOfLines();
+			int first = Math.max(0, document.getLineOfOffset(top) - margin);
+			int last = Math.min(lines - 1, document.getLineOfOffset(bottom) + margin);
+			int start = document.getLineOffset(first);
+			IRegion end = document.getLineInformation(last);
+			int stop = last + 1 < lines ? document.getLineOffset(last + 1) : end.getOffset() + end.getLength();
+			return new Region(start, stop - start);
+		} catch (BadLocationException e) {
+			// the document changed as we looked
+			return new Region(top, bottom - top);
+		}
+	}
+}
@@ -2,10 +2,15 @@ package edu.uwm.twee;
 
 
 import org.eclipse.jface.resource.ImageDescriptor;
+import org.eclipse.jface.util.IPropertyChangeListener;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import edu.uwm.eclipse.util.MetricsRecorder;
+import edu.uwm.eclipse.util.ReconcileMetrics;
+import edu.uwm.twee.preferences.PreferenceConstants;
+
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -14,9 +19,17 @@ public class Activator extends AbstractUIPlugin {
 	// The plug-in ID
 	public static final String PLUGIN_ID = "edu.uwm.twee";
 
+	// File (in the state location) that measurements of reconciling are written to
+	public static final String METRICS_FILE = "reconcile-metrics.jsonl";
+
 	// The shared instance
 	private static Activator plugin;
 
+	private MetricsRecorder recorder;
+	private final IPropertyChangeListener preferenceListener = (event) -> {
+		if (PreferenceConstants.P_RECORD_METRICS.equals(event.getProperty())) updateRecorder();
+	};
+
 	/**
 	 * The constructor
 	 */
@@ -32,6 +45,8 @@ public class Activator extends AbstractUIPlugin {
 		super.start(context);
 		System.out.println("SASyLF plugin activated.");
 		plugin = this;
+		getPreferenceStore().addPropertyChangeListener(preferenceListener);
+		updateRecorder();
 	}
 
 	/*
@@ -40,10 +55,32 @@ public class Activator extends AbstractUIPlugin {
 	 */
 	@Override
 	public void stop(BundleContext context) throws Exception {
+		getPreferenceStore().removePropertyChangeListener(preferenceListener);
+		stopRecorder();
 		plugin = null;
 		super.stop(context);
 	}
 
+	/**
+	 * Start or stop recording measurements of reconciling, as the preference says.
+	 */
+	private synchronized void updateRecorder() {
+		if (!getPreferenceStore().getBoolean(PreferenceConstants.P_RECORD_METRICS)) {
+			stopRecorder();
+		} else if (recorder == null) {
+			recorder = new MetricsRecorder(getStateLocation().append(METRICS_FILE).toFile());
+			ReconcileMetrics.getDefault().addListener(recorder);
+		}
+	}
+
+	private synchronized void stopRecorder() {
+		if (recorder != null) {
+			ReconcileMetrics.getDefault().removeListener(recorder);
+			recorder.close();
+			recorder = null;
+		}
+	}
+
 	/**
 	 * Returns the shared instance
 	 *
@@ -56,6 +93,15 @@ public class Activator extends AbstractUIPlugin {
 		return plugin;
 	}
 
+	/**
+	 * Return whether the plugin has been started, and so has preferences.
+	 * It isn't when its classes are used outside the workbench (as in the benchmarks).
+	 * @return whether the plugin is running in the workbench
+	 */
+	public static boolean isStarted() {
+		return plugin != null && plugin.getBundle() != null;
+	}
+
 	/**
 	 * Return image from plugin.
 	 * @param path
@@ -0,0 +1,313 @@
+package edu.uwm.twee.editors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.reconciler.DirtyRegion;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
+import org.eclipse.swt.widgets.Display;
+
+import edu.uwm.eclipse.util.DocumentSnapshot;
+import edu.uwm.eclipse.util.FlightRecorderEvents;
+import edu.uwm.eclipse.util.IReconcilingStrategyExtension3;
+import edu.uwm.eclipse.util.ReconcileMetrics;
+import edu.uwm.eclipse.util.ReconcileProgress;
+import edu.uwm.twee.editors.TweeOutline.PassageOutlineElement;
+import edu.uwm.twee.editors.TweeOutline.PassageType;
+import edu.uwm.twee.syntax.DocumentSyntax;
+import edu.uwm.twee.syntax.SyntaxNode;
+import edu.uwm.twee.syntax.SyntaxNode.Kind;
+import edu.uwm.twee.syntax.SyntaxTree;
+
+/**
+ * Finds the passages of a document, keeping the editor's {@link PassageTable} filled in,
+ * whether or not the outline is showing.  The table is changed in the UI thread,
+ * after which the listener (the outline, if any) is told of the change.
+ */
+class PassageReconcilingStrategy implements
+    IReconcilingStrategy,
+    IReconcilingStrategyExtension,
+    IReconcilingStrategyExtension3
+{
+  /**
+   * Told of changes to the passage table, in the UI thread.
+   */
+  interface Listener {
+    /**
+     * Passages were replaced in the table.
+     * @param index index of the first new passage
+     * @param added new passages, in document order
+     * @param removed passages removed
+     */
+    void passagesReplaced(int index, List<PassageOutlineElement> added, List<PassageOutlineElement> removed);
+  }
+
+  private final PassageTable<PassageOutlineElement> fPassages;
+  private volatile Listener fListener;
+  private IDocument fDocument;
+  private DocumentSnapshot fSnapshot;
+  // taken when first needed in each pass (by any of its threads)
+  private volatile SyntaxTree fTree;
+  // header of the passage right after the region of the pass, if any
+  private ITypedRegion fFollowingHeader;
+  private long fInitialStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+  private IProgressMonitor fProgressMonitor;
+  // passages found, by offset, since chunks may be reconciled out of order and at once;
+  // both maps are guarded by newElements
+  private SortedMap<Integer, PassageOutlineElement> newElements = new TreeMap<>();
+  private SortedMap<Integer, IRegion> newHeaders = new TreeMap<>();
+  // flight recorder event for the pass, or null if not recording
+  private FlightRecorderEvents.Event fEvent;
+
+  /**
+   * Create a strategy that fills in the given table.
+   * @param passages table of the passages of the document
+   */
+  PassageReconcilingStrategy(PassageTable<PassageOutlineElement> passages) {
+    fPassages = passages;
+  }
+
+  /**
+   * Set the listener told of changes to the passage table.
+   * @param listener listener, or null for none
+   */
+  void setListener(Listener listener) {
+    fListener = listener;
+  }
+
+  /// setup
+
+  @Override
+  public void setProgressMonitor(IProgressMonitor monitor) {
+    fProgressMonitor = monitor;
+  }
+
+  @Override
+  public void setDocument(IDocument document) {
+    fDocument = document;
+  }
+
+  ///
+  @Override
+  public void initialReconcile() {
+    ITypedRegion[] regions;
+    try {
+      regions = TextUtilities.computePartitioning(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, 0, fDocument.getLength(), false);
+    } catch (BadLocationException e) {
+      return;
+    }
+    initialReconcile(TweePartitionScanner.TW_PASSAGE, regions);
+  }
+
+  @Override
+  public int initialReconcile(String contentType, ITypedRegion[] regions) {
+    // This strategy is registered for every kind of passage header,
+    // but one pass over the partitioning finds them all.
+    long stamp = fDocument instanceof IDocumentExtension4 ?
+        ((IDocumentExtension4)fDocument).getModificationStamp() : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    if (stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP && stamp == fInitialStamp) return -1;
+    fInitialStamp = stamp;
+    if (fProgressMonitor != null) {
+      fProgressMonitor.beginTask("Building outline", 12);
+    }
+    ReconcileProgress progress = new ReconcileProgress(fProgressMonitor, regions.length, 10);
+    beforeReconcile(null);
+    try {
+      if (fProgressMonitor != null) {
+        fProgressMonitor.worked(1);
+      }
+
+      for (ITypedRegion r : regions) {
+        if (!progress.next(r)) break;
+        if (TweePartitionScanner.isPassageHeader(r.getType())) {
+          reconcile(r);
+        }
+      }
+      if (fProgressMonitor != null) {
+        fProgressMonitor.worked(1);
+      }
+    } finally {
+      int checkpoint = progress.getCheckpoint();
+      afterReconcile(checkpoint < 0 ? null : new DirtyRegion(0, checkpoint, DirtyRegion.INSERT, null));
+      if (fProgressMonitor != null) fProgressMonitor.done();
+    }
+    return progress.getCheckpoint();
+  }
+
+  @Override
+  public void beforeReconcile(DirtyRegion reg) {
+    // (the tree is taken when first needed: the reconciler calls this with the document locked)
+    fEvent = FlightRecorderEvents.STRATEGY_PASS.begin();
+    newElements.clear();
+    newHeaders.clear();
+    fSnapshot = DocumentSnapshot.of(fDocument);
+    // special case because passage header conceptually includes the newline
+    // that occurs right before passage but we didn't declare it that way.
+    // (It is found now, so that it is of the same version as the snapshot.)
+    fFollowingHeader = null;
+    if (reg != null && reg.getLength() > 0) {
+      try {
+        int lastPos = reg.getOffset() + reg.getLength() - 1;
+        if (lastPos+2 < fSnapshot.getLength() && fSnapshot.get(lastPos,3).toString().equals("\n::")) {
+          ITypedRegion tr = TextUtilities.getPartition(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, lastPos+1, false);
+          if (TweePartitionScanner.isPassageHeader(tr.getType())) {
+            fFollowingHeader = tr;
+          }
+        }
+      } catch (BadLocationException e) {
+        // ignore
+      }
+    }
+  }
+
+  @Override
+  public void afterReconcile(DirtyRegion reg) {
+    // (unless the pass was canceled before it got to the end)
+    if (fFollowingHeader != null && reg != null && reg.getOffset() + reg.getLength() == fFollowingHeader.getOffset()) {
+      // System.out.println("going forwards a bit");
+      reconcile(fFollowingHeader);
+    }
+    fFollowingHeader = null;
+    synchronized (newElements) {
+      replace(reg,new ArrayList<>(newElements.values()),new ArrayList<>(newHeaders.values()));
+      if (fEvent != null) {
+        // passages removed are known only when the table is updated (see TweeOutline.OUTLINE_UPDATE)
+        int length = fDocument.getLength();
+        fEvent.commit(ReconcileMetrics.getName(this), length,
+            reg == null ? 0 : reg.getOffset(), reg == null ? length : reg.getLength(), newElements.size(), -1);
+        fEvent = null;
+      }
+    }
+    fSnapshot = null;
+    fTree = null;
+  }
+
+  /**
+   * Return a region that includes r and all the given regions,
+   * assuming that the list is in order.
+   * @param r region to possible extend (if null, refers to whole document)
+   * @param a regions of passage headers being added
+   * @return region (possibly null)
+   */
+  private static IRegion stretchToInclude(IRegion r, List<IRegion> a) {
+    if (r == null || a.size() == 0) return r;
+    final int firstOff = a.get(0).getOffset();
+    int diffFirst = r.getOffset() - firstOff;
+    if (diffFirst > 0) {
+      r = new Region(firstOff,r.getLength()+diffFirst);
+    }
+    IRegion last = a.get(a.size()-1);
+    final int lastOff = last.getOffset() + last.getLength();
+    if (r.getOffset()+r.getLength() < lastOff) {
+      return new Region(r.getOffset(),lastOff - r.getOffset());
+    }
+    return r;
+  }
+
+  /**
+   * Remove all passages from the table that are in the existing region,
+   * and replace them with the new passages given, in the UI thread,
+   * and then tell the listener. This method can be called from any thread.
+   * @param reginit region to remove passages from, if null, this means remove all
+   * @param add new passages to add, in document order
+   * @param headers regions of the headers of the new passages
+   */
+  private void replace(final IRegion reginit, final List<PassageOutlineElement> add, final List<IRegion> headers) {
+    final IRegion reg = stretchToInclude(reginit,headers);
+    final IDocument document = fDocument;
+    ReconcileMetrics.getDefault().recordAsyncExec(document, this);
+    Display.getDefault().asyncExec(() -> {
+      FlightRecorderEvents.Event event = TweeOutline.OUTLINE_UPDATE.begin();
+      List<PassageOutlineElement> removed = new ArrayList<>();
+      int index;
+      if (reg == null) {
+        index = fPassages.replace(0, Integer.MAX_VALUE, add, headers, removed);
+      } else {
+        index = fPassages.replace(reg.getOffset(), reg.getLength(), add, headers, removed);
+      }
+      Listener listener = fListener;
+      if (listener != null) listener.passagesReplaced(index, add, removed);
+      ReconcileMetrics.getDefault().recordAnnotations(document, this, add.size(), removed.size());
+      if (event != null) {
+        int length = document == null ? -1 : document.getLength();
+        event.commit(ReconcileMetrics.getName(this), length,
+            reg == null ? 0 : reg.getOffset(), reg == null ? length : reg.getLength(), add.size(), removed.size());
+      }
+    });
+  }
+
+  @Override
+  public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {
+    // the reconciler gives the whole partition, of the version of the snapshot
+    reconcile(subRegion);
+  }
+
+  @Override
+  public int reconcileChunk(ITypedRegion[] partitions) {
+    ReconcileProgress progress = new ReconcileProgress(fProgressMonitor, partitions.length, 0);
+    for (ITypedRegion r : partitions) {
+      if (!progress.next(r)) break;
+      reconcile(r);
+    }
+    return progress.getCheckpoint();
+  }
+
+  @Override
+  public void reconcile(IRegion partition) {
+    try {
+      if (fSnapshot == null) fSnapshot = DocumentSnapshot.of(fDocument);
+      if (fTree == null) fTree = DocumentSyntax.of(fDocument).getTree();
+      int offset = partition.getOffset();
+      // the tree is only used if it is of the version of the snapshot
+      SyntaxNode header = fSnapshot.isOf(fTree.getText()) ? fTree.findNode(offset, partition.getLength(), Kind.HEADER) : null;
+      CharSequence text;
+      if (header != null) {
+        text = fTree.getText(offset, header.getLength());
+      } else {
+        text = fSnapshot.get(offset, partition.getLength());
+        header = SyntaxTree.parseHeader(text);
+        if (header == null) return;
+      }
+      String name = "";
+      int n = header.indexOf(Kind.NAME);
+      if (n >= 0) {
+        int s = header.getChildOffset(n);
+        name = text.subSequence(s, s + header.getChild(n).getLength()).toString();
+      }
+      PassageType type = PassageType.NORMAL;
+      if (Arrays.asList(TweeOutline.SPECIAL_PASSAGE_NAMES).contains(name)) type = PassageType.SPECIAL;
+      int t = header.indexOf(Kind.TAGS);
+      if (t >= 0) {
+        SyntaxNode tags = header.getChild(t);
+        for (int i=0; i < tags.getChildCount(); ++i) {
+          int s = header.getChildOffset(t) + tags.getChildOffset(i);
+          switch (text.subSequence(s, s + tags.getChild(i).getLength()).toString()) {
+          case "script": type = PassageType.SCRIPT; break;
+          case "stylesheet": type = PassageType.STYLE; break;
+          default:
+            break;
+          }
+        }
+      }
+      synchronized (newElements) {
+        newElements.put(offset, new PassageOutlineElement(type, name));
+        newHeaders.put(offset, new Region(offset, partition.getLength()));
+      }
+    } catch (BadLocationException e) {
+
+    }
+  }
+}
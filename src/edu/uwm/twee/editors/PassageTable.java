@@ -0,0 +1,371 @@
+package edu.uwm.twee.editors;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IPositionUpdater;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * The passages of a document, in document order,
+ * each with the region of its header and an element (for the outline).
+ * The table keeps itself up to date as the document changes
+ * by being a position updater of the document.
+ * <p>
+ * The header regions are kept in primitive arrays with a gap, as in a gap buffer.
+ * Entries before the gap hold offsets from the start of the document,
+ * entries after the gap hold offsets from the end of the document.
+ * A change to the document moves the gap to where the change happened,
+ * after which the entries following the change need no updating.
+ * Since successive changes are usually close together,
+ * the cost is usually that of the O(log n) search, and nothing is allocated.
+ * <p>
+ * If given a way to name elements, the table also keeps the set of names of its passages,
+ * with a count of the changes to it, so that users of the names need not collect them
+ * again until they change.
+ * <p>
+ * Methods are synchronized because hovers are computed in their own thread.
+ * @param <T> type of elements associated with passages
+ */
+public class PassageTable<T> implements IPositionUpdater {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private IDocument fDocument;
+	private int fDocumentLength;
+
+	private int[] fStarts = new int[INITIAL_CAPACITY];
+	private int[] fEnds = new int[INITIAL_CAPACITY];
+	private Object[] fElements = new Object[INITIAL_CAPACITY];
+	// The gap is the physical indices [fGapStart,fGapEnd)
+	private int fGapStart = 0;
+	private int fGapEnd = INITIAL_CAPACITY;
+
+	private final Function<? super T, String> fNameOf;
+	// number of passages with each name
+	private final Map<String, Integer> fNameCounts = new HashMap<>();
+	// unmodifiable copy of the names, or null if they changed since it was made
+	private Set<String> fNames;
+	private int fNamesModificationCount;
+
+	/**
+	 * Create a table that doesn't keep names.
+	 */
+	public PassageTable() {
+		this(null);
+	}
+
+	/**
+	 * Create a table that keeps the names of its passages.
+	 * @param nameOf function that gives an element's name (or null for none), may be null
+	 */
+	public PassageTable(Function<? super T, String> nameOf) {
+		fNameOf = nameOf;
+	}
+
+	/**
+	 * Start following a (different) document.  The table is emptied.
+	 * @param document document to follow, may be null
+	 */
+	public synchronized void setDocument(IDocument document) {
+		if (fDocument != null) fDocument.removePositionUpdater(this);
+		fDocument = document;
+		fDocumentLength = document == null ? 0 : document.getLength();
+		clear();
+		if (document != null) document.addPositionUpdater(this);
+	}
+
+	/**
+	 * Remove all passages from the table.
+	 */
+	public synchronized void clear() {
+		for (int i=0; i < fElements.length; ++i) {
+			fElements[i] = null;
+		}
+		fGapStart = 0;
+		fGapEnd = fElements.length;
+		if (!fNameCounts.isEmpty()) {
+			fNameCounts.clear();
+			namesChanged();
+		}
+	}
+
+	/**
+	 * Return the names of the passages.
+	 * @return unmodifiable set of names, empty if the table doesn't keep names
+	 * @see #getNamesModificationCount()
+	 */
+	public synchronized Set<String> getNames() {
+		if (fNames == null) fNames = Collections.unmodifiableSet(new HashSet<>(fNameCounts.keySet()));
+		return fNames;
+	}
+
+	/**
+	 * Return the number of times the set of names has changed,
+	 * so that a set got earlier can be used until this changes.
+	 */
+	public synchronized int getNamesModificationCount() {
+		return fNamesModificationCount;
+	}
+
+	private void namesChanged() {
+		fNames = null;
+		++fNamesModificationCount;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void removeName(Object element) {
+		if (fNameOf == null || element == null) return;
+		String name = fNameOf.apply((T)element);
+		if (name == null) return;
+		Integer count = fNameCounts.get(name);
+		if (count == null) return;
+		if (count == 1) {
+			fNameCounts.remove(name);
+			namesChanged();
+		} else {
+			fNameCounts.put(name, count - 1);
+		}
+	}
+
+	private void addName(T element) {
+		if (fNameOf == null || element == null) return;
+		String name = fNameOf.apply(element);
+		if (name == null) return;
+		if (fNameCounts.merge(name, 1, Integer::sum) == 1) namesChanged();
+	}
+
+	/**
+	 * Return the number of passages.
+	 */
+	public synchronized int size() {
+		return fGapStart + fElements.length - fGapEnd;
+	}
+
+	private int physical(int index) {
+		return index < fGapStart ? index : index + fGapEnd - fGapStart;
+	}
+
+	/**
+	 * Return the offset of the header of the passage at the given index.
+	 */
+	public synchronized int getOffset(int index) {
+		int p = physical(index);
+		return p < fGapStart ? fStarts[p] : fStarts[p] + fDocumentLength;
+	}
+
+	/**
+	 * Return the length of the header of the passage at the given index.
+	 */
+	public synchronized int getLength(int index) {
+		int p = physical(index);
+		return fEnds[p] - fStarts[p];
+	}
+
+	private int getEnd(int index) {
+		int p = physical(index);
+		return p < fGapStart ? fEnds[p] : fEnds[p] + fDocumentLength;
+	}
+
+	/**
+	 * Return the element of the passage at the given index.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized T get(int index) {
+		return (T)fElements[physical(index)];
+	}
+
+	/**
+	 * Return the index of the passage with the given element, or -1 if none.
+	 * This takes linear time.
+	 */
+	public synchronized int indexOf(T element) {
+		int n = size();
+		for (int i=0; i < n; ++i) {
+			if (fElements[physical(i)] == element) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return all elements in document order.
+	 */
+	public synchronized Object[] toArray() {
+		int n = size();
+		Object[] result = new Object[n];
+		for (int i=0; i < n; ++i) {
+			result[i] = fElements[physical(i)];
+		}
+		return result;
+	}
+
+	/**
+	 * Return the index of the passage containing the given offset,
+	 * that is the last one whose header starts at or before the offset.
+	 * @param offset offset in document
+	 * @return index of passage, or -1 if the offset is before all passages
+	 */
+	public synchronized int find(int offset) {
+		return firstStartingAfter(offset) - 1;
+	}
+
+	/**
+	 * Return the region of the passage header including the given offset.
+	 * @param offset offset in document
+	 * @return region of header, or null if the offset is not in a header
+	 */
+	public synchronized IRegion getHeader(int offset) {
+		int i = find(offset);
+		if (i < 0 || getEnd(i) <= offset) return null;
+		return new Region(getOffset(i), getLength(i));
+	}
+
+	/** Return the index of the first passage whose header starts after the offset. */
+	private int firstStartingAfter(int offset) {
+		int lo = 0, hi = size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getOffset(mid) <= offset) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/** Return the index of the first passage whose header starts at or after the offset. */
+	private int firstStartingAtOrAfter(int offset) {
+		return firstStartingAfter(offset - 1);
+	}
+
+	/** Return the index of the first passage whose header ends after the offset. */
+	private int firstEndingAfter(int offset) {
+		int lo = 0, hi = size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (getEnd(mid) <= offset) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Move the gap so that it starts at the given index.
+	 */
+	private void moveGap(int index) {
+		while (fGapStart > index) {
+			--fGapStart;
+			--fGapEnd;
+			fStarts[fGapEnd] = fStarts[fGapStart] - fDocumentLength;
+			fEnds[fGapEnd] = fEnds[fGapStart] - fDocumentLength;
+			fElements[fGapEnd] = fElements[fGapStart];
+			// when the gap is empty, these are the same entry
+			if (fGapStart != fGapEnd) fElements[fGapStart] = null;
+		}
+		while (fGapStart < index) {
+			fStarts[fGapStart] = fStarts[fGapEnd] + fDocumentLength;
+			fEnds[fGapStart] = fEnds[fGapEnd] + fDocumentLength;
+			fElements[fGapStart] = fElements[fGapEnd];
+			if (fGapStart != fGapEnd) fElements[fGapEnd] = null;
+			++fGapStart;
+			++fGapEnd;
+		}
+	}
+
+	/**
+	 * Make sure the gap has room for the given number of entries.
+	 */
+	private void ensureGap(int needed) {
+		if (fGapEnd - fGapStart >= needed) return;
+		int capacity = fElements.length;
+		int after = capacity - fGapEnd;
+		int newCapacity = Math.max(capacity * 2, fGapStart + after + needed);
+		int newGapEnd = newCapacity - after;
+		int[] starts = new int[newCapacity];
+		int[] ends = new int[newCapacity];
+		Object[] elements = new Object[newCapacity];
+		System.arraycopy(fStarts, 0, starts, 0, fGapStart);
+		System.arraycopy(fEnds, 0, ends, 0, fGapStart);
+		System.arraycopy(fElements, 0, elements, 0, fGapStart);
+		System.arraycopy(fStarts, fGapEnd, starts, newGapEnd, after);
+		System.arraycopy(fEnds, fGapEnd, ends, newGapEnd, after);
+		System.arraycopy(fElements, fGapEnd, elements, newGapEnd, after);
+		fStarts = starts;
+		fEnds = ends;
+		fElements = elements;
+		fGapEnd = newGapEnd;
+	}
+
+	/**
+	 * Replace the passages in a region with new ones.
+	 * The passages removed are those whose header starts in the region,
+	 * and the one before if its header overlaps the start of the region.
+	 * The new passages must fit in place of the ones removed.
+	 * @param offset start of the region
+	 * @param length length of the region
+	 * @param elements new elements, in document order
+	 * @param headers regions of the headers of the new elements
+	 * @param removed collection to which removed elements are added, or null
+	 * @return index at which the new passages were placed
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int replace(int offset, int length, List<? extends T> elements,
+			List<? extends IRegion> headers, Collection<? super T> removed) {
+		int from = firstStartingAtOrAfter(offset);
+		if (from > 0 && getEnd(from-1) > offset) --from;
+		int to = Math.max(from, firstStartingAtOrAfter(offset + length));
+		moveGap(to);
+		if (removed != null) {
+			for (int i=from; i < to; ++i) {
+				removed.add((T)fElements[i]);
+			}
+		}
+		for (int i=from; i < to; ++i) {
+			removeName(fElements[i]);
+			fElements[i] = null;
+		}
+		fGapStart = from;
+		int n = elements.size();
+		ensureGap(n);
+		for (int j=0; j < n; ++j) {
+			IRegion r = headers.get(j);
+			fStarts[fGapStart] = r.getOffset();
+			fEnds[fGapStart] = r.getOffset() + r.getLength();
+			fElements[fGapStart] = elements.get(j);
+			addName(elements.get(j));
+			++fGapStart;
+		}
+		return from;
+	}
+
+	@Override
+	public synchronized void update(DocumentEvent event) {
+		int offset = event.getOffset();
+		int end = offset + event.getLength();
+		String text = event.getText();
+		int textLength = text == null ? 0 : text.length();
+		int newDocumentLength = fDocumentLength - event.getLength() + textLength;
+		// headers ending before the change are unaffected
+		moveGap(firstEndingAfter(offset));
+		// headers after the gap that start after the change just move with the end of the document,
+		// those that overlap the replaced text are clipped to what's left.
+		for (int p = fGapEnd; p < fElements.length; ++p) {
+			int s = fStarts[p] + fDocumentLength;
+			if (s >= end) break;
+			int e = fEnds[p] + fDocumentLength;
+			if (s >= offset) s = offset + textLength;
+			if (e >= end) e += textLength - event.getLength();
+			else e = offset;
+			if (e < s) e = s;
+			fStarts[p] = s - newDocumentLength;
+			fEnds[p] = e - newDocumentLength;
+		}
+		fDocumentLength = newDocumentLength;
+	}
+}
@@ -2,7 +2,6 @@ package edu.uwm.twee.editors;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -19,6 +18,7 @@ import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ISynchronizable;
 import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
 import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.reconciler.DirtyRegion;
 import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
@@ -28,17 +28,26 @@ import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.IAnnotationModelExtension;
 import org.eclipse.jface.text.source.ISourceViewer;
 
-import edu.uwm.eclipse.util.IReconcilingStrategyExtension2;
+import edu.uwm.eclipse.util.AnnotationIndex;
+import edu.uwm.eclipse.util.DocumentSnapshot;
+import edu.uwm.eclipse.util.FlightRecorderEvents;
+import edu.uwm.eclipse.util.IReconcilingStrategyExtension3;
+import edu.uwm.eclipse.util.ReconcileMetrics;
+import edu.uwm.eclipse.util.ReconcileProgress;
 import edu.uwm.twee.Activator;
 import edu.uwm.twee.macro.MacroDictionary;
 import edu.uwm.twee.preferences.PreferenceConstants;
+import edu.uwm.twee.syntax.DocumentSyntax;
+import edu.uwm.twee.syntax.SyntaxNode;
+import edu.uwm.twee.syntax.SyntaxNode.Kind;
+import edu.uwm.twee.syntax.SyntaxTree;
 
 /**
  * Reconcile strategy used for spell checking.
  *
  * @since 3.3
  */
-public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconcilingStrategyExtension, IReconcilingStrategyExtension2 {
+public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconcilingStrategyExtension, IReconcilingStrategyExtension3 {
 
 	/**
 	 * Problem collector.
@@ -54,9 +63,18 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 		/** Areas to remove annotatiosn from */
 		private List<IRegion> fRemoveAnnotations = new ArrayList<>();
 
+		/** The annotations this collector has put in the model. */
+		private final AnnotationIndex fOwned = new AnnotationIndex();
+
+		/** Whether annotations already in the model (from a warm start) have been taken over. */
+		private boolean fAdopted;
+
 		/** Lock object for modifying the annotations. */
 		private Object fLockObject;
 
+		/** Flight recorder event for the pass, or null if not recording. */
+		private FlightRecorderEvents.Event fEvent;
+
 		/**
 		 * Initializes this collector with the given annotation model.
 		 *
@@ -69,49 +87,73 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 				fLockObject= ((ISynchronizable)fAnnotationModel).getLockObject();
 			else
 				fLockObject= fAnnotationModel;
+			fOwned.connect(fDocument);
+		}
+
+		/**
+		 * Stop following the document.
+		 */
+		public void dispose() {
+			fOwned.disconnect();
 		}
 
-		public void accept(IRegion location, String problem) {
+		public synchronized void accept(IRegion location, String problem) {
 			fAddAnnotations.put(new SugarCubeMacroAnnotation(problem), new Position(location.getOffset(), location.getLength()));
 		}
 
-		public void clear(IRegion location) {
+		public synchronized void clear(IRegion location) {
 			fRemoveAnnotations.add(location);
 		}
 		
-		protected boolean isCleared(Position p) {
-			for (IRegion r : fRemoveAnnotations) {
-				if (p.overlapsWith(r.getOffset(), r.getLength())) return true;
+		/**
+		 * Take the annotations in a region out of the ones this collector owns,
+		 * and add those still in the model to a list.
+		 */
+		private void removeOwned(IRegion region, List<Annotation> toRemove) {
+			for (Annotation a : fOwned.remove(region.getOffset(), region.getLength(), (a) -> {
+				Position p= fAnnotationModel.getPosition(a);
+				return p == null || p.overlapsWith(region.getOffset(), region.getLength());
+			})) {
+				if (fAnnotationModel.getPosition(a) != null) toRemove.add(a);
 			}
-			return false;
 		}
-		
+
 		public void beforeCollecting() {
 			fAddAnnotations= new HashMap<>();
 			fRemoveAnnotations.clear();
+			fEvent= FlightRecorderEvents.STRATEGY_PASS.begin();
 		}
 
 		public void afterCollecting(IRegion handled) {
 			if (fAddAnnotations == null) return;
 			List<Annotation> toRemove= new ArrayList<>();
+			Annotation[] annotationsToRemove;
 
 			synchronized (fLockObject) {
-				Iterator<Annotation> iter= fAnnotationModel.getAnnotationIterator();
-				while (iter.hasNext()) {
-					Annotation annotation= iter.next();
-					if (SugarCubeMacroAnnotation.TYPE.equals(annotation.getType())) {
-						Position p = fAnnotationModel.getPosition(annotation);
-						if (handled == null || p.overlapsWith(handled.getOffset(), handled.getLength())
-								|| isCleared(p)) {
-							toRemove.add(annotation);
-						}
+				if (!fAdopted) {
+					fOwned.addAll(fAnnotationModel, SugarCubeMacroAnnotation.TYPE);
+					fAdopted= true;
+				}
+				if (handled == null) {
+					for (Annotation a : fOwned.removeAll()) {
+						if (fAnnotationModel.getPosition(a) != null) toRemove.add(a);
+					}
+				} else {
+					removeOwned(handled, toRemove);
+					for (IRegion r : fRemoveAnnotations) {
+						removeOwned(r, toRemove);
 					}
 				}
-				Annotation[] annotationsToRemove= toRemove.toArray(new Annotation[toRemove.size()]);
-
-				if (fAnnotationModel instanceof IAnnotationModelExtension)
+				// problems found again are left alone, so that an edit that changes nothing repaints nothing
+				fOwned.keepUnchanged(fAnnotationModel, toRemove, fAddAnnotations);
+				annotationsToRemove= toRemove.toArray(new Annotation[toRemove.size()]);
+				ReconcileMetrics.getDefault().recordAnnotations(fDocument, SugarCubeMacroChecker.this, fAddAnnotations.size(), annotationsToRemove.length);
+
+				if (annotationsToRemove.length == 0 && fAddAnnotations.isEmpty()) {
+					// nothing changed: the model isn't told
+				} else if (fAnnotationModel instanceof IAnnotationModelExtension) {
 					((IAnnotationModelExtension)fAnnotationModel).replaceAnnotations(annotationsToRemove, fAddAnnotations);
-				else {
+				} else {
 					for (Annotation element : annotationsToRemove) {
 						fAnnotationModel.removeAnnotation(element);
 					}
@@ -119,8 +161,18 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 						fAnnotationModel.addAnnotation(entry.getKey(), entry.getValue());
 					}
 				}
+				for (Entry<Annotation, Position> entry : fAddAnnotations.entrySet()) {
+					fOwned.add(entry.getKey(), entry.getValue());
+				}
 			}
 
+			if (fEvent != null) {
+				int length= fDocument.getLength();
+				fEvent.commit(ReconcileMetrics.getName(SugarCubeMacroChecker.this), length,
+						handled == null ? 0 : handled.getOffset(), handled == null ? length : handled.getLength(),
+						fAddAnnotations.size(), annotationsToRemove.length);
+				fEvent= null;
+			}
 			fAddAnnotations= null;
 			fRemoveAnnotations.clear();
 		}
@@ -128,15 +180,18 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 	}
 
 
-	/** Text content type */
-	private static final IContentType TEXT_CONTENT_TYPE= Platform.getContentTypeManager().getContentType(IContentTypeManager.CT_TEXT);
-
 	/** The text editor to operate on. */
 	private ISourceViewer fViewer;
 
 	/** The document to operate on. */
 	private IDocument fDocument;
 
+	/** The text being checked, taken at the start of each pass. */
+	private DocumentSnapshot fSnapshot;
+
+	/** The syntax tree, taken when first needed in each pass (by any of its threads). */
+	private volatile SyntaxTree fTree;
+
 	/** The progress monitor. */
 	private IProgressMonitor fProgressMonitor;
 
@@ -154,41 +209,42 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 
 	@Override
 	public void initialReconcile() {
-		initialReconcile(TweePartitionScanner.SC_MACRO);
+		ITypedRegion[] regions;
+		try {
+			regions = TextUtilities.computePartitioning(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, 0, fDocument.getLength(), false);
+		} catch (BadLocationException e) {
+			return;
+		}
+		initialReconcile(TweePartitionScanner.SC_MACRO, regions);
+	}
+
+	/**
+	 * Return whether macro calls are to be checked.
+	 * Outside the workbench (where the plugin isn't started) they always are.
+	 */
+	protected boolean isEnabled() {
+		return !Activator.isStarted() || Activator.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.P_MACROCHECK);
 	}
 
 	@Override
-	public void initialReconcile(String contentType) {
-		if (!Activator.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.P_MACROCHECK))
-			return;
+	public int initialReconcile(String contentType, ITypedRegion[] regions) {
+		if (!isEnabled())
+			return -1;
 		if (fProgressMonitor != null) {
-			fProgressMonitor.beginTask("Checking Macro Calls", 13);
+			fProgressMonitor.beginTask("Checking Macro Calls", 12);
 		}
+		ReconcileProgress progress = new ReconcileProgress(fProgressMonitor, regions.length, 10);
 		try {
 			MacroDictionary.getInstance();
 			if (fProgressMonitor != null) {
 				fProgressMonitor.worked(1);
 			}
-
-			ITypedRegion[] regions;
-			try {
-				regions = TextUtilities.computePartitioning(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, 0, fDocument.getLength(), false);
-			} catch (BadLocationException e) {
-				return;
-			}
-			if (fProgressMonitor != null) {
-				fProgressMonitor.worked(1);
-			}
 			fCollector.beforeCollecting();
+			fSnapshot = DocumentSnapshot.of(fDocument);
+			fTree = DocumentSyntax.of(fDocument).getTree();
 
-			int segment = regions.length / 10;
-			int count = 0;
 			for (ITypedRegion r : regions) {
-				if (count++ == segment) {
-					if (fProgressMonitor != null) {
-						fProgressMonitor.worked(1);
-					}
-				}
+				if (!progress.next(r)) break;
 				if (contentType.equals(r.getType())) {
 					check(r);
 				}
@@ -197,49 +253,72 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 				fProgressMonitor.worked(1);
 			}
 		} finally {
-			fCollector.afterCollecting(null);
+			int checkpoint = progress.getCheckpoint();
+			fCollector.afterCollecting(checkpoint < 0 ? null : new Region(0, checkpoint));
+			fSnapshot = null;
+			fTree = null;
 			if (fProgressMonitor != null) fProgressMonitor.done();
 		}
+		return progress.getCheckpoint();
 	}
 
 	@Override
 	public void beforeReconcile(DirtyRegion reg) {
+		// (the tree is taken when first needed: the reconciler calls this with the document locked)
 		fCollector.beforeCollecting();	
+		fSnapshot = DocumentSnapshot.of(fDocument);
 	}
 
 	@Override
 	public void afterReconcile(DirtyRegion reg) {
 		fCollector.afterCollecting(reg);
+		fSnapshot = null;
+		fTree = null;
 	}
 
 	@Override
-	public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {		
-		try {
-			ITypedRegion tr = TextUtilities.getPartition(fDocument, IDocumentExtension3.DEFAULT_PARTITIONING, subRegion.getOffset(), false);
-			subRegion = tr;
-			// System.out.println("  in reconcile, changed subregion to " + fDocument.get(tr.getOffset(),tr.getLength()));
-		} catch (BadLocationException e) {
-			// muffle
-		}
+	public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {
+		// the reconciler gives the whole partition, of the version of the snapshot
 		reconcile(subRegion);
 	}
 
 	@Override
 	public void reconcile(IRegion region) {
-		if (!Activator.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.P_MACROCHECK) 
-				|| getAnnotationModel() == null || fCollector == null) {
+		if (!isEnabled() || getAnnotationModel() == null || fCollector == null) {
 			return;
 		}
 		if (fProgressMonitor != null && fProgressMonitor.isCanceled()) return;
 		check(region);
 	}
 
+	@Override
+	public int reconcileChunk(ITypedRegion[] partitions) {
+		if (!isEnabled() || getAnnotationModel() == null || fCollector == null) {
+			return -1;
+		}
+		ReconcileProgress progress = new ReconcileProgress(fProgressMonitor, partitions.length, 0);
+		for (ITypedRegion r : partitions) {
+			if (!progress.next(r)) break;
+			check(r);
+		}
+		return progress.getCheckpoint();
+	}
+
 	protected void check(IRegion tr) {
 		try {
 			int length = tr.getLength();
 			if (length >= 4) {
 				MacroDictionary md = MacroDictionary.getInstance();
-				String problem = md.check(fDocument.get(tr.getOffset()+2,length-4));
+				if (fSnapshot == null) fSnapshot = DocumentSnapshot.of(fDocument);
+				if (fTree == null) fTree = DocumentSyntax.of(fDocument).getTree();
+				// the tree is only used if it is of the version of the snapshot
+				SyntaxNode macro = fSnapshot.isOf(fTree.getText()) ? fTree.findNode(tr.getOffset(), length, Kind.MACRO) : null;
+				String problem;
+				if (macro != null) {
+					problem = check(md, macro, tr.getOffset());
+				} else {
+					problem = md.check(fSnapshot.get(tr.getOffset()+2,length-4));
+				}
 				if (problem != null) fCollector.accept(tr, problem);
 				else fCollector.clear(tr);
 			}
@@ -249,6 +328,23 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 		}
 	}
 	
+	/**
+	 * Check a macro call using its node in the syntax tree,
+	 * so that the call doesn't have to be lexed again.
+	 * @param md macro dictionary
+	 * @param macro node for the macro call
+	 * @param offset offset of the call in the document
+	 * @return problem, or null if none
+	 */
+	private String check(MacroDictionary md, SyntaxNode macro, int offset) {
+		int n = macro.indexOf(Kind.MACRO_NAME);
+		if (n < 0) return md.check("", "");
+		CharSequence name = fTree.getText(offset + macro.getChildOffset(n), macro.getChild(n).getLength());
+		int a = macro.indexOf(Kind.ARGUMENTS);
+		CharSequence arguments = a < 0 ? "" : fTree.getText(offset + macro.getChildOffset(a), macro.getChild(a).getLength());
+		return md.check(name, arguments);
+	}
+
 	/**
 	 * Returns the content type of the underlying editor input.
 	 *
@@ -256,7 +352,9 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 	 *         <code>null</code> if none could be determined
 	 */
 	protected IContentType getContentType() {
-		return TEXT_CONTENT_TYPE;
+		// (looked up when needed: there is no content type manager outside the workbench)
+		IContentTypeManager manager= Platform.getContentTypeManager();
+		return manager == null ? null : manager.getContentType(IContentTypeManager.CT_TEXT);
 	}
 
 	/**
@@ -270,6 +368,7 @@ public class SugarCubeMacroChecker implements IReconcilingStrategy, IReconciling
 
 	@Override
 	public void setDocument(IDocument document) {
+		if (fCollector != null) fCollector.dispose();
 		fDocument= document;
 		fCollector= createSugarCubeProblemCollector();
 	}
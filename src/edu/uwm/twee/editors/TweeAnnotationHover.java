@@ -4,6 +4,8 @@ import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.DefaultAnnotationHover;
 import org.eclipse.ui.texteditor.spelling.SpellingAnnotation;
 
+import edu.uwm.eclipse.util.SpellingReconcileStrategyFixed;
+
 public class TweeAnnotationHover extends DefaultAnnotationHover {
 
 	public TweeAnnotationHover() {}
@@ -12,7 +14,8 @@ public class TweeAnnotationHover extends DefaultAnnotationHover {
 	protected boolean isIncluded(Annotation annotation) {
 		String type = annotation.getType();
 		return SugarCubeMacroAnnotation.TYPE.equals(type) ||
-				SpellingAnnotation.TYPE.equals(type);
+				SpellingAnnotation.TYPE.equals(type) ||
+				SpellingReconcileStrategyFixed.SUMMARY_TYPE.equals(type);
 	}
 
 }
@@ -1,16 +1,19 @@
 package edu.uwm.twee.editors;
 
+import java.util.Collections;
+import java.util.Map;
+
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextDoubleClickStrategy;
 import org.eclipse.jface.text.ITextHover;
+import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.TextAttribute;
 import org.eclipse.jface.text.presentation.IPresentationReconciler;
-import org.eclipse.jface.text.presentation.PresentationReconciler;
 import org.eclipse.jface.text.reconciler.IReconciler;
 import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
-import org.eclipse.jface.text.reconciler.Reconciler;
 import org.eclipse.jface.text.rules.DefaultDamagerRepairer;
 import org.eclipse.jface.text.rules.Token;
+import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationHover;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.SourceViewerConfiguration;
@@ -22,6 +25,9 @@ import edu.uwm.eclipse.util.ColorManager;
 import edu.uwm.eclipse.util.NonRuleBasedDamagerRepairer;
 import edu.uwm.eclipse.util.ReconcilerFixed;
 import edu.uwm.eclipse.util.SpellingReconcileStrategyFixed;
+import edu.uwm.eclipse.util.ViewportPresentationReconciler;
+import edu.uwm.twee.Activator;
+import edu.uwm.twee.preferences.PreferenceConstants;
 
 public class TweeConfiguration extends SourceViewerConfiguration {
 	private XMLDoubleClickStrategy doubleClickStrategy;
@@ -30,9 +36,23 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 	private XMLScanner scanner;
 	private ColorManager colorManager;
 	private TWPassageScanner twPassageScanner;
+	private PassageTable<TweeOutline.PassageOutlineElement> passageTable;
+	private PassageReconcilingStrategy passageStrategy;
+	private ReconcilerFixed reconciler;
+	private SpellingReconcileStrategyFixed spellingStrategy;
+	private ViewportPresentationReconciler presentationReconciler;
+	private boolean skipInitialReconcile;
+	private IDocument restoredDocument;
+	private Map<Annotation, Position> restoredSpelling;
+	private boolean largeDocument;
 
 	public TweeConfiguration(ColorManager colorManager) {
+		this(colorManager, null);
+	}
+
+	public TweeConfiguration(ColorManager colorManager, PassageTable<TweeOutline.PassageOutlineElement> passageTable) {
 		this.colorManager = colorManager;
+		this.passageTable = passageTable;
 	}
 
 	@Override
@@ -42,6 +62,10 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 			TweePartitionScanner.XML_COMMENT,
 			TweePartitionScanner.JS_COMMENT,
 			TweePartitionScanner.TW_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT_PASSAGE,
+			TweePartitionScanner.TW_STYLESHEET_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT,
+			TweePartitionScanner.TW_STYLESHEET,
 			TweePartitionScanner.SC_HEADER,
 			TweePartitionScanner.SC_CODE,
 			TweePartitionScanner.SC_LINK,
@@ -101,18 +125,106 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 	@Override
 	public IReconciler getReconciler(ISourceViewer sourceViewer) {
 		SpellingService spellingService = EditorsUI.getSpellingService();
-		IReconcilingStrategy strategy = new SpellingReconcileStrategyFixed(sourceViewer, spellingService);
+		SpellingReconcileStrategyFixed strategy = new SpellingReconcileStrategyFixed(sourceViewer, spellingService);
+		strategy.setLimit(Activator.getDefault().getPreferenceStore().getInt(PreferenceConstants.P_SPELLING_LIMIT));
+		strategy.setTokenizer(new TweeSpellingTokenizer(passageTable));
+		spellingStrategy = strategy;
+		if (restoredSpelling != null) {
+			strategy.restore(restoredDocument, restoredSpelling);
+			restoredDocument = null;
+			restoredSpelling = null;
+		}
 		IReconcilingStrategy macroCheck = new SugarCubeMacroChecker(sourceViewer);
-		Reconciler reconciler = new ReconcilerFixed();
+		ReconcilerFixed reconciler = new ReconcilerFixed();
 		reconciler.setDocumentPartitioning(this.getConfiguredDocumentPartitioning(sourceViewer));
 		reconciler.setReconcilingStrategy(strategy, IDocument.DEFAULT_CONTENT_TYPE);
 		reconciler.setReconcilingStrategy(macroCheck, TweePartitionScanner.SC_MACRO);
+		if (passageTable != null) {
+			// the passage table is used by hovers and the spelling tokenizer, not just the outline
+			passageStrategy = new PassageReconcilingStrategy(passageTable);
+			for (String type : TweePartitionScanner.PASSAGE_HEADER_TYPES) {
+				reconciler.setReconcilingStrategy(passageStrategy, type);
+			}
+		}
+		// no strategies for TW_SCRIPT or TW_STYLESHEET: code is neither spell checked nor macro checked
+		// a chunk of the initial reconcile never splits a passage
+		reconciler.setChunkBoundaries(TweePartitionScanner.PASSAGE_HEADER_TYPES);
+		reconciler.setLimitedToViewport(largeDocument);
+		reconciler.setBackgroundName("Checking spelling, macros and passages");
+		if (skipInitialReconcile) {
+			reconciler.skipInitialProcess();
+			skipInitialReconcile = false;
+		}
+		this.reconciler = reconciler;
+		return reconciler;
+	}
+
+	/**
+	 * Have the reconciler (not yet created) skip its initial reconcile,
+	 * because its results have been restored.
+	 */
+	void skipInitialReconcile() {
+		if (reconciler == null) skipInitialReconcile = true;
+	}
+
+	/**
+	 * Give the spelling strategy (created now or later) problems restored for a document.
+	 */
+	void restoreSpelling(IDocument document, Map<Annotation, Position> problems) {
+		if (spellingStrategy != null) {
+			spellingStrategy.restore(document, problems);
+		} else {
+			restoredDocument = document;
+			restoredSpelling = problems;
+		}
+	}
+
+	/**
+	 * Set whether the document is edited in large-file mode,
+	 * in which only what is visible is presented and reconciled right away.
+	 */
+	void setLargeDocument(boolean large) {
+		largeDocument = large;
+		if (reconciler != null) reconciler.setLimitedToViewport(large);
+		if (presentationReconciler != null) presentationReconciler.setLimitedToViewport(large);
+	}
+
+	/**
+	 * Return the reconciler created for the viewer, if any.
+	 * The editor gives it priority while focused.
+	 */
+	ReconcilerFixed getInstalledReconciler() {
 		return reconciler;
 	}
 
+	/**
+	 * Return the strategy that keeps the passage table filled in, if any.
+	 */
+	PassageReconcilingStrategy getPassageStrategy() {
+		return passageStrategy;
+	}
+
+	/**
+	 * Return annotations for the spelling problems that are not in the annotation model
+	 * because the file has too many to annotate them all.
+	 */
+	Map<Annotation, Position> getUnshownAnnotations() {
+		if (spellingStrategy == null) return Collections.emptyMap();
+		return spellingStrategy.getUnshownAnnotations();
+	}
+
+	/**
+	 * Return whether the reconciler has reconciled every change.
+	 */
+	boolean isReconciled() {
+		return reconciler != null && reconciler.isReconciled();
+	}
+
 	@Override
 	public IPresentationReconciler getPresentationReconciler(ISourceViewer sourceViewer) {
-		PresentationReconciler reconciler = new PresentationReconciler();
+		ViewportPresentationReconciler reconciler = new ViewportPresentationReconciler();
+		reconciler.setLimitedToViewport(largeDocument);
+		presentationReconciler = reconciler;
 
 		DefaultDamagerRepairer dr = new DefaultDamagerRepairer(getXMLTagScanner());
 		reconciler.setDamager(dr, TweePartitionScanner.XML_TAG);
@@ -123,8 +235,10 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 		reconciler.setRepairer(dr, TweePartitionScanner.SC_MACRO);
 		
 		dr = new DefaultDamagerRepairer(getTWPassageScanner());
-		reconciler.setDamager(dr, TweePartitionScanner.TW_PASSAGE);
-		reconciler.setRepairer(dr, TweePartitionScanner.TW_PASSAGE);
+		for (String header : TweePartitionScanner.PASSAGE_HEADER_TYPES) {
+			reconciler.setDamager(dr, header);
+			reconciler.setRepairer(dr, header);
+		}
 		
 		dr = new DefaultDamagerRepairer(getXMLScanner());
 		reconciler.setDamager(dr, IDocument.DEFAULT_CONTENT_TYPE);
@@ -150,6 +264,14 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 		reconciler.setDamager(ndr, TweePartitionScanner.SC_LINK);
 		reconciler.setRepairer(ndr, TweePartitionScanner.SC_LINK);
 
+		// script and stylesheet passages are not analyzed, just shown as code
+		ndr = new NonRuleBasedDamagerRepairer(
+				new TextAttribute(colorManager.getColor(ITweeColorConstants.SC_CODE)));
+		reconciler.setDamager(ndr, TweePartitionScanner.TW_SCRIPT);
+		reconciler.setRepairer(ndr, TweePartitionScanner.TW_SCRIPT);
+		reconciler.setDamager(ndr, TweePartitionScanner.TW_STYLESHEET);
+		reconciler.setRepairer(ndr, TweePartitionScanner.TW_STYLESHEET);
+
 		ndr = new NonRuleBasedDamagerRepairer(
 				new TextAttribute(null, null, SWT.BOLD));
 		reconciler.setDamager(ndr, TweePartitionScanner.SC_HEADER);
@@ -160,7 +282,7 @@ public class TweeConfiguration extends SourceViewerConfiguration {
 
 	@Override
 	public ITextHover getTextHover(ISourceViewer sourceViewer, String contentType) {
-		return new TweeTextHover(sourceViewer);
+		return new TweeTextHover(sourceViewer, passageTable);
 	}
 
 	@Override
@@ -1,30 +1,235 @@
 package edu.uwm.twee.editors;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentPartitioner;
 import org.eclipse.jface.text.rules.FastPartitioner;
+import org.eclipse.text.undo.DocumentUndoManagerRegistry;
+import org.eclipse.text.undo.IDocumentUndoManager;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.IFileEditorInput;
 import org.eclipse.ui.editors.text.FileDocumentProvider;
 
+import edu.uwm.eclipse.util.LineDiff;
+import edu.uwm.eclipse.util.MappedTextReader;
+import edu.uwm.eclipse.util.RopeDocument;
+import edu.uwm.twee.Activator;
+import edu.uwm.twee.preferences.PreferenceConstants;
+
 public class TweeDocumentProvider extends FileDocumentProvider {
 
+	/** The content types of the partitions of Twee documents. */
+	public static final String[] CONTENT_TYPES = {
+			TweePartitionScanner.XML_TAG,
+			TweePartitionScanner.SC_MACRO,
+			TweePartitionScanner.SC_LINK,
+			TweePartitionScanner.SC_CODE,
+			TweePartitionScanner.SC_HEADER,
+			TweePartitionScanner.TW_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT_PASSAGE,
+			TweePartitionScanner.TW_STYLESHEET_PASSAGE,
+			TweePartitionScanner.TW_SCRIPT,
+			TweePartitionScanner.TW_STYLESHEET,
+			TweePartitionScanner.JS_COMMENT,
+			TweePartitionScanner.XML_COMMENT };
+
+	/**
+	 * Most lines that may differ when a changed file is reloaded
+	 * before the changed part is replaced as a whole.
+	 */
+	private static final int MAX_RELOAD_DIFF_LINES = 2000;
+
+	/** Caches found for documents being opened, until the editor takes them. */
+	private final Map<Object, WarmStartCache> fWarmStarts = new HashMap<>();
+
+	/** Elements whose files were large enough to be read in large-file mode. */
+	private final Set<Object> fLargeElements = new HashSet<>();
+
+	/**
+	 * Twee documents keep their text in a rope, so that
+	 * reconciling strategies can work on snapshots.
+	 */
+	@Override
+	protected IDocument createEmptyDocument() {
+		return new RopeDocument();
+	}
+
+	/**
+	 * Files at least as large as the threshold in the preferences
+	 * are mapped into memory and decoded a window at a time,
+	 * and their editors work in large-file mode.
+	 */
+	@Override
+	protected boolean setDocumentContent(IDocument document, IEditorInput editorInput, String encoding) throws CoreException {
+		File file = getLargeFile(editorInput);
+		if (file == null) {
+			fLargeElements.remove(editorInput);
+			return super.setDocumentContent(document, editorInput, encoding);
+		}
+		if (encoding == null) encoding = getDefaultEncoding();
+		try {
+			document.set(MappedTextReader.read(file.toPath(), Charset.forName(encoding)));
+		} catch (IOException | IllegalArgumentException e) {
+			throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID, IStatus.OK,
+					"Cannot read " + file + ": " + e.getMessage(), e));
+		}
+		fLargeElements.add(editorInput);
+		return true;
+	}
+
+	/**
+	 * Return the local file for the input if it is large enough for large-file mode.
+	 * Files that are out of sync with the workspace are left to the usual reading,
+	 * which reports the problem.
+	 */
+	private static File getLargeFile(IEditorInput editorInput) {
+		if (!(editorInput instanceof IFileEditorInput)) return null;
+		long threshold = Activator.getDefault().getPreferenceStore().getInt(PreferenceConstants.P_LARGE_FILE_THRESHOLD) * 1024L * 1024L;
+		if (threshold <= 0) return null;
+		IFile file = ((IFileEditorInput)editorInput).getFile();
+		IPath location = file.getLocation();
+		if (location == null || !file.isSynchronized(IResource.DEPTH_ZERO)) return null;
+		File result = location.toFile();
+		return result.length() >= threshold ? result : null;
+	}
+
+	/**
+	 * Return whether the given element's file was large enough to be read in large-file mode.
+	 * In that mode, its editor does not wrap lines and only presents and reconciles
+	 * what is visible, leaving the rest to the background.
+	 * @param element element whose document was created by this provider
+	 * @return whether the element is a large file
+	 */
+	boolean isLargeFile(Object element) {
+		return fLargeElements.contains(element);
+	}
+
+	@Override
+	protected void disposeElementInfo(Object element, ElementInfo info) {
+		fLargeElements.remove(element);
+		super.disposeElementInfo(element, info);
+	}
+
 	@Override
 	protected IDocument createDocument(Object element) throws CoreException {
 		IDocument document = super.createDocument(element);
 		if (document != null) {
-			IDocumentPartitioner partitioner = new FastPartitioner(new TweePartitionScanner(),
-					new String[] { 
-							TweePartitionScanner.XML_TAG, 
-							TweePartitionScanner.SC_MACRO, 
-							TweePartitionScanner.SC_LINK,
-							TweePartitionScanner.SC_CODE,
-							TweePartitionScanner.SC_HEADER,
-							TweePartitionScanner.TW_PASSAGE,
-							TweePartitionScanner.JS_COMMENT,
-							TweePartitionScanner.XML_COMMENT });
-			partitioner.connect(document);
-			document.setDocumentPartitioner(partitioner);
+			boolean bounded = Activator.getDefault().getPreferenceStore().getBoolean(PreferenceConstants.P_PASSAGE_BOUNDED);
+			TweePartitionScanner scanner = new TweePartitionScanner(bounded, true);
+			WarmStartCache cache = WarmStartCache.load(WarmStartCache.key(WarmStartCache.getText(document), WarmStartCache.getSettings()));
+			if (cache != null && cache.getLength() == document.getLength()) {
+				scanner.replay(cache.getPartitions(), document.getLength());
+				fWarmStarts.put(element, cache);
+			}
+			connectPartitioner(document, scanner);
 		}
 		return document;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * When the file is changed outside the editor, only the lines that changed
+	 * are replaced in the document, rather than all its text.
+	 * Unchanged passages keep their partitions, annotations and outline entries,
+	 * and the reconciler only has the changed passages to reconcile.
+	 * Otherwise this does what {@link FileDocumentProvider} does.
+	 */
+	@Override
+	protected void handleElementContentChanged(IFileEditorInput fileEditorInput) {
+		FileInfo info = (FileInfo) getElementInfo(fileEditorInput);
+		if (info == null) return;
+
+		IDocument document = createEmptyDocument();
+		IStatus status = null;
+		try {
+			try {
+				refreshFile(fileEditorInput.getFile());
+			} catch (CoreException x) {
+				handleCoreException(x, "TweeDocumentProvider.handleElementContentChanged");
+			}
+			cacheEncodingState(fileEditorInput);
+			setDocumentContent(document, fileEditorInput, info.fEncoding);
+		} catch (CoreException x) {
+			status = x.getStatus();
+		}
+
+		String newContent = document.get();
+		String oldContent = info.fDocument.get();
+		if (!newContent.equals(oldContent)) {
+			fireElementContentAboutToBeReplaced(fileEditorInput);
+			removeUnchangedElementListeners(fileEditorInput, info);
+			info.fDocument.removeDocumentListener(info);
+			replaceChangedLines(info.fDocument, oldContent, newContent);
+			info.fCanBeSaved = false;
+			info.fModificationStamp = computeModificationStamp(fileEditorInput.getFile());
+			info.fStatus = status;
+			addUnchangedElementListeners(fileEditorInput, info);
+			fireElementContentReplaced(fileEditorInput);
+		} else {
+			removeUnchangedElementListeners(fileEditorInput, info);
+			info.fCanBeSaved = false;
+			info.fModificationStamp = computeModificationStamp(fileEditorInput.getFile());
+			info.fStatus = status;
+			addUnchangedElementListeners(fileEditorInput, info);
+			fireElementDirtyStateChanged(fileEditorInput, false);
+		}
+	}
+
+	/**
+	 * Change the text of a document by replacing only the lines that differ,
+	 * as one change that can be undone.
+	 * @param document document to change
+	 * @param oldContent text of the document
+	 * @param newContent text it should have
+	 */
+	private static void replaceChangedLines(IDocument document, String oldContent, String newContent) {
+		IDocumentUndoManager undoManager = DocumentUndoManagerRegistry.getDocumentUndoManager(document);
+		if (undoManager != null) undoManager.beginCompoundChange();
+		try {
+			LineDiff.apply(document, LineDiff.compute(oldContent, newContent, MAX_RELOAD_DIFF_LINES));
+		} catch (BadLocationException e) {
+			// the document changed under us: fall back to replacing everything
+			document.set(newContent);
+		} finally {
+			if (undoManager != null) undoManager.endCompoundChange();
+		}
+	}
+
+	/**
+	 * Partition a document as the editor does, with a partitioner
+	 * that uses the given scanner.  This needs no workbench, so that
+	 * documents can be set up the same way outside the editor (as in the benchmarks).
+	 * @param document document to partition
+	 * @param scanner scanner for the partitioner to use
+	 * @return the partitioner, connected to the document
+	 */
+	public static IDocumentPartitioner connectPartitioner(IDocument document, TweePartitionScanner scanner) {
+		IDocumentPartitioner partitioner = new FastPartitioner(scanner, CONTENT_TYPES);
+		partitioner.connect(document);
+		document.setDocumentPartitioner(partitioner);
+		return partitioner;
+	}
+
+	/**
+	 * Return the results saved when the given element was last closed,
+	 * if its text hasn't changed since.  The partitions have already been used.
+	 * @param element element whose document was created by this provider
+	 * @return saved results, or null if none
+	 */
+	WarmStartCache takeWarmStart(Object element) {
+		return fWarmStarts.remove(element);
+	}
+}
@@ -1,23 +1,37 @@
 package edu.uwm.twee.editors;
 
+import java.util.Map;
+
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.IAnnotationModel;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.editors.text.TextEditor;
+import org.eclipse.ui.texteditor.IDocumentProvider;
 import org.eclipse.ui.views.contentoutline.IContentOutlinePage;
 
 import edu.uwm.eclipse.util.ColorManager;
+import edu.uwm.eclipse.util.ReconcileMetrics;
+import edu.uwm.eclipse.util.ReconcileScheduler;
+import edu.uwm.eclipse.util.ReconcilerFixed;
 
 public class TweeEditor extends TextEditor {
 
 	private ColorManager colorManager;
   private TweeOutline fOutlinePage;
+  private final PassageTable<TweeOutline.PassageOutlineElement> fPassageTable = new PassageTable<>(TweeOutline.PassageOutlineElement::getName);
+  /** Modification stamp of the document when passages were restored from a cache. */
+  private long fRestoredPassagesStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
 
 	public TweeEditor() {
 		super();
 		colorManager = new ColorManager();
-		setSourceViewerConfiguration(new TweeConfiguration(colorManager));
+		setSourceViewerConfiguration(new TweeConfiguration(colorManager, fPassageTable));
 		setDocumentProvider(new TweeDocumentProvider());
 	}
 	
@@ -44,12 +58,100 @@ public class TweeEditor extends TextEditor {
     return super.getAdapter(adapter);
   }
 
+  /**
+   * Return the table of passages in the document, 
+   * filled in by the reconciler.
+   * @return passage table, never null
+   */
+  PassageTable<TweeOutline.PassageOutlineElement> getPassageTable() {
+    return fPassageTable;
+  }
+
+  /**
+   * Return whether the passage table was restored from a cache
+   * and the document hasn't changed since.
+   */
+  boolean hasRestoredPassages() {
+    IDocumentProvider provider = getDocumentProvider();
+    IDocument document = provider == null || getEditorInput() == null ? null : provider.getDocument(getEditorInput());
+    return document instanceof IDocumentExtension4 &&
+        fRestoredPassagesStamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP &&
+        ((IDocumentExtension4)document).getModificationStamp() == fRestoredPassagesStamp;
+  }
+
+  /**
+   * Return whether the document is so large that it is edited in large-file mode:
+   * lines are not wrapped, and only the visible passages are presented and
+   * reconciled right away.
+   * @see TweeDocumentProvider#isLargeFile(Object)
+   */
+  boolean isLargeFile() {
+    IDocumentProvider provider = getDocumentProvider();
+    return provider instanceof TweeDocumentProvider && getEditorInput() != null &&
+        ((TweeDocumentProvider)provider).isLargeFile(getEditorInput());
+  }
+
+  /**
+   * Return the strategy of the reconciler that fills in the passage table,
+   * which the outline listens to.
+   * @return strategy, or null if the viewer has no reconciler yet
+   */
+  PassageReconcilingStrategy getPassageStrategy() {
+    return ((TweeConfiguration)getSourceViewerConfiguration()).getPassageStrategy();
+  }
+
+  /**
+   * Return the reconciler that checks the document.
+   * @return reconciler, or null if the viewer has none yet
+   */
+  ReconcilerFixed getReconciler() {
+    return ((TweeConfiguration)getSourceViewerConfiguration()).getInstalledReconciler();
+  }
+
   @Override
   protected void doSetInput(IEditorInput input) throws CoreException {
     super.doSetInput(input);
+    IDocumentProvider provider = getDocumentProvider();
+    IDocument document = input == null ? null : provider.getDocument(input);
+    boolean large = isLargeFile();
+    ((TweeConfiguration)getSourceViewerConfiguration()).setLargeDocument(large);
+    // for the first input, getInitialWordWrapStatus() is used instead
+    if (large && getSourceViewer() != null && isWordWrapEnabled()) setWordWrap(false);
+    fPassageTable.setDocument(document);
+    if (document != null) ReconcileMetrics.getDefault().setName(document, input.getName());
+    fRestoredPassagesStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+    if (document != null && provider instanceof TweeDocumentProvider) {
+      WarmStartCache cache = ((TweeDocumentProvider)provider).takeWarmStart(input);
+      if (cache != null) {
+        if (cache.restore(document, provider.getAnnotationModel(input), fPassageTable) &&
+            document instanceof IDocumentExtension4) {
+          fRestoredPassagesStamp = ((IDocumentExtension4)document).getModificationStamp();
+        }
+        ((TweeConfiguration)getSourceViewerConfiguration()).restoreSpelling(document, cache.getSpellingAnnotations(document));
+        ((TweeConfiguration)getSourceViewerConfiguration()).skipInitialReconcile();
+      }
+    }
     if (fOutlinePage != null) fOutlinePage.setInput(input);
   }
 
+  /**
+   * Save the results of reconciling, if they are for the saved file
+   * and are up to date, so that reopening the file can use them.
+   */
+  private void saveWarmStart() {
+    IEditorInput input = getEditorInput();
+    IDocumentProvider provider = getDocumentProvider();
+    if (input == null || provider == null || isDirty()) return;
+    if (!((TweeConfiguration)getSourceViewerConfiguration()).isReconciled()) return;
+    IDocument document = provider.getDocument(input);
+    IAnnotationModel model = provider.getAnnotationModel(input);
+    if (document == null || model == null) return;
+    // the reconciler keeps the passage table up to date
+    Map<Annotation, Position> unshown = ((TweeConfiguration)getSourceViewerConfiguration()).getUnshownAnnotations();
+    WarmStartCache cache = WarmStartCache.capture(document, model, unshown, fPassageTable);
+    cache.saveInBackground(WarmStartCache.getText(document), WarmStartCache.getSettings());
+  }
+
   /**
    * Return the cursor position as an offset within the document.
    * (Why isn't this standard?)
@@ -62,6 +164,14 @@ public class TweeEditor extends TextEditor {
     return widgetOffset2ModelOffset(sourceViewer, styledText.getCaretOffset());
   }
   
+  @Override
+  public void setFocus() {
+    super.setFocus();
+    // the active editor's reconciling comes before that of other editors
+    ReconcilerFixed reconciler = getReconciler();
+    if (reconciler != null) ReconcileScheduler.getDefault().setFocused(reconciler);
+  }
+
   @Override
   protected void handleCursorPositionChanged() {
     super.handleCursorPositionChanged();
@@ -73,7 +183,8 @@ public class TweeEditor extends TextEditor {
 
   @Override
 	protected boolean getInitialWordWrapStatus() {
-		return true;
+		// wrapping lines means measuring every one of them
+		return !isLargeFile();
 	}
 
 	@Override
@@ -83,11 +194,13 @@ public class TweeEditor extends TextEditor {
 
 	@Override
 	public void dispose() {
+		saveWarmStart();
 		colorManager.dispose();
 		if (fOutlinePage != null) {
 		  fOutlinePage.dispose();
 		  fOutlinePage = null;
 		}
+		fPassageTable.setDocument(null);
 		super.dispose();
 	}
 
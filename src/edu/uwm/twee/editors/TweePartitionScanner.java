@@ -1,14 +1,54 @@
 package edu.uwm.twee.editors;
 
-import org.eclipse.jface.text.rules.IPredicateRule;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.rules.IPartitionTokenScanner;
 import org.eclipse.jface.text.rules.IToken;
-import org.eclipse.jface.text.rules.MultiLineRule;
-import org.eclipse.jface.text.rules.RuleBasedPartitionScanner;
 import org.eclipse.jface.text.rules.Token;
 
-import edu.uwm.eclipse.util.WholeLineRule;
+import edu.uwm.eclipse.util.FlightRecorderEvents;
 
-public class TweePartitionScanner extends RuleBasedPartitionScanner {
+/**
+ * Partition scanner for Twee documents.
+ * This scanner used to be a chain of predicate rules
+ * (MultiLineRule for <code>&lt;!--</code>, <code>{{{</code>, <code>[[</code>
+ * and <code>/*</code>, WholeLineRule for <code>::</code>, TagRule and SCTagRule)
+ * which were all tried at every character.  Now it dispatches on the current
+ * character through a table and recognizes every partition in one forward pass.
+ * <p>
+ * The partitions produced are exactly those the rule chain produced,
+ * including its quirks: an unterminated construct is not a partition,
+ * the characters of its start sequence are skipped, and a <code>&lt;</code>
+ * that does not find a <code>&gt;</code> also skips the character after it.
+ * Text that is not in any partition is skipped rather than returned
+ * a character at a time as default tokens.
+ * Searches for the end of a construct remember their results,
+ * so that many unterminated starts do not each scan to the end of the range.
+ * <p>
+ * In passage-bounded mode, a passage header (<code>::</code> in column 0)
+ * always starts a new partition: no other construct extends past it.
+ * An unterminated construct (common while typing) is then looked for only
+ * to the end of its passage, and since the partitions of later passages
+ * are unaffected, the partitioner stops rescanning at the next passage header.
+ * <p>
+ * If code passages are recognized, the body of a passage tagged
+ * <code>script</code> or <code>stylesheet</code> is a single partition
+ * (of type {@link #TW_SCRIPT} or {@link #TW_STYLESHEET})
+ * running to the next passage header, in which no other constructs are recognized.
+ * The headers of these passages have their own types too
+ * ({@link #TW_SCRIPT_PASSAGE} and {@link #TW_STYLESHEET_PASSAGE}) so that
+ * changing a tag always changes the type of the header, which makes
+ * the partitioner rescan the body.
+ * <p>
+ * Partitions remembered from an earlier session can be given to
+ * {@link #replay(ITypedRegion[], int)}, in which case the first full scan
+ * of the document returns them instead of scanning.
+ * <p>
+ * Each scan is a {@link #PARTITIONING} event for the flight recorder.
+ */
+public class TweePartitionScanner implements IPartitionTokenScanner {
 	public final static String XML_COMMENT = "__xml_comment";
 	public final static String XML_TAG = "__xml_tag";
 	public final static String SC_MACRO = "__sc_tag";
@@ -17,29 +57,657 @@ public class TweePartitionScanner extends RuleBasedPartitionScanner {
 	public final static String SC_HEADER = "__sc_header"; // no longer used
 	public final static String TW_PASSAGE = "__tw_passage";
 	public final static String JS_COMMENT = "__js_comment";
+	public final static String TW_SCRIPT_PASSAGE = "__tw_script_passage";
+	public final static String TW_STYLESHEET_PASSAGE = "__tw_stylesheet_passage";
+	public final static String TW_SCRIPT = "__tw_script";
+	public final static String TW_STYLESHEET = "__tw_stylesheet";
 
+	/** The content types for passage headers. */
+	public final static String[] PASSAGE_HEADER_TYPES = { TW_PASSAGE, TW_SCRIPT_PASSAGE, TW_STYLESHEET_PASSAGE };
+
+	/**
+	 * Return whether partitions of the given type are passage headers.
+	 */
+	public static boolean isPassageHeader(String contentType) {
+		return TW_PASSAGE.equals(contentType) || TW_SCRIPT_PASSAGE.equals(contentType) || TW_STYLESHEET_PASSAGE.equals(contentType);
+	}
+
+	// kinds of partition, in the order the rules used to be tried
+	private static final int NONE = -1;
+	private static final int XML_COMMENT_KIND = 0;
+	private static final int SC_CODE_KIND = 1;
+	private static final int SC_LINK_KIND = 2;
+	private static final int JS_COMMENT_KIND = 3;
+	private static final int TW_PASSAGE_KIND = 4;
+	private static final int XML_TAG_KIND = 5;
+	private static final int SC_MACRO_KIND = 6;
+	private static final int NUM_KINDS = 7;
+
+	private static final String[] CONTENT_TYPES = {
+			XML_COMMENT, SC_CODE, SC_LINK, JS_COMMENT, TW_PASSAGE, XML_TAG, SC_MACRO
+	};
+
+	/** End sequences, indexed by kind.  Passage headers end at a line end instead. */
+	private static final char[][] END_SEQUENCES = {
+			"-->".toCharArray(), "}}}".toCharArray(), "]]".toCharArray(), "*/".toCharArray(),
+			null, ">".toCharArray(), ">>".toCharArray()
+	};
+
+	/** The escape character the pattern rules were (implicitly) given. */
+	private static final char ESCAPE = '\0';
+
+	/** Characters that may start a partition map to true; all others are skipped. */
+	private static final boolean[] DISPATCH = new boolean[128];
+	static {
+		DISPATCH['<'] = true;
+		DISPATCH['{'] = true;
+		DISPATCH['['] = true;
+		DISPATCH['/'] = true;
+		DISPATCH[':'] = true;
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Flight recorder event for a scan, from setting the range until the last partition
+	 * is returned.  The partitioner may stop before the end of the range,
+	 * in which case the event is committed when the next scan begins.
+	 * The source is "scan" or "replay".
+	 */
+	public static final FlightRecorderEvents.Type PARTITIONING = new FlightRecorderEvents.Type(
+			"edu.uwm.twee.Partitioning", "Partitioning", "A scan of a Twee document for partitions", "partitions");
+
+	private final IToken[] fTokens = new IToken[NUM_KINDS];
+	private final IToken fScriptToken = new Token(TW_SCRIPT);
+	private final IToken fStylesheetToken = new Token(TW_STYLESHEET);
+	private final IToken fScriptHeaderToken = new Token(TW_SCRIPT_PASSAGE);
+	private final IToken fStylesheetHeaderToken = new Token(TW_STYLESHEET_PASSAGE);
+	private final boolean fPassageBounded;
+	private final boolean fCodePassages;
+
+	/** Token for the body of the passage whose header was just returned, or null. */
+	private IToken fBodyToken;
+
+	private IDocument fDocument;
+	private int fRangeEnd;
+	private int fOffset;
+	private int fTokenOffset;
+	private int fTokenLength;
+
+	/** Content type of the partition being resumed, or null. */
+	private String fContentType;
+	private int fPartitionOffset;
+
+	/** Flight recorder event for the current scan, or null if not recording. */
+	private FlightRecorderEvents.Event fEvent;
+	private int fEventOffset, fEventLength, fEventPartitions;
+
+	private final char[] fBuffer = new char[BUFFER_SIZE];
+	private int fBufferStart, fBufferEnd;
+
+	/** Result of a match: where the partition ends, or where scanning resumes after a failure. */
+	private int fMatchEnd;
+	private int fSkipTo;
+
+	// Remembered end searches, indexed by kind:
+	// there is no end sequence in [fSearchFrom,fSearchResult) and
+	// fSearchResult is either the first occurrence, or -1 if there is none before fSearchLimit.
+	private final int[] fSearchFrom = new int[NUM_KINDS];
+	private final int[] fSearchLimit = new int[NUM_KINDS];
+	private final int[] fSearchResult = new int[NUM_KINDS];
+
+	/** Partitions to return for the next full scan, or null. */
+	private ITypedRegion[] fReplay;
+	private int fReplayLength;
+	/** Index of the next partition to return, or -1 if not replaying. */
+	private int fReplayIndex = -1;
+
+	/**
+	 * Create a scanner whose partitions are exactly those of the old rule chain.
+	 */
 	public TweePartitionScanner() {
+		this(false, false);
+	}
+
+	/**
+	 * Create a partition scanner that doesn't recognize code passages.
+	 * @param passageBounded whether constructs are limited to the passage they start in
+	 */
+	public TweePartitionScanner(boolean passageBounded) {
+		this(passageBounded, false);
+	}
+
+	/**
+	 * Create a partition scanner.
+	 * @param passageBounded whether constructs are limited to the passage they start in
+	 * @param codePassages whether the bodies of script and stylesheet passages are partitions
+	 */
+	public TweePartitionScanner(boolean passageBounded, boolean codePassages) {
+		fPassageBounded = passageBounded;
+		fCodePassages = codePassages;
+		for (int i=0; i < NUM_KINDS; ++i) {
+			fTokens[i] = new Token(CONTENT_TYPES[i]);
+		}
+	}
+
+	/**
+	 * Give the partitions to return for the next scan of a whole document
+	 * of the given length, instead of scanning it.  The caller is responsible
+	 * for knowing that they are the partitions this scanner would produce.
+	 * Any other scan cancels the replay.
+	 * @param partitions partitions in document order (default partitions are ignored)
+	 * @param documentLength length of the document they are for
+	 */
+	public void replay(ITypedRegion[] partitions, int documentLength) {
+		fReplay = partitions;
+		fReplayLength = documentLength;
+	}
+
+	@Override
+	public void setRange(IDocument document, int offset, int length) {
+		setPartialRange(document, offset, length, null, -1);
+	}
+
+	@Override
+	public void setPartialRange(IDocument document, int offset, int length, String contentType, int partitionOffset) {
+		if (fEvent != null) commitEvent();
+		fEvent = PARTITIONING.begin();
+		fEventOffset = offset;
+		fEventLength = length;
+		fEventPartitions = 0;
+		fDocument = document;
+		fOffset = offset;
+		fRangeEnd = offset + length;
+		fContentType = contentType;
+		fPartitionOffset = partitionOffset;
+		fBufferStart = fBufferEnd = 0;
+		for (int i=0; i < NUM_KINDS; ++i) {
+			fSearchFrom[i] = Integer.MAX_VALUE;
+		}
+		fHeaderFrom = Integer.MAX_VALUE;
+		fBodyToken = null;
+		fReplayIndex = -1;
+		if (fReplay != null) {
+			if (contentType == null && offset == 0 && length == fReplayLength && document.getLength() == length) {
+				fReplayIndex = 0;
+			} else {
+				fReplay = null;
+			}
+		}
+	}
+
+	@Override
+	public int getTokenOffset() {
+		return fTokenOffset;
+	}
+
+	@Override
+	public int getTokenLength() {
+		return fTokenLength;
+	}
+
+	@Override
+	public IToken nextToken() {
+		if (fEvent == null) return scanToken();
+		boolean replaying = fReplayIndex >= 0;
+		IToken t = scanToken();
+		if (t.isEOF()) {
+			commitEvent(replaying);
+		} else {
+			++fEventPartitions;
+			fEvent.end();
+		}
+		return t;
+	}
+
+	private void commitEvent() {
+		commitEvent(fReplayIndex >= 0);
+	}
+
+	private void commitEvent(boolean replaying) {
+		fEvent.commit(replaying ? "replay" : "scan", fDocument.getLength(), fEventOffset, fEventLength, fEventPartitions);
+		fEvent = null;
+	}
+
+	private IToken scanToken() {
+		if (fReplayIndex >= 0) return nextReplayedToken();
+		if (fBodyToken != null) {
+			IToken body = fBodyToken;
+			fBodyToken = null;
+			int end = nextHeader(fOffset);
+			if (end > fOffset) return bodyToken(body, fOffset, end);
+		}
+		if (fContentType != null) {
+			String contentType = fContentType;
+			fContentType = null;
+			IToken body = bodyTokenFor(contentType);
+			if (body == null && fCodePassages && fPartitionOffset == fOffset && fOffset > 0) {
+				// Resuming at the end of a partition: a header was just removed or
+				// a body has yet to start, so the text here may belong to a code passage.
+				// (If a header was removed, the body is continued in a new partition.)
+				body = enclosingBody(fOffset);
+			}
+			if (body != null && fPartitionOffset > -1) {
+				// A body always continues to the next header: a header may have been
+				// completed just before the change, but not earlier.
+				int end = nextHeader(Math.max(fPartitionOffset, fOffset - 1));
+				if (end > fPartitionOffset) return bodyToken(body, fPartitionOffset, end);
+				fOffset = fPartitionOffset;
+			}
+			boolean resume = fPartitionOffset > -1 && fPartitionOffset < fOffset;
+			int kind = kindOf(contentType);
+			if (kind != NONE) {
+				int start = resume ? fPartitionOffset : fOffset;
+				int k = resume ? resumeMatch(kind, start, fOffset) : match(kind, fOffset);
+				if (k != NONE) return token(k, start);
+				if (!resume) fOffset = fSkipTo - 1; // the rules continue where the rule stopped
+			}
+			if (resume) fOffset = fPartitionOffset;
+		}
+		int pos = fOffset;
+		while (pos < fRangeEnd) {
+			if (pos >= fBufferEnd || pos < fBufferStart) fill(pos);
+			char c = fBuffer[pos - fBufferStart];
+			if (c < DISPATCH.length && DISPATCH[c]) {
+				int k = match(NONE, pos);
+				if (k != NONE) return token(k, pos);
+				pos = fSkipTo;
+			} else {
+				++pos;
+			}
+		}
+		fOffset = pos;
+		fTokenOffset = fRangeEnd;
+		fTokenLength = 0;
+		return Token.EOF;
+	}
+
+	private IToken nextReplayedToken() {
+		while (fReplayIndex < fReplay.length) {
+			ITypedRegion r = fReplay[fReplayIndex++];
+			IToken t = tokenFor(r.getType());
+			if (t == null) continue;
+			fTokenOffset = r.getOffset();
+			fTokenLength = r.getLength();
+			fOffset = fTokenOffset + fTokenLength;
+			return t;
+		}
+		fReplay = null;
+		fReplayIndex = -1;
+		fOffset = fTokenOffset = fRangeEnd;
+		fTokenLength = 0;
+		return Token.EOF;
+	}
+
+	private IToken token(int kind, int start) {
+		fTokenOffset = start;
+		fTokenLength = fMatchEnd - start;
+		fOffset = fMatchEnd;
+		if (kind == TW_PASSAGE_KIND && fCodePassages) {
+			fBodyToken = bodyTokenFor(start, fMatchEnd);
+			if (fBodyToken == fScriptToken) return fScriptHeaderToken;
+			if (fBodyToken == fStylesheetToken) return fStylesheetHeaderToken;
+		}
+		return fTokens[kind];
+	}
+
+	/**
+	 * Return the token this scanner uses for the given content type, or null if none.
+	 */
+	private IToken tokenFor(String contentType) {
+		int kind = kindOf(contentType);
+		if (kind != NONE && CONTENT_TYPES[kind].equals(contentType)) return fTokens[kind];
+		if (!fCodePassages) return null;
+		if (TW_SCRIPT_PASSAGE.equals(contentType)) return fScriptHeaderToken;
+		if (TW_STYLESHEET_PASSAGE.equals(contentType)) return fStylesheetHeaderToken;
+		return bodyTokenFor(contentType);
+	}
+
+	private IToken bodyToken(IToken body, int start, int end) {
+		fTokenOffset = start;
+		fTokenLength = end - start;
+		fOffset = end;
+		return body;
+	}
+
+	private IToken bodyTokenFor(String contentType) {
+		if (!fCodePassages) return null;
+		if (TW_SCRIPT.equals(contentType)) return fScriptToken;
+		if (TW_STYLESHEET.equals(contentType)) return fStylesheetToken;
+		return null;
+	}
+
+	/**
+	 * Return the token for the body of a passage with the given header,
+	 * if it is tagged as a script or stylesheet.  The tags are found
+	 * in the same way as for the outline.
+	 * @param start start of the header
+	 * @param end end of the header
+	 * @return token for the body, or null if the body is not code
+	 */
+	private IToken bodyTokenFor(int start, int end) {
+		int e = start + 2;
+		while (e < end && charAt(e) != '[' && charAt(e) != '{') ++e;
+		if (e >= end || charAt(e) != '[') return null;
+		while (true) {
+			int t = e + 1;
+			while (t < end && charAt(t) == ' ') ++t;
+			e = t;
+			loop: while (e < end) {
+				switch (charAt(e)) {
+				case ' ': case ']': break loop;
+				case '\\': ++e; break;
+				default: break;
+				}
+				++e;
+			}
+			if (e >= end) return null;
+			if (isTag(t, e, "script")) return fScriptToken;
+			if (isTag(t, e, "stylesheet")) return fStylesheetToken;
+			if (charAt(e) == ']') return null;
+		}
+	}
+
+	/**
+	 * Return the token for the body of the passage containing the given line start,
+	 * if its header is tagged as a script or stylesheet.  The document's line information
+	 * is used to look back for the header, rather than reading backwards through the buffer.
+	 * @param pos start of a line
+	 * @return token for the body, or null if the line is not in the body of a code passage
+	 */
+	private IToken enclosingBody(int pos) {
+		try {
+			int line = fDocument.getLineOfOffset(pos);
+			if (fDocument.getLineOffset(line) != pos) return null;
+			while (--line >= 0) {
+				IRegion r = fDocument.getLineInformation(line);
+				int s = r.getOffset();
+				if (r.getLength() >= 2 && fDocument.getChar(s) == ':' && fDocument.getChar(s+1) == ':') {
+					return bodyTokenFor(s, s + r.getLength());
+				}
+			}
+		} catch (BadLocationException e) {
+			// shouldn't happen: the position is in the document
+		}
+		return null;
+	}
+
+	private boolean isTag(int start, int end, String tag) {
+		if (end - start != tag.length()) return false;
+		for (int i=0; i < tag.length(); ++i) {
+			if (charAt(start + i) != tag.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static int kindOf(String contentType) {
+		for (int i=0; i < NUM_KINDS; ++i) {
+			if (CONTENT_TYPES[i].equals(contentType)) return i;
+		}
+		if (isPassageHeader(contentType)) return TW_PASSAGE_KIND;
+		return NONE;
+	}
+
+	/**
+	 * Try to match a partition at the given position.
+	 * If successful, {@link #fMatchEnd} is set to the end of the partition.
+	 * Otherwise, {@link #fSkipTo} is set to the next position where a partition could start.
+	 * @param only if not NONE, the only kind of partition to try
+	 * @param pos position to start at, must be within range
+	 * @return kind of partition matched, or NONE
+	 */
+	private int match(int only, int pos) {
+		// Each kind is tried in turn where the previous one stopped.
+		// Usually a failed kind stops within its start sequence, where no later kind can start,
+		// but an escape character makes it stop further on, and a later kind that starts there
+		// gives a partition that (as with the rule chain) starts back at pos.
+		int cur = pos;
+		for (int kind = (only == NONE ? 0 : only); kind < NUM_KINDS; ++kind) {
+			if (cur >= fRangeEnd) break;
+			int stop = tryKind(kind, cur);
+			if (stop == MATCHED) return kind;
+			cur = stop;
+			if (only != NONE) break;
+		}
+		fSkipTo = cur + 1;
+		return NONE;
+	}
+
+	/** Result of {@link #tryKind} if the partition was matched. */
+	private static final int MATCHED = -1;
+
+	/**
+	 * Try to match a partition of a particular kind.
+	 * @param kind kind of partition
+	 * @param pos position to start at, must be within range
+	 * @return MATCHED (with {@link #fMatchEnd} set) or the position the next kind
+	 * is tried from.  This is pos if the start sequence wasn't there, and otherwise
+	 * the last character of the start sequence, moved further by any escape characters
+	 * passed while looking for the end.
+	 */
+	private int tryKind(int kind, int pos) {
+		int c = charAt(pos);
+		if (c >= DISPATCH.length || !DISPATCH[c]) return pos;
+		int c1 = pos+1 < fRangeEnd ? charAt(pos+1) : -1;
+		int from;
+		switch (kind) {
+		case XML_COMMENT_KIND:
+			if (c != '<' || c1 != '!' || !startsWith(pos, "<!--")) return pos;
+			from = pos + 4;
+			break;
+		case SC_CODE_KIND:
+			if (c != '{' || c1 != '{' || !startsWith(pos, "{{{")) return pos;
+			from = pos + 3;
+			break;
+		case SC_LINK_KIND:
+			if (c != '[' || c1 != '[') return pos;
+			from = pos + 2;
+			break;
+		case JS_COMMENT_KIND:
+			if (c != '/' || c1 != '*') return pos;
+			from = pos + 2;
+			break;
+		case TW_PASSAGE_KIND:
+			if (c != ':' || c1 != ':' || !atLineStart(pos)) return pos;
+			from = pos + 2;
+			break;
+		case XML_TAG_KIND:
+			// the tag rule consumes the character after '<' without looking at it further
+			if (c != '<' || c1 == '?' || c1 == '<' || c1 == '!') return pos;
+			if (c1 == -1) return pos + 1;
+			from = pos + 2;
+			break;
+		case SC_MACRO_KIND:
+			if (c != '<' || c1 != '<') return pos;
+			from = pos + 2;
+			break;
+		default:
+			return pos;
+		}
+		int limit = limitFor(pos);
+		boolean found = kind == TW_PASSAGE_KIND ? findLineEnd(from, limit) : findEnd(kind, from, limit);
+		if (found) return MATCHED;
+		int stop = from - 1 + fEscapes;
+		if (fPassageBounded && stop >= limit) stop = limit - 1; // don't let escapes move us into the next passage
+		return stop;
+	}
+
+	/**
+	 * Continue a partition of the given kind whose start has already been seen.
+	 * @param kind kind of partition
+	 * @param start where the partition starts
+	 * @param pos position to continue looking for the end
+	 * @return the kind if the end was found, NONE otherwise
+	 */
+	private int resumeMatch(int kind, int start, int pos) {
+		if (kind == TW_PASSAGE_KIND) {
+			// the column constraint is checked at the resume position, not at the partition start
+			if (pos >= fRangeEnd || charAt(pos) != ':' || !atLineStart(pos)) return NONE;
+			return findLineEnd(pos, limitFor(pos)) ? kind : NONE;
+		}
+		return findEnd(kind, pos, limitFor(start)) ? kind : NONE;
+	}
+
+	/**
+	 * Return the limit for the end of a construct starting at the given position:
+	 * the end of the range or, in passage-bounded mode, the next passage header.
+	 */
+	private int limitFor(int start) {
+		if (!fPassageBounded) return fRangeEnd;
+		return nextHeader(start + 1);
+	}
+
+	// Remembered header search: the first passage header at or after fHeaderFrom
+	// is at fHeaderAt (fRangeEnd if there is none).
+	private int fHeaderFrom;
+	private int fHeaderAt;
+
+	/**
+	 * Find the first passage header at or after the given position.
+	 * @param from where to start looking
+	 * @return position of the header, or the end of the range if there is none
+	 */
+	private int nextHeader(int from) {
+		if (from >= fHeaderFrom && from <= fHeaderAt) return fHeaderAt;
+		int h = from;
+		while (h + 1 < fRangeEnd && !(charAt(h) == ':' && charAt(h+1) == ':' && atLineStart(h))) {
+			++h;
+		}
+		if (h + 1 >= fRangeEnd) h = fRangeEnd;
+		fHeaderFrom = from;
+		fHeaderAt = h;
+		return h;
+	}
+
+	/**
+	 * Find the end sequence for the given kind of partition,
+	 * setting {@link #fMatchEnd} to after it if found.
+	 * @param kind kind of partition
+	 * @param from position to start looking
+	 * @param limit position the end sequence must finish by
+	 * @return whether the end sequence was found in range
+	 */
+	private boolean findEnd(int kind, int from, int limit) {
+		char[] seq = END_SEQUENCES[kind];
+		int result = fSearchResult[kind];
+		fEscapes = 0;
+		if (fSearchFrom[kind] > from || (result < from && (result != -1 || limit > fSearchLimit[kind]))) {
+			result = search(seq, from, limit);
+			if (fEscapes == 0) {
+				fSearchFrom[kind] = from;
+				fSearchLimit[kind] = limit;
+				fSearchResult[kind] = result;
+			}
+		}
+		if (result < 0 || result + seq.length > limit) return false;
+		fMatchEnd = result + seq.length;
+		return true;
+	}
+
+	/**
+	 * Number of escape characters passed by the last search.
+	 * A search that passes an escape character is not remembered.
+	 */
+	private int fEscapes;
+
+	/**
+	 * Look for the first occurrence of a sequence, skipping escaped characters.
+	 * @param seq sequence to look for
+	 * @param from where to start
+	 * @param limit where to stop
+	 * @return position of sequence, or -1 if not found
+	 */
+	private int search(char[] seq, int from, int limit) {
+		fEscapes = 0;
+		char first = seq[0];
+		for (int i=from; i < limit; ++i) {
+			char c = charAt(i);
+			if (c == first) {
+				if (i + seq.length <= limit && startsWith(i, seq)) return i;
+			} else if (c == ESCAPE) {
+				++fEscapes;
+				++i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the end of the line, setting {@link #fMatchEnd} to after the line delimiter.
+	 * The delimiters recognized are those of the default line tracker.
+	 * @param from where to start looking
+	 * @param limit where to stop looking
+	 * @return whether a line delimiter was found in range
+	 */
+	private boolean findLineEnd(int from, int limit) {
+		fEscapes = 0;
+		for (int i=from; i < limit; ++i) {
+			switch (charAt(i)) {
+			case ESCAPE:
+				++fEscapes;
+				++i;
+				break;
+			case '\r':
+				fMatchEnd = (i+1 < limit && charAt(i+1) == '\n') ? i+2 : i+1;
+				return true;
+			case '\n':
+				fMatchEnd = i+1;
+				return true;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return whether the position is at the start of a line.
+	 * As with the column constraint of the rule this replaced,
+	 * the document's line information is used rather than the preceding character:
+	 * the two can differ after edits that separate a carriage return from its line feed.
+	 */
+	private boolean atLineStart(int pos) {
+		if (pos == 0) return true;
+		char c = charAt(pos - 1);
+		if (c != '\n' && c != '\r') return false;
+		try {
+			return fDocument.getLineOffset(fDocument.getLineOfOffset(pos)) == pos;
+		} catch (BadLocationException e) {
+			return false;
+		}
+	}
+
+	private boolean startsWith(int pos, String s) {
+		int n = s.length();
+		if (pos + n > fRangeEnd) return false;
+		for (int i=1; i < n; ++i) {
+			if (charAt(pos+i) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean startsWith(int pos, char[] seq) {
+		for (int i=1; i < seq.length; ++i) {
+			if (charAt(pos+i) != seq[i]) return false;
+		}
+		return true;
+	}
+
+	private char charAt(int pos) {
+		if (pos >= fBufferEnd || pos < fBufferStart) fill(pos);
+		return fBuffer[pos - fBufferStart];
+	}
 
-		IToken xmlComment = new Token(XML_COMMENT);
-		IToken twPassage = new Token(TW_PASSAGE);
-		IToken scCode = new Token(SC_CODE);
-		IToken scLink = new Token(SC_LINK);
-		// IToken scHeader = new Token(SC_HEADER);
-		IToken tag = new Token(XML_TAG);
-		IToken sctag = new Token(SC_MACRO);
-		IToken jsComment = new Token(JS_COMMENT);
-
-		IPredicateRule[] rules = new IPredicateRule[7];
-
-		rules[0] = new MultiLineRule("<!--", "-->", xmlComment);
-		rules[1] = new MultiLineRule("{{{","}}}", scCode);
-		rules[2] = new MultiLineRule("[[","]]", scLink);
-		rules[3] = new MultiLineRule("/*","*/", jsComment);
-		// rules[4] = new WholeLineRule("!",scHeader);
-		rules[4] = new WholeLineRule("::",twPassage);
-		rules[5] = new TagRule(tag);
-		rules[6] = new SCTagRule(sctag);
-
-		setPredicateRules(rules);
+	private void fill(int pos) {
+		int end = Math.min(pos + BUFFER_SIZE, fDocument.getLength());
+		try {
+			fDocument.get(pos, end - pos).getChars(0, end - pos, fBuffer, 0);
+			fBufferStart = pos;
+			fBufferEnd = end;
+		} catch (BadLocationException e) {
+			// shouldn't happen: the range is checked by the partitioner
+			fBufferStart = fBufferEnd = 0;
+			throw new IllegalStateException(e);
+		}
 	}
 }
@@ -0,0 +1,206 @@
+package edu.uwm.twee.editors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+import edu.uwm.eclipse.util.ISpellingTokenizer;
+
+/**
+ * Finds the prose in the text of passages (the default partitions) for the spell checker.
+ * Macros, links and terminated HTML tags are partitions of their own, but the text
+ * between them still has SugarCube's naked variables and other markup, which are left out:
+ * <ul>
+ * <li>story variables (<code>$gold</code>, <code>$player.name</code>)
+ * and temporary variables (<code>_i</code>);
+ * <li>references to <code>setup</code>, <code>settings</code> and the other
+ * SugarCube objects (<code>setup.maxHealth</code>);
+ * <li>the styles at the start of custom styles (<code>@@.warning;</code>,
+ * <code>@@color:red;</code>) and the closing <code>@@</code>;
+ * <li>HTML tags that aren't terminated (yet), attributes
+ * (<code>class="note"</code>) and character references (<code>&amp;nbsp;</code>);
+ * <li>words that are the names of passages.
+ * </ul>
+ * What is left is returned as runs of text between the parts left out.
+ */
+public class TweeSpellingTokenizer implements ISpellingTokenizer {
+
+	/** Changed when what is left out changes, so that saved spelling problems aren't used. */
+	public static final int VERSION = 1;
+
+	/** SugarCube objects whose properties are used in text. */
+	private static final Set<String> GLOBALS = new HashSet<>(Arrays.asList(
+			"setup", "settings", "State", "Story", "Config", "Engine", "SugarCube"));
+
+	private final PassageTable<?> fPassages;
+
+	/**
+	 * Create a tokenizer.
+	 * @param passages passages of the document, whose names are not checked; may be null.
+	 * The table should keep names (see {@link PassageTable#getNames()}).
+	 */
+	public TweeSpellingTokenizer(PassageTable<?> passages) {
+		fPassages = passages;
+	}
+
+	@Override
+	public IRegion[] getCheckedRegions(IDocument document, IRegion[] regions) {
+		// the table's set of names is shared until the names change
+		Set<String> names = fPassages == null ? Collections.<String>emptySet() : fPassages.getNames();
+		List<IRegion> result = new ArrayList<>();
+		for (IRegion region : regions) {
+			String text;
+			try {
+				text = document.get(region.getOffset(), region.getLength());
+			} catch (BadLocationException e) {
+				// the document changed as we looked: it will be checked again
+				continue;
+			}
+			addCheckedRegions(text, region.getOffset(), names, result);
+		}
+		return result.toArray(new IRegion[result.size()]);
+	}
+
+	private static boolean isWordPart(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '\'' || ch == '-';
+	}
+
+	private static boolean isIdentifierStart(char ch) {
+		return Character.isLetter(ch) || ch == '_' || ch == '$';
+	}
+
+	private static boolean isIdentifierPart(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$';
+	}
+
+	@Override
+	public int getModificationCount() {
+		// only the names of passages change what is left out
+		return fPassages == null ? 0 : fPassages.getNamesModificationCount();
+	}
+
+	/**
+	 * Add the runs of text to check in a piece of text.
+	 * @param text text to check
+	 * @param offset offset of the text in the document
+	 * @param names names of passages (only those that are single words can match)
+	 * @param result list to add regions to
+	 */
+	static void addCheckedRegions(String text, int offset, Set<String> names, List<IRegion> result) {
+		int n = text.length();
+		int run = 0;
+		int i = 0;
+		while (i < n) {
+			char ch = text.charAt(i);
+			boolean wordStart = i == 0 || !isIdentifierPart(text.charAt(i-1));
+			int skip = i;
+			if (ch == '$' && wordStart && i + 1 < n && isIdentifierStart(text.charAt(i+1))) {
+				skip = skipProperties(text, skipIdentifier(text, i + 1));
+			} else if (ch == '_' && wordStart && i + 1 < n && (Character.isLetter(text.charAt(i+1)) || text.charAt(i+1) == '$')) {
+				skip = skipProperties(text, skipIdentifier(text, i + 1));
+			} else if (ch == '@' && text.startsWith("@@", i)) {
+				skip = skipStyle(text, i + 2);
+			} else if (ch == '<' && i + 1 < n && (Character.isLetter(text.charAt(i+1)) || text.charAt(i+1) == '/')) {
+				// a tag that isn't terminated: to the end of the line
+				skip = i + 1;
+				while (skip < n && text.charAt(skip) != '>' && text.charAt(skip) != '\n' && text.charAt(skip) != '\r') ++skip;
+			} else if (ch == '&' && i + 1 < n) {
+				skip = skipCharacterReference(text, i + 1);
+			} else if (wordStart && isWordPart(ch)) {
+				int end = i;
+				while (end < n && isWordPart(text.charAt(end))) ++end;
+				String word = text.substring(i, end);
+				if (end < n && text.charAt(end) == '.' && GLOBALS.contains(word) &&
+						end + 1 < n && isIdentifierStart(text.charAt(end + 1))) {
+					skip = skipProperties(text, end);
+				} else if (end + 1 < n && text.charAt(end) == '=' && (text.charAt(end + 1) == '"' || text.charAt(end + 1) == '\'')) {
+					skip = skipQuoted(text, end + 1);
+				} else if (names.contains(word)) {
+					skip = end;
+				} else {
+					// a word to check
+					i = end;
+					continue;
+				}
+			}
+			if (skip > i) {
+				addRun(text, offset, run, i, result);
+				run = i = skip;
+			} else {
+				++i;
+			}
+		}
+		addRun(text, offset, run, n, result);
+	}
+
+	/**
+	 * Add a run of text, unless it has nothing to check.
+	 */
+	private static void addRun(String text, int offset, int start, int end, List<IRegion> result) {
+		for (int i=start; i < end; ++i) {
+			if (Character.isLetter(text.charAt(i))) {
+				result.add(new Region(offset + start, end - start));
+				return;
+			}
+		}
+	}
+
+	private static int skipIdentifier(String text, int i) {
+		while (i < text.length() && isIdentifierPart(text.charAt(i))) ++i;
+		return i;
+	}
+
+	/**
+	 * Skip properties (<code>.name</code>) after an identifier.
+	 */
+	private static int skipProperties(String text, int i) {
+		while (i + 1 < text.length() && text.charAt(i) == '.' && isIdentifierStart(text.charAt(i+1))) {
+			i = skipIdentifier(text, i + 1);
+		}
+		return i;
+	}
+
+	/**
+	 * Skip the styles after an <code>@@</code> (up to and including a semicolon
+	 * before any space); after a closing one, there are none.
+	 */
+	private static int skipStyle(String text, int i) {
+		for (int j=i; j < text.length(); ++j) {
+			char ch = text.charAt(j);
+			if (ch == ';') return j + 1;
+			if (Character.isWhitespace(ch) || ch == '@') break;
+		}
+		return i;
+	}
+
+	/**
+	 * Skip a character reference (<code>&amp;name;</code> or <code>&amp;#123;</code>)
+	 * after the ampersand, or nothing if there isn't one.
+	 */
+	private static int skipCharacterReference(String text, int i) {
+		int j = i;
+		if (j < text.length() && text.charAt(j) == '#') ++j;
+		while (j < text.length() && Character.isLetterOrDigit(text.charAt(j))) ++j;
+		if (j > i && j < text.length() && text.charAt(j) == ';') return j + 1;
+		return i - 1;
+	}
+
+	/**
+	 * Skip a quoted attribute value, starting at the quote,
+	 * to the closing quote or the end of the line.
+	 */
+	private static int skipQuoted(String text, int i) {
+		char quote = text.charAt(i);
+		int j = i + 1;
+		while (j < text.length() && text.charAt(j) != quote && text.charAt(j) != '\n' && text.charAt(j) != '\r') ++j;
+		return j < text.length() && text.charAt(j) == quote ? j + 1 : j;
+	}
+}
@@ -13,8 +13,21 @@ import org.eclipse.ui.texteditor.spelling.SpellingAnnotation;
 
 public class TweeTextHover extends DefaultTextHover {
 
+	private final PassageTable<?> fPassages;
+
 	public TweeTextHover(ISourceViewer sourceViewer) {
+		this(sourceViewer, null);
+	}
+
+	/**
+	 * Create a hover that uses the passage table to find passage headers
+	 * without consulting the partitioning.
+	 * @param sourceViewer viewer this hover is for
+	 * @param passages passage table, may be null
+	 */
+	public TweeTextHover(ISourceViewer sourceViewer, PassageTable<?> passages) {
 		super(sourceViewer);
+		fPassages = passages;
 	}
 
 	@Override
@@ -26,6 +39,10 @@ public class TweeTextHover extends DefaultTextHover {
 
 	@Override
 	public IRegion getHoverRegion(ITextViewer textViewer, int offset) {
+		if (fPassages != null) {
+			IRegion header = fPassages.getHeader(offset);
+			if (header != null) return header;
+		}
 		IDocument doc = textViewer.getDocument();
 		try {
 			return TextUtilities.getPartition(doc, IDocumentExtension3.DEFAULT_PARTITIONING, offset, false);
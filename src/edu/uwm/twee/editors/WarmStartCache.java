@@ -0,0 +1,480 @@
+package edu.uwm.twee.editors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.core.runtime.ICoreRunnable;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.content.IContentTypeManager;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.preferences.IPreferencesService;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.TypedRegion;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
+import org.eclipse.ui.editors.text.EditorsUI;
+import org.eclipse.ui.texteditor.spelling.SpellingAnnotation;
+import org.eclipse.ui.texteditor.spelling.SpellingContext;
+import org.eclipse.ui.texteditor.spelling.SpellingService;
+
+import edu.uwm.eclipse.util.CachedSpellingProblem;
+import edu.uwm.eclipse.util.Rope;
+import edu.uwm.eclipse.util.RopeDocument;
+import edu.uwm.twee.Activator;
+import edu.uwm.twee.editors.TweeOutline.PassageOutlineElement;
+import edu.uwm.twee.editors.TweeOutline.PassageType;
+import edu.uwm.twee.preferences.PreferenceConstants;
+import edu.uwm.util.Resource;
+
+/**
+ * The results of reconciling a Twee file: its partitions, passages,
+ * and spelling and macro problems.  These are saved in the plugin's state location
+ * when an editor closes, so that when the same text is opened again,
+ * the results can be put in place without partitioning or reconciling.
+ * <p>
+ * Caches are named by a hash of the text and of the settings that affect the results,
+ * so a cache is never used for a file that changed.  Only the most recently used
+ * caches are kept.
+ */
+class WarmStartCache {
+	private static final String DIRECTORY = "warmstart";
+	private static final String SUFFIX = ".cache";
+	private static final int MAGIC = 0x54574333; // TWC3
+	private static final int MAX_FILES = 32;
+
+	/** Where the default spelling engine keeps its locale and user dictionary. */
+	private static final String SPELLING_PREFERENCES = "org.eclipse.jdt.ui";
+	private static final String SPELLING_LOCALE = "spelling_locale";
+	private static final String SPELLING_USER_DICTIONARY = "spelling_user_dictionary";
+
+	/** Hash of the macro definitions in the plugin, computed when first needed. */
+	private static String fBuiltinMacros;
+
+	private static final byte SPELLING_PROBLEM = 0;
+	private static final byte MACRO_PROBLEM = 1;
+
+	private final int fLength;
+	private final ITypedRegion[] fPartitions;
+	/** Passages and their headers, or null if not known. */
+	private final List<PassageOutlineElement> fPassages;
+	private final List<IRegion> fHeaders;
+	private final List<Problem> fProblems;
+
+	private static class Problem {
+		final byte kind;
+		final int offset, length;
+		final String message;
+
+		Problem(byte kind, int offset, int length, String message) {
+			this.kind = kind;
+			this.offset = offset;
+			this.length = length;
+			this.message = message;
+		}
+	}
+
+	private WarmStartCache(int length, ITypedRegion[] partitions, List<PassageOutlineElement> passages,
+			List<IRegion> headers, List<Problem> problems) {
+		fLength = length;
+		fPartitions = partitions;
+		fPassages = passages;
+		fHeaders = headers;
+		fProblems = problems;
+	}
+
+	/**
+	 * Return the length of the text this cache is for.
+	 */
+	public int getLength() {
+		return fLength;
+	}
+
+	/**
+	 * Return the (non-default) partitions of the text.
+	 */
+	public ITypedRegion[] getPartitions() {
+		return fPartitions;
+	}
+
+	/**
+	 * Return the current settings that affect the cached results:
+	 * the version of the plugin and of what it reads, and the preferences
+	 * for passages, macros and spelling.
+	 */
+	public static String getSettings() {
+		IPreferenceStore store = Activator.getDefault().getPreferenceStore();
+		StringBuilder sb = new StringBuilder();
+		sb.append(Activator.getDefault().getBundle().getVersion()).append(';');
+		sb.append(getBuiltinMacros()).append(';');
+		sb.append(store.getBoolean(PreferenceConstants.P_PASSAGE_BOUNDED)).append(';');
+		sb.append(store.getBoolean(PreferenceConstants.P_MACROCHECK)).append(';');
+		appendFile(sb, store.getString(PreferenceConstants.P_MACROPATH));
+		IPreferenceStore editors = EditorsUI.getPreferenceStore();
+		sb.append(';').append(editors.getBoolean(SpellingService.PREFERENCE_SPELLING_ENABLED));
+		sb.append(';').append(editors.getString(SpellingService.PREFERENCE_SPELLING_ENGINE));
+		IPreferencesService preferences = Platform.getPreferencesService();
+		sb.append(';').append(preferences.getString(SPELLING_PREFERENCES, SPELLING_LOCALE, "", null)).append(';');
+		appendFile(sb, preferences.getString(SPELLING_PREFERENCES, SPELLING_USER_DICTIONARY, "", null));
+		sb.append(';').append(TweeSpellingTokenizer.VERSION);
+		return sb.toString();
+	}
+
+	private static void appendFile(StringBuilder sb, String path) {
+		if (path != null && !path.isEmpty()) {
+			sb.append(path).append('@').append(new File(path).lastModified());
+		}
+	}
+
+	/**
+	 * Return a hash of the macro definitions in the plugin,
+	 * which may change without the version changing during development.
+	 */
+	private static synchronized String getBuiltinMacros() {
+		if (fBuiltinMacros == null) {
+			MessageDigest digest = createDigest();
+			try (InputStream in = Resource.getStream("macros.json")) {
+				if (in != null) {
+					byte[] buffer = new byte[8192];
+					for (int n; (n = in.read(buffer)) > 0; ) {
+						digest.update(buffer, 0, n);
+					}
+				}
+			} catch (IOException e) {
+				// then the macros are checked without them
+			}
+			fBuiltinMacros = toHex(digest.digest());
+		}
+		return fBuiltinMacros;
+	}
+
+	/**
+	 * Return the text of a document, without copying it if possible.
+	 */
+	public static CharSequence getText(IDocument document) {
+		if (document instanceof RopeDocument) return ((RopeDocument)document).snapshot();
+		return document.get();
+	}
+
+	/**
+	 * Compute the name of the cache for the given text and settings.
+	 * @param text text of the file
+	 * @param settings settings that affect the results
+	 * @return hash in hexadecimal
+	 */
+	public static String key(CharSequence text, String settings) {
+		MessageDigest digest = createDigest();
+		digest.update(settings.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte)0);
+		int n = text.length();
+		char[] chars = new char[4096];
+		byte[] bytes = new byte[chars.length * 2];
+		for (int start = 0; start < n; start += chars.length) {
+			int end = Math.min(n, start + chars.length);
+			if (text instanceof Rope) ((Rope)text).getChars(start, end, chars, 0);
+			else if (text instanceof String) ((String)text).getChars(start, end, chars, 0);
+			else for (int i=start; i < end; ++i) chars[i-start] = text.charAt(i);
+			for (int i=0; i < end - start; ++i) {
+				bytes[2*i] = (byte)(chars[i] >> 8);
+				bytes[2*i+1] = (byte)chars[i];
+			}
+			digest.update(bytes, 0, 2 * (end - start));
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static File getDirectory() {
+		return Activator.getDefault().getStateLocation().append(DIRECTORY).toFile();
+	}
+
+	/**
+	 * Capture the current results for a document.
+	 * This should only be called when the results are up to date.
+	 * @param document document whose results are captured
+	 * @param model annotation model with spelling and macro problems
+	 * @param unshown annotations for problems not in the model
+	 * @param passages passages of the document, or null if they aren't known
+	 * @return cache of the results
+	 */
+	public static WarmStartCache capture(IDocument document, IAnnotationModel model,
+			Map<Annotation, Position> unshown, PassageTable<PassageOutlineElement> passages) {
+		ITypedRegion[] partitions;
+		try {
+			partitions = TextUtilities.computePartitioning(document, IDocumentExtension3.DEFAULT_PARTITIONING, 0, document.getLength(), false);
+		} catch (BadLocationException e) {
+			partitions = new ITypedRegion[0];
+		}
+		List<ITypedRegion> nondefault = new ArrayList<>();
+		for (ITypedRegion r : partitions) {
+			if (!IDocument.DEFAULT_CONTENT_TYPE.equals(r.getType())) nondefault.add(r);
+		}
+		List<PassageOutlineElement> elements = null;
+		List<IRegion> headers = null;
+		if (passages != null) {
+			synchronized (passages) {
+				int n = passages.size();
+				elements = new ArrayList<>(n);
+				headers = new ArrayList<>(n);
+				for (int i=0; i < n; ++i) {
+					elements.add(passages.get(i));
+					headers.add(new Region(passages.getOffset(i), passages.getLength(i)));
+				}
+			}
+		}
+		List<Problem> problems = new ArrayList<>();
+		Iterator<Annotation> it = model.getAnnotationIterator();
+		while (it.hasNext()) {
+			Annotation a = it.next();
+			byte kind;
+			if (SpellingAnnotation.TYPE.equals(a.getType())) kind = SPELLING_PROBLEM;
+			else if (SugarCubeMacroAnnotation.TYPE.equals(a.getType())) kind = MACRO_PROBLEM;
+			else continue;
+			Position p = model.getPosition(a);
+			if (p == null || p.isDeleted() || a.getText() == null) continue;
+			problems.add(new Problem(kind, p.getOffset(), p.getLength(), a.getText()));
+		}
+		for (Map.Entry<Annotation, Position> e : unshown.entrySet()) {
+			Position p = e.getValue();
+			problems.add(new Problem(SPELLING_PROBLEM, p.getOffset(), p.getLength(), e.getKey().getText()));
+		}
+		return new WarmStartCache(document.getLength(), nondefault.toArray(new ITypedRegion[nondefault.size()]),
+				elements, headers, problems);
+	}
+
+	/**
+	 * Put the cached results in place, except for spelling problems
+	 * (see {@link #getSpellingAnnotations(IDocument)}).
+	 * @param document document the results are for
+	 * @param model annotation model to add macro problems to
+	 * @param passages passage table to fill in
+	 * @return whether the passage table was filled in
+	 */
+	public boolean restore(IDocument document, IAnnotationModel model, PassageTable<PassageOutlineElement> passages) {
+		if (model != null) {
+			Map<Annotation, Position> added = new HashMap<>();
+			for (Problem p : fProblems) {
+				if (p.kind == MACRO_PROBLEM) {
+					added.put(new SugarCubeMacroAnnotation(p.message), new Position(p.offset, p.length));
+				}
+			}
+			if (model instanceof IAnnotationModelExtension) {
+				((IAnnotationModelExtension)model).replaceAnnotations(null, added);
+			} else {
+				for (Map.Entry<Annotation, Position> e : added.entrySet()) {
+					model.addAnnotation(e.getKey(), e.getValue());
+				}
+			}
+		}
+		if (fPassages == null) return false;
+		passages.replace(0, Integer.MAX_VALUE, fPassages, fHeaders, null);
+		return true;
+	}
+
+	/**
+	 * Return annotations for the cached spelling problems, which are given
+	 * to the spelling strategy rather than put in the model, since a file
+	 * may have more than are annotated at once.
+	 * @param document document the results are for
+	 * @return new annotations and their positions
+	 */
+	public Map<Annotation, Position> getSpellingAnnotations(IDocument document) {
+		SpellingContext context = new SpellingContext();
+		context.setContentType(Platform.getContentTypeManager().getContentType(IContentTypeManager.CT_TEXT));
+		Map<Annotation, Position> result = new HashMap<>();
+		for (Problem p : fProblems) {
+			if (p.kind == SPELLING_PROBLEM) {
+				Position pos = new Position(p.offset, p.length);
+				result.put(new SpellingAnnotation(new CachedSpellingProblem(document, pos, p.message, context)), pos);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Load the cache with the given name.
+	 * @param key name of cache
+	 * @return cache, or null if there is no (readable) cache with this name
+	 */
+	public static WarmStartCache load(String key) {
+		File file = new File(getDirectory(), key + SUFFIX);
+		if (!file.exists()) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+			if (in.readInt() != MAGIC) return null;
+			int length = in.readInt();
+			String[] types = new String[in.readInt()];
+			for (int i=0; i < types.length; ++i) {
+				types[i] = in.readUTF();
+			}
+			ITypedRegion[] partitions = new ITypedRegion[in.readInt()];
+			for (int i=0; i < partitions.length; ++i) {
+				String type = types[in.readInt()];
+				int offset = in.readInt();
+				partitions[i] = new TypedRegion(offset, in.readInt(), type);
+			}
+			List<PassageOutlineElement> passages = null;
+			List<IRegion> headers = null;
+			if (in.readBoolean()) {
+				int n = in.readInt();
+				passages = new ArrayList<>(n);
+				headers = new ArrayList<>(n);
+				PassageType[] kinds = PassageType.values();
+				for (int i=0; i < n; ++i) {
+					int offset = in.readInt();
+					headers.add(new Region(offset, in.readInt()));
+					PassageType kind = kinds[in.readByte()];
+					passages.add(new PassageOutlineElement(kind, readString(in)));
+				}
+			}
+			int n = in.readInt();
+			List<Problem> problems = new ArrayList<>(n);
+			for (int i=0; i < n; ++i) {
+				byte kind = in.readByte();
+				int offset = in.readInt();
+				int len = in.readInt();
+				problems.add(new Problem(kind, offset, len, readString(in)));
+			}
+			file.setLastModified(System.currentTimeMillis());
+			return new WarmStartCache(length, partitions, passages, headers, problems);
+		} catch (IOException | RuntimeException e) {
+			// a damaged cache is simply not used
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Save this cache under the given name, and remove
+	 * caches that haven't been used recently.
+	 * @param key name of cache
+	 * @throws IOException if the cache cannot be written
+	 */
+	public void save(String key) throws IOException {
+		File dir = getDirectory();
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+		File file = new File(dir, key + SUFFIX);
+		File temp = new File(dir, key + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(fLength);
+			List<String> types = new ArrayList<>();
+			for (ITypedRegion r : fPartitions) {
+				if (!types.contains(r.getType())) types.add(r.getType());
+			}
+			out.writeInt(types.size());
+			for (String t : types) {
+				out.writeUTF(t);
+			}
+			out.writeInt(fPartitions.length);
+			for (ITypedRegion r : fPartitions) {
+				out.writeInt(types.indexOf(r.getType()));
+				out.writeInt(r.getOffset());
+				out.writeInt(r.getLength());
+			}
+			out.writeBoolean(fPassages != null);
+			if (fPassages != null) {
+				out.writeInt(fPassages.size());
+				for (int i=0; i < fPassages.size(); ++i) {
+					IRegion h = fHeaders.get(i);
+					out.writeInt(h.getOffset());
+					out.writeInt(h.getLength());
+					out.writeByte(fPassages.get(i).getType().ordinal());
+					writeString(out, fPassages.get(i).getName());
+				}
+			}
+			out.writeInt(fProblems.size());
+			for (Problem p : fProblems) {
+				out.writeByte(p.kind);
+				out.writeInt(p.offset);
+				out.writeInt(p.length);
+				writeString(out, p.message);
+			}
+		}
+		file.delete();
+		if (!temp.renameTo(file)) throw new IOException("cannot rename " + temp + " to " + file);
+		prune(dir);
+	}
+
+	/**
+	 * Save this cache in the background.
+	 * @param text text the cache is for, which must not change
+	 * @param settings settings the results were computed with
+	 */
+	public void saveInBackground(final CharSequence text, final String settings) {
+		Job job = Job.create("Saving Twee editor state", (ICoreRunnable) (monitor) -> {
+			try {
+				save(key(text, settings));
+			} catch (IOException e) {
+				System.err.println("Unable to save Twee editor state: " + e.getMessage());
+			}
+		});
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+		job.schedule();
+	}
+
+	private static void prune(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files == null || files.length <= MAX_FILES) return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+		for (int i=MAX_FILES; i < files.length; ++i) {
+			files[i].delete();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeInt(s.length());
+		out.writeChars(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		char[] chars = new char[n];
+		for (int i=0; i < n; ++i) {
+			chars[i] = in.readChar();
+		}
+		return new String(chars);
+	}
+}
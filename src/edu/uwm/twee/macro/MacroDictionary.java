@@ -16,18 +16,35 @@ import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.PlatformUI;
 
+import edu.uwm.eclipse.util.FlightRecorderEvents;
 import edu.uwm.twee.Activator;
 import edu.uwm.twee.preferences.PreferenceConstants;
 import edu.uwm.util.JSONReader;
 import edu.uwm.util.Resource;
 
 public class MacroDictionary {
+	/**
+	 * Flight recorder event for reading the macro definitions.
+	 * The source is the user's definition file (if any), the count the number of macros.
+	 */
+	public static final FlightRecorderEvents.Type INITIALIZE = new FlightRecorderEvents.Type(
+			"edu.uwm.twee.MacroDefinitions", "Macro Definitions", "Reading the SugarCube macro definitions", "macros");
+
+	/**
+	 * Flight recorder event for checking a macro call.
+	 * The source is the name of the macro, the length that of the call.
+	 */
+	public static final FlightRecorderEvents.Type CHECK = new FlightRecorderEvents.Type(
+			"edu.uwm.twee.MacroCheck", "Macro Check", "Checking a SugarCube macro call", "problems");
+
 	private static MacroDictionary instance;
 	
-	public static MacroDictionary getInstance() {
+	public static synchronized MacroDictionary getInstance() {
 		if (instance == null) {
 			instance = new MacroDictionary();
 			instance.initialize();
+			// outside the workbench (as in the benchmarks) only the built-in macros are used
+			if (!Activator.isStarted()) return instance;
 			Activator.getDefault().getPreferenceStore().addPropertyChangeListener(new IPropertyChangeListener() {
 				@Override
 				public void propertyChange(PropertyChangeEvent event) {
@@ -43,6 +60,7 @@ public class MacroDictionary {
 	}
 
 	private void initialize() {
+		FlightRecorderEvents.Event event = INITIALIZE.begin();
 		System.out.println("Initializing macro definitions.");
 		Map<String,MacroSyntax> tmp = new HashMap<>();
 		InputStream builtin = Resource.getStream("macros.json");
@@ -51,7 +69,7 @@ public class MacroDictionary {
 		} else {
 			addMacroDefinitions(builtin, tmp);
 		}
-		String macroPath = Activator.getDefault().getPreferenceStore().getString(PreferenceConstants.P_MACROPATH);
+		String macroPath = !Activator.isStarted() ? null : Activator.getDefault().getPreferenceStore().getString(PreferenceConstants.P_MACROPATH);
 		if (macroPath != null && !macroPath.isEmpty()) {
 			try (FileInputStream fis = new FileInputStream(macroPath)) {
 				addMacroDefinitions(fis, tmp);
@@ -63,6 +81,7 @@ public class MacroDictionary {
 			table.clear();
 			table.putAll(tmp);
 		}
+		if (event != null) event.commit(macroPath, -1, 0, 0, tmp.size());
 	}
 	
 	private final Map<String,MacroSyntax> table = new HashMap<>();
@@ -116,33 +135,59 @@ public class MacroDictionary {
 	 * Check a macro call and return a non-null string
 	 * if there's a problem.
 	 * @param macroCall the call after the "<<"...">>" is stripped off 
-	 * and the result is trimmed.
+	 * and the result is trimmed.  This may be a slice of a document snapshot:
+	 * only the macro name and arguments are copied out.
+	 * @return null if OK, non-null for error.
+	 */
+	public String check(CharSequence macroCall) {
+		int n = macroCall.length();
+		int nameEnd = Math.min(1, n);
+		if (n > 0) {
+			int ch = macroCall.charAt(0);
+			if (ch == '/') {
+				nameEnd = n;
+			} else if (Character.isJavaIdentifierStart(ch)) {
+				while (nameEnd < n && Character.isJavaIdentifierPart(macroCall.charAt(nameEnd))) {
+					++nameEnd;
+				}
+			}
+		}
+		return check(macroCall.subSequence(0, nameEnd), macroCall.subSequence(nameEnd, n));
+	}
+
+	/**
+	 * Check a macro call that has already been divided into
+	 * its name and arguments, as the syntax tree does.
+	 * @param name name of the macro, starting with a slash for an end tag,
+	 * empty if there is nothing in the call
+	 * @param arguments the rest of the call
 	 * @return null if OK, non-null for error.
+	 * @see edu.uwm.twee.syntax.SyntaxNode.Kind#MACRO_NAME
 	 */
-	public String check(String macroCall) {
-		if (macroCall.isEmpty()) {
+	public String check(CharSequence name, CharSequence arguments) {
+		FlightRecorderEvents.Event event = CHECK.begin();
+		if (event == null) return doCheck(name, arguments);
+		String problem = doCheck(name, arguments);
+		event.commit(name.toString(), -1, 0, name.length() + arguments.length(), problem == null ? 0 : 1);
+		return problem;
+	}
+
+	private String doCheck(CharSequence name, CharSequence arguments) {
+		if (name.length() == 0) {
 			return "<<>> not allowed";
 		}
-		int ch = macroCall.charAt(0);
-		if (ch == '/') {
-			String name = macroCall.substring(1);
-			MacroSyntax ms = table.get(name);
-			if (ms == null) return "no macro <<" + name + ">>";
-			if (!ms.needsEndTag()) return "<<" + name + ">> does not use end tag";
+		if (name.charAt(0) == '/') {
+			String endName = name.subSequence(1, name.length()).toString();
+			MacroSyntax ms = table.get(endName);
+			if (ms == null) return "no macro <<" + endName + ">>";
+			if (!ms.needsEndTag()) return "<<" + endName + ">> does not use end tag";
 			return null;
 		}
-		int n = macroCall.length();
-		int nameEnd = 1;
-		if (Character.isJavaIdentifierStart(ch)) {
-			while (nameEnd < n && Character.isJavaIdentifierPart(macroCall.charAt(nameEnd))) {
-				++nameEnd;
-			}
-		}
-		String name = macroCall.substring(0,nameEnd);
-		MacroSyntax ms = table.get(name);
-		if (ms == null) return "no macro <<" + name + ">> defined";
+		String macroName = name.toString();
+		MacroSyntax ms = table.get(macroName);
+		if (ms == null) return "no macro <<" + macroName + ">> defined";
 		StringBuilder sb = new StringBuilder();
-		ms.parseArguments(macroCall.substring(nameEnd), (s) -> { if(sb.length() > 0) sb.append("; "); sb.append(s);});
+		ms.parseArguments(arguments.toString(), (s) -> { if(sb.length() > 0) sb.append("; "); sb.append(s);});
 		if (sb.length() > 0) {
 			return sb.toString();
 		}
@@ -164,6 +164,27 @@ public class MacroSyntax {
 		return argSyntax;
 	}
 	
+	/**
+	 * Return the least number of arguments this macro takes.
+	 */
+	public int getMinArguments() {
+		return minArguments;
+	}
+
+	/**
+	 * Return the greatest number of arguments this macro takes.
+	 */
+	public int getMaxArguments() {
+		return maxArguments;
+	}
+
+	/**
+	 * Return whether this macro may only be used inside another macro's body.
+	 */
+	public boolean isNested() {
+		return isNested;
+	}
+
 	private static final String[] EMPTY_ARGUMENTS = {};
 	
 	/**
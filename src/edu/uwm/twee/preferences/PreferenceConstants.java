@@ -8,4 +8,15 @@ public class PreferenceConstants {
 	public static final String P_MACROPATH = "twee.preference.macro.path";
 
 	public static final String P_MACROCHECK = "twee.preference.macro.check";
+
+	public static final String P_PASSAGE_BOUNDED = "twee.preference.partition.bounded";
+
+	/** Size in megabytes from which files are edited in large-file mode (0 for never) */
+	public static final String P_LARGE_FILE_THRESHOLD = "twee.preference.large.threshold";
+
+	/** Most spelling problems annotated in a file; past it, only those near the visible lines are */
+	public static final String P_SPELLING_LIMIT = "twee.preference.spelling.limit";
+
+	/** Whether measurements of reconciling are written to the plugin's state location */
+	public static final String P_RECORD_METRICS = "twee.preference.metrics.record";
 }
@@ -3,6 +3,7 @@ package edu.uwm.twee.preferences;
 import org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer;
 import org.eclipse.jface.preference.IPreferenceStore;
 
+import edu.uwm.eclipse.util.SpellingReconcileStrategyFixed;
 import edu.uwm.twee.Activator;
 
 /**
@@ -18,6 +19,10 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	public void initializeDefaultPreferences() {
 		IPreferenceStore store = Activator.getDefault().getPreferenceStore();
 		store.setDefault(PreferenceConstants.P_MACROCHECK, true);
+		store.setDefault(PreferenceConstants.P_PASSAGE_BOUNDED, true);
+		store.setDefault(PreferenceConstants.P_LARGE_FILE_THRESHOLD, 8);
+		store.setDefault(PreferenceConstants.P_SPELLING_LIMIT, SpellingReconcileStrategyFixed.DEFAULT_LIMIT);
+		store.setDefault(PreferenceConstants.P_RECORD_METRICS, false);
 	}
 
 }
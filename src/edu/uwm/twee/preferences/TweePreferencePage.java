@@ -3,6 +3,7 @@ package edu.uwm.twee.preferences;
 import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.FileFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 
@@ -53,6 +54,28 @@ public class TweePreferencePage
 						PreferenceConstants.P_MACROCHECK,
 						"&Enable Macrocheck",
 						getFieldEditorParent()));
+
+		addField(
+				new BooleanFieldEditor(
+						PreferenceConstants.P_PASSAGE_BOUNDED,
+						"&Limit unclosed constructs to their passage (for newly opened files)",
+						getFieldEditorParent()));
+
+		IntegerFieldEditor thresholdEditor = new IntegerFieldEditor(PreferenceConstants.P_LARGE_FILE_THRESHOLD,
+				"Large-file &mode for files of at least this many MB (0 for never):", getFieldEditorParent());
+		thresholdEditor.setValidRange(0, 2000);
+		addField(thresholdEditor);
+
+		IntegerFieldEditor limitEditor = new IntegerFieldEditor(PreferenceConstants.P_SPELLING_LIMIT,
+				"Most &spelling problems to annotate; past it, only those near the visible lines (for newly opened files):", getFieldEditorParent());
+		limitEditor.setValidRange(1, 1000000);
+		addField(limitEditor);
+
+		addField(
+				new BooleanFieldEditor(
+						PreferenceConstants.P_RECORD_METRICS,
+						"&Record reconciling times (in " + Activator.METRICS_FILE + " in the plugin's state location)",
+						getFieldEditorParent()));
 		/*
 		addField(new RadioGroupFieldEditor(
 				PreferenceConstants.P_CHOICE,
@@ -0,0 +1,145 @@
+package edu.uwm.twee.syntax;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+
+import edu.uwm.eclipse.util.RopeDocument;
+
+/**
+ * The syntax tree of a document, kept up to date as the document changes.
+ * Changes are only recorded as they happen (merged into a single changed range)
+ * and the tree is brought up to date when it is asked for,
+ * usually in a reconciler's thread.
+ * For a {@link RopeDocument}, the tree is parsed from a snapshot of the text
+ * taken with the last change, so it is always consistent with some version of the document.
+ * <p>
+ * Parsing is done without holding the lock that recording a change needs,
+ * so that typing (in the UI thread) never waits for a parse: the changes made
+ * during a parse are recorded against the text being parsed,
+ * and are parsed the next time the tree is asked for.
+ */
+public final class DocumentSyntax implements IDocumentListener {
+
+	private static final Map<IDocument,DocumentSyntax> fInstances = new WeakHashMap<>();
+
+	/**
+	 * Return the syntax of the given document, starting to follow the document if need be.
+	 * @param document document, must not be null
+	 * @return syntax for this document
+	 */
+	public static DocumentSyntax of(IDocument document) {
+		synchronized (fInstances) {
+			DocumentSyntax result = fInstances.get(document);
+			if (result == null) {
+				result = new DocumentSyntax(document);
+				fInstances.put(document, result);
+				document.addDocumentListener(result);
+			}
+			return result;
+		}
+	}
+
+	// not a strong reference, or else the document would never be removed from the map
+	private final WeakReference<IDocument> fDocument;
+
+	private SyntaxTree fTree;
+	private CharSequence fText; // the text after the last change, if known
+	private boolean fParsing; // whether a tree is being parsed (changes are recorded against its text)
+
+	// held while parsing, so that only one thread parses at a time
+	private final Object fParseLock = new Object();
+
+	// The changed range: [fStart,fOldEnd) in the tree's text was replaced with
+	// what is now [fStart,fNewEnd).  If fStart < 0 nothing has changed.
+	private int fStart = -1;
+	private int fOldEnd, fNewEnd;
+
+	private DocumentSyntax(IDocument document) {
+		fDocument = new WeakReference<>(document);
+	}
+
+	@Override
+	public void documentAboutToBeChanged(DocumentEvent event) {
+		// nothing to do
+	}
+
+	@Override
+	public synchronized void documentChanged(DocumentEvent event) {
+		IDocument document = event.getDocument();
+		fText = document instanceof RopeDocument ? ((RopeDocument)document).snapshot() : null;
+		if (fTree == null && !fParsing) return;
+		int offset = event.getOffset();
+		int removed = event.getLength();
+		int inserted = event.getText() == null ? 0 : event.getText().length();
+		int end = offset + removed;
+		if (fStart < 0) {
+			fStart = offset;
+			fOldEnd = end;
+			fNewEnd = offset + inserted;
+		} else {
+			// text before fStart and after fNewEnd is as it was in the tree
+			fOldEnd += Math.max(0, end - fNewEnd);
+			fNewEnd = Math.max(fNewEnd + inserted - removed, offset + inserted);
+			fStart = Math.min(fStart, offset);
+		}
+	}
+
+	/**
+	 * Return the syntax tree of the document as of the last change.
+	 * This parses only the passages changed since the last call.
+	 * @return syntax tree, never null
+	 */
+	public SyntaxTree getTree() {
+		synchronized (fParseLock) {
+			SyntaxTree tree;
+			CharSequence text;
+			int start, oldEnd, newEnd;
+			// take the text and the changed range; changes from now on are against this text
+			synchronized (this) {
+				if (fTree != null && fStart < 0) return fTree;
+				text = fText;
+				if (text == null) {
+					IDocument document = fDocument.get();
+					if (document instanceof RopeDocument) text = ((RopeDocument)document).snapshot();
+					else text = document == null ? "" : document.get();
+				}
+				tree = fTree;
+				start = fStart;
+				oldEnd = fOldEnd;
+				newEnd = fNewEnd;
+				fStart = -1;
+				fParsing = true;
+			}
+			boolean parsed = false;
+			try {
+				if (tree == null) {
+					tree = SyntaxTree.parse(text);
+				} else {
+					int removed = oldEnd - start;
+					int inserted = newEnd - start;
+					if (text.length() == tree.getLength() - removed + inserted) {
+						tree = tree.edit(text, start, removed, inserted);
+					} else {
+						// we saw the text before hearing of the change
+						tree = SyntaxTree.parse(text);
+					}
+				}
+				parsed = true;
+			} finally {
+				// publish it: a range recorded during the parse is against its text,
+				// and is parsed next time; if the parse failed, it all is
+				synchronized (this) {
+					fParsing = false;
+					fTree = parsed ? tree : null;
+					if (!parsed) fStart = -1;
+				}
+			}
+			return tree;
+		}
+	}
+}
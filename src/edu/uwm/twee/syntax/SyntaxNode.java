@@ -0,0 +1,148 @@
+package edu.uwm.twee.syntax;
+
+/**
+ * A node of the syntax tree of a Twee document.
+ * Nodes are immutable and do not know where they are:
+ * the offsets of children are relative to the start of their parent,
+ * and so a node can be shared by successive trees
+ * even if text before it is changed.
+ * Only constructs are represented by nodes; text between the children
+ * of a node is plain text.
+ */
+public final class SyntaxNode {
+
+	/**
+	 * The kinds of nodes.
+	 */
+	public static enum Kind {
+		/** A passage: an optional header and then a body. */
+		PASSAGE,
+		/** The line starting with <code>::</code>, including the line end. */
+		HEADER,
+		/** The name of a passage, without surrounding spaces. */
+		NAME,
+		/** The tags of a passage, from <code>[</code> to <code>]</code>. */
+		TAGS,
+		/** A single tag. */
+		TAG,
+		/** The metadata of a passage, from <code>{</code> to the end of the line. */
+		METADATA,
+		/** Everything in a passage after the header. */
+		BODY,
+		/** A SugarCube macro call, from <code>&lt;&lt;</code> to <code>&gt;&gt;</code>. */
+		MACRO,
+		/** The name of a macro (including the slash of an end tag). */
+		MACRO_NAME,
+		/** The arguments of a macro. */
+		ARGUMENTS,
+		/** A link, from <code>[[</code> to <code>]]</code>. */
+		LINK,
+		/** An HTML tag. */
+		HTML,
+		/** An HTML or Javascript-style comment. */
+		COMMENT,
+		/** Text between <code>{{{</code> and <code>}}}</code> (inclusive). */
+		VERBATIM,
+		/** The body of a script or stylesheet passage. */
+		CODE;
+	}
+
+	private static final SyntaxNode[] NO_CHILDREN = {};
+	private static final int[] NO_OFFSETS = {};
+
+	private final Kind fKind;
+	private final int fLength;
+	private final SyntaxNode[] fChildren;
+	private final int[] fOffsets;
+
+	/**
+	 * Create a node without children.
+	 */
+	SyntaxNode(Kind kind, int length) {
+		this(kind, length, NO_CHILDREN, NO_OFFSETS);
+	}
+
+	/**
+	 * Create a node with children.  The arrays are not copied.
+	 * @param kind kind of node
+	 * @param length number of characters covered by the node
+	 * @param children children in order
+	 * @param offsets offsets of children from the start of this node, in increasing order
+	 */
+	SyntaxNode(Kind kind, int length, SyntaxNode[] children, int[] offsets) {
+		fKind = kind;
+		fLength = length;
+		fChildren = children;
+		fOffsets = offsets;
+	}
+
+	public Kind getKind() {
+		return fKind;
+	}
+
+	public int getLength() {
+		return fLength;
+	}
+
+	public int getChildCount() {
+		return fChildren.length;
+	}
+
+	public SyntaxNode getChild(int index) {
+		return fChildren[index];
+	}
+
+	/**
+	 * Return the offset of the given child from the start of this node.
+	 */
+	public int getChildOffset(int index) {
+		return fOffsets[index];
+	}
+
+	/**
+	 * Return the index of the first child of the given kind.
+	 * @param kind kind of child to look for
+	 * @return index of child, or -1 if there is none
+	 */
+	public int indexOf(Kind kind) {
+		for (int i=0; i < fChildren.length; ++i) {
+			if (fChildren[i].fKind == kind) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the first child of the given kind, or null if none.
+	 */
+	public SyntaxNode getChild(Kind kind) {
+		int i = indexOf(kind);
+		return i < 0 ? null : fChildren[i];
+	}
+
+	/**
+	 * Return the index of the child that includes the given offset.
+	 * @param offset offset from the start of this node
+	 * @return index of the child, or -1 if the offset is in plain text
+	 */
+	public int childAt(int offset) {
+		int lo = 0, hi = fChildren.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (fOffsets[mid] <= offset) lo = mid + 1;
+			else hi = mid;
+		}
+		int i = lo - 1;
+		if (i < 0 || offset >= fOffsets[i] + fChildren[i].fLength) return -1;
+		return i;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(fKind).append('(').append(fLength);
+		for (int i=0; i < fChildren.length; ++i) {
+			sb.append(i == 0 ? ": " : ", ").append(fOffsets[i]).append('=').append(fChildren[i]);
+		}
+		return sb.append(')').toString();
+	}
+}
@@ -0,0 +1,360 @@
+package edu.uwm.twee.syntax;
+
+import java.util.List;
+
+import edu.uwm.eclipse.util.BalancedTree;
+
+import edu.uwm.twee.syntax.SyntaxNode.Kind;
+
+/**
+ * The syntax tree of a Twee document: its text and the sequence of its passages.
+ * Trees are immutable.  An edit produces a new tree in which only the passages
+ * touched by the edit are parsed again: the nodes of all other passages are shared
+ * with the old tree.  The passages are kept in a balanced tree (as with a {@link edu.uwm.eclipse.util.Rope})
+ * so that finding a passage and replacing some take O(log n) time,
+ * and so the cost of an edit is proportional to the size of the passages it touches.
+ * @see DocumentSyntax
+ */
+public final class SyntaxTree {
+
+	/**
+	 * A visitor of the nodes of a tree.
+	 * @see SyntaxTree#accept(Visitor, int, int)
+	 */
+	public interface Visitor {
+		/**
+		 * Visit a node.
+		 * @param node node being visited
+		 * @param offset offset of the node in the document
+		 * @return whether to visit the children of this node
+		 */
+		boolean visit(SyntaxNode node, int offset);
+	}
+
+	public static final SyntaxTree EMPTY = new SyntaxTree("", null);
+
+	private final CharSequence fText;
+	private final Seq fPassages; // null if no passages
+
+	private SyntaxTree(CharSequence text, Seq passages) {
+		fText = text;
+		fPassages = passages;
+	}
+
+	/**
+	 * Parse a whole document.
+	 * @param text text of the document, which must not change
+	 * (a {@link edu.uwm.eclipse.util.Rope} for example)
+	 * @return syntax tree
+	 */
+	public static SyntaxTree parse(CharSequence text) {
+		if (text.length() == 0) return EMPTY;
+		return new SyntaxTree(text, build(new TweeParser(text, 0, text.length()).parse()));
+	}
+
+	/**
+	 * Parse the header of a passage by itself.
+	 * @param header text starting with <code>::</code>
+	 * @return header node, or null if the text is not a header
+	 */
+	public static SyntaxNode parseHeader(CharSequence header) {
+		return new TweeParser(header, 0, header.length()).parseHeader();
+	}
+
+	/**
+	 * Return the tree for the text after an edit.
+	 * The passages overlapping the edit are parsed again,
+	 * and if the edit removed the header of the first of these,
+	 * the passage before too.
+	 * @param text text after the edit, which must not change
+	 * @param offset where the edit happened
+	 * @param removedLength number of characters of this tree's text that were replaced
+	 * @param insertedLength number of characters that replaced them
+	 * @return new tree (this tree is unchanged)
+	 */
+	public SyntaxTree edit(CharSequence text, int offset, int removedLength, int insertedLength) {
+		int length = getLength();
+		if (offset < 0 || removedLength < 0 || insertedLength < 0 || offset + removedLength > length ||
+				text.length() != length - removedLength + insertedLength) {
+			throw new IllegalArgumentException("edit at " + offset + " replacing " + removedLength + " by " + insertedLength +
+					" doesn't match lengths " + length + " and " + text.length());
+		}
+		int n = getPassageCount();
+		if (n == 0) return parse(text);
+		// a header depends on the character before it, so start with the passage including that
+		int first = findPassage(Math.max(0, offset - 1));
+		int end = offset + removedLength;
+		int last = end >= length ? n - 1 : findPassage(end);
+		int from = getPassageOffset(first);
+		if (first > 0 && !TweeParser.isHeaderAt(text, from)) {
+			// the header was removed, and so the rest joins the previous passage
+			from = getPassageOffset(--first);
+		}
+		int to = getPassageOffset(last) + getPassage(last).getLength() - removedLength + insertedLength;
+		List<SyntaxNode> passages = new TweeParser(text, from, to).parse();
+		Seq result = join(join(slice(fPassages, 0, first), build(passages)), slice(fPassages, last + 1, n));
+		return new SyntaxTree(text, result);
+	}
+
+	/**
+	 * Return the text this tree was parsed from.
+	 */
+	public CharSequence getText() {
+		return fText;
+	}
+
+	/**
+	 * Return the text of a range of the document.
+	 */
+	public CharSequence getText(int offset, int length) {
+		return fText.subSequence(offset, offset + length);
+	}
+
+	public int getLength() {
+		return fText.length();
+	}
+
+	public int getPassageCount() {
+		return fPassages == null ? 0 : fPassages.count();
+	}
+
+	/**
+	 * Return the passage at the given index.
+	 */
+	public SyntaxNode getPassage(int index) {
+		checkIndex(index);
+		Seq s = fPassages;
+		while (s instanceof Node) {
+			Node n = (Node)s;
+			int lc = n.fLeft.count();
+			if (index < lc) {
+				s = n.fLeft;
+			} else {
+				index -= lc;
+				s = n.fRight;
+			}
+		}
+		return ((Leaf)s).fPassage;
+	}
+
+	/**
+	 * Return the offset in the document of the passage at the given index.
+	 */
+	public int getPassageOffset(int index) {
+		checkIndex(index);
+		Seq s = fPassages;
+		int offset = 0;
+		while (s instanceof Node) {
+			Node n = (Node)s;
+			int lc = n.fLeft.count();
+			if (index < lc) {
+				s = n.fLeft;
+			} else {
+				index -= lc;
+				offset += n.fLeft.length();
+				s = n.fRight;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Return the index of the passage including the given offset.
+	 * @param offset offset in the document
+	 * @return index of passage (the last one if the offset is at the end of the document),
+	 * or -1 if there are no passages
+	 */
+	public int findPassage(int offset) {
+		if (fPassages == null) return -1;
+		if (offset >= getLength()) return getPassageCount() - 1;
+		Seq s = fPassages;
+		int index = 0;
+		while (s instanceof Node) {
+			Node n = (Node)s;
+			int ll = n.fLeft.length();
+			if (offset < ll) {
+				s = n.fLeft;
+			} else {
+				offset -= ll;
+				index += n.fLeft.count();
+				s = n.fRight;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Find a node of the given kind that covers exactly the given range.
+	 * @param offset start of the range in the document
+	 * @param length length of the range
+	 * @param kind kind of node
+	 * @return node, or null if there is none
+	 */
+	public SyntaxNode findNode(int offset, int length, Kind kind) {
+		int i = findPassage(offset);
+		if (i < 0) return null;
+		SyntaxNode node = getPassage(i);
+		int nodeOffset = getPassageOffset(i);
+		while (true) {
+			if (nodeOffset == offset && node.getLength() == length && node.getKind() == kind) return node;
+			int c = node.childAt(offset - nodeOffset);
+			if (c < 0) return null;
+			nodeOffset += node.getChildOffset(c);
+			node = node.getChild(c);
+		}
+	}
+
+	/**
+	 * Visit the nodes that overlap the given range of the document, in document order.
+	 * If the range is empty, the nodes that include its offset are visited.
+	 * @param visitor visitor to call for each node
+	 * @param offset start of the range
+	 * @param length length of the range
+	 */
+	public void accept(Visitor visitor, int offset, int length) {
+		int n = getPassageCount();
+		int end = offset + length;
+		for (int i = Math.max(0, findPassage(offset)); i < n; ++i) {
+			int start = getPassageOffset(i);
+			if (start > end || (start == end && length > 0)) break;
+			accept(visitor, getPassage(i), start, offset, end);
+		}
+	}
+
+	private static void accept(Visitor visitor, SyntaxNode node, int nodeOffset, int offset, int end) {
+		int nodeEnd = nodeOffset + node.getLength();
+		boolean overlaps = offset == end ? nodeOffset <= offset && offset < nodeEnd : nodeOffset < end && offset < nodeEnd;
+		if (!overlaps || !visitor.visit(node, nodeOffset)) return;
+		for (int i=0; i < node.getChildCount(); ++i) {
+			accept(visitor, node.getChild(i), nodeOffset + node.getChildOffset(i), offset, end);
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= getPassageCount()) {
+			throw new IndexOutOfBoundsException("passage " + index + " of " + getPassageCount());
+		}
+	}
+
+	/**
+	 * A sequence of passages.
+	 */
+	private static abstract class Seq {
+		abstract int count();
+		abstract int length();
+		abstract int depth();
+	}
+
+	private static final class Leaf extends Seq {
+		final SyntaxNode fPassage;
+
+		Leaf(SyntaxNode passage) {
+			fPassage = passage;
+		}
+
+		@Override
+		int count() {
+			return 1;
+		}
+
+		@Override
+		int length() {
+			return fPassage.getLength();
+		}
+
+		@Override
+		int depth() {
+			return 0;
+		}
+	}
+
+	private static final class Node extends Seq {
+		final Seq fLeft, fRight;
+		private final int fCount;
+		private final int fLength;
+		private final int fDepth;
+
+		Node(Seq left, Seq right) {
+			fLeft = left;
+			fRight = right;
+			fCount = left.count() + right.count();
+			fLength = left.length() + right.length();
+			fDepth = Math.max(left.depth(), right.depth()) + 1;
+		}
+
+		@Override
+		int count() {
+			return fCount;
+		}
+
+		@Override
+		int length() {
+			return fLength;
+		}
+
+		@Override
+		int depth() {
+			return fDepth;
+		}
+	}
+
+	private static Seq build(List<SyntaxNode> passages) {
+		return build(passages, 0, passages.size());
+	}
+
+	private static Seq build(List<SyntaxNode> passages, int from, int to) {
+		if (from >= to) return null;
+		if (to - from == 1) return new Leaf(passages.get(from));
+		int mid = (from + to) >>> 1;
+		return new Node(build(passages, from, mid), build(passages, mid, to));
+	}
+
+	/**
+	 * Return the passages of a sequence in the given range of indices.
+	 */
+	private static Seq slice(Seq s, int from, int to) {
+		if (from >= to) return null;
+		if (from == 0 && to == s.count()) return s;
+		Node n = (Node)s;
+		int lc = n.fLeft.count();
+		if (to <= lc) return slice(n.fLeft, from, to);
+		if (from >= lc) return slice(n.fRight, from - lc, to - lc);
+		return join(slice(n.fLeft, from, lc), slice(n.fRight, 0, to - lc));
+	}
+
+	/**
+	 * Join two sequences, keeping the tree balanced.
+	 */
+	private static Seq join(Seq l, Seq r) {
+		return TREE.join(l, r);
+	}
+
+	private static final BalancedTree<Seq> TREE = new BalancedTree<Seq>() {
+		@Override
+		public Seq join(Seq l, Seq r) {
+			if (l == null) return r;
+			if (r == null) return l;
+			return super.join(l, r);
+		}
+
+		@Override
+		protected int depth(Seq tree) {
+			return tree.depth();
+		}
+
+		@Override
+		protected Seq left(Seq node) {
+			return ((Node)node).fLeft;
+		}
+
+		@Override
+		protected Seq right(Seq node) {
+			return ((Node)node).fRight;
+		}
+
+		@Override
+		protected Seq node(Seq left, Seq right) {
+			return new Node(left, right);
+		}
+	};
+}
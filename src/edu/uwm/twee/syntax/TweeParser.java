@@ -0,0 +1,314 @@
+package edu.uwm.twee.syntax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uwm.twee.syntax.SyntaxNode.Kind;
+
+/**
+ * Parser for a range of a Twee document that consists of whole passages.
+ * A passage starts with a header (<code>::</code> at the start of a line)
+ * except possibly the first passage of the document.
+ * The header is parsed in the same way the outline always has:
+ * the name runs to the first <code>[</code> or <code>{</code>,
+ * tags are separated by spaces and end with <code>]</code>
+ * (a tag that is not followed by a space or <code>]</code> doesn't count),
+ * and a backslash escapes the next character in a tag.
+ * The body of a passage tagged <code>script</code> or <code>stylesheet</code>
+ * is code; otherwise it may contain macro calls, links, HTML tags,
+ * comments and verbatim text.  Unterminated constructs are plain text.
+ * Nothing extends past the end of its passage.
+ */
+final class TweeParser {
+
+	private static final String[] END_SEQUENCES = { ">>", "]]", ">", "-->", "*/", "%/", "}}}" };
+	private static final int MACRO_END = 0;
+	private static final int LINK_END = 1;
+	private static final int HTML_END = 2;
+	private static final int XML_COMMENT_END = 3;
+	private static final int JS_COMMENT_END = 4;
+	private static final int TWINE_COMMENT_END = 5;
+	private static final int VERBATIM_END = 6;
+
+	private final String fText;
+	private final boolean fFirstHeaded;
+
+	// Remembered end searches in the current body, indexed by end sequence:
+	// there is none in [fSearchFrom,fSearchResult) and fSearchResult is the first (or -1 if none).
+	private final int[] fSearchFrom = new int[END_SEQUENCES.length];
+	private final int[] fSearchResult = new int[END_SEQUENCES.length];
+
+	/**
+	 * Prepare to parse the given range of text.
+	 * @param text text of the document (or at least up to the end of the range)
+	 * @param start start of the range, the start of a passage
+	 * @param end end of the range, the end of a passage
+	 */
+	TweeParser(CharSequence text, int start, int end) {
+		fText = text.subSequence(start, end).toString();
+		fFirstHeaded = isHeaderAt(text, start);
+	}
+
+	/**
+	 * Return whether a passage header starts at the given position.
+	 */
+	static boolean isHeaderAt(CharSequence text, int pos) {
+		if (pos + 1 >= text.length() || text.charAt(pos) != ':' || text.charAt(pos+1) != ':') return false;
+		if (pos == 0) return true;
+		char c = text.charAt(pos-1);
+		return c == '\n' || c == '\r';
+	}
+
+	private boolean isHeaderAt(int pos) {
+		if (pos == 0) return fFirstHeaded;
+		return isHeaderAt(fText, pos);
+	}
+
+	/**
+	 * Parse the range into passages.
+	 * @return passages in order, covering the whole range
+	 */
+	List<SyntaxNode> parse() {
+		List<SyntaxNode> passages = new ArrayList<>();
+		int n = fText.length();
+		int p = 0;
+		while (p < n) {
+			int next = p + 1;
+			while (next < n && !(fText.charAt(next) == ':' && isHeaderAt(next))) ++next;
+			if (next > n) next = n;
+			passages.add(parsePassage(p, next));
+			p = next;
+		}
+		return passages;
+	}
+
+	/**
+	 * Parse the header that starts the range.
+	 * @return header node, or null if the range doesn't start with a header
+	 */
+	SyntaxNode parseHeader() {
+		if (!isHeaderAt(0)) return null;
+		return parseHeader(0, fText.length());
+	}
+
+	private SyntaxNode parsePassage(int start, int end) {
+		List<SyntaxNode> children = new ArrayList<>(2);
+		List<Integer> offsets = new ArrayList<>(2);
+		int bodyStart = start;
+		boolean code = false;
+		if (isHeaderAt(start)) {
+			SyntaxNode header = parseHeader(start, end);
+			children.add(header);
+			offsets.add(0);
+			bodyStart = start + header.getLength();
+			code = isCode(header, start);
+		}
+		if (bodyStart < end) {
+			SyntaxNode body;
+			if (code) {
+				body = node(Kind.BODY, end - bodyStart, single(new SyntaxNode(Kind.CODE, end - bodyStart)), new int[] {0});
+			} else {
+				body = parseBody(bodyStart, end);
+			}
+			children.add(body);
+			offsets.add(bodyStart - start);
+		}
+		return node(Kind.PASSAGE, end - start, children, offsets);
+	}
+
+	private SyntaxNode parseHeader(int start, int end) {
+		int lineEnd = start + 2;
+		while (lineEnd < end && fText.charAt(lineEnd) != '\n' && fText.charAt(lineEnd) != '\r') ++lineEnd;
+		int headerEnd = lineEnd;
+		if (headerEnd < end) {
+			headerEnd += (fText.charAt(headerEnd) == '\r' && headerEnd + 1 < end && fText.charAt(headerEnd+1) == '\n') ? 2 : 1;
+		}
+		List<SyntaxNode> children = new ArrayList<>(3);
+		List<Integer> offsets = new ArrayList<>(3);
+
+		int e = start + 2;
+		while (e < headerEnd && fText.charAt(e) != '[' && fText.charAt(e) != '{') ++e;
+		int ns = start + 2, ne = e;
+		while (ns < ne && fText.charAt(ns) <= ' ') ++ns;
+		while (ne > ns && fText.charAt(ne-1) <= ' ') --ne;
+		if (ns < ne) {
+			children.add(new SyntaxNode(Kind.NAME, ne - ns));
+			offsets.add(ns - start);
+		}
+
+		int metadataFrom = e;
+		if (e < headerEnd && fText.charAt(e) == '[') {
+			int tagsStart = e;
+			List<SyntaxNode> tags = new ArrayList<>();
+			List<Integer> tagOffsets = new ArrayList<>();
+			boolean closed = false;
+			while (true) {
+				int t = e + 1;
+				while (t < headerEnd && fText.charAt(t) == ' ') ++t;
+				e = t;
+				loop: while (e < headerEnd) {
+					switch (fText.charAt(e)) {
+					case ' ': case ']': break loop;
+					case '\\': ++e; break;
+					default: break;
+					}
+					++e;
+				}
+				if (e >= headerEnd) break;
+				if (e > t) {
+					tags.add(new SyntaxNode(Kind.TAG, e - t));
+					tagOffsets.add(t - tagsStart);
+				}
+				if (fText.charAt(e) == ']') {
+					closed = true;
+					break;
+				}
+			}
+			int tagsEnd = closed ? e + 1 : lineEnd;
+			children.add(node(Kind.TAGS, tagsEnd - tagsStart, tags, tagOffsets));
+			offsets.add(tagsStart - start);
+			metadataFrom = tagsEnd;
+		}
+		int m = metadataFrom;
+		while (m < lineEnd && fText.charAt(m) != '{') ++m;
+		if (m < lineEnd) {
+			children.add(new SyntaxNode(Kind.METADATA, lineEnd - m));
+			offsets.add(m - start);
+		}
+		return node(Kind.HEADER, headerEnd - start, children, offsets);
+	}
+
+	/**
+	 * Return whether a passage with this header is a script or stylesheet.
+	 */
+	private boolean isCode(SyntaxNode header, int start) {
+		int i = header.indexOf(Kind.TAGS);
+		if (i < 0) return false;
+		SyntaxNode tags = header.getChild(i);
+		int tagsStart = start + header.getChildOffset(i);
+		for (int j=0; j < tags.getChildCount(); ++j) {
+			int t = tagsStart + tags.getChildOffset(j);
+			String tag = fText.substring(t, t + tags.getChild(j).getLength());
+			if (tag.equals("script") || tag.equals("stylesheet")) return true;
+		}
+		return false;
+	}
+
+	private SyntaxNode parseBody(int start, int end) {
+		for (int k=0; k < END_SEQUENCES.length; ++k) {
+			fSearchFrom[k] = Integer.MAX_VALUE;
+		}
+		List<SyntaxNode> children = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+		int i = start;
+		while (i < end) {
+			char c = fText.charAt(i);
+			char c1 = i + 1 < end ? fText.charAt(i+1) : '\0';
+			SyntaxNode construct = null;
+			int e;
+			switch (c) {
+			case '<':
+				if (c1 == '<') {
+					if ((e = find(MACRO_END, i + 2, end)) >= 0) construct = parseMacro(i, e + 2);
+				} else if (c1 == '!' && fText.startsWith("<!--", i)) {
+					if ((e = find(XML_COMMENT_END, i + 4, end)) >= 0) construct = new SyntaxNode(Kind.COMMENT, e + 3 - i);
+				} else if (c1 == '/' || Character.isLetter(c1)) {
+					if ((e = find(HTML_END, i + 2, end)) >= 0) construct = new SyntaxNode(Kind.HTML, e + 1 - i);
+				}
+				break;
+			case '[':
+				if (c1 == '[' && (e = find(LINK_END, i + 2, end)) >= 0) construct = new SyntaxNode(Kind.LINK, e + 2 - i);
+				break;
+			case '/':
+				if (c1 == '*' && (e = find(JS_COMMENT_END, i + 2, end)) >= 0) construct = new SyntaxNode(Kind.COMMENT, e + 2 - i);
+				else if (c1 == '%' && (e = find(TWINE_COMMENT_END, i + 2, end)) >= 0) construct = new SyntaxNode(Kind.COMMENT, e + 2 - i);
+				break;
+			case '{':
+				if (c1 == '{' && fText.startsWith("{{{", i) && (e = find(VERBATIM_END, i + 3, end)) >= 0) {
+					construct = new SyntaxNode(Kind.VERBATIM, e + 3 - i);
+				}
+				break;
+			default:
+				break;
+			}
+			if (construct == null) {
+				++i;
+			} else {
+				children.add(construct);
+				offsets.add(i - start);
+				i += construct.getLength();
+			}
+		}
+		return node(Kind.BODY, end - start, children, offsets);
+	}
+
+	/**
+	 * Parse a macro call.  The name is found in the same way
+	 * as in {@link edu.uwm.twee.macro.MacroDictionary#check(CharSequence)}.
+	 * @param start position of the opening <code>&lt;&lt;</code>
+	 * @param end position after the closing <code>&gt;&gt;</code>
+	 */
+	private SyntaxNode parseMacro(int start, int end) {
+		int callStart = start + 2, callEnd = end - 2;
+		List<SyntaxNode> children = new ArrayList<>(2);
+		List<Integer> offsets = new ArrayList<>(2);
+		if (callStart < callEnd) {
+			char ch = fText.charAt(callStart);
+			int nameEnd = callStart + 1;
+			if (ch == '/') {
+				nameEnd = callEnd;
+			} else if (Character.isJavaIdentifierStart(ch)) {
+				while (nameEnd < callEnd && Character.isJavaIdentifierPart(fText.charAt(nameEnd))) ++nameEnd;
+			}
+			children.add(new SyntaxNode(Kind.MACRO_NAME, nameEnd - callStart));
+			offsets.add(2);
+			if (nameEnd < callEnd) {
+				children.add(new SyntaxNode(Kind.ARGUMENTS, callEnd - nameEnd));
+				offsets.add(nameEnd - start);
+			}
+		}
+		return node(Kind.MACRO, end - start, children, offsets);
+	}
+
+	/**
+	 * Find an end sequence in the current body.
+	 * @param seq index of end sequence
+	 * @param from where to start looking
+	 * @param limit end of the body
+	 * @return position of the end sequence, or -1 if there is none
+	 */
+	private int find(int seq, int from, int limit) {
+		if (from >= fSearchFrom[seq] && (fSearchResult[seq] < 0 || from <= fSearchResult[seq])) {
+			return fSearchResult[seq];
+		}
+		String s = END_SEQUENCES[seq];
+		char first = s.charAt(0);
+		int result = -1;
+		for (int i = from, last = limit - s.length(); i <= last; ++i) {
+			if (fText.charAt(i) == first && fText.startsWith(s, i)) {
+				result = i;
+				break;
+			}
+		}
+		fSearchFrom[seq] = from;
+		fSearchResult[seq] = result;
+		return result;
+	}
+
+	private static SyntaxNode[] single(SyntaxNode node) {
+		return new SyntaxNode[] { node };
+	}
+
+	private static SyntaxNode node(Kind kind, int length, SyntaxNode[] children, int[] offsets) {
+		return new SyntaxNode(kind, length, children, offsets);
+	}
+
+	private static SyntaxNode node(Kind kind, int length, List<SyntaxNode> children, List<Integer> offsets) {
+		int n = children.size();
+		int[] o = new int[n];
+		for (int i=0; i < n; ++i) {
+			o[i] = offsets.get(i);
+		}
+		return new SyntaxNode(kind, length, children.toArray(new SyntaxNode[n]), o);
+	}
+}
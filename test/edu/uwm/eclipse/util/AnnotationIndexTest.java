@@ -0,0 +1,84 @@
+package edu.uwm.eclipse.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPositionCategoryException;
+import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+
+/**
+ * Random annotations and changes to the document, compared with positions
+ * kept up to date by a {@link DefaultPositionUpdater}, as those of an annotation model are:
+ * the annotations the {@link AnnotationIndex} finds in a region must be
+ * those whose (undeleted) positions overlap or touch it.
+ */
+public class AnnotationIndexTest extends RandomizedTest {
+
+	private static final String CATEGORY = "test";
+
+	@Override
+	protected void run(Random random) throws BadLocationException, BadPositionCategoryException {
+		for (int round=0; round < 1000; ++round) {
+			Document document = new Document(randomText(random, 500));
+			document.addPositionCategory(CATEGORY);
+			document.addPositionUpdater(new DefaultPositionUpdater(CATEGORY));
+			AnnotationIndex index = new AnnotationIndex();
+			index.connect(document);
+			Map<Annotation, Position> model = new HashMap<>();
+			for (int step=0; step < 60; ++step) {
+				int length = document.getLength();
+				int offset = random.nextInt(length + 1);
+				switch (random.nextInt(4)) {
+				case 0:
+					Position p = new Position(offset, random.nextInt(Math.min(12, length - offset) + 1));
+					Annotation a = new Annotation(false);
+					document.addPosition(CATEGORY, p);
+					model.put(a, p);
+					index.add(a, p);
+					break;
+				case 1:
+					List<Annotation> removed = index.remove(offset, random.nextInt(6), (x) -> random.nextBoolean());
+					for (Annotation x : removed) {
+						document.removePosition(CATEGORY, model.remove(x));
+					}
+					break;
+				default:
+					int deleted = random.nextInt(Math.min(30, length - offset) + 1);
+					document.replace(offset, deleted, randomText(random, random.nextInt(3) == 0 ? 0 : random.nextInt(20)));
+					break;
+				}
+				checkEquals(model.size(), index.size(), "size");
+				for (int q=0; q < 5; ++q) {
+					int from = random.nextInt(document.getLength() + 1);
+					int to = from + random.nextInt(Math.min(40, document.getLength() - from) + 1);
+					Set<Annotation> expected = new HashSet<>();
+					for (Map.Entry<Annotation, Position> e : model.entrySet()) {
+						Position p = e.getValue();
+						if (!p.isDeleted() && p.getOffset() <= to && p.getOffset() + p.getLength() >= from) {
+							expected.add(e.getKey());
+						}
+					}
+					Set<Annotation> found = new HashSet<>();
+					index.remove(from, to - from, (x) -> {
+						if (!model.get(x).isDeleted()) found.add(x);
+						return false;
+					});
+					checkEquals(expected, found, "annotations at [" + from + "," + to + ")");
+				}
+			}
+			index.disconnect();
+		}
+	}
+
+	public static void main(String[] args) {
+		main(new AnnotationIndexTest(), args);
+	}
+}
@@ -0,0 +1,123 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random edits of lines, diffed with {@link LineDiff}: applying the replacements
+ * to a {@link StringBuilder} with the old text must give the new text,
+ * the replacements must be in order and replace whole lines,
+ * and the lines they leave must be as many as in a longest common subsequence
+ * of the lines, found the naive way.
+ */
+public class LineDiffTest extends RandomizedTest {
+
+	private static final String[] LINES = {
+		"a\n", "b\n", "c\r\n", ":: Start\n", "<<set $x to 1>>\n", "\n", "\r", "no newline"
+	};
+
+	@Override
+	protected void run(Random random) {
+		for (int round=0; round < 100000; ++round) {
+			List<String> lines = new ArrayList<>();
+			for (int n = random.nextInt(30); n > 0; --n) lines.add(randomLine(random));
+			String oldText = join(lines);
+			int edits = random.nextInt(6);
+			for (int e=0; e < edits; ++e) {
+				int op = random.nextInt(3);
+				if (op == 0 && !lines.isEmpty()) {
+					lines.remove(random.nextInt(lines.size()));
+				} else if (op == 1 || lines.isEmpty()) {
+					lines.add(random.nextInt(lines.size() + 1), randomLine(random));
+				} else {
+					lines.set(random.nextInt(lines.size()), randomLine(random));
+				}
+			}
+			String newText = join(lines);
+			int maxLines = random.nextInt(3) == 0 ? random.nextInt(4) : 1000;
+			List<LineDiff.Replacement> replacements = LineDiff.compute(oldText, newText, maxLines);
+
+			StringBuilder model = new StringBuilder(oldText);
+			for (int i = replacements.size() - 1; i >= 0; --i) {
+				LineDiff.Replacement r = replacements.get(i);
+				model.replace(r.offset, r.offset + r.length, r.text);
+			}
+			String what = "diff of \"" + oldText + "\" and \"" + newText + "\": " + replacements;
+			checkEquals(newText, model.toString(), what);
+			List<Integer> starts = lineStarts(oldText);
+			int last = -1;
+			int replaced = 0;
+			for (LineDiff.Replacement r : replacements) {
+				check(r.offset > last, "replacements out of order or next to each other in " + what);
+				int first = starts.indexOf(r.offset), end = starts.indexOf(r.offset + r.length);
+				check(first >= 0 && end >= 0, "replacement not of whole lines in " + what);
+				replaced += end - first;
+				last = r.offset + r.length;
+			}
+			if (maxLines == 1000) {
+				// the lines not replaced are a longest common subsequence
+				checkEquals(starts.size() - 1 - replaced, lcs(split(oldText), split(newText)), "lines kept in " + what);
+			}
+		}
+	}
+
+	/**
+	 * Return the offsets at which the lines of a text start, followed by its length.
+	 */
+	private static List<Integer> lineStarts(String text) {
+		List<Integer> starts = new ArrayList<>();
+		int offset = 0;
+		for (String line : split(text)) {
+			starts.add(offset);
+			offset += line.length();
+		}
+		starts.add(offset);
+		return starts;
+	}
+
+	/**
+	 * Split a text into lines, each with its delimiter (\n, \r or \r\n).
+	 */
+	private static List<String> split(String text) {
+		List<String> lines = new ArrayList<>();
+		int start = 0;
+		for (int i=0; i < text.length(); ++i) {
+			char ch = text.charAt(i);
+			if (ch == '\r' && i + 1 < text.length() && text.charAt(i+1) == '\n') ++i;
+			if (ch == '\r' || ch == '\n') {
+				lines.add(text.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+		if (start < text.length()) lines.add(text.substring(start));
+		return lines;
+	}
+
+	/**
+	 * Return the length of a longest common subsequence of two lists.
+	 */
+	private static int lcs(List<String> a, List<String> b) {
+		int[][] length = new int[a.size() + 1][b.size() + 1];
+		for (int i = a.size() - 1; i >= 0; --i) {
+			for (int j = b.size() - 1; j >= 0; --j) {
+				length[i][j] = a.get(i).equals(b.get(j)) ? length[i+1][j+1] + 1 : Math.max(length[i+1][j], length[i][j+1]);
+			}
+		}
+		return length[0][0];
+	}
+
+	private static String randomLine(Random random) {
+		return LINES[random.nextInt(LINES.length)];
+	}
+
+	private static String join(List<String> lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) sb.append(line);
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		main(new LineDiffTest(), args);
+	}
+}
@@ -0,0 +1,110 @@
+package edu.uwm.eclipse.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.BadPositionCategoryException;
+import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.Position;
+
+/**
+ * Random problems and changes to the document, compared with positions
+ * kept up to date by a {@link DefaultPositionUpdater}, as the annotation model's would be:
+ * the {@link ProblemStore} must have a problem for each undeleted position,
+ * where the position is, and take out those in a region that the model has there.
+ */
+public class ProblemStoreTest extends RandomizedTest {
+
+	private static final String CATEGORY = "test";
+
+	@Override
+	protected void run(Random random) throws BadLocationException, BadPositionCategoryException {
+		for (int round=0; round < 50; ++round) {
+			Document document = new Document(randomText(random, 2000));
+			document.addPositionCategory(CATEGORY);
+			document.addPositionUpdater(new DefaultPositionUpdater(CATEGORY));
+			ProblemStore store = new ProblemStore();
+			store.connect(document);
+			// the message of each position (positions change, so they are compared by identity)
+			Map<Position, String> model = new IdentityHashMap<>();
+			for (int step=0; step < 200; ++step) {
+				int length = document.getLength();
+				int offset = random.nextInt(length + 1);
+				int op = random.nextInt(10);
+				if (op < 5) {
+					// many problems, so that blocks are split
+					for (int n = random.nextInt(step < 20 ? 200 : 5); n >= 0; --n) {
+						int start = random.nextInt(length + 1);
+						Position p = new Position(start, random.nextInt(Math.min(8, length - start) + 1));
+						String message = "problem " + random.nextInt(10);
+						document.addPosition(CATEGORY, p);
+						model.put(p, message);
+						store.add(p.getOffset(), p.getLength(), message);
+					}
+				} else if (op < 6) {
+					int end = offset + random.nextInt(Math.min(50, length - offset) + 1);
+					List<String> expected = new ArrayList<>();
+					for (Iterator<Map.Entry<Position, String>> it = model.entrySet().iterator(); it.hasNext(); ) {
+						Map.Entry<Position, String> e = it.next();
+						Position p = e.getKey();
+						if (p.isDeleted()) continue;
+						boolean in = p.getLength() == 0 ? p.getOffset() >= offset && p.getOffset() <= end
+								: p.getOffset() < end && p.getOffset() + p.getLength() > offset;
+						if (in) {
+							expected.add(describe(p.getOffset(), p.getLength(), e.getValue()));
+							document.removePosition(CATEGORY, p);
+							it.remove();
+						}
+					}
+					List<String> taken = new ArrayList<>();
+					for (ProblemStore.Problem problem : store.take(offset, end - offset, Integer.MAX_VALUE)) {
+						taken.add(describe(problem.offset, problem.length, problem.message));
+					}
+					checkSame(expected, taken, "problems taken from [" + offset + "," + end + ")");
+				} else {
+					int deleted = random.nextInt(Math.min(40, length - offset) + 1);
+					document.replace(offset, deleted, randomText(random, random.nextInt(3) == 0 ? 0 : random.nextInt(30)));
+				}
+				List<String> expected = new ArrayList<>();
+				for (Map.Entry<Position, String> e : model.entrySet()) {
+					Position p = e.getKey();
+					if (!p.isDeleted()) expected.add(describe(p.getOffset(), p.getLength(), e.getValue()));
+				}
+				List<String> stored = new ArrayList<>();
+				int last = -1;
+				for (ProblemStore.Problem problem : store.getAll()) {
+					check(problem.offset >= last, "problems out of order");
+					last = problem.offset;
+					stored.add(describe(problem.offset, problem.length, problem.message));
+				}
+				checkSame(expected, stored, "problems stored");
+				checkEquals(stored.size(), store.size(), "size");
+			}
+			store.disconnect();
+		}
+	}
+
+	private static String describe(int offset, int length, String message) {
+		return offset + "+" + length + ":" + message;
+	}
+
+	/**
+	 * Check that two lists have the same elements, in any order.
+	 */
+	private void checkSame(List<String> expected, List<String> actual, String what) {
+		Collections.sort(expected);
+		Collections.sort(actual);
+		checkEquals(expected, actual, what);
+	}
+
+	public static void main(String[] args) {
+		main(new ProblemStoreTest(), args);
+	}
+}
@@ -0,0 +1,69 @@
+package edu.uwm.eclipse.util;
+
+import java.util.Random;
+
+/**
+ * A test that compares a data structure with a simple model of it
+ * after random operations.  The test is run as a program, which exits with status 1
+ * if a check fails.  The random seed is printed, and can be given as the first argument
+ * to repeat a run; otherwise each run uses a new seed.
+ */
+public abstract class RandomizedTest {
+
+	private long fSeed;
+	private int fChecks;
+
+	/**
+	 * Perform the random operations, calling {@link #check(boolean, String)} as they go.
+	 * @param random source of random numbers
+	 * @throws Exception if something goes wrong
+	 */
+	protected abstract void run(Random random) throws Exception;
+
+	/**
+	 * Fail the test if a condition is false.
+	 * @param condition what should be true
+	 * @param message what went wrong, for the report
+	 */
+	protected void check(boolean condition, String message) {
+		++fChecks;
+		if (!condition) throw new AssertionError(getClass().getSimpleName() + " (seed " + fSeed + "): " + message);
+	}
+
+	/**
+	 * Fail the test if two values are not equal.
+	 */
+	protected void checkEquals(Object expected, Object actual, String what) {
+		check(expected == null ? actual == null : expected.equals(actual),
+				what + ": expected " + expected + " but got " + actual);
+	}
+
+	/**
+	 * Return a random string of letters, of the given length.
+	 */
+	protected static String randomText(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i=0; i < length; ++i) {
+			chars[i] = (char)('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Run a test as the main program does, reporting the result.
+	 * @param test test to run
+	 * @param args arguments of the program: the seed, if any
+	 */
+	public static void main(RandomizedTest test, String[] args) {
+		test.fSeed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		String name = test.getClass().getSimpleName();
+		try {
+			test.run(new Random(test.fSeed));
+		} catch (Throwable e) {
+			System.err.println(name + " failed with seed " + test.fSeed);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println(name + ": " + test.fChecks + " checks passed (seed " + test.fSeed + ")");
+	}
+}
@@ -0,0 +1,59 @@
+package edu.uwm.eclipse.util;
+
+import java.util.Random;
+
+/**
+ * Random replacements in a {@link Rope}, compared with a {@link StringBuilder}.
+ * The rope must also stay balanced.
+ */
+public class RopeTest extends RandomizedTest {
+
+	@Override
+	protected void run(Random random) {
+		for (int round=0; round < 200; ++round) {
+			StringBuilder model = new StringBuilder();
+			Rope rope = Rope.EMPTY;
+			Rope previous = rope;
+			String previousText = "";
+			for (int step=0; step < 200; ++step) {
+				int length = model.length();
+				int start = random.nextInt(length + 1);
+				int end = start + random.nextInt(Math.min(length - start, 3000) + 1);
+				String text = randomText(random, random.nextInt(random.nextBoolean() ? 20 : 3000));
+				model.replace(start, end, text);
+				rope = rope.replace(start, end, text);
+				checkEquals(model.toString(), rope.toString(), "text after replacing [" + start + "," + end + ")");
+				checkEquals(model.length(), rope.length(), "length");
+				check(rope.depth() <= maxDepth(rope.length()), "depth " + rope.depth() + " for length " + rope.length());
+				// ropes are immutable
+				checkEquals(previousText, previous.toString(), "text of the rope before");
+				previous = rope;
+				previousText = model.toString();
+
+				int from = random.nextInt(model.length() + 1);
+				int to = from + random.nextInt(model.length() - from + 1);
+				Rope slice = rope.subSequence(from, to);
+				checkEquals(model.substring(from, to), slice.toString(), "slice [" + from + "," + to + ")");
+				if (to > from) {
+					int i = from + random.nextInt(to - from);
+					checkEquals(model.charAt(i), rope.charAt(i), "character " + i);
+					checkEquals(model.charAt(i), slice.charAt(i - from), "character " + (i - from) + " of slice");
+				}
+				Rope other = Rope.of(randomText(random, random.nextInt(100)));
+				checkEquals(model.toString() + other, rope.concat(other).toString(), "concatenation");
+			}
+		}
+	}
+
+	/**
+	 * Return the greatest depth a balanced tree of leaves of at least one character
+	 * may have: siblings differ in depth by at most one, as in an AVL tree.
+	 */
+	private static int maxDepth(int length) {
+		return (int)(1.45 * Math.log(length + 2) / Math.log(2)) + 1;
+	}
+
+	public static void main(String[] args) {
+		main(new RopeTest(), args);
+	}
+}
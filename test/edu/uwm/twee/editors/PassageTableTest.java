@@ -0,0 +1,165 @@
+package edu.uwm.twee.editors;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+import edu.uwm.eclipse.util.RandomizedTest;
+
+/**
+ * Random changes to a document and replacements of passages in a {@link PassageTable},
+ * compared with a plain list of headers that is updated one header at a time.
+ */
+public class PassageTableTest extends RandomizedTest {
+
+	/**
+	 * A passage of the model: its header and element.
+	 */
+	private static final class Header {
+		int start, end;
+		final String element;
+
+		Header(int start, int end, String element) {
+			this.start = start;
+			this.end = end;
+			this.element = element;
+		}
+	}
+
+	@Override
+	protected void run(Random random) throws BadLocationException {
+		for (int round=0; round < 2000; ++round) {
+			Document document = new Document(randomText(random, random.nextInt(2000)));
+			// elements are named by their first word, so that names are shared
+			PassageTable<String> table = new PassageTable<>((e) -> e.substring(0, e.indexOf(' ')));
+			table.setDocument(document);
+			List<Header> model = new ArrayList<>();
+			List<String> elements = new ArrayList<>();
+			List<IRegion> headers = new ArrayList<>();
+			for (int pos = random.nextInt(60); ; pos += random.nextInt(60) + 1) {
+				int length = random.nextInt(20);
+				if (pos + length > document.getLength()) break;
+				String element = randomElement(random, model.size());
+				elements.add(element);
+				headers.add(new Region(pos, length));
+				model.add(new Header(pos, pos + length, element));
+				pos += length;
+			}
+			table.replace(0, document.getLength(), elements, headers, null);
+			compare(table, model, document.getLength(), random);
+
+			for (int step=0; step < 50; ++step) {
+				int length = document.getLength();
+				int offset = random.nextInt(length + 1);
+				if (random.nextInt(5) == 0) {
+					replace(table, model, offset, random.nextInt(Math.min(100, length - offset) + 1), random);
+				} else {
+					int deleted = random.nextInt(Math.min(30, length - offset) + 1);
+					String text = randomText(random, random.nextInt(4));
+					document.replace(offset, deleted, text);
+					update(model, offset, deleted, text.length());
+				}
+				compare(table, model, document.getLength(), random);
+			}
+			table.setDocument(null);
+		}
+	}
+
+	private static String randomElement(Random random, int id) {
+		return "P" + random.nextInt(20) + " " + id;
+	}
+
+	/**
+	 * Replace the passages in a region with new ones that fit where the old ones were,
+	 * in the table and in the model.
+	 */
+	private void replace(PassageTable<String> table, List<Header> model, int offset, int length, Random random) {
+		int from = 0;
+		while (from < model.size() && model.get(from).start < offset) ++from;
+		if (from > 0 && model.get(from-1).end > offset) --from;
+		int to = from;
+		while (to < model.size() && model.get(to).start < offset + length) ++to;
+		List<String> expectedRemoved = new ArrayList<>();
+		for (int i=from; i < to; ++i) {
+			expectedRemoved.add(model.get(from).element);
+			model.remove(from);
+		}
+		// the new headers go after the one before and before the one after
+		int lo = from > 0 ? Math.max(offset, model.get(from-1).end) : offset;
+		int hi = from < model.size() ? Math.min(offset + length, model.get(from).start) : offset + length;
+		List<String> elements = new ArrayList<>();
+		List<IRegion> headers = new ArrayList<>();
+		int index = from;
+		for (int pos = lo; pos < hi && random.nextBoolean(); ) {
+			pos += random.nextInt(hi - pos);
+			int len = Math.min(hi - pos, random.nextInt(6));
+			String element = randomElement(random, 1000 + index);
+			elements.add(element);
+			headers.add(new Region(pos, len));
+			model.add(index++, new Header(pos, pos + len, element));
+			pos += len + 1;
+		}
+		List<String> removed = new ArrayList<>();
+		int at = table.replace(offset, length, elements, headers, removed);
+		checkEquals(from, at, "index of passages replaced in [" + offset + "," + (offset + length) + ")");
+		checkEquals(expectedRemoved, removed, "passages removed");
+	}
+
+	/**
+	 * Follow a change to the document: headers after it move,
+	 * and headers that overlap the removed text lose what was removed.
+	 */
+	private static void update(List<Header> model, int offset, int removed, int inserted) {
+		int end = offset + removed;
+		int delta = inserted - removed;
+		for (Header h : model) {
+			int s = h.start, e = h.end;
+			if (e <= offset) continue;
+			if (s >= end) {
+				h.start += delta;
+				h.end += delta;
+				continue;
+			}
+			if (s >= offset) s = offset + inserted;
+			if (e >= end) e += delta;
+			else e = offset;
+			h.start = s;
+			h.end = Math.max(s, e);
+		}
+	}
+
+	private void compare(PassageTable<String> table, List<Header> model, int documentLength, Random random) {
+		checkEquals(model.size(), table.size(), "number of passages");
+		Set<String> names = new HashSet<>();
+		for (int i=0; i < model.size(); ++i) {
+			Header h = model.get(i);
+			checkEquals(h.start, table.getOffset(i), "offset of passage " + i);
+			checkEquals(h.end - h.start, table.getLength(i), "length of header of passage " + i);
+			checkEquals(h.element, table.get(i), "element of passage " + i);
+			names.add(h.element.substring(0, h.element.indexOf(' ')));
+		}
+		checkEquals(names, table.getNames(), "names");
+		int offset = random.nextInt(documentLength + 1);
+		int expected = -1;
+		while (expected + 1 < model.size() && model.get(expected + 1).start <= offset) ++expected;
+		checkEquals(expected, table.find(offset), "passage at " + offset);
+		IRegion header = table.getHeader(offset);
+		boolean inHeader = expected >= 0 && offset < model.get(expected).end;
+		check(inHeader == (header != null), "whether " + offset + " is in a header");
+		if (!model.isEmpty()) {
+			int i = random.nextInt(model.size());
+			checkEquals(i, table.indexOf(table.get(i)), "index of element " + i);
+		}
+	}
+
+	public static void main(String[] args) {
+		main(new PassageTableTest(), args);
+	}
+}